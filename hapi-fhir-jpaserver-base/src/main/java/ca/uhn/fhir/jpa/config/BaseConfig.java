@@ -37,7 +37,17 @@ import org.springframework.scheduling.concurrent.ConcurrentTaskScheduler;
 import org.springframework.scheduling.concurrent.ScheduledExecutorFactoryBean;
 import org.springframework.scheduling.config.ScheduledTaskRegistrar;
 
+import ca.uhn.fhir.jpa.dao.ForcedIdCacheSvc;
+import ca.uhn.fhir.jpa.dao.HistoryCompactionSvc;
+import ca.uhn.fhir.jpa.dao.IndexRowStatisticsSvc;
+import ca.uhn.fhir.jpa.dao.SubscriptionMatcherSvc;
+import ca.uhn.fhir.jpa.dao.TagDefinitionCacheSvc;
 import ca.uhn.fhir.jpa.search.DatabaseBackedPagingProvider;
+import ca.uhn.fhir.jpa.search.HistoryCursorSvc;
+import ca.uhn.fhir.jpa.search.KeywordSuggestionSvc;
+import ca.uhn.fhir.jpa.search.SearchParamSelectivitySvc;
+import ca.uhn.fhir.jpa.search.SearchResultWriterSvc;
+import ca.uhn.fhir.jpa.search.SearchReuseSvc;
 import ca.uhn.fhir.jpa.search.StaleSearchDeletingSvc;
 
 @Configuration
@@ -63,11 +73,61 @@ public class BaseConfig implements SchedulingConfigurer {
 		return retVal;
 	}
 
+	@Bean(autowire=Autowire.BY_TYPE)
+	public ForcedIdCacheSvc forcedIdCacheSvc() {
+		return new ForcedIdCacheSvc();
+	}
+
+	@Bean(autowire=Autowire.BY_TYPE)
+	public HistoryCompactionSvc historyCompactionSvc() {
+		return new HistoryCompactionSvc();
+	}
+
+	@Bean(autowire=Autowire.BY_TYPE)
+	public HistoryCursorSvc historyCursorSvc() {
+		return new HistoryCursorSvc();
+	}
+
+	@Bean(autowire=Autowire.BY_TYPE)
+	public IndexRowStatisticsSvc indexRowStatisticsSvc() {
+		return new IndexRowStatisticsSvc();
+	}
+
+	@Bean(autowire=Autowire.BY_TYPE)
+	public KeywordSuggestionSvc keywordSuggestionSvc() {
+		return new KeywordSuggestionSvc();
+	}
+
+	@Bean(autowire=Autowire.BY_TYPE)
+	public SearchParamSelectivitySvc searchParamSelectivitySvc() {
+		return new SearchParamSelectivitySvc();
+	}
+
+	@Bean(autowire=Autowire.BY_TYPE)
+	public SearchResultWriterSvc searchResultWriterSvc() {
+		return new SearchResultWriterSvc();
+	}
+
+	@Bean(autowire=Autowire.BY_TYPE)
+	public SearchReuseSvc searchReuseSvc() {
+		return new SearchReuseSvc();
+	}
+
 	@Bean(autowire=Autowire.BY_TYPE)
 	public StaleSearchDeletingSvc staleSearchDeletingSvc() {
 		return new StaleSearchDeletingSvc();
 	}
 
+	@Bean(autowire=Autowire.BY_TYPE)
+	public SubscriptionMatcherSvc subscriptionMatcherSvc() {
+		return new SubscriptionMatcherSvc();
+	}
+
+	@Bean(autowire=Autowire.BY_TYPE)
+	public TagDefinitionCacheSvc tagDefinitionCacheSvc() {
+		return new TagDefinitionCacheSvc();
+	}
+
 	@Bean()
 	public ScheduledExecutorFactoryBean scheduledExecutorService() {
 		ScheduledExecutorFactoryBean b = new ScheduledExecutorFactoryBean();
@@ -23,7 +23,7 @@ import static org.apache.commons.lang3.StringUtils.defaultIfBlank;
 import static org.apache.commons.lang3.StringUtils.isBlank;
 import static org.apache.commons.lang3.StringUtils.isNotBlank;
 
-import java.io.UnsupportedEncodingException;
+import java.io.Reader;
 import java.text.Normalizer;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -31,14 +31,13 @@ import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Set;
 import java.util.UUID;
 
 import javax.persistence.EntityManager;
-import javax.persistence.NoResultException;
 import javax.persistence.PersistenceContext;
 import javax.persistence.PersistenceContextType;
 import javax.persistence.Tuple;
@@ -50,12 +49,14 @@ import javax.persistence.criteria.Root;
 import javax.xml.stream.events.Characters;
 import javax.xml.stream.events.XMLEvent;
 
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.NotImplementedException;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.Validate;
 import org.apache.http.NameValuePair;
 import org.apache.http.client.utils.URLEncodedUtils;
 import org.hl7.fhir.dstu3.model.Bundle.HTTPVerb;
+import org.hl7.fhir.dstu3.model.DomainResource;
 import org.hl7.fhir.dstu3.model.IdType;
 import org.hl7.fhir.dstu3.model.StringType;
 import org.hl7.fhir.instance.model.api.IAnyResource;
@@ -68,10 +69,11 @@ import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.instance.model.api.IDomainResource;
 import org.hl7.fhir.instance.model.api.IIdType;
 import org.hl7.fhir.instance.model.api.IPrimitiveType;
+import org.hl7.fhir.utilities.xhtml.NodeType;
+import org.hl7.fhir.utilities.xhtml.XhtmlNode;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.transaction.PlatformTransactionManager;
 
-import com.google.common.base.Charsets;
 import com.google.common.collect.ArrayListMultimap;
 
 import ca.uhn.fhir.context.BaseRuntimeChildDefinition;
@@ -105,10 +107,15 @@ import ca.uhn.fhir.jpa.entity.ResourceLink;
 import ca.uhn.fhir.jpa.entity.ResourceTable;
 import ca.uhn.fhir.jpa.entity.ResourceTag;
 import ca.uhn.fhir.jpa.entity.Search;
+import ca.uhn.fhir.jpa.entity.SearchStatusEnum;
 import ca.uhn.fhir.jpa.entity.SearchTypeEnum;
 import ca.uhn.fhir.jpa.entity.TagDefinition;
 import ca.uhn.fhir.jpa.entity.TagTypeEnum;
+import ca.uhn.fhir.jpa.search.HistoryCursorSvc;
+import ca.uhn.fhir.jpa.search.KeywordSuggestionSvc;
 import ca.uhn.fhir.jpa.search.PersistedJpaBundleProvider;
+import ca.uhn.fhir.jpa.search.SearchReuseSvc;
+import ca.uhn.fhir.jpa.search.SearchResultWriterSvc;
 import ca.uhn.fhir.jpa.util.DeleteConflict;
 import ca.uhn.fhir.model.api.IQueryParameterAnd;
 import ca.uhn.fhir.model.api.IQueryParameterType;
@@ -144,6 +151,7 @@ import ca.uhn.fhir.rest.server.interceptor.IServerInterceptor.ActionRequestDetai
 import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
 import ca.uhn.fhir.util.CoverageIgnore;
 import ca.uhn.fhir.util.FhirTerser;
+import ca.uhn.fhir.util.IModelVisitor;
 import ca.uhn.fhir.util.OperationOutcomeUtil;
 
 public abstract class BaseHapiFhirDao<T extends IBaseResource> implements IDao {
@@ -151,6 +159,11 @@ public abstract class BaseHapiFhirDao<T extends IBaseResource> implements IDao {
 	private static final String PROCESSING_SUB_REQUEST = "BaseHapiFhirDao.processingSubRequest";
 	public static final long INDEX_STATUS_INDEXED = Long.valueOf(1L);
 	public static final long INDEX_STATUS_INDEXING_FAILED = Long.valueOf(2L);
+	/**
+	 * The maximum number of characters of narrative text, and of content text, which is indexed
+	 * for fulltext searching for a single resource. Any text beyond this is not indexed.
+	 */
+	public static final int MAX_FULLTEXT_TEXT_LENGTH = 1024 * 1024;
 	public static final String NS_JPA_PROFILE = "https://github.com/jamesagnew/hapi-fhir/ns/jpa/profile";
 	public static final String OO_SEVERITY_ERROR = "error";
 	public static final String OO_SEVERITY_INFO = "information";
@@ -193,9 +206,24 @@ public abstract class BaseHapiFhirDao<T extends IBaseResource> implements IDao {
 	@PersistenceContext(type = PersistenceContextType.TRANSACTION)
 	protected EntityManager myEntityManager;
 
+	@Autowired
+	private ForcedIdCacheSvc myForcedIdCacheSvc;
+
 	@Autowired
 	protected IForcedIdDao myForcedIdDao;
 
+	@Autowired
+	private HistoryCompactionSvc myHistoryCompactionSvc;
+
+	@Autowired
+	private HistoryCursorSvc myHistoryCursorSvc;
+
+	@Autowired
+	private IndexRowStatisticsSvc myIndexRowStatisticsSvc;
+
+	@Autowired
+	private KeywordSuggestionSvc myKeywordSuggestionSvc;
+
 	@Autowired
 	private PlatformTransactionManager myPlatformTransactionManager;
 
@@ -205,7 +233,7 @@ public abstract class BaseHapiFhirDao<T extends IBaseResource> implements IDao {
 	@Autowired
 	private IResourceHistoryTableDao myResourceHistoryTableDao;
 
-	private Map<Class<? extends IBaseResource>, IFhirResourceDao<?>> myResourceTypeToDao;
+	private volatile Map<Class<? extends IBaseResource>, IFhirResourceDao<?>> myResourceTypeToDao;
 
 	@Autowired
 	private ISearchDao mySearchDao;
@@ -213,9 +241,21 @@ public abstract class BaseHapiFhirDao<T extends IBaseResource> implements IDao {
 	@Autowired
 	private ISearchParamExtractor mySearchParamExtractor;
 
+	@Autowired
+	private SearchReuseSvc mySearchReuseSvc;
+
 	@Autowired
 	private ISearchResultDao mySearchResultDao;
 
+	@Autowired
+	private SearchResultWriterSvc mySearchResultWriterSvc;
+
+	@Autowired
+	private SubscriptionMatcherSvc mySubscriptionMatcherSvc;
+
+	@Autowired
+	private TagDefinitionCacheSvc myTagDefinitionCacheSvc;
+
 	protected void createForcedIdIfNeeded(ResourceTable theEntity, IIdType theId) {
 		if (theId.isEmpty() == false && theId.hasIdPart()) {
 			if (isValidPid(theId)) {
@@ -246,6 +286,8 @@ public abstract class BaseHapiFhirDao<T extends IBaseResource> implements IDao {
 			return;
 		}
 
+		preloadReferenceTargets(theResource);
+
 		RuntimeResourceDefinition def = getContext().getResourceDefinition(theResource);
 		for (RuntimeSearchParam nextSpDef : def.getSearchParams()) {
 
@@ -371,6 +413,48 @@ public abstract class BaseHapiFhirDao<T extends IBaseResource> implements IDao {
 
 	}
 
+	/**
+	 * Resolves the forced IDs of all of the resources referenced by the given resource, and
+	 * loads those resources, using one query for each resource type and one for all of the
+	 * resources, instead of one of each per reference. The loaded resources stay in the
+	 * persistence context, so the lookups made while extracting the links are then cached.
+	 */
+	private void preloadReferenceTargets(IBaseResource theResource) {
+		Set<Long> pids = new HashSet<Long>();
+		Map<String, Set<String>> typeToForcedIds = new HashMap<String, Set<String>>();
+		for (IBaseReference nextRef : getContext().newTerser().getAllPopulatedChildElementsOfType(theResource, IBaseReference.class)) {
+			IIdType nextId = nextRef.getReferenceElement();
+			if (nextId.isEmpty() || nextId.hasBaseUrl() || !nextId.hasResourceType() || !nextId.hasIdPart() || nextId.getValue().startsWith("#")) {
+				continue;
+			}
+			if (isValidPid(nextId)) {
+				pids.add(nextId.getIdPartAsLong());
+			} else {
+				Set<String> forcedIds = typeToForcedIds.get(nextId.getResourceType());
+				if (forcedIds == null) {
+					forcedIds = new HashSet<String>();
+					typeToForcedIds.put(nextId.getResourceType(), forcedIds);
+				}
+				forcedIds.add(nextId.getIdPart());
+			}
+		}
+
+		for (Entry<String, Set<String>> nextEntry : typeToForcedIds.entrySet()) {
+			pids.addAll(myForcedIdCacheSvc.getPids(nextEntry.getKey(), nextEntry.getValue()).values());
+		}
+
+		// A single reference is loaded just as cheaply by the link extraction itself
+		if (pids.size() > 1) {
+			List<Long> pidList = new ArrayList<Long>(pids);
+			for (int start = 0; start < pidList.size(); start += SearchBuilder.MAX_PIDS_IN_QUERY) {
+				List<Long> chunk = pidList.subList(start, Math.min(start + SearchBuilder.MAX_PIDS_IN_QUERY, pidList.size()));
+				TypedQuery<ResourceTable> q = myEntityManager.createQuery("SELECT t FROM ResourceTable t WHERE t.myId IN (:pids)", ResourceTable.class);
+				q.setParameter("pids", chunk);
+				q.getResultList();
+			}
+		}
+	}
+
 	protected Set<ResourceIndexedSearchParamCoords> extractSearchParamCoords(ResourceTable theEntity, IBaseResource theResource) {
 		return mySearchParamExtractor.extractSearchParamCoords(theEntity, theResource);
 	}
@@ -514,53 +598,31 @@ public abstract class BaseHapiFhirDao<T extends IBaseResource> implements IDao {
 
 	@SuppressWarnings("unchecked")
 	public <R extends IBaseResource> IFhirResourceDao<R> getDao(Class<R> theType) {
-		if (myResourceTypeToDao == null) {
-			myResourceTypeToDao = new HashMap<Class<? extends IBaseResource>, IFhirResourceDao<?>>();
+		Map<Class<? extends IBaseResource>, IFhirResourceDao<?>> resourceTypeToDao = myResourceTypeToDao;
+		if (resourceTypeToDao == null) {
+			// Populated before it is published, since this may be called from several reindexing threads at once
+			resourceTypeToDao = new HashMap<Class<? extends IBaseResource>, IFhirResourceDao<?>>();
 			for (IFhirResourceDao<?> next : myResourceDaos) {
-				myResourceTypeToDao.put(next.getResourceType(), next);
+				resourceTypeToDao.put(next.getResourceType(), next);
 			}
 
 			if (this instanceof IFhirResourceDao<?>) {
 				IFhirResourceDao<?> thiz = (IFhirResourceDao<?>) this;
-				myResourceTypeToDao.put(thiz.getResourceType(), thiz);
+				resourceTypeToDao.put(thiz.getResourceType(), thiz);
 			}
 
+			myResourceTypeToDao = resourceTypeToDao;
 		}
 
-		return (IFhirResourceDao<R>) myResourceTypeToDao.get(theType);
+		return (IFhirResourceDao<R>) resourceTypeToDao.get(theType);
 	}
 
 	protected TagDefinition getTag(TagTypeEnum theTagType, String theScheme, String theTerm, String theLabel) {
-		CriteriaBuilder builder = myEntityManager.getCriteriaBuilder();
-		CriteriaQuery<TagDefinition> cq = builder.createQuery(TagDefinition.class);
-		Root<TagDefinition> from = cq.from(TagDefinition.class);
-
-		//@formatter:off
-		if (isNotBlank(theScheme)) {
-			cq.where(
-				builder.and(
-					builder.equal(from.get("myTagType"), theTagType), 
-					builder.equal(from.get("mySystem"), theScheme), 
-					builder.equal(from.get("myCode"), theTerm))
-				);
-		} else {
-			cq.where(
-				builder.and(
-					builder.equal(from.get("myTagType"), theTagType), 
-					builder.isNull(from.get("mySystem")), 
-					builder.equal(from.get("myCode"), theTerm))
-				);
-		}
-		//@formatter:on
+		return myTagDefinitionCacheSvc.getTag(theTagType, theScheme, theTerm, theLabel);
+	}
 
-		TypedQuery<TagDefinition> q = myEntityManager.createQuery(cq);
-		try {
-			return q.getSingleResult();
-		} catch (NoResultException e) {
-			TagDefinition retVal = new TagDefinition(theTagType, theScheme, theTerm, theLabel);
-			myEntityManager.persist(retVal);
-			return retVal;
-		}
+	protected TagDefinitionCacheSvc getTagDefinitionCacheSvc() {
+		return myTagDefinitionCacheSvc;
 	}
 
 	protected TagList getTags(Class<? extends IBaseResource> theResourceType, IIdType theResourceId) {
@@ -613,6 +675,7 @@ public abstract class BaseHapiFhirDao<T extends IBaseResource> implements IDao {
 		search.setResourceType(resourceName);
 		search.setResourceId(theId);
 		search.setSearchType(SearchTypeEnum.HISTORY);
+		search.setStatus(SearchStatusEnum.FINISHED);
 
 		if (theSince != null) {
 			if (resourceName == null) {
@@ -641,9 +704,12 @@ public abstract class BaseHapiFhirDao<T extends IBaseResource> implements IDao {
 	public void injectDependenciesIntoBundleProvider(PersistedJpaBundleProvider theProvider) {
 		theProvider.setContext(getContext());
 		theProvider.setEntityManager(myEntityManager);
+		theProvider.setHistoryCursorSvc(myHistoryCursorSvc);
 		theProvider.setPlatformTransactionManager(myPlatformTransactionManager);
 		theProvider.setSearchDao(mySearchDao);
 		theProvider.setSearchResultDao(mySearchResultDao);
+		theProvider.setSearchResultWriterSvc(mySearchResultWriterSvc);
+		theProvider.setTagDefinitionCacheSvc(myTagDefinitionCacheSvc);
 	}
 
 	protected void notifyInterceptors(RestOperationTypeEnum theOperationType, ActionRequestDetails theRequestDetails) {
@@ -679,22 +745,54 @@ public abstract class BaseHapiFhirDao<T extends IBaseResource> implements IDao {
 	}
 	
 	public String parseContentTextIntoWords(IBaseResource theResource) {
-		StringBuilder retVal = new StringBuilder();
-		@SuppressWarnings("rawtypes")
-		List<IPrimitiveType> childElements = getContext().newTerser().getAllPopulatedChildElementsOfType(theResource, IPrimitiveType.class);
-		for (@SuppressWarnings("rawtypes")
-		IPrimitiveType nextType : childElements) {
-			if (nextType instanceof StringDt || nextType.getClass().equals(StringType.class)) {
-				String nextValue = nextType.getValueAsString();
-				if (isNotBlank(nextValue)) {
-					retVal.append(nextValue.replace("\n", " ").replace("\r", " "));
-					retVal.append("\n");
+		final BoundedTextBuilder retVal = new BoundedTextBuilder();
+		getContext().newTerser().visit(theResource, new IModelVisitor() {
+			@Override
+			public void acceptElement(IBaseResource theOuterResource, IBase theElement, List<String> thePathToElement, BaseRuntimeChildDefinition theChildDefinition, BaseRuntimeElementDefinition<?> theDefinition) {
+				if (retVal.isFull()) {
+					return;
+				}
+				if (theElement instanceof StringDt || (theElement != null && theElement.getClass().equals(StringType.class))) {
+					String nextValue = ((IPrimitiveType<?>) theElement).getValueAsString();
+					if (isNotBlank(nextValue)) {
+						retVal.appendLine(nextValue);
+					}
 				}
 			}
-		}
+		});
 		return retVal.toString();
 	}
 
+	/**
+	 * Performs the part of indexing a resource which does not need the database: extracting
+	 * its search parameter values and parsing its text for fulltext indexing. This does not
+	 * modify the entity, so for a batch of resources it may be called from several threads
+	 * at once (after any references in the resources have been finalized), and the result
+	 * passed to {@link #updateEntity(IBaseResource, ResourceTable, Date, boolean, boolean, Date, PreparedIndexing)}.
+	 */
+	protected PreparedIndexing prepareIndexing(IBaseResource theResource, ResourceTable theEntity) {
+		PreparedIndexing retVal = new PreparedIndexing();
+		retVal.myStringParams = extractSearchParamStrings(theEntity, theResource);
+		retVal.myNumberParams = extractSearchParamNumber(theEntity, theResource);
+		retVal.myQuantityParams = extractSearchParamQuantity(theEntity, theResource);
+		retVal.myDateParams = extractSearchParamDates(theEntity, theResource);
+		retVal.myUriParams = extractSearchParamUri(theEntity, theResource);
+		retVal.myCoordsParams = extractSearchParamCoords(theEntity, theResource);
+
+		retVal.myTokenParams = new HashSet<ResourceIndexedSearchParamToken>();
+		for (BaseResourceIndexedSearchParam next : extractSearchParamTokens(theEntity, theResource)) {
+			if (next instanceof ResourceIndexedSearchParamToken) {
+				retVal.myTokenParams.add((ResourceIndexedSearchParamToken) next);
+			} else {
+				retVal.myStringParams.add((ResourceIndexedSearchParamString) next);
+			}
+		}
+
+		retVal.myNarrativeText = parseNarrativeTextIntoWords(theResource);
+		retVal.myContentText = parseContentTextIntoWords(theResource);
+		return retVal;
+	}
+
 	@Override
 	public void populateFullTextFields(final IBaseResource theResource, ResourceTable theEntity) {
 		if (theEntity.getDeleted() != null) {
@@ -726,18 +824,10 @@ public abstract class BaseHapiFhirDao<T extends IBaseResource> implements IDao {
 			}
 		}
 
-		String encoded = myConfig.getResourceEncoding().newParser(myContext).encodeResourceToString(theResource);
 		ResourceEncodingEnum encoding = myConfig.getResourceEncoding();
 		theEntity.setEncoding(encoding);
 		theEntity.setFhirVersion(myContext.getVersion().getVersion());
-		switch (encoding) {
-		case JSON:
-			theEntity.setResource(encoded.getBytes(Charsets.UTF_8));
-			break;
-		case JSONC:
-			theEntity.setResource(GZipUtil.compress(encoded));
-			break;
-		}
+		theEntity.setResource(encoding.encode(myContext, theResource));
 
 		Set<TagDefinition> allDefs = new HashSet<TagDefinition>();
 
@@ -784,7 +874,7 @@ public abstract class BaseHapiFhirDao<T extends IBaseResource> implements IDao {
 	}
 
 	@SuppressWarnings("unchecked")
-	private <R extends IBaseResource> R populateResourceMetadataHapi(Class<R> theResourceType, BaseHasResource theEntity, boolean theForHistoryOperation, IResource res) {
+	private <R extends IBaseResource> R populateResourceMetadataHapi(Class<R> theResourceType, BaseHasResource theEntity, Collection<TagDefinition> theTagList, boolean theForHistoryOperation, IResource res) {
 		R retVal = (R) res;
 		if (theEntity.getDeleted() != null) {
 			res = (IResource) myContext.getResourceDefinition(theResourceType).newInstance();
@@ -817,25 +907,24 @@ public abstract class BaseHapiFhirDao<T extends IBaseResource> implements IDao {
 			ResourceMetadataKeyEnum.TITLE.put(res, theEntity.getTitle());
 		}
 
-		Collection<? extends BaseTag> tags = theEntity.getTags();
-		if (theEntity.isHasTags()) {
+		if (theTagList != null) {
 			TagList tagList = new TagList();
 			List<IBaseCoding> securityLabels = new ArrayList<IBaseCoding>();
 			List<IdDt> profiles = new ArrayList<IdDt>();
-			for (BaseTag next : tags) {
-				switch (next.getTag().getTagType()) {
+			for (TagDefinition next : theTagList) {
+				switch (next.getTagType()) {
 				case PROFILE:
-					profiles.add(new IdDt(next.getTag().getCode()));
+					profiles.add(new IdDt(next.getCode()));
 					break;
 				case SECURITY_LABEL:
 					IBaseCoding secLabel = (IBaseCoding) myContext.getVersion().newCodingDt();
-					secLabel.setSystem(next.getTag().getSystem());
-					secLabel.setCode(next.getTag().getCode());
-					secLabel.setDisplay(next.getTag().getDisplay());
+					secLabel.setSystem(next.getSystem());
+					secLabel.setCode(next.getCode());
+					secLabel.setDisplay(next.getDisplay());
 					securityLabels.add(secLabel);
 					break;
 				case TAG:
-					tagList.add(new Tag(next.getTag().getSystem(), next.getTag().getCode(), next.getTag().getDisplay()));
+					tagList.add(new Tag(next.getSystem(), next.getCode(), next.getDisplay()));
 					break;
 				}
 			}
@@ -854,7 +943,7 @@ public abstract class BaseHapiFhirDao<T extends IBaseResource> implements IDao {
 	}
 
 	@SuppressWarnings("unchecked")
-	private <R extends IBaseResource> R populateResourceMetadataRi(Class<R> theResourceType, BaseHasResource theEntity, boolean theForHistoryOperation, IAnyResource res) {
+	private <R extends IBaseResource> R populateResourceMetadataRi(Class<R> theResourceType, BaseHasResource theEntity, Collection<TagDefinition> theTagList, boolean theForHistoryOperation, IAnyResource res) {
 		R retVal = (R) res;
 		if (theEntity.getDeleted() != null) {
 			res = (IAnyResource) myContext.getResourceDefinition(theResourceType).newInstance();
@@ -887,25 +976,23 @@ public abstract class BaseHapiFhirDao<T extends IBaseResource> implements IDao {
 		res.getMeta().setLastUpdated(theEntity.getUpdatedDate());
 		IDao.RESOURCE_PID.put(res, theEntity.getId());
 
-		Collection<? extends BaseTag> tags = theEntity.getTags();
-
-		if (theEntity.isHasTags()) {
-			for (BaseTag next : tags) {
-				switch (next.getTag().getTagType()) {
+		if (theTagList != null) {
+			for (TagDefinition next : theTagList) {
+				switch (next.getTagType()) {
 				case PROFILE:
-					res.getMeta().addProfile(next.getTag().getCode());
+					res.getMeta().addProfile(next.getCode());
 					break;
 				case SECURITY_LABEL:
 					IBaseCoding sec = res.getMeta().addSecurity();
-					sec.setSystem(next.getTag().getSystem());
-					sec.setCode(next.getTag().getCode());
-					sec.setDisplay(next.getTag().getDisplay());
+					sec.setSystem(next.getSystem());
+					sec.setCode(next.getCode());
+					sec.setDisplay(next.getDisplay());
 					break;
 				case TAG:
 					IBaseCoding tag = res.getMeta().addTag();
-					tag.setSystem(next.getTag().getSystem());
-					tag.setCode(next.getTag().getCode());
-					tag.setDisplay(next.getTag().getDisplay());
+					tag.setSystem(next.getSystem());
+					tag.setCode(next.getCode());
+					tag.setDisplay(next.getDisplay());
 					break;
 				}
 			}
@@ -1034,31 +1121,30 @@ public abstract class BaseHapiFhirDao<T extends IBaseResource> implements IDao {
 		return toResource(resourceType, theEntity, theForHistoryOperation);
 	}
 
-	@SuppressWarnings("unchecked")
 	@Override
 	public <R extends IBaseResource> R toResource(Class<R> theResourceType, BaseHasResource theEntity, boolean theForHistoryOperation) {
-		String resourceText = null;
-		switch (theEntity.getEncoding()) {
-		case JSON:
-			try {
-				resourceText = new String(theEntity.getResource(), "UTF-8");
-			} catch (UnsupportedEncodingException e) {
-				throw new Error("Should not happen", e);
+		Collection<TagDefinition> tagList = null;
+		if (theEntity.isHasTags()) {
+			tagList = new ArrayList<TagDefinition>();
+			for (BaseTag next : theEntity.getTags()) {
+				tagList.add(next.getTag());
 			}
-			break;
-		case JSONC:
-			resourceText = GZipUtil.decompress(theEntity.getResource());
-			break;
 		}
+		return toResource(theResourceType, theEntity, tagList, theForHistoryOperation);
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public <R extends IBaseResource> R toResource(Class<R> theResourceType, BaseHasResource theEntity, Collection<TagDefinition> theTagList, boolean theForHistoryOperation) {
 
 		/*
 		 * Use the appropriate custom type if one is specified in the context
 		 */
 		Class<R> resourceType = theResourceType;
-		if (myContext.hasDefaultTypeForProfile()) {
-			for (BaseTag nextTag : theEntity.getTags()) {
-				if (nextTag.getTag().getTagType() == TagTypeEnum.PROFILE) {
-					String profile = nextTag.getTag().getCode();
+		if (myContext.hasDefaultTypeForProfile() && theTagList != null) {
+			for (TagDefinition nextTag : theTagList) {
+				if (nextTag.getTagType() == TagTypeEnum.PROFILE) {
+					String profile = nextTag.getCode();
 					if (isNotBlank(profile)) {
 						Class<? extends IBaseResource> newType = myContext.getDefaultTypeForProfile(profile);
 						if (newType != null && theResourceType.isAssignableFrom(newType)) {
@@ -1074,7 +1160,13 @@ public abstract class BaseHapiFhirDao<T extends IBaseResource> implements IDao {
 		IParser parser = theEntity.getEncoding().newParser(getContext(theEntity.getFhirVersion()));
 		R retVal;
 		try {
-			retVal = parser.parseResource(resourceType, resourceText);
+			// Parse straight from the stored bytes rather than decoding them into a String first
+			Reader reader = myHistoryCompactionSvc.newReader(theEntity);
+			try {
+				retVal = parser.parseResource(resourceType, reader);
+			} finally {
+				IOUtils.closeQuietly(reader);
+			}
 		} catch (Exception e) {
 			StringBuilder b = new StringBuilder();
 			b.append("Failed to parse database resource[");
@@ -1094,10 +1186,10 @@ public abstract class BaseHapiFhirDao<T extends IBaseResource> implements IDao {
 
 		if (retVal instanceof IResource) {
 			IResource res = (IResource) retVal;
-			retVal = populateResourceMetadataHapi(resourceType, theEntity, theForHistoryOperation, res);
+			retVal = populateResourceMetadataHapi(resourceType, theEntity, theTagList, theForHistoryOperation, res);
 		} else {
 			IAnyResource res = (IAnyResource) retVal;
-			retVal = populateResourceMetadataRi(resourceType, theEntity, theForHistoryOperation, res);
+			retVal = populateResourceMetadataRi(resourceType, theEntity, theTagList, theForHistoryOperation, res);
 		}
 		return retVal;
 	}
@@ -1111,32 +1203,52 @@ public abstract class BaseHapiFhirDao<T extends IBaseResource> implements IDao {
 	}
 
 	protected Long translateForcedIdToPid(String theResourceName, String theResourceId) {
-		return translateForcedIdToPids(new IdDt(theResourceName, theResourceId), myForcedIdDao).get(0);
+		return translateForcedIdToPids(new IdDt(theResourceName, theResourceId)).get(0);
 	}
 
 	protected List<Long> translateForcedIdToPids(IIdType theId) {
-		return translateForcedIdToPids(theId, myForcedIdDao);
+		Validate.isTrue(theId.hasIdPart());
+
+		if (isValidPid(theId) || !theId.hasResourceType()) {
+			return translateForcedIdToPids(theId, myForcedIdDao);
+		}
+
+		List<Long> retVal = myForcedIdCacheSvc.getPids(theId.getResourceType(), theId.getIdPart());
+		if (retVal.isEmpty()) {
+			throw new ResourceNotFoundException(theId);
+		}
+		return retVal;
 	}
 
 	protected String translatePidIdToForcedId(String theResourceType, Long theId) {
-		ForcedId forcedId = myForcedIdDao.findByResourcePid(theId);
+		String forcedId = myForcedIdCacheSvc.getQualifiedForcedId(theId);
 		if (forcedId != null) {
-			return forcedId.getResourceType() + '/' + forcedId.getForcedId();
+			return forcedId;
 		} else {
 			return theResourceType + '/' + theId.toString();
 		}
 	}
 
-	@SuppressWarnings("unchecked")
 	protected ResourceTable updateEntity(final IBaseResource theResource, ResourceTable theEntity, Date theDeletedTimestampOrNull, boolean thePerformIndexing,
 			boolean theUpdateVersion, Date theUpdateTime) {
+		return updateEntity(theResource, theEntity, theDeletedTimestampOrNull, thePerformIndexing, theUpdateVersion, theUpdateTime, null);
+	}
+
+	/**
+	 * @param thePreparedIndexing
+	 *           The result of calling {@link #prepareIndexing(IBaseResource, ResourceTable)} for this resource, or
+	 *           <code>null</code> if it has not been called (in which case the resource is validated and prepared here)
+	 */
+	@SuppressWarnings("unchecked")
+	protected ResourceTable updateEntity(final IBaseResource theResource, ResourceTable theEntity, Date theDeletedTimestampOrNull, boolean thePerformIndexing,
+			boolean theUpdateVersion, Date theUpdateTime, PreparedIndexing thePreparedIndexing) {
 		ourLog.debug("Starting entity update");
 
 		/*
 		 * This should be the very first thing..
 		 */
 		if (theResource != null) {
-			if (thePerformIndexing) {
+			if (thePerformIndexing && thePreparedIndexing == null) {
 				validateResourceForStorage((T) theResource, theEntity);
 			}
 			String resourceType = myContext.getResourceDefinition(theResource).getName();
@@ -1156,6 +1268,12 @@ public abstract class BaseHapiFhirDao<T extends IBaseResource> implements IDao {
 			theEntity.setVersion(theEntity.getVersion() + 1);
 		}
 
+		/*
+		 * Previous searches for this resource type must not be reused once this write has
+		 * been committed
+		 */
+		mySearchReuseSvc.notifyResourceWritten(theEntity.getResourceType());
+
 		Collection<ResourceIndexedSearchParamString> paramsString = new ArrayList<ResourceIndexedSearchParamString>();
 		if (theEntity.isParamsStringPopulated()) {
 			paramsString.addAll(theEntity.getParamsString());
@@ -1208,10 +1326,14 @@ public abstract class BaseHapiFhirDao<T extends IBaseResource> implements IDao {
 			uriParams = Collections.emptySet();
 			coordsParams = Collections.emptySet();
 			links = Collections.emptySet();
+			if (theEntity.getId() != null) {
+				myForcedIdCacheSvc.invalidate(theEntity);
+			}
 			theEntity.setDeleted(theDeletedTimestampOrNull);
 			theEntity.setUpdated(theDeletedTimestampOrNull);
 			theEntity.setNarrativeTextParsedIntoWords(null);
 			theEntity.setContentTextParsedIntoWords(null);
+			myKeywordSuggestionSvc.notifyResourceIndexed(theEntity, links, null);
 
 		} else {
 
@@ -1219,25 +1341,21 @@ public abstract class BaseHapiFhirDao<T extends IBaseResource> implements IDao {
 
 			if (thePerformIndexing) {
 
-				stringParams = extractSearchParamStrings(theEntity, theResource);
-				numberParams = extractSearchParamNumber(theEntity, theResource);
-				quantityParams = extractSearchParamQuantity(theEntity, theResource);
-				dateParams = extractSearchParamDates(theEntity, theResource);
-				uriParams = extractSearchParamUri(theEntity, theResource);
-				coordsParams = extractSearchParamCoords(theEntity, theResource);
+				PreparedIndexing prepared = thePreparedIndexing;
+				if (prepared == null) {
+					prepared = prepareIndexing(theResource, theEntity);
+				}
+				stringParams = prepared.myStringParams;
+				numberParams = prepared.myNumberParams;
+				quantityParams = prepared.myQuantityParams;
+				dateParams = prepared.myDateParams;
+				uriParams = prepared.myUriParams;
+				coordsParams = prepared.myCoordsParams;
+				tokenParams = prepared.myTokenParams;
 
 				// ourLog.info("Indexing resource: {}", entity.getId());
 				ourLog.trace("Storing date indexes: {}", dateParams);
 
-				tokenParams = new HashSet<ResourceIndexedSearchParamToken>();
-				for (BaseResourceIndexedSearchParam next : extractSearchParamTokens(theEntity, theResource)) {
-					if (next instanceof ResourceIndexedSearchParamToken) {
-						tokenParams.add((ResourceIndexedSearchParamToken) next);
-					} else {
-						stringParams.add((ResourceIndexedSearchParamString) next);
-					}
-				}
-
 				/*
 				 * Handle references within the resource that are match URLs, for example references like "Patient?identifier=foo". These match URLs are resolved and replaced with the ID of the matching
 				 * resource.
@@ -1290,17 +1408,6 @@ public abstract class BaseHapiFhirDao<T extends IBaseResource> implements IDao {
 				links = new HashSet<ResourceLink>();
 				extractResourceLinks(theEntity, theResource, links);
 
-				/*
-				 * If the existing resource already has links and those match links we still want, use them instead of removing them and re adding them
-				 */
-				for (Iterator<ResourceLink> existingLinkIter = existingResourceLinks.iterator(); existingLinkIter.hasNext();) {
-					ResourceLink nextExisting = existingLinkIter.next();
-					if (links.remove(nextExisting)) {
-						existingLinkIter.remove();
-						links.add(nextExisting);
-					}
-				}
-
 				populateResourceIntoEntity(theResource, theEntity);
 
 				theEntity.setUpdated(theUpdateTime);
@@ -1326,7 +1433,16 @@ public abstract class BaseHapiFhirDao<T extends IBaseResource> implements IDao {
 				theEntity.setResourceLinks(links);
 				theEntity.setHasLinks(links.isEmpty() == false);
 				theEntity.setIndexStatus(INDEX_STATUS_INDEXED);
-				populateFullTextFields(theResource, theEntity);
+				theEntity.setNarrativeTextParsedIntoWords(prepared.myNarrativeText);
+				theEntity.setContentTextParsedIntoWords(prepared.myContentText);
+				if (getConfig().isIndexSearchParamsInFulltextIndex()) {
+					List<BaseResourceIndexedSearchParam> fulltextSearchParams = new ArrayList<BaseResourceIndexedSearchParam>();
+					fulltextSearchParams.addAll(tokenParams);
+					fulltextSearchParams.addAll(stringParams);
+					fulltextSearchParams.addAll(dateParams);
+					theEntity.setFulltextSearchParams(fulltextSearchParams);
+				}
+				myKeywordSuggestionSvc.notifyResourceIndexed(theEntity, links, prepared.myContentText);
 
 			} else {
 
@@ -1372,67 +1488,33 @@ public abstract class BaseHapiFhirDao<T extends IBaseResource> implements IDao {
 		 */
 		if (thePerformIndexing) {
 
-			for (ResourceIndexedSearchParamString next : paramsString) {
-				myEntityManager.remove(next);
-			}
-			for (ResourceIndexedSearchParamString next : stringParams) {
-				myEntityManager.persist(next);
-			}
-
-			for (ResourceIndexedSearchParamToken next : paramsToken) {
-				myEntityManager.remove(next);
-			}
-			for (ResourceIndexedSearchParamToken next : tokenParams) {
-				myEntityManager.persist(next);
-			}
-
-			for (ResourceIndexedSearchParamNumber next : paramsNumber) {
-				myEntityManager.remove(next);
-			}
-			for (ResourceIndexedSearchParamNumber next : numberParams) {
-				myEntityManager.persist(next);
-			}
-
-			for (ResourceIndexedSearchParamQuantity next : paramsQuantity) {
-				myEntityManager.remove(next);
-			}
-			for (ResourceIndexedSearchParamQuantity next : quantityParams) {
-				myEntityManager.persist(next);
-			}
-
-			// Store date SP's
-			for (ResourceIndexedSearchParamDate next : paramsDate) {
-				myEntityManager.remove(next);
-			}
-			for (ResourceIndexedSearchParamDate next : dateParams) {
-				myEntityManager.persist(next);
-			}
+			/*
+			 * Only the rows which have actually changed are removed and inserted. Rows
+			 * which are identical to an existing row are left as they are.
+			 */
+			IndexRowChanges changes = new IndexRowChanges();
+			synchronizeIndexRows(paramsString, stringParams, changes);
+			synchronizeIndexRows(paramsToken, tokenParams, changes);
+			synchronizeIndexRows(paramsNumber, numberParams, changes);
+			synchronizeIndexRows(paramsQuantity, quantityParams, changes);
+			synchronizeIndexRows(paramsDate, dateParams, changes);
+			synchronizeIndexRows(paramsUri, uriParams, changes);
+			synchronizeIndexRows(paramsCoords, coordsParams, changes);
+			synchronizeIndexRows(existingResourceLinks, links, changes);
 
-			// Store URI SP's
-			for (ResourceIndexedSearchParamUri next : paramsUri) {
-				myEntityManager.remove(next);
-			}
-			for (ResourceIndexedSearchParamUri next : uriParams) {
-				myEntityManager.persist(next);
-			}
+			// make sure links are indexed
+			theEntity.setResourceLinks(links);
 
-			// Store Coords SP's
-			for (ResourceIndexedSearchParamCoords next : paramsCoords) {
-				myEntityManager.remove(next);
-			}
-			for (ResourceIndexedSearchParamCoords next : coordsParams) {
-				myEntityManager.persist(next);
-			}
+			ourLog.debug("Indexed resource {}: inserted {} rows, removed {} rows, left {} rows unchanged", new Object[] { theEntity.getId(), changes.myInserted, changes.myRemoved, changes.myUnchanged });
+			myIndexRowStatisticsSvc.recordIndexing(changes.myInserted, changes.myRemoved, changes.myUnchanged);
 
-			// Store resource links
-			for (ResourceLink next : existingResourceLinks) {
-				myEntityManager.remove(next);
-			}
-			for (ResourceLink next : links) {
-				myEntityManager.persist(next);
+			/*
+			 * Reindexing passes don't create a new version, and shouldn't be delivered to
+			 * subscriptions again
+			 */
+			if (theUpdateVersion && theDeletedTimestampOrNull == null) {
+				mySubscriptionMatcherSvc.notifyResourceIndexed(theEntity, stringParams, tokenParams, links);
 			}
-			// make sure links are indexed
-			theEntity.setResourceLinks(links);
 
 			theEntity.toString();
 			
@@ -1447,6 +1529,30 @@ public abstract class BaseHapiFhirDao<T extends IBaseResource> implements IDao {
 		return theEntity;
 	}
 
+	/**
+	 * Removes the existing index rows which are not in the new set of rows, and persists the new
+	 * rows which do not match an existing row. Existing rows which match a new row (index rows
+	 * are equal if they have the same values) replace that row in <code>theNewRows</code>, so
+	 * that it contains only rows which are stored in the database once this returns.
+	 */
+	private <R> void synchronizeIndexRows(Collection<R> theExistingRows, Set<R> theNewRows, IndexRowChanges theChanges) {
+		Set<R> toInsert = new HashSet<R>(theNewRows);
+		for (R nextExisting : theExistingRows) {
+			if (toInsert.remove(nextExisting)) {
+				theNewRows.remove(nextExisting);
+				theNewRows.add(nextExisting);
+				theChanges.myUnchanged++;
+			} else {
+				myEntityManager.remove(nextExisting);
+				theChanges.myRemoved++;
+			}
+		}
+		for (R next : toInsert) {
+			myEntityManager.persist(next);
+			theChanges.myInserted++;
+		}
+	}
+
 	protected ResourceTable updateEntity(IBaseResource theResource, ResourceTable entity, Date theDeletedTimestampOrNull, Date theUpdateTime) {
 		return updateEntity(theResource, entity, theDeletedTimestampOrNull, true, true, theUpdateTime);
 	}
@@ -1625,20 +1731,31 @@ public abstract class BaseHapiFhirDao<T extends IBaseResource> implements IDao {
 		return new String(out).toUpperCase();
 	}
 
+	/**
+	 * Returns the character data of the narrative of the given resource, which is read directly
+	 * from the parsed narrative rather than by encoding and re-parsing it
+	 */
 	private static String parseNarrativeTextIntoWords(IBaseResource theResource) {
-
-		StringBuilder b = new StringBuilder();
+		BoundedTextBuilder b = new BoundedTextBuilder();
 		if (theResource instanceof IResource) {
 			IResource resource = (IResource) theResource;
 			List<XMLEvent> xmlEvents = resource.getText().getDiv().getValue();
 			if (xmlEvents != null) {
 				for (XMLEvent next : xmlEvents) {
+					if (b.isFull()) {
+						break;
+					}
 					if (next.isCharacters()) {
 						Characters characters = next.asCharacters();
-						b.append(characters.getData()).append(" ");
+						b.appendWord(characters.getData());
 					}
 				}
 			}
+		} else if (theResource instanceof DomainResource) {
+			DomainResource resource = (DomainResource) theResource;
+			if (resource.hasText() && resource.getText().hasDiv()) {
+				appendNarrativeText(resource.getText().getDiv(), b);
+			}
 		} else if (theResource instanceof IDomainResource) {
 			IDomainResource resource = (IDomainResource) theResource;
 			try {
@@ -1647,9 +1764,12 @@ public abstract class BaseHapiFhirDao<T extends IBaseResource> implements IDao {
 				List<XMLEvent> xmlEvents = xhtml.getValue();
 				if (xmlEvents != null) {
 					for (XMLEvent next : xmlEvents) {
+						if (b.isFull()) {
+							break;
+						}
 						if (next.isCharacters()) {
 							Characters characters = next.asCharacters();
-							b.append(characters.getData()).append(" ");
+							b.appendWord(characters.getData());
 						}
 					}
 				}
@@ -1661,6 +1781,21 @@ public abstract class BaseHapiFhirDao<T extends IBaseResource> implements IDao {
 		return b.toString();
 	}
 
+	private static void appendNarrativeText(XhtmlNode theNode, BoundedTextBuilder theBuilder) {
+		if (theBuilder.isFull()) {
+			return;
+		}
+		if (theNode.getNodeType() == NodeType.Text) {
+			if (theNode.getContent() != null) {
+				theBuilder.appendWord(theNode.getContent());
+			}
+		} else if (theNode.getNodeType() == NodeType.Element || theNode.getNodeType() == NodeType.Document) {
+			for (XhtmlNode next : theNode.getChildNodes()) {
+				appendNarrativeText(next, theBuilder);
+			}
+		}
+	}
+
 	private static List<BaseCodingDt> toBaseCodingList(List<IBaseCoding> theSecurityLabels) {
 		ArrayList<BaseCodingDt> retVal = new ArrayList<BaseCodingDt>(theSecurityLabels.size());
 		for (IBaseCoding next : theSecurityLabels) {
@@ -1807,4 +1942,70 @@ public abstract class BaseHapiFhirDao<T extends IBaseResource> implements IDao {
 		}
 	}
 
+	private static class IndexRowChanges {
+		private int myInserted;
+		private int myRemoved;
+		private int myUnchanged;
+	}
+
+	/**
+	 * Collects text for fulltext indexing, silently dropping anything beyond
+	 * {@link BaseHapiFhirDao#MAX_FULLTEXT_TEXT_LENGTH} characters
+	 */
+	private static class BoundedTextBuilder {
+		private final StringBuilder myBuilder = new StringBuilder();
+
+		/**
+		 * Appends the given text followed by a newline, with any newlines in the text replaced by spaces
+		 */
+		void appendLine(String theText) {
+			int length = Math.min(theText.length(), remaining());
+			for (int i = 0; i < length; i++) {
+				char next = theText.charAt(i);
+				myBuilder.append(next == '\n' || next == '\r' ? ' ' : next);
+			}
+			if (!isFull()) {
+				myBuilder.append('\n');
+			}
+		}
+
+		/**
+		 * Appends the given text followed by a space
+		 */
+		void appendWord(String theText) {
+			myBuilder.append(theText, 0, Math.min(theText.length(), remaining()));
+			if (!isFull()) {
+				myBuilder.append(' ');
+			}
+		}
+
+		boolean isFull() {
+			return remaining() == 0;
+		}
+
+		private int remaining() {
+			return MAX_FULLTEXT_TEXT_LENGTH - myBuilder.length();
+		}
+
+		@Override
+		public String toString() {
+			return myBuilder.toString();
+		}
+	}
+
+	/**
+	 * The output of {@link BaseHapiFhirDao#prepareIndexing(IBaseResource, ResourceTable)}
+	 */
+	protected static class PreparedIndexing {
+		private String myContentText;
+		private Set<ResourceIndexedSearchParamCoords> myCoordsParams;
+		private Set<ResourceIndexedSearchParamDate> myDateParams;
+		private String myNarrativeText;
+		private Set<ResourceIndexedSearchParamNumber> myNumberParams;
+		private Set<ResourceIndexedSearchParamQuantity> myQuantityParams;
+		private Set<ResourceIndexedSearchParamString> myStringParams;
+		private Set<ResourceIndexedSearchParamToken> myTokenParams;
+		private Set<ResourceIndexedSearchParamUri> myUriParams;
+	}
+
 }
@@ -46,6 +46,9 @@ import ca.uhn.fhir.jpa.dao.data.IResourceIndexedSearchParamUriDao;
 import ca.uhn.fhir.jpa.dao.data.ISearchResultDao;
 import ca.uhn.fhir.jpa.entity.*;
 import ca.uhn.fhir.jpa.interceptor.IJpaServerInterceptor;
+import ca.uhn.fhir.jpa.search.SearchParamSelectivitySvc;
+import ca.uhn.fhir.jpa.search.SearchResultWriterSvc;
+import ca.uhn.fhir.jpa.search.SearchReuseSvc;
 import ca.uhn.fhir.jpa.term.IHapiTerminologySvc;
 import ca.uhn.fhir.jpa.util.DeleteConflict;
 import ca.uhn.fhir.jpa.util.StopWatch;
@@ -85,6 +88,12 @@ public abstract class BaseHapiFhirResourceDao<T extends IBaseResource> extends B
 	protected IFulltextSearchSvc mySearchDao;
 	@Autowired()
 	protected ISearchResultDao mySearchResultDao;
+	@Autowired()
+	protected SearchParamSelectivitySvc mySearchParamSelectivitySvc;
+	@Autowired()
+	protected SearchResultWriterSvc mySearchResultWriterSvc;
+	@Autowired()
+	private SearchReuseSvc mySearchReuseSvc;
 	private String mySecondaryPrimaryKeyParamName;
 	@Autowired()
 	protected IHapiTerminologySvc myTerminologySvc;
@@ -115,6 +124,9 @@ public abstract class BaseHapiFhirResourceDao<T extends IBaseResource> extends B
 		myEntityManager.persist(newEntity);
 		myEntityManager.merge(entity);
 
+		// Tags are searchable, so earlier searches must not be reused
+		mySearchReuseSvc.notifyResourceWritten(getResourceName());
+
 		ourLog.info("Processed addTag {}/{} on {} in {}ms", new Object[] { theScheme, theTerm, theId, w.getMillisAndRestart() });
 	}
 	
@@ -506,6 +518,9 @@ public abstract class BaseHapiFhirResourceDao<T extends IBaseResource> extends B
 			doMetaAdd(theMetaAdd, history);
 		}
 
+		// Tags, profiles and security labels are searchable, so earlier searches must not be reused
+		mySearchReuseSvc.notifyResourceWritten(getResourceName());
+
 		ourLog.info("Processed metaAddOperation on {} in {}ms", new Object[] { theResourceId, w.getMillisAndRestart() });
 
 		@SuppressWarnings("unchecked")
@@ -618,6 +633,9 @@ public abstract class BaseHapiFhirResourceDao<T extends IBaseResource> extends B
 			doMetaDelete(theMetaDel, history);
 		}
 
+		// Tags, profiles and security labels are searchable, so earlier searches must not be reused
+		mySearchReuseSvc.notifyResourceWritten(getResourceName());
+
 		myEntityManager.flush();
 
 		ourLog.info("Processed metaDeleteOperation on {} in {}ms", new Object[] { theResourceId.getValue(), w.getMillisAndRestart() });
@@ -851,6 +869,9 @@ public abstract class BaseHapiFhirResourceDao<T extends IBaseResource> extends B
 
 		myEntityManager.merge(entity);
 
+		// Tags are searchable, so earlier searches must not be reused
+		mySearchReuseSvc.notifyResourceWritten(getResourceName());
+
 		ourLog.info("Processed remove tag {}/{} on {} in {}ms", new Object[] { theScheme, theTerm, theId.getValue(), w.getMillisAndRestart() });
 	}
 
@@ -869,8 +890,13 @@ public abstract class BaseHapiFhirResourceDao<T extends IBaseResource> extends B
 		ActionRequestDetails requestDetails = new ActionRequestDetails(theParams.getRequestDetails(), getContext(), getResourceName(), null);
 		notifyInterceptors(RestOperationTypeEnum.SEARCH_TYPE, requestDetails);
 
+		IBundleProvider reused = mySearchReuseSvc.findReusableSearch(getContext(), getResourceName(), theParams, this);
+		if (reused != null) {
+			return reused;
+		}
+
 		SearchBuilder builder = new SearchBuilder(getContext(), myEntityManager, myPlatformTransactionManager, mySearchDao, mySearchResultDao, this, myResourceIndexedSearchParamUriDao, myForcedIdDao,
-				myTerminologySvc);
+				myTerminologySvc, mySearchParamSelectivitySvc, mySearchResultWriterSvc);
 		builder.setType(getResourceType(), getResourceName());
 		return builder.search(theParams);
 	}
@@ -899,7 +925,7 @@ public abstract class BaseHapiFhirResourceDao<T extends IBaseResource> extends B
 		theParams.setPersistResults(false);
 
 		SearchBuilder builder = new SearchBuilder(getContext(), myEntityManager, myPlatformTransactionManager, mySearchDao, mySearchResultDao, this, myResourceIndexedSearchParamUriDao, myForcedIdDao,
-				myTerminologySvc);
+				myTerminologySvc, mySearchParamSelectivitySvc, mySearchResultWriterSvc);
 		builder.setType(getResourceType(), getResourceName());
 		builder.search(theParams);
 		return builder.doGetPids();
@@ -22,12 +22,24 @@ import static org.apache.commons.lang3.StringUtils.isBlank;
  * #L%
  */
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
-
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.persistence.Query;
 import javax.persistence.Tuple;
 import javax.persistence.TypedQuery;
@@ -35,6 +47,7 @@ import javax.persistence.criteria.CriteriaBuilder;
 import javax.persistence.criteria.CriteriaQuery;
 import javax.persistence.criteria.Root;
 
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.transaction.PlatformTransactionManager;
@@ -44,10 +57,13 @@ import org.springframework.transaction.annotation.Transactional;
 import org.springframework.transaction.support.TransactionCallback;
 import org.springframework.transaction.support.TransactionTemplate;
 
+import com.google.common.collect.Lists;
+
 import ca.uhn.fhir.jpa.dao.data.IForcedIdDao;
 import ca.uhn.fhir.jpa.dao.data.ITermConceptDao;
 import ca.uhn.fhir.jpa.entity.ForcedId;
 import ca.uhn.fhir.jpa.entity.ResourceTable;
+import ca.uhn.fhir.jpa.search.SearchReuseSvc;
 import ca.uhn.fhir.jpa.util.ReindexFailureException;
 import ca.uhn.fhir.jpa.util.StopWatch;
 import ca.uhn.fhir.model.api.TagList;
@@ -56,12 +72,17 @@ import ca.uhn.fhir.model.primitive.InstantDt;
 import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
 import ca.uhn.fhir.rest.method.RequestDetails;
 import ca.uhn.fhir.rest.server.IBundleProvider;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
 import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
 import ca.uhn.fhir.rest.server.interceptor.IServerInterceptor.ActionRequestDetails;
 import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
 
 public abstract class BaseHapiFhirSystemDao<T, MT> extends BaseHapiFhirDao<IBaseResource> implements IFhirSystemDao<T, MT> {
 
+	/**
+	 * When no count is given, a reindexing pass gives each thread this many chunks
+	 */
+	private static final int DEFAULT_REINDEX_CHUNKS_PER_THREAD = 5;
 	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(BaseHapiFhirSystemDao.class);
 
 	@Autowired
@@ -70,9 +91,34 @@ public abstract class BaseHapiFhirSystemDao<T, MT> extends BaseHapiFhirDao<IBase
 	@Autowired
 	private IForcedIdDao myForcedIdDao;
 
+	private ExecutorService myReindexExecutor;
+	private final AtomicLong myReindexFailedCount = new AtomicLong();
+	private volatile Date myReindexFinished;
+	private final ReentrantLock myReindexLock = new ReentrantLock();
+	/**
+	 * Only accessed while holding {@link #myReindexLock}
+	 */
+	private long myReindexNextPid;
+	private final AtomicLong myReindexProcessedCount = new AtomicLong();
+	private volatile Date myReindexStarted;
+
+	@Autowired
+	private SearchReuseSvc mySearchReuseSvc;
+
 	@Autowired
 	private ITermConceptDao myTermConceptDao;
 
+	@PostConstruct
+	public void startReindexExecutor() {
+		BasicThreadFactory threadFactory = new BasicThreadFactory.Builder().namingPattern("reindex-%d").daemon(true).build();
+		myReindexExecutor = Executors.newCachedThreadPool(threadFactory);
+	}
+
+	@PreDestroy
+	public void stopReindexExecutor() {
+		myReindexExecutor.shutdownNow();
+	}
+
 	@Transactional(propagation = Propagation.REQUIRED)
 	@Override
 	public void deleteAllTagsOnServer(RequestDetails theRequestDetails) {
@@ -80,40 +126,147 @@ public abstract class BaseHapiFhirSystemDao<T, MT> extends BaseHapiFhirDao<IBase
 		ActionRequestDetails requestDetails = new ActionRequestDetails(theRequestDetails);
 		notifyInterceptors(RestOperationTypeEnum.DELETE_TAGS, requestDetails);
 
+		// Tags are searchable, so earlier searches of the tagged types must not be reused
+		List<String> taggedTypes = myEntityManager.createQuery("SELECT DISTINCT t.myResourceType FROM ResourceTag t", String.class).getResultList();
+		for (String next : taggedTypes) {
+			mySearchReuseSvc.notifyResourceWritten(next);
+		}
+
 		myEntityManager.createQuery("DELETE from ResourceTag t").executeUpdate();
 	}
 
-	private int doPerformReindexingPass(final Integer theCount) {
-		TransactionTemplate txTemplate = new TransactionTemplate(myTxManager);
-		txTemplate.setPropagationBehavior(TransactionTemplate.PROPAGATION_REQUIRED);
-		int retVal = doPerformReindexingPassForResources(theCount, txTemplate);
-		return retVal;
+	private int doPerformReindexingPass(Integer theCount) {
+		int chunkSize = getConfig().getReindexChunkSize();
+		int threadCount = getConfig().getReindexThreadCount();
+		int count = theCount != null ? theCount : chunkSize * threadCount * DEFAULT_REINDEX_CHUNKS_PER_THREAD;
+
+		List<Long> pids = findPidsToReindex(myReindexNextPid, count);
+		if (pids.isEmpty() && myReindexNextPid > 0) {
+			// Resources behind the cursor may have been marked for reindexing since we passed them
+			myReindexNextPid = 0;
+			pids = findPidsToReindex(myReindexNextPid, count);
+		}
+
+		if (pids.isEmpty()) {
+			if (myReindexStarted != null && myReindexFinished == null) {
+				myReindexFinished = new Date();
+				ourLog.info("Reindexing complete - Processed {} resources ({} failed)", myReindexProcessedCount.get(), myReindexFailedCount.get());
+			}
+			return 0;
+		}
+
+		myReindexNextPid = pids.get(pids.size() - 1) + 1;
+		if (myReindexStarted == null || myReindexFinished != null) {
+			// This is either the first pass since startup, or resources have been marked since the last job finished
+			startReindexJob();
+		}
+
+		List<List<Long>> chunks = Lists.partition(pids, chunkSize);
+		int threads = Math.min(threadCount, chunks.size());
+		ourLog.info("Indexing {} resources in {} chunks using {} threads", new Object[] { pids.size(), chunks.size(), threads });
+		StopWatch sw = new StopWatch();
+
+		if (threads == 1) {
+			for (List<Long> nextChunk : chunks) {
+				reindexChunk(nextChunk);
+			}
+		} else {
+			/*
+			 * The executor is shared between passes, so rather than submitting every chunk
+			 * (which could start one thread per chunk) we start one worker per thread and
+			 * let the workers take chunks from a queue
+			 */
+			final Queue<List<Long>> queue = new ConcurrentLinkedQueue<List<Long>>(chunks);
+			List<Future<?>> futures = new ArrayList<Future<?>>();
+			try {
+				for (int i = 0; i < threads; i++) {
+					futures.add(myReindexExecutor.submit(new Runnable() {
+						@Override
+						public void run() {
+							List<Long> nextChunk;
+							while ((nextChunk = queue.poll()) != null) {
+								reindexChunk(nextChunk);
+							}
+						}
+					}));
+				}
+				for (Future<?> next : futures) {
+					next.get();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InternalErrorException(e);
+			} catch (ExecutionException e) {
+				throw new InternalErrorException(e.getCause());
+			} finally {
+				queue.clear();
+				for (Future<?> next : futures) {
+					next.cancel(true);
+				}
+			}
+		}
+
+		long delay = sw.getMillis();
+		long avg = (delay / pids.size());
+		ourLog.info("Indexed {} resources in {}ms - Avg {}ms / resource", new Object[] { pids.size(), delay, avg });
+
+		return pids.size();
 	}
 
-	private int doPerformReindexingPassForResources(final Integer theCount, TransactionTemplate txTemplate) {
-		return txTemplate.execute(new TransactionCallback<Integer>() {
-			@SuppressWarnings("unchecked")
+	/**
+	 * Returns the PIDs of up to <code>theCount</code> resources needing reindexing, starting at the given PID
+	 */
+	private List<Long> findPidsToReindex(final long theFromPid, final int theCount) {
+		TransactionTemplate txTemplate = new TransactionTemplate(myTxManager);
+		txTemplate.setPropagationBehavior(TransactionTemplate.PROPAGATION_REQUIRED);
+		return txTemplate.execute(new TransactionCallback<List<Long>>() {
 			@Override
-			public Integer doInTransaction(TransactionStatus theStatus) {
-				TypedQuery<ResourceTable> q = myEntityManager.createQuery("SELECT t FROM " + ResourceTable.class.getSimpleName() + " t WHERE t.myIndexStatus IS null", ResourceTable.class);
+			public List<Long> doInTransaction(TransactionStatus theStatus) {
+				TypedQuery<Long> q = myEntityManager.createQuery("SELECT t.myId FROM " + ResourceTable.class.getSimpleName() + " t WHERE t.myIndexStatus IS null AND t.myId >= :from ORDER BY t.myId ASC", Long.class);
+				q.setParameter("from", theFromPid);
+				q.setMaxResults(theCount);
+				return q.getResultList();
+			}
+		});
+	}
 
-				int maxResult = 500;
-				if (theCount != null) {
-					maxResult = Math.min(theCount, 2000);
-				}
+	/**
+	 * Reindexes a chunk of resources in a single transaction. If any resource in the chunk fails,
+	 * the chunk is rolled back and its resources are reindexed one at a time instead, so that only
+	 * the failing resources are marked as failed.
+	 */
+	private void reindexChunk(List<Long> thePids) {
+		TransactionTemplate txTemplate = new TransactionTemplate(myTxManager);
+		txTemplate.setPropagationBehavior(TransactionTemplate.PROPAGATION_REQUIRES_NEW);
 
-				q.setMaxResults(maxResult);
-				List<ResourceTable> resources = q.getResultList();
-				if (resources.isEmpty()) {
-					return 0;
-				}
+		try {
+			reindexResources(txTemplate, thePids);
+			myReindexProcessedCount.addAndGet(thePids.size());
+			return;
+		} catch (RuntimeException e) {
+			ourLog.warn("Failed to reindex chunk of {} resources, reindexing them individually: {}", thePids.size(), e.toString());
+		}
 
-				ourLog.info("Indexing {} resources", resources.size());
+		for (Long next : thePids) {
+			try {
+				reindexResources(txTemplate, Collections.singletonList(next));
+			} catch (RuntimeException e) {
+				ourLog.warn("Reindexing failed for resource {}", next);
+				markResourceAsIndexingFailed(next);
+				myReindexFailedCount.incrementAndGet();
+			}
+			myReindexProcessedCount.incrementAndGet();
+		}
+	}
 
-				int count = 0;
-				long start = System.currentTimeMillis();
+	private void reindexResources(TransactionTemplate theTxTemplate, final List<Long> thePids) {
+		theTxTemplate.execute(new TransactionCallback<Void>() {
+			@Override
+			public Void doInTransaction(TransactionStatus theStatus) {
+				TypedQuery<ResourceTable> q = myEntityManager.createQuery("SELECT t FROM " + ResourceTable.class.getSimpleName() + " t LEFT JOIN FETCH t.myForcedId WHERE t.myId IN (:pids) AND t.myIndexStatus IS null", ResourceTable.class);
+				q.setParameter("pids", thePids);
 
-				for (ResourceTable resourceTable : resources) {
+				for (ResourceTable resourceTable : q.getResultList()) {
 					try {
 						/*
 						 * This part is because from HAPI 1.5 - 1.6 we changed the format of forced ID to be "type/id" instead of just "id"
@@ -137,14 +290,9 @@ public abstract class BaseHapiFhirSystemDao<T, MT> extends BaseHapiFhirDao<IBase
 						ourLog.error("Failed to index resource {}: {}", new Object[] { resourceTable.getIdDt(), e.toString(), e });
 						throw new ReindexFailureException(resourceTable.getId());
 					}
-					count++;
 				}
 
-				long delay = System.currentTimeMillis() - start;
-				long avg = (delay / resources.size());
-				ourLog.info("Indexed {} / {} resources in {}ms - Avg {}ms / resource", new Object[] { count, resources.size(), delay, avg });
-
-				return resources.size();
+				return null;
 			}
 		});
 	}
@@ -161,6 +309,13 @@ public abstract class BaseHapiFhirSystemDao<T, MT> extends BaseHapiFhirDao<IBase
 		return retVal;
 	}
 
+	@Transactional(propagation = Propagation.REQUIRED)
+	@Override
+	public ReindexStatus getReindexStatus() {
+		Long remaining = myEntityManager.createQuery("SELECT COUNT(t) FROM " + ResourceTable.class.getSimpleName() + " t WHERE t.myIndexStatus IS null", Long.class).getSingleResult();
+		return new ReindexStatus(myReindexStarted, myReindexFinished, myReindexProcessedCount.get(), myReindexFailedCount.get(), remaining);
+	}
+
 	@Override
 	public Map<String, Long> getResourceCounts() {
 		CriteriaBuilder builder = myEntityManager.getCriteriaBuilder();
@@ -207,6 +362,7 @@ public abstract class BaseHapiFhirSystemDao<T, MT> extends BaseHapiFhirDao<IBase
 	public int markAllResourcesForReindexing() {
 		int retVal = myEntityManager.createQuery("UPDATE " + ResourceTable.class.getSimpleName() + " t SET t.myIndexStatus = null").executeUpdate();
 		retVal += myTermConceptDao.markAllForReindexing();
+		startReindexJob();
 		return retVal;
 	}
 
@@ -270,12 +426,15 @@ public abstract class BaseHapiFhirSystemDao<T, MT> extends BaseHapiFhirDao<IBase
 	@Override
 	@Transactional(propagation = Propagation.NOT_SUPPORTED)
 	public int performReindexingPass(final Integer theCount) {
+		/*
+		 * Progress is stored in the database (each committed chunk marks its resources as indexed), so
+		 * if the server is restarted, the next pass simply continues with the resources still marked
+		 */
+		myReindexLock.lock();
 		try {
 			return doPerformReindexingPass(theCount);
-		} catch (ReindexFailureException e) {
-			ourLog.warn("Reindexing failed for resource {}", e.getResourceId());
-			markResourceAsIndexingFailed(e.getResourceId());
-			return -1;
+		} finally {
+			myReindexLock.unlock();
 		}
 	}
 
@@ -283,6 +442,13 @@ public abstract class BaseHapiFhirSystemDao<T, MT> extends BaseHapiFhirDao<IBase
 		myTxManager = theTxManager;
 	}
 
+	private void startReindexJob() {
+		myReindexProcessedCount.set(0);
+		myReindexFailedCount.set(0);
+		myReindexFinished = null;
+		myReindexStarted = new Date();
+	}
+
 	protected ResourceTable tryToLoadEntity(IdDt nextId) {
 		ResourceTable entity;
 		try {
@@ -0,0 +1,291 @@
+package ca.uhn.fhir.jpa.dao;
+
+/*
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2017 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+import static org.apache.commons.lang3.StringUtils.isBlank;
+import static org.apache.commons.lang3.StringUtils.isNotBlank;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map.Entry;
+
+import org.hl7.fhir.instance.model.api.IIdType;
+
+import ca.uhn.fhir.context.RuntimeResourceDefinition;
+import ca.uhn.fhir.context.RuntimeSearchParam;
+import ca.uhn.fhir.jpa.entity.ResourceIndexedSearchParamString;
+import ca.uhn.fhir.jpa.entity.ResourceIndexedSearchParamToken;
+import ca.uhn.fhir.jpa.entity.ResourceLink;
+import ca.uhn.fhir.model.api.IQueryParameterType;
+import ca.uhn.fhir.model.primitive.IdDt;
+import ca.uhn.fhir.rest.param.ReferenceParam;
+import ca.uhn.fhir.rest.param.StringParam;
+import ca.uhn.fhir.rest.param.TokenParam;
+
+/**
+ * The criteria of a subscription, compiled into predicates which are evaluated against the
+ * index rows extracted from a single resource. A resource matches if it has an index row
+ * matching at least one of the values of each parameter, which is how the same criteria
+ * would be evaluated by a search.
+ */
+final class CompiledSubscriptionCriteria {
+
+	private final List<List<Clause>> myAndClauses;
+
+	private CompiledSubscriptionCriteria(List<List<Clause>> theAndClauses) {
+		myAndClauses = theAndClauses;
+	}
+
+	boolean matches(Collection<ResourceIndexedSearchParamString> theStrings, Collection<ResourceIndexedSearchParamToken> theTokens, Collection<ResourceLink> theLinks) {
+		for (List<Clause> nextAnd : myAndClauses) {
+			boolean found = false;
+			for (Clause nextOr : nextAnd) {
+				if (nextOr.matches(theStrings, theTokens, theLinks)) {
+					found = true;
+					break;
+				}
+			}
+			if (!found) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Compiles the given criteria, or returns <code>null</code> if they contain anything which can
+	 * not be evaluated against the index rows of a single resource
+	 * 
+	 * @param theReferenceResolver
+	 *           Resolves the target of a reference parameter to resource PIDs, or returns <code>null</code>
+	 *           if the target does not exist
+	 */
+	static CompiledSubscriptionCriteria compile(RuntimeResourceDefinition theResourceDef, SearchParameterMap theCriteria, DaoConfig theConfig, IReferenceResolver theReferenceResolver) {
+		if (theCriteria.getLastUpdated() != null || theCriteria.getEverythingMode() != null) {
+			return null;
+		}
+
+		List<List<Clause>> andClauses = new ArrayList<List<Clause>>();
+		for (Entry<String, List<List<? extends IQueryParameterType>>> nextEntry : theCriteria.entrySet()) {
+			if (nextEntry.getKey().startsWith("_")) {
+				// _id, _has, _tag, _content etc. are not indexed as search parameters
+				return null;
+			}
+			RuntimeSearchParam param = theResourceDef.getSearchParam(nextEntry.getKey());
+			if (param == null || param.getParamType() == null) {
+				return null;
+			}
+
+			for (List<? extends IQueryParameterType> nextAnd : nextEntry.getValue()) {
+				List<Clause> orClauses = new ArrayList<Clause>();
+				for (IQueryParameterType nextOr : nextAnd) {
+					if (nextOr.getMissing() != null) {
+						return null;
+					}
+					Clause clause;
+					switch (param.getParamType()) {
+					case STRING:
+						clause = compileString(param, nextOr);
+						break;
+					case TOKEN:
+						clause = compileToken(param, nextOr);
+						break;
+					case REFERENCE:
+						clause = compileReference(param, nextOr, theConfig, theReferenceResolver);
+						break;
+					default:
+						clause = null;
+						break;
+					}
+					if (clause == null) {
+						return null;
+					}
+					orClauses.add(clause);
+				}
+				andClauses.add(orClauses);
+			}
+		}
+
+		return new CompiledSubscriptionCriteria(andClauses);
+	}
+
+	private static Clause compileReference(RuntimeSearchParam theParam, IQueryParameterType theValue, DaoConfig theConfig, IReferenceResolver theReferenceResolver) {
+		if (!(theValue instanceof ReferenceParam)) {
+			return null;
+		}
+		ReferenceParam ref = (ReferenceParam) theValue;
+		if (isNotBlank(ref.getChain()) || isBlank(ref.getIdPart())) {
+			return null;
+		}
+
+		IIdType id = new IdDt(ref.getBaseUrl(), ref.getResourceType(), ref.getIdPart(), null);
+		if (id.hasBaseUrl()) {
+			if (theConfig.getTreatBaseUrlsAsLocal().contains(id.getBaseUrl())) {
+				id = id.toUnqualified();
+			} else {
+				return new ReferenceUrlClause(theParam.getPathsSplit(), id.getValue());
+			}
+		}
+
+		List<Long> pids = theReferenceResolver.resolve(id);
+		if (pids == null) {
+			/*
+			 * The target may be created later, which a search would notice but compiled
+			 * criteria would not
+			 */
+			return null;
+		}
+		return new ReferencePidClause(theParam.getPathsSplit(), pids);
+	}
+
+	private static Clause compileString(RuntimeSearchParam theParam, IQueryParameterType theValue) {
+		if (!(theValue instanceof StringParam)) {
+			return null;
+		}
+		StringParam string = (StringParam) theValue;
+		if (string.isContains() || string.getValue() == null || string.getValue().length() > ResourceIndexedSearchParamString.MAX_LENGTH) {
+			return null;
+		}
+		String exact = string.isExact() ? string.getValue() : null;
+		return new StringClause(theParam.getName(), BaseHapiFhirDao.normalizeString(string.getValue()), exact);
+	}
+
+	private static Clause compileToken(RuntimeSearchParam theParam, IQueryParameterType theValue) {
+		if (!(theValue instanceof TokenParam)) {
+			return null;
+		}
+		TokenParam token = (TokenParam) theValue;
+		if (token.getModifier() != null || token.isText()) {
+			return null;
+		}
+		return new TokenClause(theParam.getName(), token.getSystem(), token.getValue());
+	}
+
+	private static abstract class Clause {
+		abstract boolean matches(Collection<ResourceIndexedSearchParamString> theStrings, Collection<ResourceIndexedSearchParamToken> theTokens, Collection<ResourceLink> theLinks);
+	}
+
+	interface IReferenceResolver {
+		List<Long> resolve(IIdType theId);
+	}
+
+	private static class ReferencePidClause extends Clause {
+		private final List<String> myPaths;
+		private final List<Long> myPids;
+
+		ReferencePidClause(List<String> thePaths, List<Long> thePids) {
+			myPaths = thePaths;
+			myPids = thePids;
+		}
+
+		@Override
+		boolean matches(Collection<ResourceIndexedSearchParamString> theStrings, Collection<ResourceIndexedSearchParamToken> theTokens, Collection<ResourceLink> theLinks) {
+			for (ResourceLink next : theLinks) {
+				if (next.getTargetResourcePid() != null && myPids.contains(next.getTargetResourcePid()) && myPaths.contains(next.getSourcePath())) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	private static class ReferenceUrlClause extends Clause {
+		private final List<String> myPaths;
+		private final String myUrl;
+
+		ReferenceUrlClause(List<String> thePaths, String theUrl) {
+			myPaths = thePaths;
+			myUrl = theUrl;
+		}
+
+		@Override
+		boolean matches(Collection<ResourceIndexedSearchParamString> theStrings, Collection<ResourceIndexedSearchParamToken> theTokens, Collection<ResourceLink> theLinks) {
+			for (ResourceLink next : theLinks) {
+				if (myUrl.equals(next.getTargetResourceUrl()) && myPaths.contains(next.getSourcePath())) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	private static class StringClause extends Clause {
+		private final String myExact;
+		private final String myNormalizedPrefix;
+		private final String myParamName;
+
+		StringClause(String theParamName, String theNormalizedPrefix, String theExact) {
+			myParamName = theParamName;
+			myNormalizedPrefix = theNormalizedPrefix;
+			myExact = theExact;
+		}
+
+		@Override
+		boolean matches(Collection<ResourceIndexedSearchParamString> theStrings, Collection<ResourceIndexedSearchParamToken> theTokens, Collection<ResourceLink> theLinks) {
+			for (ResourceIndexedSearchParamString next : theStrings) {
+				if (!myParamName.equals(next.getParamName()) || next.getValueNormalized() == null) {
+					continue;
+				}
+				if (next.getValueNormalized().startsWith(myNormalizedPrefix) && (myExact == null || myExact.equals(next.getValueExact()))) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	private static class TokenClause extends Clause {
+		private final String myParamName;
+		private final String mySystem;
+		private final String myValue;
+
+		TokenClause(String theParamName, String theSystem, String theValue) {
+			myParamName = theParamName;
+			mySystem = theSystem;
+			myValue = theValue;
+		}
+
+		@Override
+		boolean matches(Collection<ResourceIndexedSearchParamString> theStrings, Collection<ResourceIndexedSearchParamToken> theTokens, Collection<ResourceLink> theLinks) {
+			for (ResourceIndexedSearchParamToken next : theTokens) {
+				if (!myParamName.equals(next.getParamName())) {
+					continue;
+				}
+				if (isNotBlank(mySystem)) {
+					if (!mySystem.equals(next.getSystem())) {
+						continue;
+					}
+				} else if (mySystem != null) {
+					// A system of "" only matches tokens with no system
+					if (next.getSystem() != null) {
+						continue;
+					}
+				}
+				if (isNotBlank(myValue) && !myValue.equals(next.getValue())) {
+					continue;
+				}
+				return true;
+			}
+			return false;
+		}
+	}
+
+}
@@ -46,16 +46,34 @@ public class DaoConfig {
 	// ***
 	// update setter javadoc if default changes
 	// ***
+	private boolean myCompactHistoryUsingDeltas = false;
+	// ***
+	// update setter javadoc if default changes
+	// ***
 	private int myDeferIndexingForCodesystemsOfSize = 2000;
+	// ***
+	// update setter javadoc if default changes
+	// ***
+	private int myDeferredConceptSaveThreadCount = 1;
 	private boolean myDeleteStaleSearches = true;
 	// ***
 	// update setter javadoc if default changes
 	// ***
 	private long myExpireSearchResultsAfterMillis = DateUtils.MILLIS_PER_HOUR;
+
+	// ***
+	// update setter javadoc if default changes
+	// ***
+	private int myFulltextSearchResultLimit = 10000;
 	
 	private int myHardSearchLimit = 1000;
 	
 	private int myHardTagListLimit = 1000;
+
+	// ***
+	// update setter javadoc if default changes
+	// ***
+	private int myHistorySnapshotInterval = 10;
 	
 	private int myIncludeLimit = 2000;
 
@@ -64,22 +82,76 @@ public class DaoConfig {
 	// ***
 	private boolean myIndexContainedResources = true;
 
+	// ***
+	// update setter javadoc if default changes
+	// ***
+	private boolean myIndexSearchParamsInFulltextIndex = false;
+
 	private List<IServerInterceptor> myInterceptors;
+
+	// ***
+	// update setter javadoc if default changes
+	// ***
+	private boolean myLoadSearchResultsAsynchronously = false;
 	
 	// ***
 	// update setter javadoc if default changes
 	// ***
 	private int myMaximumExpansionSize = 5000;
+
+	// ***
+	// update setter javadoc if default changes
+	// ***
+	private boolean myOrderSearchParamsBySelectivity = false;
+
+	// ***
+	// update setter javadoc if default changes
+	// ***
+	private int myReindexChunkSize = 100;
+
+	// ***
+	// update setter javadoc if default changes
+	// ***
+	private int myReindexThreadCount = 1;
+
+	// ***
+	// update setter javadoc if default changes
+	// ***
 	private ResourceEncodingEnum myResourceEncoding = ResourceEncodingEnum.JSONC;
 
+	// ***
+	// update setter javadoc if default changes
+	// ***
+	private Long myReuseCachedSearchResultsForMillis = null;
+
 	private boolean mySchedulingDisabled;
 
+	// ***
+	// update setter javadoc if default changes
+	// ***
+	private boolean mySingleStatementSearch = false;
+
+	// ***
+	// update setter javadoc if default changes
+	// ***
+	private boolean mySuggestKeywordsFromDictionary = false;
+
 	private boolean mySubscriptionEnabled;
+
+	// ***
+	// update setter javadoc if default changes
+	// ***
+	private boolean mySubscriptionMatchOnWrite = false;
 	
 	private long mySubscriptionPollDelay = 1000;
 	
 	private Long mySubscriptionPurgeInactiveAfterMillis;
 
+	// ***
+	// update setter javadoc if default changes
+	// ***
+	private int myTransactionPreparationThreadCount = 1;
+
 	private Set<String> myTreatBaseUrlsAsLocal = new HashSet<String>();
 
 	/**
@@ -93,6 +165,14 @@ public class DaoConfig {
 	public int getDeferIndexingForCodesystemsOfSize() {
 		return myDeferIndexingForCodesystemsOfSize;
 	}
+
+	/**
+	 * See {@link #setDeferredConceptSaveThreadCount(int)}
+	 */
+	public int getDeferredConceptSaveThreadCount() {
+		return myDeferredConceptSaveThreadCount;
+	}
+
 	/**
 	 * Sets the number of milliseconds that search results for a given client search 
 	 * should be preserved before being purged from the database.
@@ -112,12 +192,26 @@ public class DaoConfig {
 		return myExpireSearchResultsAfterMillis;
 	}
 	
+	/**
+	 * See {@link #setFulltextSearchResultLimit(int)}
+	 */
+	public int getFulltextSearchResultLimit() {
+		return myFulltextSearchResultLimit;
+	}
+
 	/**
 	 * Gets the maximum number of results to return in a GetTags query (DSTU1 only)
 	 */
 	public int getHardTagListLimit() {
 		return myHardTagListLimit;
 	}
+
+	/**
+	 * See {@link #setHistorySnapshotInterval(int)}
+	 */
+	public int getHistorySnapshotInterval() {
+		return myHistorySnapshotInterval;
+	}
 	
 	public int getIncludeLimit() {
 		return myIncludeLimit;
@@ -144,6 +238,31 @@ public class DaoConfig {
 	public int getMaximumExpansionSize() {
 		return myMaximumExpansionSize;
 	}
+
+	/**
+	 * See {@link #setReindexChunkSize(int)}
+	 */
+	public int getReindexChunkSize() {
+		return myReindexChunkSize;
+	}
+
+	/**
+	 * See {@link #setReindexThreadCount(int)}
+	 */
+	public int getReindexThreadCount() {
+		return myReindexThreadCount;
+	}
+
+	/**
+	 * See {@link #setReuseCachedSearchResultsForMillis(Long)}
+	 */
+	public Long getReuseCachedSearchResultsForMillis() {
+		return myReuseCachedSearchResultsForMillis;
+	}
+
+	/**
+	 * See {@link #setResourceEncoding(ResourceEncodingEnum)}
+	 */
 	public ResourceEncodingEnum getResourceEncoding() {
 		return myResourceEncoding;
 	}
@@ -153,6 +272,14 @@ public class DaoConfig {
 	public Long getSubscriptionPurgeInactiveAfterMillis() {
 		return mySubscriptionPurgeInactiveAfterMillis;
 	}
+
+	/**
+	 * See {@link #setTransactionPreparationThreadCount(int)}
+	 */
+	public int getTransactionPreparationThreadCount() {
+		return myTransactionPreparationThreadCount;
+	}
+
 	/**
 	 * This setting may be used to advise the server that any references found in
 	 * resources that have any of the base URLs given here will be replaced with
@@ -205,6 +332,13 @@ public class DaoConfig {
 		return myAllowMultipleDelete;
 	}
 
+	/**
+	 * See {@link #setCompactHistoryUsingDeltas(boolean)}
+	 */
+	public boolean isCompactHistoryUsingDeltas() {
+		return myCompactHistoryUsingDeltas;
+	}
+
 	/**
 	 * If this is set to <code>false</code> (default is <code>true</code>) the stale search deletion 
 	 * task will be disabled (meaning that search results will be retained in the database indefinitely). USE WITH CAUTION. 
@@ -225,10 +359,45 @@ public class DaoConfig {
 		return myIndexContainedResources;
 	}
 
+	/**
+	 * See {@link #setIndexSearchParamsInFulltextIndex(boolean)}
+	 */
+	public boolean isIndexSearchParamsInFulltextIndex() {
+		return myIndexSearchParamsInFulltextIndex;
+	}
+
 	public boolean isSchedulingDisabled() {
 		return mySchedulingDisabled;
 	}
 
+	/**
+	 * See {@link #setLoadSearchResultsAsynchronously(boolean)}
+	 */
+	public boolean isLoadSearchResultsAsynchronously() {
+		return myLoadSearchResultsAsynchronously;
+	}
+
+	/**
+	 * See {@link #setOrderSearchParamsBySelectivity(boolean)}
+	 */
+	public boolean isOrderSearchParamsBySelectivity() {
+		return myOrderSearchParamsBySelectivity;
+	}
+
+	/**
+	 * See {@link #setSingleStatementSearch(boolean)}
+	 */
+	public boolean isSingleStatementSearch() {
+		return mySingleStatementSearch;
+	}
+
+	/**
+	 * See {@link #setSuggestKeywordsFromDictionary(boolean)}
+	 */
+	public boolean isSuggestKeywordsFromDictionary() {
+		return mySuggestKeywordsFromDictionary;
+	}
+
 	/**
 	 * See {@link #setSubscriptionEnabled(boolean)}
 	 */
@@ -236,6 +405,13 @@ public class DaoConfig {
 		return mySubscriptionEnabled;
 	}
 
+	/**
+	 * See {@link #setSubscriptionMatchOnWrite(boolean)}
+	 */
+	public boolean isSubscriptionMatchOnWrite() {
+		return mySubscriptionMatchOnWrite;
+	}
+
 	/**
 	 * If set to <code>true</code> (default is <code>false</code>) the server will allow
 	 * resources to have references to external servers. For example if this server is
@@ -283,6 +459,26 @@ public class DaoConfig {
 		myAllowMultipleDelete = theAllowMultipleDelete;
 	}
 
+	/**
+	 * If set to <code>true</code> (default is <code>false</code>) a background task will
+	 * compact the resource history table by replacing older versions of each resource with
+	 * compressed deltas against the version which follows them. Every version whose number is
+	 * a multiple of {@link #setHistorySnapshotInterval(int) the snapshot interval}, as well as
+	 * the current version, is always kept in full so that any version can be rebuilt
+	 * from a small number of deltas.
+	 * <p>
+	 * History entries are always written in full when a resource is updated, so enabling this
+	 * does not slow down writes. Reading a compacted version (using <code>vread</code> or
+	 * <code>_history</code>) is a bit slower, since the following versions must be read in order
+	 * to rebuild it. This is a good choice for servers which frequently update large resources.
+	 * </p>
+	 * 
+	 * @since 2.3
+	 */
+	public void setCompactHistoryUsingDeltas(boolean theCompactHistoryUsingDeltas) {
+		myCompactHistoryUsingDeltas = theCompactHistoryUsingDeltas;
+	}
+
 	/**
 	 * When a code system is added that contains more than this number of codes,
 	 * the code system will be indexed later in an incremental process in order to
@@ -295,6 +491,20 @@ public class DaoConfig {
 		myDeferIndexingForCodesystemsOfSize = theDeferIndexingForCodesystemsOfSize;
 	}
 
+	/**
+	 * Sets the number of threads which save the deferred relationships of a large code
+	 * system in parallel (default is 1). Each thread saves its own chunks of relationships
+	 * (see {@link #setDeferIndexingForCodesystemsOfSize(int)} for the chunk size), at the
+	 * cost of one database connection per thread. Concepts are always saved by a single
+	 * thread, since each concept's parents must be saved before it.
+	 * 
+	 * @since 2.3
+	 */
+	public void setDeferredConceptSaveThreadCount(int theDeferredConceptSaveThreadCount) {
+		Validate.isTrue(theDeferredConceptSaveThreadCount > 0, "theDeferredConceptSaveThreadCount must be greater than 0");
+		myDeferredConceptSaveThreadCount = theDeferredConceptSaveThreadCount;
+	}
+
 	/**
 	 * If this is set to <code>false</code> (default is <code>true</code>) the stale search deletion 
 	 * task will be disabled (meaning that search results will be retained in the database indefinitely). USE WITH CAUTION. 
@@ -325,6 +535,25 @@ public class DaoConfig {
 		myExpireSearchResultsAfterMillis = theExpireSearchResultsAfterMillis;
 	}
 
+	/**
+	 * Sets the maximum number of matches which will be collected from the fulltext index for
+	 * a search using the <code>_content</code> or <code>_text</code> parameters (default is 10000).
+	 * Only the best scoring matches up to this limit are collected, in order of relevance, so a
+	 * very common word does not cause every matching resource to be loaded.
+	 * <p>
+	 * The limit only applies when the fulltext index answers the whole search. If any other
+	 * parameters, <code>_lastUpdated</code> or a sort still need to be applied by the database
+	 * (see {@link #setIndexSearchParamsInFulltextIndex(boolean)}), or for the
+	 * <code>$everything</code> operation, every match is collected so that no results are lost.
+	 * </p>
+	 * 
+	 * @since 2.3
+	 */
+	public void setFulltextSearchResultLimit(int theFulltextSearchResultLimit) {
+		Validate.isTrue(theFulltextSearchResultLimit > 0, "theFulltextSearchResultLimit must be greater than 0");
+		myFulltextSearchResultLimit = theFulltextSearchResultLimit;
+	}
+
 	public void setHardSearchLimit(int theHardSearchLimit) {
 		myHardSearchLimit = theHardSearchLimit;
 	}
@@ -336,6 +565,18 @@ public class DaoConfig {
 		myHardTagListLimit = theHardTagListLimit;
 	}
 
+	/**
+	 * When history is compacted (see {@link #setCompactHistoryUsingDeltas(boolean)}), every
+	 * version whose number is a multiple of this value is kept in full (default is 10). Lower
+	 * values make old versions faster to read, at the cost of using more storage.
+	 * 
+	 * @since 2.3
+	 */
+	public void setHistorySnapshotInterval(int theHistorySnapshotInterval) {
+		Validate.isTrue(theHistorySnapshotInterval > 0, "theHistorySnapshotInterval must be greater than 0");
+		myHistorySnapshotInterval = theHistorySnapshotInterval;
+	}
+
 	/**
 	 * This is the maximum number of resources that will be added to a single page of returned resources. Because of
 	 * includes with wildcards and other possibilities it is possible for a client to make requests that include very
@@ -353,6 +594,24 @@ public class DaoConfig {
 		myIndexContainedResources = theIndexContainedResources;
 	}
 
+	/**
+	 * If set to <code>true</code> (default is <code>false</code>) the token, string and date search
+	 * parameters of each resource are also added to the fulltext index. Searches which use the
+	 * <code>_content</code> or <code>_text</code> parameters then apply these parameters inside the
+	 * fulltext index as well, so that the whole search can often be answered there (in relevance
+	 * order, see {@link #setFulltextSearchResultLimit(int)}) without intersecting the fulltext
+	 * matches with the search parameter tables.
+	 * <p>
+	 * Resources which were stored before this setting was enabled must be reindexed before
+	 * they can be found by these searches.
+	 * </p>
+	 * 
+	 * @since 2.3
+	 */
+	public void setIndexSearchParamsInFulltextIndex(boolean theIndexSearchParamsInFulltextIndex) {
+		myIndexSearchParamsInFulltextIndex = theIndexSearchParamsInFulltextIndex;
+	}
+
 	/**
 	 * This may be used to optionally register server interceptors directly against the DAOs.
 	 * @deprecated As of 2.2 this method is deprecated. There is no good reason to register an interceptor
@@ -376,6 +635,27 @@ public class DaoConfig {
 		myInterceptors = theInterceptors;
 	}
 
+	/**
+	 * If set to <code>true</code> (default is <code>false</code>) only the first results of a
+	 * search are stored before the search returns, and the remaining results are stored by a
+	 * background task. This means that the first page of a search which matches a very large
+	 * number of resources can be returned without waiting for all of the matches to be stored.
+	 * Unless the search has a <code>_sort</code> or <code>_lastUpdated</code> parameter, it also
+	 * doesn't need to wait for all of the matches to be found, as the query for the last search
+	 * parameter is streamed by the background task.
+	 * <p>
+	 * While the background task is still running, the number of results reported for the search
+	 * is the number stored so far, and requests for pages which have not yet been stored wait
+	 * for them to become available. If the background task fails, requests for the search's
+	 * results fail too.
+	 * </p>
+	 * 
+	 * @since 2.3
+	 */
+	public void setLoadSearchResultsAsynchronously(boolean theLoadSearchResultsAsynchronously) {
+		myLoadSearchResultsAsynchronously = theLoadSearchResultsAsynchronously;
+	}
+
 	/**
 	 * Sets the maximum number of codes that will be added to a valueset expansion before
 	 * the operation will be failed as too costly
@@ -385,14 +665,120 @@ public class DaoConfig {
 		myMaximumExpansionSize = theMaximumExpansionSize;
 	}
 
+	/**
+	 * If set to <code>true</code> (default is <code>false</code>) the parameters of a search will
+	 * be applied in order of their estimated selectivity, so that the parameter expected to match
+	 * the fewest resources is queried first and the candidate set passed to each subsequent
+	 * parameter is as small as possible. Selectivity is estimated using bounded and cached
+	 * counts of the search parameter index tables. When this is <code>false</code>, parameters
+	 * are applied in the order they were supplied.
+	 * <p>
+	 * This setting has no effect when {@link #setSingleStatementSearch(boolean) single statement search}
+	 * is enabled, since the database is then responsible for planning the whole search.
+	 * </p>
+	 * 
+	 * @since 2.3
+	 */
+	public void setOrderSearchParamsBySelectivity(boolean theOrderSearchParamsBySelectivity) {
+		myOrderSearchParamsBySelectivity = theOrderSearchParamsBySelectivity;
+	}
+
+	/**
+	 * Sets the number of resources which are reindexed in a single database transaction
+	 * during a reindexing pass (default is 100). Each chunk is committed as soon as it has been
+	 * reindexed, so a pass which is interrupted (e.g. by a server restart) only needs to
+	 * repeat the chunks which had not yet been committed.
+	 * 
+	 * @since 2.3
+	 */
+	public void setReindexChunkSize(int theReindexChunkSize) {
+		Validate.isTrue(theReindexChunkSize > 0, "theReindexChunkSize must be greater than 0");
+		myReindexChunkSize = theReindexChunkSize;
+	}
+
+	/**
+	 * Sets the number of threads which reindex resources in parallel during a
+	 * reindexing pass (default is 1). Each thread reindexes its own chunks of resources
+	 * (see {@link #setReindexChunkSize(int)}), so raising this can greatly reduce the time
+	 * taken to reindex a large database, at the cost of one database connection per thread.
+	 * 
+	 * @since 2.3
+	 */
+	public void setReindexThreadCount(int theReindexThreadCount) {
+		Validate.isTrue(theReindexThreadCount > 0, "theReindexThreadCount must be greater than 0");
+		myReindexThreadCount = theReindexThreadCount;
+	}
+
+	/**
+	 * Sets the encoding used to store resource bodies in the database (default is
+	 * {@link ResourceEncodingEnum#JSONC}). {@link ResourceEncodingEnum#JSOND} is faster
+	 * to compress and decompress, and is a good choice for servers which store
+	 * large numbers of small resources.
+	 * <p>
+	 * Each stored resource version records its own encoding, so this can be changed at any
+	 * time: existing resources are still read correctly, and only newly written resource
+	 * versions use the new encoding.
+	 * </p>
+	 */
 	public void setResourceEncoding(ResourceEncodingEnum theResourceEncoding) {
+		Validate.isTrue(theResourceEncoding != ResourceEncodingEnum.DELTA, "theResourceEncoding can not be " + ResourceEncodingEnum.DELTA);
 		myResourceEncoding = theResourceEncoding;
 	}
 
+	/**
+	 * If this is set to a value other than <code>null</code> (default is <code>null</code>), a
+	 * search will reuse the results of an identical search (same resource type, parameters,
+	 * includes and sort) which was performed within this many milliseconds, instead of
+	 * performing the search again. The previous search is only reused if no resources of the
+	 * type being searched have been created, updated or deleted since it was performed (or if
+	 * it uses chained or <code>_has</code> parameters, no resources of any type).
+	 * <p>
+	 * Note that writes are tracked in memory, so if several servers share a single database,
+	 * a server can not tell that another server has changed the resources. In that setup this
+	 * should be set to a value no larger than the acceptable staleness of search results.
+	 * </p>
+	 * 
+	 * @since 2.3
+	 */
+	public void setReuseCachedSearchResultsForMillis(Long theReuseCachedSearchResultsForMillis) {
+		myReuseCachedSearchResultsForMillis = theReuseCachedSearchResultsForMillis;
+	}
+
 	public void setSchedulingDisabled(boolean theSchedulingDisabled) {
 		mySchedulingDisabled = theSchedulingDisabled;
 	}
 
+	/**
+	 * If set to <code>true</code> (default is <code>false</code>) searches will be compiled into a
+	 * single SQL statement, with each search parameter expressed as a subquery, so that
+	 * the database performs the intersection of the individual parameters. When this is
+	 * <code>false</code>, each parameter is queried separately and the matching resource IDs
+	 * are loaded and passed into the query for the next parameter.
+	 * <p>
+	 * This is an experimental feature.
+	 * </p>
+	 * 
+	 * @since 2.3
+	 */
+	public void setSingleStatementSearch(boolean theSingleStatementSearch) {
+		mySingleStatementSearch = theSingleStatementSearch;
+	}
+
+	/**
+	 * If set to <code>true</code> (default is <code>false</code>) the <code>$suggest-keywords</code>
+	 * operation is answered from an in-memory dictionary of the words (and pairs of words) in the
+	 * content of the resources in the given context. The dictionary for a context is built from the
+	 * fulltext index when it is first needed, and is then updated as resources are written, so
+	 * suggestions are found with a single prefix lookup. When this is <code>false</code>, each request
+	 * queries the fulltext index and highlights the text of the matching resources, which also finds
+	 * approximate (e.g. phonetic) matches but is much slower for large contexts.
+	 * 
+	 * @since 2.3
+	 */
+	public void setSuggestKeywordsFromDictionary(boolean theSuggestKeywordsFromDictionary) {
+		mySuggestKeywordsFromDictionary = theSuggestKeywordsFromDictionary;
+	}
+
 	/**
 	 * If set to true, the server will enable support for subscriptions. Subscriptions
 	 * will by default be handled via a polling task. Note that if this is enabled, you must also include Spring task scanning to your XML
@@ -402,6 +788,30 @@ public class DaoConfig {
 		mySubscriptionEnabled = theSubscriptionEnabled;
 	}
 
+	/**
+	 * If set to <code>true</code> (default is <code>false</code>), resources are matched against
+	 * the criteria of active subscriptions as they are written, and matches are flagged for delivery
+	 * in the same transaction as the write. The polling task then no longer needs to search for new
+	 * matches for those subscriptions. Subscriptions whose criteria can not be evaluated against
+	 * the indexed values of a single resource (e.g. chained parameters, or parameters other than
+	 * string, token and reference parameters) are still handled by searching.
+	 * <p>
+	 * Subscriptions are only matched in the server (JVM) which polls them, so this setting is
+	 * only safe if all writes go through that server. Do not enable it if several servers write
+	 * to the same database, since resources written by the others would never be flagged.
+	 * </p>
+	 * <p>
+	 * A resource written while a subscription is starting to be matched in this way (e.g. just
+	 * after the server has started, or after the subscription has been changed) may be flagged
+	 * for that subscription twice.
+	 * </p>
+	 *
+	 * @since 2.3
+	 */
+	public void setSubscriptionMatchOnWrite(boolean theSubscriptionMatchOnWrite) {
+		mySubscriptionMatchOnWrite = theSubscriptionMatchOnWrite;
+	}
+
 	public void setSubscriptionPollDelay(long theSubscriptionPollDelay) {
 		mySubscriptionPollDelay = theSubscriptionPollDelay;
 	}
@@ -417,6 +827,21 @@ public class DaoConfig {
 		setSubscriptionPurgeInactiveAfterMillis(theSeconds * DateUtils.MILLIS_PER_SECOND);
 	}
 	
+	/**
+	 * Sets the number of threads which prepare the entries of a transaction bundle for
+	 * indexing in parallel (default is 1). Preparation (validating each resource, extracting
+	 * its search parameters and parsing its text for fulltext indexing) does not use the
+	 * database, so it can be spread across several threads for large transactions. The index
+	 * rows themselves are still written by the thread processing the transaction, in bundle
+	 * order, within the single database transaction.
+	 * 
+	 * @since 2.3
+	 */
+	public void setTransactionPreparationThreadCount(int theTransactionPreparationThreadCount) {
+		Validate.isTrue(theTransactionPreparationThreadCount > 0, "theTransactionPreparationThreadCount must be greater than 0");
+		myTransactionPreparationThreadCount = theTransactionPreparationThreadCount;
+	}
+
 	/**
 	 * This setting may be used to advise the server that any references found in
 	 * resources that have any of the base URLs given here will be replaced with
@@ -0,0 +1,164 @@
+package ca.uhn.fhir.jpa.dao;
+
+/*
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2017 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import com.google.common.base.Charsets;
+
+import ca.uhn.fhir.jpa.entity.ResourceEncodingEnum;
+
+/**
+ * Deflate compression using the fastest compression level and a preset dictionary of
+ * strings which appear in most FHIR JSON resources, used by {@link ResourceEncodingEnum#JSOND}.
+ * The dictionary lets even small resources compress well, since the first occurrence of
+ * common element names and URLs can refer back into the dictionary.
+ * <p>
+ * Note that the dictionary must never be changed, since it is needed to decompress any
+ * resource which was compressed with it.
+ * </p>
+ */
+public class DeflateUtil {
+
+	private static final byte[] DICTIONARY;
+
+	static {
+		// Strings which are most likely to appear go last, since they are closest to the data
+		StringBuilder b = new StringBuilder();
+		b.append("\"http://hl7.org/fhir/StructureDefinition/");
+		b.append("\"http://snomed.info/sct\"");
+		b.append("\"http://unitsofmeasure.org\"");
+		b.append("\"http://loinc.org\"");
+		b.append("\"valueQuantity\":{\"value\":");
+		b.append("\"valueCodeableConcept\":{");
+		b.append("\"valueString\":\"");
+		b.append("\"effectiveDateTime\":\"");
+		b.append("\"issued\":\"");
+		b.append("\"category\":[{\"coding\":[{\"system\":\"http://hl7.org/fhir/");
+		b.append("\"name\":[{\"family\":\"");
+		b.append("\"given\":[\"");
+		b.append("\"gender\":\"");
+		b.append("\"birthDate\":\"");
+		b.append("\"telecom\":[{\"system\":\"");
+		b.append("\"address\":[{\"line\":[\"");
+		b.append("\"period\":{\"start\":\"");
+		b.append("\"extension\":[{\"url\":\"");
+		b.append("\"contained\":[{\"resourceType\":\"");
+		b.append("\"text\":{\"status\":\"generated\",\"div\":\"<div xmlns=\\\"http://www.w3.org/1999/xhtml\\\">");
+		b.append("\"meta\":{\"profile\":[\"");
+		b.append("\"security\":[{\"system\":\"");
+		b.append("\"tag\":[{\"system\":\"");
+		b.append("\"identifier\":[{\"use\":\"");
+		b.append("\"identifier\":[{\"system\":\"");
+		b.append("\"subject\":{\"reference\":\"Patient/");
+		b.append("\"patient\":{\"reference\":\"Patient/");
+		b.append("\"reference\":\"");
+		b.append("\"code\":{\"coding\":[{\"system\":\"");
+		b.append("\"coding\":[{\"system\":\"");
+		b.append("\"unit\":\"");
+		b.append("\"use\":\"");
+		b.append("\"status\":\"");
+		b.append("\"display\":\"");
+		b.append("\"text\":\"");
+		b.append("\"system\":\"");
+		b.append("\"code\":\"");
+		b.append("\"value\":\"");
+		b.append("{\"resourceType\":\"");
+		b.append("\",\"id\":\"");
+		DICTIONARY = b.toString().getBytes(Charsets.UTF_8);
+	}
+
+	/**
+	 * Returns a stream which compresses anything written to it into the given stream. The
+	 * returned stream must be closed in order to release the native resources held by its
+	 * compressor.
+	 */
+	public static OutputStream newCompressingStream(OutputStream theOutputStream) {
+		final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		deflater.setDictionary(DICTIONARY);
+		return new DeflaterOutputStream(theOutputStream, deflater) {
+			@Override
+			public void close() throws IOException {
+				try {
+					super.close();
+				} finally {
+					deflater.end();
+				}
+			}
+		};
+	}
+
+	/**
+	 * Returns a reader over the decompressed contents, so that they can be parsed without
+	 * first being copied into a string
+	 */
+	public static Reader newDecompressingReader(byte[] theResource) {
+		return new InputStreamReader(newDecompressingStream(theResource), Charsets.UTF_8);
+	}
+
+	/**
+	 * Returns a stream over the decompressed contents
+	 */
+	public static InputStream newDecompressingStream(byte[] theResource) {
+		return new DictionaryInflaterInputStream(new ByteArrayInputStream(theResource));
+	}
+
+	/**
+	 * {@link InflaterInputStream} treats a stream which needs a dictionary as having ended,
+	 * so this supplies the dictionary when it is asked for and carries on reading
+	 */
+	private static class DictionaryInflaterInputStream extends InflaterInputStream {
+
+		DictionaryInflaterInputStream(InputStream theInputStream) {
+			super(theInputStream, new Inflater());
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				super.close();
+			} finally {
+				inf.end();
+			}
+		}
+
+		@Override
+		public int read(byte[] theBuffer, int theOffset, int theLength) throws IOException {
+			int retVal = super.read(theBuffer, theOffset, theLength);
+			if (retVal == -1 && inf.needsDictionary()) {
+				inf.setDictionary(DICTIONARY);
+				retVal = super.read(theBuffer, theOffset, theLength);
+			}
+			return retVal;
+		}
+
+	}
+
+}
@@ -0,0 +1,168 @@
+package ca.uhn.fhir.jpa.dao;
+
+/*
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2017 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import ca.uhn.fhir.parser.DataFormatException;
+
+/**
+ * Creates and applies compressed binary deltas, which describe how to build one
+ * byte array (the target) out of another (the base) as a series of ranges copied
+ * from the base and literal bytes. Used to store compacted history entries as
+ * deltas against the following version of the same resource.
+ */
+public class DeltaUtil {
+
+	/**
+	 * Length of the blocks of the base which are indexed when looking for matches. Shorter
+	 * blocks find more matches, at the cost of a larger index.
+	 */
+	private static final int BLOCK_SIZE = 16;
+
+	private static final byte OP_ADD = 1;
+	private static final byte OP_COPY = 0;
+
+	/**
+	 * Rebuilds the target from the base and a delta which was created by
+	 * {@link #createDelta(byte[], byte[])}
+	 */
+	public static byte[] applyDelta(byte[] theBase, byte[] theDelta) {
+		DataInputStream is = new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(theDelta)));
+		try {
+			try {
+				byte[] retVal = new byte[is.readInt()];
+				int pos = 0;
+				while (pos < retVal.length) {
+					byte op = is.readByte();
+					int length;
+					if (op == OP_COPY) {
+						int offset = is.readInt();
+						length = is.readInt();
+						System.arraycopy(theBase, offset, retVal, pos, length);
+					} else if (op == OP_ADD) {
+						length = is.readInt();
+						is.readFully(retVal, pos, length);
+					} else {
+						throw new DataFormatException("Invalid delta operation: " + op);
+					}
+					pos += length;
+				}
+				return retVal;
+			} finally {
+				is.close();
+			}
+		} catch (IOException e) {
+			throw new DataFormatException("Failed to apply delta", e);
+		} catch (IndexOutOfBoundsException e) {
+			throw new DataFormatException("Failed to apply delta", e);
+		}
+	}
+
+	/**
+	 * Creates a compressed delta which can be used to rebuild the target from the base
+	 */
+	public static byte[] createDelta(byte[] theBase, byte[] theTarget) {
+		Map<Integer, Integer> blockOffsets = new HashMap<Integer, Integer>();
+		for (int i = 0; i + BLOCK_SIZE <= theBase.length; i += BLOCK_SIZE) {
+			Integer hash = hashBlock(theBase, i);
+			if (!blockOffsets.containsKey(hash)) {
+				blockOffsets.put(hash, i);
+			}
+		}
+
+		ByteArrayOutputStream retVal = new ByteArrayOutputStream();
+		DataOutputStream os = new DataOutputStream(new DeflaterOutputStream(retVal));
+		try {
+			os.writeInt(theTarget.length);
+
+			int literalStart = 0;
+			int pos = 0;
+			while (pos + BLOCK_SIZE <= theTarget.length) {
+				Integer baseOffset = blockOffsets.get(hashBlock(theTarget, pos));
+				if (baseOffset == null || !regionMatches(theBase, baseOffset, theTarget, pos)) {
+					pos++;
+					continue;
+				}
+
+				// Grow the match backwards over any pending literal bytes, and then forwards
+				int baseStart = baseOffset;
+				int targetStart = pos;
+				while (targetStart > literalStart && baseStart > 0 && theBase[baseStart - 1] == theTarget[targetStart - 1]) {
+					baseStart--;
+					targetStart--;
+				}
+				int length = pos - targetStart + BLOCK_SIZE;
+				while (targetStart + length < theTarget.length && baseStart + length < theBase.length && theBase[baseStart + length] == theTarget[targetStart + length]) {
+					length++;
+				}
+
+				writeLiteral(os, theTarget, literalStart, targetStart);
+				os.writeByte(OP_COPY);
+				os.writeInt(baseStart);
+				os.writeInt(length);
+
+				pos = targetStart + length;
+				literalStart = pos;
+			}
+			writeLiteral(os, theTarget, literalStart, theTarget.length);
+
+			os.close();
+		} catch (IOException e) {
+			throw new DataFormatException("Failed to create delta", e);
+		}
+		return retVal.toByteArray();
+	}
+
+	private static int hashBlock(byte[] theBytes, int theOffset) {
+		int retVal = 0;
+		for (int i = theOffset; i < theOffset + BLOCK_SIZE; i++) {
+			retVal = 31 * retVal + theBytes[i];
+		}
+		return retVal;
+	}
+
+	private static boolean regionMatches(byte[] theBase, int theBaseOffset, byte[] theTarget, int theTargetOffset) {
+		for (int i = 0; i < BLOCK_SIZE; i++) {
+			if (theBase[theBaseOffset + i] != theTarget[theTargetOffset + i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static void writeLiteral(DataOutputStream theOutputStream, byte[] theTarget, int theStart, int theEnd) throws IOException {
+		if (theEnd > theStart) {
+			theOutputStream.writeByte(OP_ADD);
+			theOutputStream.writeInt(theEnd - theStart);
+			theOutputStream.write(theTarget, theStart, theEnd - theStart);
+		}
+	}
+
+}
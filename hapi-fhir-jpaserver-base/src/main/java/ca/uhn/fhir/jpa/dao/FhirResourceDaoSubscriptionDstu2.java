@@ -73,6 +73,9 @@ public class FhirResourceDaoSubscriptionDstu2 extends FhirResourceDaoDstu2<Subsc
 	@Autowired
 	private ISubscriptionFlaggedResourceDataDao mySubscriptionFlaggedResourceDataDao;
 
+	@Autowired
+	private SubscriptionMatcherSvc mySubscriptionMatcherSvc;
+
 	@Autowired
 	private ISubscriptionTableDao mySubscriptionTableDao;
 
@@ -154,9 +157,36 @@ public class FhirResourceDaoSubscriptionDstu2 extends FhirResourceDaoDstu2<Subsc
 		RuntimeResourceDefinition resourceDef = validateCriteriaAndReturnResourceDefinition(subscription);
 		SearchParameterMap criteriaUrl = translateMatchUrl(getContext(), subscription.getCriteria(), resourceDef);
 
-		criteriaUrl = new SearchParameterMap();
 		long start = theSubscriptionTable.getMostRecentMatch().getTime();
 		long end = System.currentTimeMillis() - getConfig().getSubscriptionPollDelay();
+
+		/*
+		 * If resources are matched against this subscription as they are written, only the
+		 * resources written before that started still need to be searched for
+		 */
+		Long matchingSince = null;
+		if (getConfig().isSubscriptionMatchOnWrite()) {
+			if (!mySubscriptionMatcherSvc.isRegistered(theSubscriptionTable.getId())) {
+				mySubscriptionMatcherSvc.registerSubscription(theSubscriptionTable.getId(), theSubscriptionTable.getSubscriptionResource().getId(), resourceDef, criteriaUrl);
+			}
+			matchingSince = mySubscriptionMatcherSvc.getMatchingSince(theSubscriptionTable.getId());
+			if (matchingSince != null) {
+				if (start >= matchingSince) {
+					/*
+					 * Everything older than the poll delay was flagged as it was written. Moving the
+					 * most recent match forward means that when the subscription is registered again
+					 * (e.g. after a restart) only newer resources are searched for.
+					 */
+					if (end > start) {
+						theSubscriptionTable.setMostRecentMatch(new Date(end));
+						mySubscriptionTableDao.save(theSubscriptionTable);
+					}
+					return 0;
+				}
+				end = Math.min(end, matchingSince);
+			}
+		}
+
 		if (end <= start) {
 			ourLog.trace("Skipping search for subscription");
 			return 0;
@@ -172,6 +202,11 @@ public class FhirResourceDaoSubscriptionDstu2 extends FhirResourceDaoDstu2<Subsc
 		IFhirResourceDao<? extends IBaseResource> dao = getDao(resourceDef.getImplementingClass());
 		IBundleProvider results = dao.search(criteriaUrl);
 		if (results.size() == 0) {
+			if (matchingSince != null && end == matchingSince) {
+				// Caught up with the resources written before matching started
+				theSubscriptionTable.setMostRecentMatch(new Date(end));
+				mySubscriptionTableDao.save(theSubscriptionTable);
+			}
 			return 0;
 		}
 
@@ -278,6 +313,10 @@ public class FhirResourceDaoSubscriptionDstu2 extends FhirResourceDaoDstu2<Subsc
 
 		Subscription resource = (Subscription) theResource;
 		Long resourceId = theEntity.getId();
+
+		// The criteria or status may have changed
+		mySubscriptionMatcherSvc.unregisterSubscriptionResource(resourceId);
+
 		if (theDeletedTimestampOrNull != null) {
 			Long subscriptionId = getSubscriptionTablePidForSubscriptionResource(theEntity.getIdDt());
 			if (subscriptionId != null) {
@@ -0,0 +1,269 @@
+package ca.uhn.fhir.jpa.dao;
+
+/*
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2017 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.PersistenceContextType;
+import javax.persistence.TypedQuery;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import ca.uhn.fhir.jpa.dao.data.IForcedIdDao;
+import ca.uhn.fhir.jpa.entity.ForcedId;
+import ca.uhn.fhir.jpa.entity.ResourceTable;
+
+/**
+ * Caches the translation between forced (client assigned) resource IDs and resource PIDs,
+ * in both directions. A forced ID can not be changed once it has been assigned, so cached
+ * translations only need to be discarded when a resource is deleted.
+ * <p>
+ * There are two tiers: translations read within a transaction are kept in a map belonging
+ * to that transaction, and are only copied to a bounded cache shared by all threads once the
+ * transaction has committed. This means that the forced ID of a resource created by a
+ * transaction which is then rolled back is never visible to other transactions.
+ * </p>
+ */
+public class ForcedIdCacheSvc {
+
+	static final int DEFAULT_MAX_SIZE = 10000;
+
+	/**
+	 * Cached as the value for a PID which has no forced ID
+	 */
+	private static final String NO_FORCED_ID = "";
+
+	@PersistenceContext(type = PersistenceContextType.TRANSACTION)
+	private EntityManager myEntityManager;
+
+	@Autowired
+	private IForcedIdDao myForcedIdDao;
+
+	private Cache<String, Long> myForcedIdToPid;
+
+	private Cache<Long, String> myPidToForcedId;
+
+	public ForcedIdCacheSvc() {
+		setMaxSize(DEFAULT_MAX_SIZE);
+	}
+
+	/**
+	 * Discards all cached translations
+	 */
+	public void clearCache() {
+		myForcedIdToPid.invalidateAll();
+		myPidToForcedId.invalidateAll();
+	}
+
+	private Long getCachedPid(TransactionCache theTxCache, String theKey) {
+		Long retVal = null;
+		if (theTxCache != null) {
+			retVal = theTxCache.myForcedIdToPid.get(theKey);
+		}
+		if (retVal == null) {
+			retVal = myForcedIdToPid.getIfPresent(theKey);
+		}
+		return retVal;
+	}
+
+	/**
+	 * Returns the PIDs of the resources with the given type and forced ID. Returns an empty list
+	 * if there is no such resource.
+	 */
+	public List<Long> getPids(String theResourceType, String theForcedId) {
+		TransactionCache txCache = getTransactionCache(false);
+		Long pid = getCachedPid(txCache, toKey(theResourceType, theForcedId));
+		if (pid != null) {
+			return Collections.singletonList(pid);
+		}
+
+		List<ForcedId> forcedIds = myForcedIdDao.findByTypeAndForcedId(theResourceType, theForcedId);
+		List<Long> retVal = new ArrayList<Long>(forcedIds.size());
+		for (ForcedId next : forcedIds) {
+			retVal.add(next.getResourcePid());
+		}
+		if (forcedIds.size() == 1) {
+			put(theResourceType, theForcedId, forcedIds.get(0).getResourcePid());
+		}
+		return retVal;
+	}
+
+	/**
+	 * Returns the PIDs of the resources with the given type and any of the given forced IDs,
+	 * keyed by forced ID. Forced IDs which are not cached are all loaded with a single query.
+	 */
+	public Map<String, Long> getPids(String theResourceType, Collection<String> theForcedIds) {
+		TransactionCache txCache = getTransactionCache(false);
+		Map<String, Long> retVal = new HashMap<String, Long>();
+		List<String> missing = new ArrayList<String>();
+		for (String next : new LinkedHashSet<String>(theForcedIds)) {
+			Long pid = getCachedPid(txCache, toKey(theResourceType, next));
+			if (pid != null) {
+				retVal.put(next, pid);
+			} else {
+				missing.add(next);
+			}
+		}
+
+		for (int start = 0; start < missing.size(); start += SearchBuilder.MAX_PIDS_IN_QUERY) {
+			List<String> chunk = missing.subList(start, Math.min(start + SearchBuilder.MAX_PIDS_IN_QUERY, missing.size()));
+			TypedQuery<Object[]> q = myEntityManager.createQuery("SELECT f.myForcedId, f.myResourcePid FROM ForcedId f WHERE f.myResourceType = :resource_type AND f.myForcedId IN (:forced_ids)", Object[].class);
+			q.setParameter("resource_type", theResourceType);
+			q.setParameter("forced_ids", chunk);
+			for (Object[] next : q.getResultList()) {
+				String forcedId = (String) next[0];
+				Long pid = (Long) next[1];
+				retVal.put(forcedId, pid);
+				put(theResourceType, forcedId, pid);
+			}
+		}
+
+		return retVal;
+	}
+
+	/**
+	 * Returns the forced ID of the resource with the given PID, qualified with its resource
+	 * type (e.g. <code>Patient/ABC</code>), or <code>null</code> if it has no forced ID
+	 */
+	public String getQualifiedForcedId(Long thePid) {
+		TransactionCache txCache = getTransactionCache(false);
+		String retVal = null;
+		if (txCache != null) {
+			retVal = txCache.myPidToForcedId.get(thePid);
+		}
+		if (retVal == null) {
+			retVal = myPidToForcedId.getIfPresent(thePid);
+		}
+
+		if (retVal == null) {
+			ForcedId forcedId = myForcedIdDao.findByResourcePid(thePid);
+			if (forcedId != null) {
+				retVal = toKey(forcedId.getResourceType(), forcedId.getForcedId());
+				put(forcedId.getResourceType(), forcedId.getForcedId(), thePid);
+			} else {
+				retVal = NO_FORCED_ID;
+				txCache = getTransactionCache(true);
+				if (txCache != null) {
+					txCache.myPidToForcedId.put(thePid, NO_FORCED_ID);
+				} else {
+					myPidToForcedId.put(thePid, NO_FORCED_ID);
+				}
+			}
+		}
+
+		return retVal.isEmpty() ? null : retVal;
+	}
+
+	/**
+	 * Returns the cache belonging to the current transaction, or <code>null</code> if there is no
+	 * transaction (or if there is no cache yet and <code>theCreate</code> is false)
+	 */
+	private TransactionCache getTransactionCache(boolean theCreate) {
+		if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+			return null;
+		}
+
+		TransactionCache retVal = (TransactionCache) TransactionSynchronizationManager.getResource(this);
+		if (retVal == null && theCreate) {
+			final TransactionCache txCache = new TransactionCache();
+			retVal = txCache;
+			TransactionSynchronizationManager.bindResource(this, txCache);
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+				@Override
+				public void afterCompletion(int theStatus) {
+					TransactionSynchronizationManager.unbindResourceIfPossible(ForcedIdCacheSvc.this);
+					if (theStatus == TransactionSynchronization.STATUS_COMMITTED) {
+						myForcedIdToPid.putAll(txCache.myForcedIdToPid);
+						myPidToForcedId.putAll(txCache.myPidToForcedId);
+					}
+				}
+			});
+		}
+		return retVal;
+	}
+
+	/**
+	 * Discards any cached translation for the given resource. This should be called when
+	 * a resource is deleted.
+	 */
+	public void invalidate(ResourceTable theEntity) {
+		Long pid = theEntity.getId();
+		ForcedId forcedId = theEntity.getForcedId();
+		String key = forcedId != null ? toKey(forcedId.getResourceType(), forcedId.getForcedId()) : null;
+
+		TransactionCache txCache = getTransactionCache(false);
+		if (txCache != null) {
+			if (key != null) {
+				txCache.myForcedIdToPid.remove(key);
+			}
+			txCache.myPidToForcedId.remove(pid);
+		}
+		if (key != null) {
+			myForcedIdToPid.invalidate(key);
+		}
+		myPidToForcedId.invalidate(pid);
+	}
+
+	private void put(String theResourceType, String theForcedId, Long thePid) {
+		String key = toKey(theResourceType, theForcedId);
+		TransactionCache txCache = getTransactionCache(true);
+		if (txCache != null) {
+			txCache.myForcedIdToPid.put(key, thePid);
+			txCache.myPidToForcedId.put(thePid, key);
+		} else {
+			myForcedIdToPid.put(key, thePid);
+			myPidToForcedId.put(thePid, key);
+		}
+	}
+
+	/**
+	 * Sets the maximum number of translations held in the shared cache (default is 10000).
+	 * Any translations already cached are discarded.
+	 */
+	public void setMaxSize(int theMaxSize) {
+		myForcedIdToPid = CacheBuilder.newBuilder().maximumSize(theMaxSize).build();
+		myPidToForcedId = CacheBuilder.newBuilder().maximumSize(theMaxSize).build();
+	}
+
+	private static String toKey(String theResourceType, String theForcedId) {
+		return theResourceType + '/' + theForcedId;
+	}
+
+	private static class TransactionCache {
+		private final Map<String, Long> myForcedIdToPid = new HashMap<String, Long>();
+		private final Map<Long, String> myPidToForcedId = new HashMap<Long, String>();
+	}
+
+}
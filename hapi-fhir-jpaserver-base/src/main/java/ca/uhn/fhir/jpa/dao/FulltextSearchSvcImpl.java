@@ -24,9 +24,11 @@ import static org.apache.commons.lang3.StringUtils.isNotBlank;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Date;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map.Entry;
 import java.util.Set;
 
 import javax.persistence.EntityManager;
@@ -36,7 +38,11 @@ import javax.persistence.PersistenceContextType;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.Validate;
 import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.PrefixQuery;
 import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TermRangeQuery;
 import org.apache.lucene.search.highlight.Formatter;
 import org.apache.lucene.search.highlight.Highlighter;
 import org.apache.lucene.search.highlight.QueryScorer;
@@ -47,15 +53,26 @@ import org.hibernate.search.jpa.FullTextQuery;
 import org.hibernate.search.query.dsl.BooleanJunction;
 import org.hibernate.search.query.dsl.QueryBuilder;
 import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.transaction.annotation.Transactional;
 
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 
+import ca.uhn.fhir.context.RuntimeResourceDefinition;
+import ca.uhn.fhir.context.RuntimeSearchParam;
+import ca.uhn.fhir.jpa.entity.ResourceIndexedSearchParamString;
+import ca.uhn.fhir.jpa.entity.ResourceIndexedSearchParamToken;
 import ca.uhn.fhir.jpa.entity.ResourceTable;
+import ca.uhn.fhir.jpa.search.KeywordSuggestionSvc;
+import ca.uhn.fhir.jpa.util.SearchParamFieldBridge;
 import ca.uhn.fhir.model.api.IQueryParameterType;
 import ca.uhn.fhir.model.dstu.resource.BaseResource;
+import ca.uhn.fhir.rest.param.DateParam;
+import ca.uhn.fhir.rest.param.DateRangeParam;
+import ca.uhn.fhir.rest.param.ParamPrefixEnum;
 import ca.uhn.fhir.rest.param.StringParam;
+import ca.uhn.fhir.rest.param.TokenParam;
 import ca.uhn.fhir.rest.server.Constants;
 import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
 import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
@@ -66,6 +83,9 @@ public class FulltextSearchSvcImpl extends BaseHapiFhirDao<IBaseResource> implem
 	@PersistenceContext(type = PersistenceContextType.TRANSACTION)
 	private EntityManager myEntityManager;
 
+	@Autowired
+	private KeywordSuggestionSvc myKeywordSuggestionSvc;
+
 	private void addTextSearch(QueryBuilder theQueryBuilder, BooleanJunction<?> theBoolean, List<List<? extends IQueryParameterType>> theTerms, String theFieldName, String theFieldNameEdgeNGram, String theFieldNameNGram) {
 		if (theTerms == null) {
 			return;
@@ -99,6 +119,158 @@ public class FulltextSearchSvcImpl extends BaseHapiFhirDao<IBaseResource> implem
 		}
 	}
 
+	/**
+	 * Adds the token, string and date params of the search to the query, using the fields added by
+	 * {@link SearchParamFieldBridge}. Params which are matched exactly by the index are removed from
+	 * the map. Date ranges with both a lower and an upper bound can not be matched exactly (the
+	 * bounds could be satisfied by different dates on the same resource), so these are only used to
+	 * narrow the results here and are left in the map to be checked by the database.
+	 */
+	private void addSearchParams(QueryBuilder theQueryBuilder, BooleanJunction<?> theBoolean, String theResourceName, SearchParameterMap theParams) {
+		RuntimeResourceDefinition resourceDef = getContext().getResourceDefinition(theResourceName);
+		for (Iterator<Entry<String, List<List<? extends IQueryParameterType>>>> paramIter = theParams.entrySet().iterator(); paramIter.hasNext();) {
+			Entry<String, List<List<? extends IQueryParameterType>>> nextParam = paramIter.next();
+			String nextParamName = nextParam.getKey();
+			if (nextParamName.startsWith("_")) {
+				continue;
+			}
+			RuntimeSearchParam nextParamDef = resourceDef.getSearchParam(nextParamName);
+			if (nextParamDef == null) {
+				continue;
+			}
+
+			for (Iterator<List<? extends IQueryParameterType>> andIter = nextParam.getValue().iterator(); andIter.hasNext();) {
+				List<? extends IQueryParameterType> nextAnd = andIter.next();
+				if (nextAnd.isEmpty()) {
+					continue;
+				}
+
+				BooleanJunction<?> orBool = theQueryBuilder.bool();
+				boolean exact = true;
+				for (IQueryParameterType nextOr : nextAnd) {
+					Query nextQuery = null;
+					if (nextOr.getMissing() == null) {
+						switch (nextParamDef.getParamType()) {
+						case TOKEN:
+							nextQuery = createTokenQuery(nextParamName, nextOr);
+							break;
+						case STRING:
+							nextQuery = createStringQuery(nextParamName, nextOr);
+							break;
+						case DATE:
+							DateRangeParam range = toDateRange(nextOr);
+							if (range != null) {
+								nextQuery = createDateQuery(theQueryBuilder, nextParamName, range);
+								if (range.getLowerBound() != null && range.getUpperBound() != null) {
+									exact = false;
+								}
+							}
+							break;
+						default:
+							break;
+						}
+					}
+					if (nextQuery == null) {
+						orBool = null;
+						break;
+					}
+					orBool.should(nextQuery);
+				}
+
+				if (orBool == null) {
+					continue;
+				}
+				theBoolean.must(orBool.createQuery()).disableScoring();
+				if (exact) {
+					andIter.remove();
+				}
+			}
+
+			if (nextParam.getValue().isEmpty()) {
+				paramIter.remove();
+			}
+		}
+	}
+
+	private Query createDateQuery(QueryBuilder theQueryBuilder, String theParamName, DateRangeParam theRange) {
+		Date lowerBound = theRange.getLowerBoundAsInstant();
+		Date upperBound = theRange.getUpperBoundAsInstant();
+		String lowField = SearchParamFieldBridge.FIELD_DATE_LOW + theParamName;
+		String highField = SearchParamFieldBridge.FIELD_DATE_HIGH + theParamName;
+
+		// These are the same comparisons made by the database search, see SearchBuilder
+		BooleanJunction<?> retVal = theQueryBuilder.bool();
+		if (lowerBound != null) {
+			String term = SearchParamFieldBridge.toDateTerm(lowerBound);
+			Query gt = TermRangeQuery.newStringRange(lowField, term, null, true, false);
+			Query lt = TermRangeQuery.newStringRange(highField, term, null, true, false);
+			ParamPrefixEnum prefix = theRange.getLowerBound().getPrefix();
+			if (prefix == ParamPrefixEnum.STARTS_AFTER || prefix == ParamPrefixEnum.EQUAL) {
+				retVal.must(gt);
+			} else {
+				retVal.must(theQueryBuilder.bool().should(gt).should(lt).createQuery());
+			}
+		}
+		if (upperBound != null) {
+			String term = SearchParamFieldBridge.toDateTerm(upperBound);
+			Query gt = TermRangeQuery.newStringRange(lowField, null, term, false, true);
+			Query lt = TermRangeQuery.newStringRange(highField, null, term, false, true);
+			ParamPrefixEnum prefix = theRange.getUpperBound().getPrefix();
+			if (prefix == ParamPrefixEnum.ENDS_BEFORE || prefix == ParamPrefixEnum.EQUAL) {
+				retVal.must(lt);
+			} else {
+				retVal.must(theQueryBuilder.bool().should(gt).should(lt).createQuery());
+			}
+		}
+
+		if (retVal.isEmpty()) {
+			return null;
+		}
+		return retVal.createQuery();
+	}
+
+	/**
+	 * Returns <code>null</code> if the param can not be matched exactly by the index (in which case the
+	 * database search will handle it, and also report any errors)
+	 */
+	private Query createStringQuery(String theParamName, IQueryParameterType theParam) {
+		if (!(theParam instanceof StringParam)) {
+			return null;
+		}
+		StringParam param = (StringParam) theParam;
+		String value = param.getValue();
+		if (param.isContains() || StringUtils.isBlank(value) || value.length() > ResourceIndexedSearchParamString.MAX_LENGTH) {
+			return null;
+		}
+		if (param.isExact()) {
+			return new TermQuery(new Term(SearchParamFieldBridge.FIELD_STRING_EXACT + theParamName, value));
+		}
+		return new PrefixQuery(new Term(SearchParamFieldBridge.FIELD_STRING + theParamName, normalizeString(value)));
+	}
+
+	/**
+	 * Returns <code>null</code> if the param can not be matched exactly by the index (in which case the
+	 * database search will handle it, and also report any errors)
+	 */
+	private Query createTokenQuery(String theParamName, IQueryParameterType theParam) {
+		if (!(theParam instanceof TokenParam)) {
+			return null;
+		}
+		TokenParam param = (TokenParam) theParam;
+		String system = param.getSystem();
+		String value = param.getValue();
+		if (param.getModifier() != null || StringUtils.isBlank(value) || value.length() > ResourceIndexedSearchParamToken.MAX_LENGTH) {
+			return null;
+		}
+		if (system == null) {
+			return new TermQuery(new Term(SearchParamFieldBridge.FIELD_TOKEN_VALUE + theParamName, value));
+		}
+		if (system.length() > ResourceIndexedSearchParamToken.MAX_LENGTH) {
+			return null;
+		}
+		return new TermQuery(new Term(SearchParamFieldBridge.FIELD_TOKEN + theParamName, SearchParamFieldBridge.toTokenTerm(system, value)));
+	}
+
 	private List<Long> doSearch(String theResourceName, SearchParameterMap theParams, Long theReferencingPid) {
 		FullTextEntityManager em = org.hibernate.search.jpa.Search.getFullTextEntityManager(myEntityManager);
 
@@ -172,6 +344,14 @@ public class FulltextSearchSvcImpl extends BaseHapiFhirDao<IBaseResource> implem
 			return pids;
 		}
 
+		/*
+		 * Handle token, string and date params, if they are in the index
+		 */
+		boolean searchParamsInIndex = getConfig().isIndexSearchParamsInFulltextIndex() && isNotBlank(theResourceName) && theReferencingPid == null;
+		if (searchParamsInIndex) {
+			addSearchParams(qb, bool, theResourceName, theParams);
+		}
+
 		if (isNotBlank(theResourceName)) {
 			bool.must(qb.keyword().onField("myResourceType").matching(theResourceName).createQuery());
 		}
@@ -182,16 +362,26 @@ public class FulltextSearchSvcImpl extends BaseHapiFhirDao<IBaseResource> implem
 		FullTextQuery jpaQuery = em.createFullTextQuery(luceneQuery, ResourceTable.class);
 		jpaQuery.setProjection("myId");
 
+		/*
+		 * If the fulltext index answers the whole search, only the best matches are
+		 * collected (Lucene keeps a bounded queue of the top scoring documents rather
+		 * than gathering every match), and they are returned in order of relevance.
+		 * If anything is still to be filtered or sorted by the database, or this is an
+		 * $everything operation, every match is needed or results would be lost.
+		 */
+		boolean answeredByIndex = isNotBlank(theResourceName) && theReferencingPid == null && theParams.isEmpty() && theParams.getLastUpdated() == null && theParams.getSort() == null;
+		if (answeredByIndex) {
+			jpaQuery.setMaxResults(getConfig().getFulltextSearchResultLimit());
+		}
+
 		// execute search
 		List<?> result = jpaQuery.getResultList();
 
-		HashSet<Long> pidsSet = pids != null ? new HashSet<Long>(pids) : null;
-		
-		ArrayList<Long> retVal = new ArrayList<Long>();
+		ArrayList<Long> retVal = new ArrayList<Long>(result.size());
 		for (Object object : result) {
 			Object[] nextArray = (Object[]) object;
 			Long next = (Long) nextArray[0];
-			if (next != null && (pidsSet == null || pidsSet.contains(next))) {
+			if (next != null) {
 				retVal.add(next);
 			}
 		}
@@ -199,6 +389,16 @@ public class FulltextSearchSvcImpl extends BaseHapiFhirDao<IBaseResource> implem
 		return retVal;
 	}
 
+	private static DateRangeParam toDateRange(IQueryParameterType theParam) {
+		if (theParam instanceof DateParam) {
+			DateParam date = (DateParam) theParam;
+			return date.isEmpty() ? null : new DateRangeParam(date);
+		} else if (theParam instanceof DateRangeParam) {
+			return (DateRangeParam) theParam;
+		}
+		return null;
+	}
+
 	@Override
 	public List<Long> everything(String theResourceName, SearchParameterMap theParams) {
 
@@ -236,6 +436,12 @@ public class FulltextSearchSvcImpl extends BaseHapiFhirDao<IBaseResource> implem
 		}
 		Long pid = BaseHapiFhirDao.translateForcedIdToPid(contextParts[0], contextParts[1], myForcedIdDao);
 
+		if (getConfig().isSuggestKeywordsFromDictionary()) {
+			List<Suggestion> suggestions = myKeywordSuggestionSvc.suggestKeywords(pid, theText);
+			ourLog.info("Provided {} suggestions for term {} in {} ms", new Object[] { suggestions.size(), theText, System.currentTimeMillis() - start });
+			return suggestions;
+		}
+
 		FullTextEntityManager em = org.hibernate.search.jpa.Search.getFullTextEntityManager(myEntityManager);
 
 		QueryBuilder qb = em.getSearchFactory().buildQueryBuilder().forEntity(ResourceTable.class).get();
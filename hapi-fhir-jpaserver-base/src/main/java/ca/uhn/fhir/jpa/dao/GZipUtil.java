@@ -23,11 +23,16 @@ package ca.uhn.fhir.jpa.dao;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
 import org.apache.commons.io.IOUtils;
 
+import com.google.common.base.Charsets;
+
 import ca.uhn.fhir.parser.DataFormatException;
 
 public class GZipUtil {
@@ -42,6 +47,25 @@ public class GZipUtil {
 		}
 	}
 
+	/**
+	 * Returns a reader over the decompressed contents, so that they can be parsed without
+	 * first being copied into a string
+	 */
+	public static Reader newDecompressingReader(byte[] theResource) {
+		return new InputStreamReader(newDecompressingStream(theResource), Charsets.UTF_8);
+	}
+
+	/**
+	 * Returns a stream over the decompressed contents
+	 */
+	public static InputStream newDecompressingStream(byte[] theResource) {
+		try {
+			return new GZIPInputStream(new ByteArrayInputStream(theResource));
+		} catch (IOException e) {
+			throw new DataFormatException("Failed to decompress contents", e);
+		}
+	}
+
 	public static byte[] compress(String theEncoded) {
 		try {
 			ByteArrayOutputStream os = new ByteArrayOutputStream();
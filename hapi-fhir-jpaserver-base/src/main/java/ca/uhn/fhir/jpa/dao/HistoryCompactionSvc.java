@@ -0,0 +1,223 @@
+package ca.uhn.fhir.jpa.dao;
+
+/*
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2017 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.PersistenceContextType;
+import javax.persistence.TypedQuery;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.time.DateUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import com.google.common.base.Charsets;
+
+import ca.uhn.fhir.jpa.dao.data.IResourceHistoryTableDao;
+import ca.uhn.fhir.jpa.entity.BaseHasResource;
+import ca.uhn.fhir.jpa.entity.ResourceEncodingEnum;
+import ca.uhn.fhir.jpa.entity.ResourceHistoryTable;
+import ca.uhn.fhir.parser.DataFormatException;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+
+/**
+ * Compacts the resource history table by replacing older versions of each resource
+ * with compressed deltas against the version which follows them (see
+ * {@link DaoConfig#setCompactHistoryUsingDeltas(boolean)}), and rebuilds those versions
+ * when they are read.
+ * <p>
+ * Deltas are created from the decoded text of both versions, so they remain valid no
+ * matter which encoding the following version is stored in, or whether it is itself
+ * later replaced by a delta. A version is only ever compacted once the version which
+ * follows it exists, so the current version of a resource is always stored in full.
+ * </p>
+ */
+public class HistoryCompactionSvc {
+
+	/**
+	 * Number of history entries compacted in each database transaction
+	 */
+	static final int CHUNK_SIZE = 100;
+	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(HistoryCompactionSvc.class);
+
+	@Autowired
+	private DaoConfig myDaoConfig;
+
+	@PersistenceContext(type = PersistenceContextType.TRANSACTION)
+	private EntityManager myEntityManager;
+
+	/**
+	 * The highest PID of a following version which has already been considered. Every
+	 * version which could be compacted gets a following version with a higher PID than
+	 * this, so earlier entries never need to be looked at again.
+	 */
+	private long myLastNextVersionPid = -1;
+
+	@Autowired
+	private IResourceHistoryTableDao myResourceHistoryTableDao;
+
+	@Autowired
+	private PlatformTransactionManager myTxManager;
+
+	/**
+	 * Compacts every history entry which can be compacted and has not yet been considered.
+	 * 
+	 * @return The number of history entries which were replaced with deltas
+	 */
+	@Transactional(propagation = Propagation.NOT_SUPPORTED)
+	public synchronized int compactHistory() {
+		TransactionTemplate txTemplate = new TransactionTemplate(myTxManager);
+		int retVal = 0;
+		while (true) {
+			final List<Object[]> candidates = txTemplate.execute(new TransactionCallback<List<Object[]>>() {
+				@Override
+				public List<Object[]> doInTransaction(TransactionStatus theStatus) {
+					return findCandidates();
+				}
+			});
+			if (candidates.isEmpty()) {
+				break;
+			}
+
+			retVal += txTemplate.execute(new TransactionCallback<Integer>() {
+				@Override
+				public Integer doInTransaction(TransactionStatus theStatus) {
+					int compacted = 0;
+					for (Object[] next : candidates) {
+						if (compact((Long) next[0], (Long) next[1])) {
+							compacted++;
+						}
+					}
+					return compacted;
+				}
+			});
+
+			myLastNextVersionPid = (Long) candidates.get(candidates.size() - 1)[1];
+			if (candidates.size() < CHUNK_SIZE) {
+				break;
+			}
+		}
+
+		if (retVal > 0) {
+			ourLog.info("Compacted {} history entries", retVal);
+		}
+		return retVal;
+	}
+
+	@Scheduled(fixedDelay = DateUtils.MILLIS_PER_MINUTE)
+	@Transactional(propagation = Propagation.NOT_SUPPORTED)
+	public synchronized void compactHistoryScheduler() {
+		if (!myDaoConfig.isCompactHistoryUsingDeltas() || myDaoConfig.isSchedulingDisabled()) {
+			return;
+		}
+		compactHistory();
+	}
+
+	private boolean compact(Long theVersionPid, Long theNextVersionPid) {
+		ResourceHistoryTable version = myEntityManager.find(ResourceHistoryTable.class, theVersionPid);
+		ResourceHistoryTable nextVersion = myEntityManager.find(ResourceHistoryTable.class, theNextVersionPid);
+		if (version == null || nextVersion == null || version.getEncoding() == ResourceEncodingEnum.DELTA) {
+			return false;
+		}
+
+		byte[] delta = DeltaUtil.createDelta(readText(nextVersion), readText(version));
+		if (delta.length >= version.getResource().length) {
+			return false;
+		}
+
+		ourLog.debug("Compacting {} from {} to {} bytes", new Object[] { version.getIdDt(), version.getResource().length, delta.length });
+		version.setEncoding(ResourceEncodingEnum.DELTA);
+		version.setResource(delta);
+		return true;
+	}
+
+	private List<Object[]> findCandidates() {
+		String sql = "SELECT t.myId, n.myId FROM ResourceHistoryTable t, ResourceHistoryTable n " +
+			"WHERE n.myResourceId = t.myResourceId AND n.myResourceVersion = t.myResourceVersion + 1 " +
+			"AND n.myId > :last_pid AND t.myEncoding <> :delta AND MOD(t.myResourceVersion, :interval) <> 0 " +
+			"ORDER BY n.myId";
+		TypedQuery<Object[]> q = myEntityManager.createQuery(sql, Object[].class);
+		q.setParameter("last_pid", myLastNextVersionPid);
+		q.setParameter("delta", ResourceEncodingEnum.DELTA);
+		q.setParameter("interval", Long.valueOf(myDaoConfig.getHistorySnapshotInterval()));
+		q.setMaxResults(CHUNK_SIZE);
+		return new ArrayList<Object[]>(q.getResultList());
+	}
+
+	/**
+	 * Returns a reader over the text of the given resource, rebuilding it from the
+	 * versions which follow it if it has been compacted. Must be called within a transaction.
+	 */
+	public Reader newReader(BaseHasResource theEntity) {
+		if (theEntity.getEncoding() != ResourceEncodingEnum.DELTA) {
+			return theEntity.getEncoding().newReader(theEntity.getResource());
+		}
+		return new InputStreamReader(new ByteArrayInputStream(readText(theEntity)), Charsets.UTF_8);
+	}
+
+	/**
+	 * Returns the UTF-8 text of the given resource
+	 */
+	private byte[] readText(BaseHasResource theEntity) {
+		// Find the nearest following version which is stored in full
+		List<ResourceHistoryTable> deltas = new ArrayList<ResourceHistoryTable>();
+		BaseHasResource full = theEntity;
+		while (full.getEncoding() == ResourceEncodingEnum.DELTA) {
+			ResourceHistoryTable delta = (ResourceHistoryTable) full;
+			deltas.add(delta);
+			full = myResourceHistoryTableDao.findForIdAndVersion(delta.getResourceId(), delta.getVersion() + 1);
+			if (full == null) {
+				throw new InternalErrorException("Unable to rebuild " + theEntity.getIdDt().getValue() + ", version " + (delta.getVersion() + 1) + " does not exist");
+			}
+		}
+
+		byte[] retVal;
+		InputStream is = full.getEncoding().newInputStream(full.getResource());
+		try {
+			retVal = IOUtils.toByteArray(is);
+		} catch (IOException e) {
+			throw new DataFormatException("Failed to decompress contents", e);
+		} finally {
+			IOUtils.closeQuietly(is);
+		}
+
+		for (int i = deltas.size() - 1; i >= 0; i--) {
+			retVal = DeltaUtil.applyDelta(retVal, deltas.get(i).getResource());
+		}
+		return retVal;
+	}
+
+}
@@ -1,5 +1,6 @@
 package ca.uhn.fhir.jpa.dao;
 
+import java.util.Collection;
 import java.util.Set;
 
 import org.hl7.fhir.instance.model.api.IAnyResource;
@@ -8,6 +9,7 @@ import org.hl7.fhir.instance.model.api.IBaseResource;
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.jpa.entity.BaseHasResource;
 import ca.uhn.fhir.jpa.entity.ResourceTable;
+import ca.uhn.fhir.jpa.entity.TagDefinition;
 import ca.uhn.fhir.jpa.search.PersistedJpaBundleProvider;
 import ca.uhn.fhir.model.api.IResource;
 import ca.uhn.fhir.model.api.ResourceMetadataKeyEnum.ResourceMetadataKeySupportingAnyResource;
@@ -72,5 +74,13 @@ public interface IDao {
 
 	<R extends IBaseResource> R toResource(Class<R> theResourceType, BaseHasResource theEntity, boolean theForHistoryOperation);
 
+	/**
+	 * Converts an entity into a resource, using the given tags instead of loading them from the entity
+	 * 
+	 * @param theTagList
+	 *           The tags, profiles and security labels of the entity, or <code>null</code> if it has none
+	 */
+	<R extends IBaseResource> R toResource(Class<R> theResourceType, BaseHasResource theEntity, Collection<TagDefinition> theTagList, boolean theForHistoryOperation);
+
 	void populateFullTextFields(IBaseResource theResource, ResourceTable theEntity);
 }
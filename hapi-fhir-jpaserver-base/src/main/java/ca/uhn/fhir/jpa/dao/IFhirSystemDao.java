@@ -45,6 +45,11 @@ public interface IFhirSystemDao<T, MT> extends IDao {
 
 	public <R extends IBaseResource> IFhirResourceDao<R> getDao(Class<R> theType);
 
+	/**
+	 * Returns the progress of resource reindexing
+	 */
+	ReindexStatus getReindexStatus();
+
 	Map<String, Long> getResourceCounts();
 
 	IBundleProvider history(Date theDate, Date theUntil, RequestDetails theRequestDetails);
@@ -62,6 +67,16 @@ public interface IFhirSystemDao<T, MT> extends IDao {
 	 */
 	MT metaGetOperation(RequestDetails theRequestDetails);
 
+	/**
+	 * Reindexes resources which have been marked as needing reindexing. Resources are reindexed
+	 * in chunks (see {@link DaoConfig#setReindexChunkSize(int)}), each of which is committed in its
+	 * own transaction, using a pool of worker threads (see {@link DaoConfig#setReindexThreadCount(int)}).
+	 * A resource which can not be reindexed is marked as failed without affecting the rest of its chunk.
+	 * 
+	 * @param theCount
+	 *           The maximum number of resources to reindex, or <code>null</code> for a default
+	 * @return Returns the number of resources processed (including any which failed)
+	 */
 	int performReindexingPass(Integer theCount);
 
 	T transaction(RequestDetails theRequestDetails, T theResources);
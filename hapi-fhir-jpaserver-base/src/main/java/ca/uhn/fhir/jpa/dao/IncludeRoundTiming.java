@@ -0,0 +1,96 @@
+package ca.uhn.fhir.jpa.dao;
+
+/*
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2017 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+/**
+ * Timing information for a single round of loading <code>_include</code> or
+ * <code>_revinclude</code> resources. Each round follows the links of every include
+ * from the resources found by the previous round (the first round starts from the
+ * search matches), so recursive includes take several rounds.
+ *
+ * @see SearchBuilder#loadReverseIncludes(ca.uhn.fhir.context.FhirContext, javax.persistence.EntityManager, java.util.Collection, java.util.Set, boolean, ca.uhn.fhir.rest.param.DateRangeParam, java.util.List)
+ */
+public class IncludeRoundTiming {
+
+	private final int myFoundCount;
+	private final long myMillis;
+	private final boolean myReverseMode;
+	private final int myRound;
+	private final int myStartingPidCount;
+	private final int myStatementCount;
+
+	public IncludeRoundTiming(int theRound, boolean theReverseMode, int theStartingPidCount, int theStatementCount, int theFoundCount, long theMillis) {
+		myRound = theRound;
+		myReverseMode = theReverseMode;
+		myStartingPidCount = theStartingPidCount;
+		myStatementCount = theStatementCount;
+		myFoundCount = theFoundCount;
+		myMillis = theMillis;
+	}
+
+	/**
+	 * Returns the number of distinct resource PIDs found by the links followed in this round
+	 */
+	public int getFoundCount() {
+		return myFoundCount;
+	}
+
+	/**
+	 * Returns the time spent on this round, in milliseconds
+	 */
+	public long getMillis() {
+		return myMillis;
+	}
+
+	/**
+	 * Returns the round number, starting at 1
+	 */
+	public int getRound() {
+		return myRound;
+	}
+
+	/**
+	 * Returns the number of resource PIDs whose links were followed in this round
+	 */
+	public int getStartingPidCount() {
+		return myStartingPidCount;
+	}
+
+	/**
+	 * Returns the number of SQL statements issued in this round
+	 */
+	public int getStatementCount() {
+		return myStatementCount;
+	}
+
+	/**
+	 * Returns <code>true</code> if this is a <code>_revinclude</code> round
+	 */
+	public boolean isReverseMode() {
+		return myReverseMode;
+	}
+
+	@Override
+	public String toString() {
+		return (myReverseMode ? "_revinclude" : "_include") + " round " + myRound + ": " + myStartingPidCount + " pids, " + myStatementCount + " statements, " + myFoundCount + " found in " + myMillis + "ms";
+	}
+
+}
@@ -0,0 +1,84 @@
+package ca.uhn.fhir.jpa.dao;
+
+/*
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2017 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the search parameter index and resource link rows written when resources are
+ * indexed. When a resource is updated, only the index rows whose values have changed are
+ * removed and inserted, so comparing the number of rows written against the number left
+ * unchanged shows how much work this saves.
+ */
+public class IndexRowStatisticsSvc {
+
+	private final AtomicLong myIndexingCount = new AtomicLong();
+	private final AtomicLong myRowsInserted = new AtomicLong();
+	private final AtomicLong myRowsRemoved = new AtomicLong();
+	private final AtomicLong myRowsUnchanged = new AtomicLong();
+
+	/**
+	 * Resets all counts to zero
+	 */
+	public void clear() {
+		myIndexingCount.set(0);
+		myRowsInserted.set(0);
+		myRowsRemoved.set(0);
+		myRowsUnchanged.set(0);
+	}
+
+	/**
+	 * Returns the number of times a resource has been indexed (created, updated, deleted or reindexed)
+	 */
+	public long getIndexingCount() {
+		return myIndexingCount.get();
+	}
+
+	public long getRowsInserted() {
+		return myRowsInserted.get();
+	}
+
+	public long getRowsRemoved() {
+		return myRowsRemoved.get();
+	}
+
+	/**
+	 * Returns the number of existing rows which were left in place because the new index had an identical row
+	 */
+	public long getRowsUnchanged() {
+		return myRowsUnchanged.get();
+	}
+
+	/**
+	 * Returns the number of rows inserted or removed
+	 */
+	public long getRowsWritten() {
+		return myRowsInserted.get() + myRowsRemoved.get();
+	}
+
+	void recordIndexing(int theRowsInserted, int theRowsRemoved, int theRowsUnchanged) {
+		myIndexingCount.incrementAndGet();
+		myRowsInserted.addAndGet(theRowsInserted);
+		myRowsRemoved.addAndGet(theRowsRemoved);
+		myRowsUnchanged.addAndGet(theRowsUnchanged);
+	}
+
+}
@@ -0,0 +1,116 @@
+package ca.uhn.fhir.jpa.dao;
+
+/*
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2017 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.Date;
+
+/**
+ * A snapshot of the progress of resource reindexing, as returned by
+ * {@link IFhirSystemDao#getReindexStatus()}. Reindexing progress itself is stored in the
+ * database (each resource is marked as indexed as soon as the chunk containing it has
+ * been committed), so the remaining count is always accurate, but the counts and rates
+ * only cover reindexing performed by this server since it was started.
+ */
+public class ReindexStatus {
+
+	private final long myFailedCount;
+	private final Date myFinished;
+	private final long myProcessedCount;
+	private final long myRemainingCount;
+	private final Date myStarted;
+
+	public ReindexStatus(Date theStarted, Date theFinished, long theProcessedCount, long theFailedCount, long theRemainingCount) {
+		myStarted = theStarted;
+		myFinished = theFinished;
+		myProcessedCount = theProcessedCount;
+		myFailedCount = theFailedCount;
+		myRemainingCount = theRemainingCount;
+	}
+
+	/**
+	 * Returns the estimated number of milliseconds until all remaining resources have been
+	 * reindexed, based on the rate achieved so far, or <code>null</code> if no estimate can
+	 * be made yet
+	 */
+	public Long getEstimatedMillisRemaining() {
+		if (myRemainingCount == 0) {
+			return 0L;
+		}
+		Double rate = getResourcesPerSecond();
+		if (rate == null || rate <= 0) {
+			return null;
+		}
+		return (long) (myRemainingCount * 1000.0 / rate);
+	}
+
+	/**
+	 * Returns the number of resources which failed to reindex (these are marked as failed
+	 * and are not retried until they are marked for reindexing again)
+	 */
+	public long getFailedCount() {
+		return myFailedCount;
+	}
+
+	/**
+	 * Returns the time at which the most recent reindexing job found no more resources
+	 * to reindex, or <code>null</code> if it is still in progress
+	 */
+	public Date getFinished() {
+		return myFinished;
+	}
+
+	/**
+	 * Returns the number of resources processed (including those which failed) since the
+	 * most recent reindexing job was started
+	 */
+	public long getProcessedCount() {
+		return myProcessedCount;
+	}
+
+	/**
+	 * Returns the number of resources which are still waiting to be reindexed
+	 */
+	public long getRemainingCount() {
+		return myRemainingCount;
+	}
+
+	/**
+	 * Returns the average number of resources processed per second since the most recent
+	 * reindexing job was started, or <code>null</code> if no job has been started
+	 */
+	public Double getResourcesPerSecond() {
+		if (myStarted == null) {
+			return null;
+		}
+		long end = myFinished != null ? myFinished.getTime() : System.currentTimeMillis();
+		long elapsed = Math.max(end - myStarted.getTime(), 1);
+		return myProcessedCount * 1000.0 / elapsed;
+	}
+
+	/**
+	 * Returns the time at which the most recent reindexing job was started, or
+	 * <code>null</code> if no reindexing has been performed since this server was started
+	 */
+	public Date getStarted() {
+		return myStarted;
+	}
+
+}
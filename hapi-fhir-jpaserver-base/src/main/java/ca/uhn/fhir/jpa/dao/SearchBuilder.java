@@ -31,6 +31,7 @@ import java.util.*;
 import java.util.Map.Entry;
 
 import javax.persistence.EntityManager;
+import javax.persistence.Parameter;
 import javax.persistence.Tuple;
 import javax.persistence.TypedQuery;
 import javax.persistence.criteria.*;
@@ -38,6 +39,8 @@ import javax.persistence.criteria.*;
 import org.apache.commons.lang3.ObjectUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.tuple.Pair;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
 import org.hl7.fhir.instance.model.api.IAnyResource;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.instance.model.api.IIdType;
@@ -55,6 +58,9 @@ import ca.uhn.fhir.jpa.dao.data.IResourceIndexedSearchParamUriDao;
 import ca.uhn.fhir.jpa.dao.data.ISearchResultDao;
 import ca.uhn.fhir.jpa.entity.*;
 import ca.uhn.fhir.jpa.search.PersistedJpaBundleProvider;
+import ca.uhn.fhir.jpa.search.SearchParamSelectivitySvc;
+import ca.uhn.fhir.jpa.search.SearchResultWriterSvc;
+import ca.uhn.fhir.jpa.search.SearchReuseSvc;
 import ca.uhn.fhir.jpa.term.IHapiTerminologySvc;
 import ca.uhn.fhir.jpa.term.VersionIndependentConcept;
 import ca.uhn.fhir.jpa.util.StopWatch;
@@ -80,13 +86,36 @@ import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
 import ca.uhn.fhir.util.UrlUtil;
 
 public class SearchBuilder {
+	/**
+	 * When there are more than this many candidate PIDs, the next query is executed once for
+	 * each chunk of this many PIDs, and the results are combined in memory
+	 */
+	public static final int MAX_PIDS_IN_QUERY = 1000;
+	/**
+	 * Name of the query parameter which holds a chunk of the candidate PIDs
+	 */
+	private static final String PIDS_PARAM = "resource_pids";
+	/**
+	 * Number of rows fetched at a time when the query for the last parameter of a search is streamed
+	 */
+	private static final int STREAMING_FETCH_SIZE = 500;
 	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(SearchBuilder.class);
+	/**
+	 * When search results are loaded asynchronously, this many results are written before the search returns
+	 */
+	static final int ASYNC_SYNCHRONOUS_RESULT_COUNT = 100;
 
 	private BaseHapiFhirDao<?> myCallingDao;
 	private FhirContext myContext;
 	private EntityManager myEntityManager;
 	private IForcedIdDao myForcedIdDao;
+	private List<Long> myFulltextPids;
 	private SearchParameterMap myParams;
+	/**
+	 * The query for the last parameter applied, if it has not been executed yet (see {@link #doSetPids(AbstractQuery, boolean)})
+	 */
+	private CriteriaQuery<Long> myPendingQuery;
+	private boolean myPendingQueryDistinct;
 	private Collection<Long> myPids;
 	private PlatformTransactionManager myPlatformTransactionManager;
 	private IResourceIndexedSearchParamUriDao myResourceIndexedSearchParamUriDao;
@@ -94,11 +123,19 @@ public class SearchBuilder {
 	private Class<? extends IBaseResource> myResourceType;
 	private IFulltextSearchSvc mySearchDao;
 	private Search mySearchEntity;
+	private SearchParamSelectivitySvc mySearchParamSelectivitySvc;
 	private ISearchResultDao mySearchResultDao;
+	private SearchResultWriterSvc mySearchResultWriterSvc;
+	private boolean mySingleStatementNoResults;
+	private List<Predicate> mySingleStatementPredicates;
+	private CriteriaQuery<Tuple> mySingleStatementQuery;
+	private Root<ResourceTable> mySingleStatementRoot;
+	private boolean myStreamFinalQuery;
 	private IHapiTerminologySvc myTerminologySvc;
 
 	public SearchBuilder(FhirContext theFhirContext, EntityManager theEntityManager, PlatformTransactionManager thePlatformTransactionManager, IFulltextSearchSvc theSearchDao, ISearchResultDao theSearchResultDao, BaseHapiFhirDao<?> theDao,
-			IResourceIndexedSearchParamUriDao theResourceIndexedSearchParamUriDao, IForcedIdDao theForcedIdDao, IHapiTerminologySvc theTerminologySvc) {
+			IResourceIndexedSearchParamUriDao theResourceIndexedSearchParamUriDao, IForcedIdDao theForcedIdDao, IHapiTerminologySvc theTerminologySvc, SearchParamSelectivitySvc theSearchParamSelectivitySvc,
+			SearchResultWriterSvc theSearchResultWriterSvc) {
 		myContext = theFhirContext;
 		myEntityManager = theEntityManager;
 		myPlatformTransactionManager = thePlatformTransactionManager;
@@ -108,15 +145,17 @@ public class SearchBuilder {
 		myResourceIndexedSearchParamUriDao = theResourceIndexedSearchParamUriDao;
 		myForcedIdDao = theForcedIdDao;
 		myTerminologySvc = theTerminologySvc;
+		mySearchParamSelectivitySvc = theSearchParamSelectivitySvc;
+		mySearchResultWriterSvc = theSearchResultWriterSvc;
 	}
 
 	private void addPredicateComposite(RuntimeSearchParam theParamDef, List<? extends IQueryParameterType> theNextAnd) {
 		// TODO: fail if missing is set for a composite query
 
 		CriteriaBuilder builder = myEntityManager.getCriteriaBuilder();
-		CriteriaQuery<Long> cq = builder.createQuery(Long.class);
+		AbstractQuery<Long> cq = createPidQuery();
 		Root<ResourceTable> from = cq.from(ResourceTable.class);
-		cq.select(from.get("myId").as(Long.class));
+		selectPid(cq, from.get("myId").as(Long.class));
 
 		IQueryParameterType or = theNextAnd.get(0);
 		if (!(or instanceof CompositeParam<?, ?>)) {
@@ -138,8 +177,7 @@ public class SearchBuilder {
 		createPredicateResourceId(builder, cq, predicates, from.get("myId").as(Long.class));
 		cq.where(builder.and(toArray(predicates)));
 
-		TypedQuery<Long> q = myEntityManager.createQuery(cq);
-		doSetPids(q.getResultList());
+		doSetPids(cq, false);
 
 	}
 
@@ -151,9 +189,9 @@ public class SearchBuilder {
 		}
 
 		CriteriaBuilder builder = myEntityManager.getCriteriaBuilder();
-		CriteriaQuery<Long> cq = builder.createQuery(Long.class);
+		AbstractQuery<Long> cq = createPidQuery();
 		Root<ResourceIndexedSearchParamDate> from = cq.from(ResourceIndexedSearchParamDate.class);
-		cq.select(from.get("myResourcePid").as(Long.class));
+		selectPid(cq, from.get("myResourcePid").as(Long.class));
 
 		List<Predicate> codePredicates = new ArrayList<Predicate>();
 		for (IQueryParameterType nextOr : theList) {
@@ -177,8 +215,7 @@ public class SearchBuilder {
 
 		cq.where(builder.and(toArray(predicates)));
 
-		TypedQuery<Long> q = myEntityManager.createQuery(cq);
-		doSetPids(q.getResultList());
+		doSetPids(cq, false);
 	}
 
 	private void addPredicateHas(List<List<? extends IQueryParameterType>> theHasParameters, DateRangeParam theLastUpdated) {
@@ -230,9 +267,9 @@ public class SearchBuilder {
 			}
 
 			CriteriaBuilder builder = myEntityManager.getCriteriaBuilder();
-			CriteriaQuery<Long> cq = builder.createQuery(Long.class);
+			AbstractQuery<Long> cq = createPidQuery();
 			Root<ResourceLink> from = cq.from(ResourceLink.class);
-			cq.select(from.get("myTargetResourcePid").as(Long.class));
+			selectPid(cq, from.get("myTargetResourcePid").as(Long.class));
 
 			List<Predicate> predicates = new ArrayList<Predicate>();
 			predicates.add(builder.equal(from.get("mySourceResourceType"), targetResourceType));
@@ -244,8 +281,7 @@ public class SearchBuilder {
 
 			cq.where(toArray(predicates));
 
-			TypedQuery<Long> q = myEntityManager.createQuery(cq);
-			doSetPids(q.getResultList());
+			doSetPids(cq, false);
 			if (doHaveNoResults()) {
 				return;
 			}
@@ -260,9 +296,9 @@ public class SearchBuilder {
 		}
 
 		CriteriaBuilder builder = myEntityManager.getCriteriaBuilder();
-		CriteriaQuery<Long> cq = builder.createQuery(Long.class);
+		AbstractQuery<Long> cq = createPidQuery();
 		Root<ResourceTable> from = cq.from(ResourceTable.class);
-		cq.select(from.get("myId").as(Long.class));
+		selectPid(cq, from.get("myId").as(Long.class));
 
 		List<Predicate> predicates = new ArrayList<Predicate>();
 		predicates.add(builder.equal(from.get("myResourceType"), myResourceName));
@@ -272,17 +308,16 @@ public class SearchBuilder {
 
 		cq.where(toArray(predicates));
 
-		TypedQuery<Long> q = myEntityManager.createQuery(cq);
-		doSetPids(q.getResultList());
+		doSetPids(cq, false);
 	}
 
 	private void addPredicateLanguage(List<List<? extends IQueryParameterType>> theList) {
 		for (List<? extends IQueryParameterType> nextList : theList) {
 
 			CriteriaBuilder builder = myEntityManager.getCriteriaBuilder();
-			CriteriaQuery<Long> cq = builder.createQuery(Long.class);
+			AbstractQuery<Long> cq = createPidQuery();
 			Root<ResourceTable> from = cq.from(ResourceTable.class);
-			cq.select(from.get("myId").as(Long.class));
+			selectPid(cq, from.get("myId").as(Long.class));
 
 			Set<String> values = new HashSet<String>();
 			for (IQueryParameterType next : nextList) {
@@ -311,8 +346,7 @@ public class SearchBuilder {
 
 			cq.where(toArray(predicates));
 
-			TypedQuery<Long> q = myEntityManager.createQuery(cq);
-			doSetPids(q.getResultList());
+			doSetPids(cq, false);
 			if (doHaveNoResults()) {
 				return;
 			}
@@ -357,9 +391,9 @@ public class SearchBuilder {
 		}
 
 		CriteriaBuilder builder = myEntityManager.getCriteriaBuilder();
-		CriteriaQuery<Long> cq = builder.createQuery(Long.class);
+		AbstractQuery<Long> cq = createPidQuery();
 		Root<ResourceIndexedSearchParamNumber> from = cq.from(ResourceIndexedSearchParamNumber.class);
-		cq.select(from.get("myResourcePid").as(Long.class));
+		selectPid(cq, from.get("myResourcePid").as(Long.class));
 
 		List<Predicate> codePredicates = new ArrayList<Predicate>();
 		for (IQueryParameterType nextOr : theList) {
@@ -400,15 +434,14 @@ public class SearchBuilder {
 
 		cq.where(builder.and(toArray(predicates)));
 
-		TypedQuery<Long> q = myEntityManager.createQuery(cq);
-		doSetPids(q.getResultList());
+		doSetPids(cq, false);
 	}
 
 	private void addPredicateParamMissing(String joinName, String theParamName, Class<? extends BaseResourceIndexedSearchParam> theParamTable) {
 		CriteriaBuilder builder = myEntityManager.getCriteriaBuilder();
-		CriteriaQuery<Long> cq = builder.createQuery(Long.class);
+		AbstractQuery<Long> cq = createPidQuery();
 		Root<ResourceTable> from = cq.from(ResourceTable.class);
-		cq.select(from.get("myId").as(Long.class));
+		selectPid(cq, from.get("myId").as(Long.class));
 
 		Subquery<Long> subQ = cq.subquery(Long.class);
 		Root<? extends BaseResourceIndexedSearchParam> subQfrom = subQ.from(theParamTable);
@@ -427,15 +460,14 @@ public class SearchBuilder {
 
 		ourLog.info("Adding :missing qualifier for parameter '{}'", theParamName);
 
-		TypedQuery<Long> q = myEntityManager.createQuery(cq);
-		doSetPids(q.getResultList());
+		doSetPids(cq, false);
 	}
 
 	private void addPredicateParamMissingResourceLink(String joinName, String theParamName) {
 		CriteriaBuilder builder = myEntityManager.getCriteriaBuilder();
-		CriteriaQuery<Long> cq = builder.createQuery(Long.class);
+		AbstractQuery<Long> cq = createPidQuery();
 		Root<ResourceTable> from = cq.from(ResourceTable.class);
-		cq.select(from.get("myId").as(Long.class));
+		selectPid(cq, from.get("myId").as(Long.class));
 
 		Subquery<Long> subQ = cq.subquery(Long.class);
 		Root<ResourceLink> subQfrom = subQ.from(ResourceLink.class);
@@ -452,9 +484,7 @@ public class SearchBuilder {
 
 		cq.where(builder.and(toArray(predicates)));
 
-		TypedQuery<Long> q = myEntityManager.createQuery(cq);
-		List<Long> resultList = q.getResultList();
-		doSetPids(new HashSet<Long>(resultList));
+		doSetPids(cq, true);
 	}
 
 	private void addPredicateQuantity(String theParamName, List<? extends IQueryParameterType> theList) {
@@ -464,9 +494,9 @@ public class SearchBuilder {
 		}
 
 		CriteriaBuilder builder = myEntityManager.getCriteriaBuilder();
-		CriteriaQuery<Long> cq = builder.createQuery(Long.class);
+		AbstractQuery<Long> cq = createPidQuery();
 		Root<ResourceIndexedSearchParamQuantity> from = cq.from(ResourceIndexedSearchParamQuantity.class);
-		cq.select(from.get("myResourcePid").as(Long.class));
+		selectPid(cq, from.get("myResourcePid").as(Long.class));
 
 		List<Predicate> codePredicates = new ArrayList<Predicate>();
 		for (IQueryParameterType nextOr : theList) {
@@ -487,8 +517,7 @@ public class SearchBuilder {
 
 		cq.where(builder.and(toArray(predicates)));
 
-		TypedQuery<Long> q = myEntityManager.createQuery(cq);
-		doSetPids(new HashSet<Long>(q.getResultList()));
+		doSetPids(cq, true);
 	}
 
 	private void addPredicateReference(String theParamName, List<? extends IQueryParameterType> theList) {
@@ -500,9 +529,9 @@ public class SearchBuilder {
 		}
 
 		CriteriaBuilder builder = myEntityManager.getCriteriaBuilder();
-		CriteriaQuery<Long> cq = builder.createQuery(Long.class);
+		AbstractQuery<Long> cq = createPidQuery();
 		Root<ResourceLink> from = cq.from(ResourceLink.class);
-		cq.select(from.get("mySourceResourcePid").as(Long.class));
+		selectPid(cq, from.get("mySourceResourcePid").as(Long.class));
 
 		List<Predicate> codePredicates = new ArrayList<Predicate>();
 
@@ -658,8 +687,7 @@ public class SearchBuilder {
 
 		cq.where(builder.and(toArray(predicates)));
 
-		TypedQuery<Long> q = myEntityManager.createQuery(cq);
-		doSetPids(new HashSet<Long>(q.getResultList()));
+		doSetPids(cq, true);
 	}
 
 	private void addPredicateString(String theParamName, List<? extends IQueryParameterType> theList) {
@@ -669,9 +697,9 @@ public class SearchBuilder {
 		}
 
 		CriteriaBuilder builder = myEntityManager.getCriteriaBuilder();
-		CriteriaQuery<Long> cq = builder.createQuery(Long.class);
+		AbstractQuery<Long> cq = createPidQuery();
 		Root<ResourceIndexedSearchParamString> from = cq.from(ResourceIndexedSearchParamString.class);
-		cq.select(from.get("myResourcePid").as(Long.class));
+		selectPid(cq, from.get("myResourcePid").as(Long.class));
 
 		List<Predicate> codePredicates = new ArrayList<Predicate>();
 		for (IQueryParameterType nextOr : theList) {
@@ -694,8 +722,7 @@ public class SearchBuilder {
 
 		cq.where(builder.and(toArray(predicates)));
 
-		TypedQuery<Long> q = myEntityManager.createQuery(cq);
-		doSetPids(new HashSet<Long>(q.getResultList()));
+		doSetPids(cq, true);
 	}
 
 	private void addPredicateTag(List<List<? extends IQueryParameterType>> theList, String theParamName, DateRangeParam theLastUpdated) {
@@ -818,14 +845,14 @@ public class SearchBuilder {
 			if (paramInverted) {
 				ourLog.debug("Searching for _tag:not");
 
-				CriteriaQuery<Long> cq = builder.createQuery(Long.class);
+				AbstractQuery<Long> cq = createPidQuery();
 				Root<ResourceTable> newFrom = cq.from(ResourceTable.class);
 
 				Subquery<Long> subQ = cq.subquery(Long.class);
 				Root<ResourceTag> subQfrom = subQ.from(ResourceTag.class);
 				subQ.select(subQfrom.get("myResourceId").as(Long.class));
 
-				cq.select(newFrom.get("myId").as(Long.class));
+				selectPid(cq, newFrom.get("myId").as(Long.class));
 
 				List<Predicate> andPredicates = new ArrayList<Predicate>();
 				andPredicates = new ArrayList<Predicate>();
@@ -843,13 +870,11 @@ public class SearchBuilder {
 
 				cq.where(toArray(andPredicates));
 
-				TypedQuery<Long> q = myEntityManager.createQuery(cq);
-				Set<Long> pids = new HashSet<Long>(q.getResultList());
-				doSetPids(pids);
+				doSetPids(cq, true);
 				continue;
 			}
 
-			CriteriaQuery<Long> cq = builder.createQuery(Long.class);
+			AbstractQuery<Long> cq = createPidQuery();
 			Root<ResourceTag> from = cq.from(ResourceTag.class);
 			List<Predicate> andPredicates = new ArrayList<Predicate>();
 			andPredicates.add(builder.equal(from.get("myResourceType"), myResourceName));
@@ -870,12 +895,10 @@ public class SearchBuilder {
 			createPredicateResourceId(builder, cq, andPredicates, from.get("myResourceId").as(Long.class));
 			Predicate masterCodePredicate = builder.and(toArray(andPredicates));
 
-			cq.select(from.get("myResourceId").as(Long.class));
+			selectPid(cq, from.get("myResourceId").as(Long.class));
 			cq.where(masterCodePredicate);
 
-			TypedQuery<Long> q = myEntityManager.createQuery(cq);
-			Set<Long> pids = new HashSet<Long>(q.getResultList());
-			doSetPids(pids);
+			doSetPids(cq, true);
 		}
 
 	}
@@ -888,9 +911,9 @@ public class SearchBuilder {
 		}
 
 		CriteriaBuilder builder = myEntityManager.getCriteriaBuilder();
-		CriteriaQuery<Long> cq = builder.createQuery(Long.class);
+		AbstractQuery<Long> cq = createPidQuery();
 		Root<ResourceIndexedSearchParamToken> from = cq.from(ResourceIndexedSearchParamToken.class);
-		cq.select(from.get("myResourcePid").as(Long.class));
+		selectPid(cq, from.get("myResourcePid").as(Long.class));
 
 		List<Predicate> codePredicates = new ArrayList<Predicate>();
 		for (IQueryParameterType nextOr : theList) {
@@ -926,8 +949,7 @@ public class SearchBuilder {
 
 		cq.where(builder.and(toArray(predicates)));
 
-		TypedQuery<Long> q = myEntityManager.createQuery(cq);
-		doSetPids(new HashSet<Long>(q.getResultList()));
+		doSetPids(cq, true);
 	}
 
 	private void addPredicateUri(String theParamName, List<? extends IQueryParameterType> theList) {
@@ -937,9 +959,9 @@ public class SearchBuilder {
 		}
 
 		CriteriaBuilder builder = myEntityManager.getCriteriaBuilder();
-		CriteriaQuery<Long> cq = builder.createQuery(Long.class);
+		AbstractQuery<Long> cq = createPidQuery();
 		Root<ResourceIndexedSearchParamUri> from = cq.from(ResourceIndexedSearchParamUri.class);
-		cq.select(from.get("myResourcePid").as(Long.class));
+		selectPid(cq, from.get("myResourcePid").as(Long.class));
 
 		List<Predicate> codePredicates = new ArrayList<Predicate>();
 		for (IQueryParameterType nextOr : theList) {
@@ -1014,8 +1036,7 @@ public class SearchBuilder {
 
 		cq.where(builder.and(toArray(predicates)));
 
-		TypedQuery<Long> q = myEntityManager.createQuery(cq);
-		doSetPids(new HashSet<Long>(q.getResultList()));
+		doSetPids(cq, true);
 	}
 
 	private Predicate createCompositeParamPart(CriteriaBuilder builder, Root<ResourceTable> from, RuntimeSearchParam left, IQueryParameterType leftValue) {
@@ -1050,6 +1071,18 @@ public class SearchBuilder {
 		return retVal;
 	}
 
+	/**
+	 * Creates the query selecting the PIDs which match a single search parameter. When a single statement is
+	 * being compiled this is a subquery of that statement, otherwise it is a standalone query which is executed
+	 * by {@link #doSetPids(AbstractQuery, boolean)}.
+	 */
+	private AbstractQuery<Long> createPidQuery() {
+		if (isSingleStatement()) {
+			return mySingleStatementQuery.subquery(Long.class);
+		}
+		return myEntityManager.getCriteriaBuilder().createQuery(Long.class);
+	}
+
 	private Predicate createPredicateDate(CriteriaBuilder theBuilder, From<ResourceIndexedSearchParamDate, ResourceIndexedSearchParamDate> theFrom, IQueryParameterType theParam) {
 		Predicate p;
 		if (theParam instanceof DateParam) {
@@ -1106,6 +1139,10 @@ public class SearchBuilder {
 	}
 
 	private void createPredicateLastUpdatedForIndexedSearchParam(CriteriaBuilder builder, Root<? extends BaseResourceIndexedSearchParam> from, List<Predicate> predicates) {
+		if (isSingleStatement()) {
+			// _lastUpdated is applied once to the statement's resource table root
+			return;
+		}
 		DateRangeParam lastUpdated = myParams.getLastUpdatedAndRemove();
 		if (lastUpdated != null) {
 			From<BaseResourceIndexedSearchParam, ResourceTable> defJoin = from.join("myResource", JoinType.INNER);
@@ -1115,6 +1152,9 @@ public class SearchBuilder {
 	}
 
 	private void createPredicateLastUpdatedForResourceLink(CriteriaBuilder builder, Root<ResourceLink> from, List<Predicate> predicates) {
+		if (isSingleStatement()) {
+			return;
+		}
 		DateRangeParam lastUpdated = myParams.getLastUpdatedAndRemove();
 		if (lastUpdated != null) {
 			From<BaseResourceIndexedSearchParam, ResourceTable> defJoin = from.join("mySourceResource", JoinType.INNER);
@@ -1124,6 +1164,9 @@ public class SearchBuilder {
 	}
 
 	private void createPredicateLastUpdatedForResourceTable(CriteriaBuilder builder, Root<ResourceTable> from, List<Predicate> predicates) {
+		if (isSingleStatement()) {
+			return;
+		}
 		predicates.addAll(createLastUpdatedPredicates(myParams.getLastUpdatedAndRemove(), builder, from));
 	}
 
@@ -1224,23 +1267,57 @@ public class SearchBuilder {
 		return singleCode;
 	}
 
-	private void createPredicateResourceId(CriteriaBuilder builder, CriteriaQuery<?> cq, List<Predicate> thePredicates, Expression<Long> theExpression) {
-		if (myParams.isPersistResults()) {
-			if (mySearchEntity.getTotalCount() > -1) {
-				Subquery<Long> subQ = cq.subquery(Long.class);
-				Root<SearchResult> subQfrom = subQ.from(SearchResult.class);
-				subQ.select(subQfrom.get("myResourcePid").as(Long.class));
-				Predicate subQname = builder.equal(subQfrom.get("mySearch"), mySearchEntity);
-				subQ.where(subQname);
+	private void createPredicateResourceId(CriteriaBuilder builder, AbstractQuery<?> cq, List<Predicate> thePredicates, Expression<Long> theExpression) {
+		if (isSingleStatement()) {
+			// The statement being compiled intersects the subqueries itself
+			return;
+		}
+		applyPendingQuery();
+		if (myPids == null) {
+			return;
+		}
+		if (myPids.size() <= MAX_PIDS_IN_QUERY) {
+			thePredicates.add(theExpression.in(myPids));
+			return;
+		}
 
-				thePredicates.add(theExpression.in(subQ));
-			}
-		} else {
-			if (myPids != null) {
-				thePredicates.add(theExpression.in(myPids));
-			}
+		/*
+		 * Too many PIDs to bind in a single statement (databases limit the number of bind
+		 * variables), so the PIDs are a parameter and the query is executed once for each
+		 * chunk of them by executeForPidChunks()
+		 */
+		thePredicates.add(theExpression.in(builder.parameter(Collection.class, PIDS_PARAM)));
+	}
+
+	/**
+	 * Executes a query whose predicates were built using {@link #createPredicateResourceId}. If
+	 * the current PIDs were passed as a parameter, the query is executed once for each chunk of
+	 * {@link #MAX_PIDS_IN_QUERY} PIDs and the results of all of the chunks are returned.
+	 */
+	private <T> List<T> executeForPidChunks(TypedQuery<T> theQuery) {
+		if (!isChunkedByPids(theQuery)) {
+			return theQuery.getResultList();
 		}
 
+		List<T> retVal = new ArrayList<T>();
+		for (List<Long> nextChunk : Lists.partition(new ArrayList<Long>(myPids), MAX_PIDS_IN_QUERY)) {
+			theQuery.setParameter(PIDS_PARAM, nextChunk);
+			retVal.addAll(theQuery.getResultList());
+		}
+		return retVal;
+	}
+
+	/**
+	 * Returns true if the given query was built with the current PIDs as a parameter (see {@link #createPredicateResourceId}),
+	 * meaning that it must be executed once for each chunk of them
+	 */
+	private static boolean isChunkedByPids(TypedQuery<?> theQuery) {
+		for (Parameter<?> next : theQuery.getParameters()) {
+			if (PIDS_PARAM.equals(next.getName())) {
+				return true;
+			}
+		}
+		return false;
 	}
 
 	private Predicate createPredicateString(IQueryParameterType theParameter, String theParamName, CriteriaBuilder theBuilder, From<ResourceIndexedSearchParamString, ResourceIndexedSearchParamString> theFrom) {
@@ -1419,7 +1496,7 @@ public class SearchBuilder {
 		return type;
 	}
 
-	private TypedQuery<Long> createSearchAllByTypeQuery(DateRangeParam theLastUpdated) {
+	private CriteriaQuery<Long> createSearchAllByTypeQuery(DateRangeParam theLastUpdated) {
 		CriteriaBuilder builder = myEntityManager.getCriteriaBuilder();
 		CriteriaQuery<Long> cq = builder.createQuery(Long.class);
 		Root<ResourceTable> from = cq.from(ResourceTable.class);
@@ -1434,13 +1511,22 @@ public class SearchBuilder {
 
 		cq.where(toArray(predicates));
 
-		TypedQuery<Long> query = myEntityManager.createQuery(cq);
-		return query;
+		return cq;
 	}
 
-	private void createSort(CriteriaBuilder theBuilder, Root<ResourceTable> theFrom, SortSpec theSort, List<Order> theOrders, List<Predicate> thePredicates) {
+	/**
+	 * Adds the joins and orderings for a sort specification
+	 * 
+	 * @param theJoinType
+	 *           {@link JoinType#INNER} restricts the query to resources which have a value for each sort parameter.
+	 *           {@link JoinType#LEFT} keeps resources without a value, and the join condition is added to the join
+	 *           itself instead of to <code>thePredicates</code>
+	 * @return The join against the index table for the first sort parameter, or <code>null</code> if the first sort
+	 *         parameter is on the resource table itself (<code>_id</code> or <code>_lastUpdated</code>)
+	 */
+	private From<?, ?> createSort(CriteriaBuilder theBuilder, Root<ResourceTable> theFrom, SortSpec theSort, List<Order> theOrders, List<Predicate> thePredicates, JoinType theJoinType) {
 		if (theSort == null || isBlank(theSort.getParamName())) {
-			return;
+			return null;
 		}
 
 		if (BaseResource.SP_RES_ID.equals(theSort.getParamName())) {
@@ -1453,8 +1539,8 @@ public class SearchBuilder {
 				theOrders.add(theBuilder.desc(theFrom.get("myId")));
 			}
 
-			createSort(theBuilder, theFrom, theSort.getChain(), theOrders, thePredicates);
-			return;
+			createSort(theBuilder, theFrom, theSort.getChain(), theOrders, thePredicates, theJoinType);
+			return null;
 		}
 
 		if (Constants.PARAM_LASTUPDATED.equals(theSort.getParamName())) {
@@ -1464,8 +1550,8 @@ public class SearchBuilder {
 				theOrders.add(theBuilder.desc(theFrom.get("myUpdated")));
 			}
 
-			createSort(theBuilder, theFrom, theSort.getChain(), theOrders, thePredicates);
-			return;
+			createSort(theBuilder, theFrom, theSort.getChain(), theOrders, thePredicates, theJoinType);
+			return null;
 		}
 
 		RuntimeSearchParam param = getSearchParam(theSort.getParamName());
@@ -1509,12 +1595,18 @@ public class SearchBuilder {
 			throw new InvalidRequestException("This server does not support _sort specifications of type " + param.getParamType() + " - Can't serve _sort=" + theSort.getParamName());
 		}
 
-		From<?, ?> stringJoin = theFrom.join(joinAttrName, JoinType.INNER);
+		Join<?, ?> stringJoin = theFrom.join(joinAttrName, theJoinType);
 
+		Predicate joinPredicate;
 		if (param.getParamType() == RestSearchParameterTypeEnum.REFERENCE) {
-			thePredicates.add(stringJoin.get("mySourcePath").as(String.class).in(param.getPathsSplit()));
+			joinPredicate = stringJoin.get("mySourcePath").as(String.class).in(param.getPathsSplit());
+		} else {
+			joinPredicate = theBuilder.equal(stringJoin.get("myParamName"), theSort.getParamName());
+		}
+		if (theJoinType == JoinType.LEFT) {
+			stringJoin.on(joinPredicate);
 		} else {
-			thePredicates.add(theBuilder.equal(stringJoin.get("myParamName"), theSort.getParamName()));
+			thePredicates.add(joinPredicate);
 		}
 
 		// Predicate p = theBuilder.equal(stringJoin.get("myParamName"), theSort.getParamName());
@@ -1529,7 +1621,12 @@ public class SearchBuilder {
 			}
 		}
 
-		createSort(theBuilder, theFrom, theSort.getChain(), theOrders, thePredicates);
+		createSort(theBuilder, theFrom, theSort.getChain(), theOrders, thePredicates, theJoinType);
+		return stringJoin;
+	}
+
+	private boolean isSingleStatement() {
+		return mySingleStatementQuery != null;
 	}
 
 	private RuntimeSearchParam getSearchParam(String theParamName) {
@@ -1539,24 +1636,19 @@ public class SearchBuilder {
 	}
 
 	public Set<Long> doGetPids() {
-		if (myParams.isPersistResults()) {
-			HashSet<Long> retVal = new HashSet<Long>();
-
-			for (SearchResult next : mySearchResultDao.findWithSearchUuid(mySearchEntity)) {
-				retVal.add(next.getResourcePid());
-			}
-			return retVal;
-
-		} else {
-			return new HashSet<Long>(myPids);
+		applyPendingQuery();
+		if (myPids == null) {
+			return new HashSet<Long>();
 		}
+		return new HashSet<Long>(myPids);
 	}
 
 	private boolean doHaveNoResults() {
-		if (myParams.isPersistResults()) {
-			return mySearchEntity.getTotalCount() == 0;
+		if (isSingleStatement()) {
+			return mySingleStatementNoResults;
 		} else {
-			return myPids != null && myPids.isEmpty();
+			// If the last query hasn't been executed yet we don't know
+			return myPendingQuery == null && myPids != null && myPids.isEmpty();
 		}
 	}
 
@@ -1568,6 +1660,7 @@ public class SearchBuilder {
 
 	private IBundleProvider doReturnProvider() {
 		if (myParams.isPersistResults()) {
+			doPersistResults();
 			return new PersistedJpaBundleProvider(mySearchEntity.getUuid(), myCallingDao);
 		} else {
 			if (myPids == null) {
@@ -1578,31 +1671,138 @@ public class SearchBuilder {
 		}
 	}
 
+	/**
+	 * Executes the query for the last parameter applied, if it was deferred by
+	 * {@link #doSetPids(AbstractQuery, boolean)}. This must happen before anything reads
+	 * the current PIDs.
+	 */
+	private void applyPendingQuery() {
+		if (myPendingQuery == null) {
+			return;
+		}
+		CriteriaQuery<Long> query = myPendingQuery;
+		myPendingQuery = null;
+		executeAndSetPids(query, myPendingQueryDistinct);
+	}
+
+	private void executeAndSetPids(CriteriaQuery<Long> theQuery, boolean theDistinct) {
+		TypedQuery<Long> q = myEntityManager.createQuery(theQuery);
+		if (theDistinct) {
+			doSetPids(new HashSet<Long>(executeForPidChunks(q)));
+		} else {
+			doSetPids(executeForPidChunks(q));
+		}
+	}
+
+	private void doSetPids(AbstractQuery<Long> theQuery, boolean theDistinct) {
+		if (isSingleStatement()) {
+			mySingleStatementPredicates.add(mySingleStatementRoot.get("myId").as(Long.class).in((Subquery<Long>) theQuery));
+			return;
+		}
+
+		applyPendingQuery();
+		if (myStreamFinalQuery) {
+			/*
+			 * Don't execute the query until we know whether it is the last one. If it is, the
+			 * background task streams its results into the search result table (see doPersistResults)
+			 * so the first page is available without waiting for all of them.
+			 */
+			myPendingQuery = (CriteriaQuery<Long>) theQuery;
+			myPendingQueryDistinct = theDistinct;
+			return;
+		}
+
+		executeAndSetPids((CriteriaQuery<Long>) theQuery, theDistinct);
+	}
+
 	private void doSetPids(Collection<Long> thePids) {
-		if (myParams.isPersistResults()) {
-			if (mySearchEntity.getTotalCount() != null) {
-				reinitializeSearch();
+		if (isSingleStatement()) {
+			if (thePids.isEmpty()) {
+				mySingleStatementNoResults = true;
+			} else {
+				mySingleStatementPredicates.add(mySingleStatementRoot.get("myId").as(Long.class).in(thePids));
 			}
+			return;
+		}
 
-			LinkedHashSet<SearchResult> results = new LinkedHashSet<SearchResult>();
-			int index = 0;
+		if (thePids.isEmpty()) {
+			// No matter what the pending query would have found, there are no results
+			myPendingQuery = null;
+		} else {
+			applyPendingQuery();
+		}
+
+		/*
+		 * Intermediate results are only ever held in memory, and the final list is
+		 * written to the database once by doPersistResults(). Queries restrict their
+		 * results to the current PIDs (see createPredicateResourceId), but not every
+		 * caller produces its results that way, so large lists are narrowed here too.
+		 */
+		if (myPids != null && myPids.size() > MAX_PIDS_IN_QUERY) {
+			Set<Long> previousPids = myPids instanceof Set ? (Set<Long>) myPids : new HashSet<Long>(myPids);
+			List<Long> narrowedPids = new ArrayList<Long>();
 			for (Long next : thePids) {
-				SearchResult nextResult = new SearchResult(mySearchEntity);
-				nextResult.setResourcePid(next);
-				nextResult.setOrder(index);
-				results.add(nextResult);
-				index++;
+				if (previousPids.contains(next)) {
+					narrowedPids.add(next);
+				}
 			}
-			mySearchResultDao.save(results);
+			myPids = narrowedPids;
+		} else {
+			myPids = thePids;
+		}
+	}
 
-			mySearchEntity.setTotalCount(results.size());
-			mySearchEntity = myEntityManager.merge(mySearchEntity);
+	/**
+	 * Writes the final list of PIDs to the search result table using a JDBC batch insert. This
+	 * happens once per search, after all parameters, <code>_lastUpdated</code> and <code>_sort</code>
+	 * have been applied. If {@link DaoConfig#setLoadSearchResultsAsynchronously(boolean) asynchronous loading}
+	 * is enabled, only the first results are written here and the rest are written in the background.
+	 * If the query for the last parameter hasn't been executed yet, only its first results are read here,
+	 * and the background task executes it again to find the rest.
+	 */
+	private void doPersistResults() {
+		int synchronousLimit = Integer.MAX_VALUE;
+		if (myCallingDao.getConfig().isLoadSearchResultsAsynchronously() && mySearchResultWriterSvc != null) {
+			// Write at least one more result than the first page so that a link to the next page is returned
+			int firstPageSize = myParams.getCount() != null ? myParams.getCount() : 0;
+			synchronousLimit = Math.max(ASYNC_SYNCHRONOUS_RESULT_COUNT, firstPageSize + 1);
+		}
 
-			myEntityManager.flush();
+		PendingQueryResultSource pendingQuerySource = null;
+		if (myPendingQuery != null) {
+			pendingQuerySource = new PendingQueryResultSource(myPendingQuery, myPids);
+			myPendingQuery = null;
+			// Read one more than we need so we know whether there are more
+			myPids = pendingQuerySource.loadFirstResults(synchronousLimit + 1);
+		}
 
+		final List<Long> pids;
+		if (myPids == null) {
+			pids = Collections.emptyList();
 		} else {
-			myPids = thePids;
+			pids = new ArrayList<Long>(new LinkedHashSet<Long>(myPids));
 		}
+
+		int synchronousCount = Math.min(pids.size(), synchronousLimit);
+
+		// Make sure the search row exists before the results which reference it are inserted
+		myEntityManager.flush();
+		SearchResultWriterSvc.insertSearchResults(myEntityManager, mySearchEntity.getId(), pids.subList(0, synchronousCount), 0);
+
+		mySearchEntity.setTotalCount(synchronousCount);
+		if (synchronousCount < pids.size()) {
+			mySearchEntity.setStatus(SearchStatusEnum.LOADING);
+			if (pendingQuerySource != null) {
+				pendingQuerySource.setAlreadyWrittenPids(pids.subList(0, synchronousCount));
+				mySearchResultWriterSvc.loadInBackgroundAfterCommit(mySearchEntity.getId(), pendingQuerySource, synchronousCount);
+			} else {
+				mySearchResultWriterSvc.writeInBackgroundAfterCommit(mySearchEntity.getId(), pids.subList(synchronousCount, pids.size()), synchronousCount);
+			}
+		} else {
+			mySearchEntity.setStatus(SearchStatusEnum.FINISHED);
+		}
+		mySearchEntity = myEntityManager.merge(mySearchEntity);
+		myEntityManager.flush();
 	}
 
 	private void filterResourceIdsByLastUpdated(final DateRangeParam theLastUpdated) {
@@ -1617,7 +1817,7 @@ public class SearchBuilder {
 		cq.where(SearchBuilder.toArray(lastUpdatedPredicates));
 		TypedQuery<Long> query = myEntityManager.createQuery(cq);
 
-		List<Long> resultList = query.getResultList();
+		List<Long> resultList = executeForPidChunks(query);
 		doSetPids(resultList);
 	}
 
@@ -1626,7 +1826,27 @@ public class SearchBuilder {
 		FhirContext context = myContext;
 		BaseHapiFhirDao<?> dao = myCallingDao;
 
-		loadResourcesByPid(theIncludePids, theResourceListToPopulate, theRevIncludedPids, theForHistoryOperation, entityManager, context, dao);
+		loadResourcesByPid(theIncludePids, theResourceListToPopulate, theRevIncludedPids, theForHistoryOperation, entityManager, context, dao, dao.getTagDefinitionCacheSvc());
+	}
+
+	/**
+	 * Fulltext matches are returned in order of relevance, but the database queries which apply the
+	 * remaining parameters return them in no particular order. This puts the final results back into
+	 * the order of the fulltext matches.
+	 */
+	private void sortByFulltextRelevance() {
+		if (myFulltextPids == null || myPids == null || myPids == myFulltextPids) {
+			return;
+		}
+
+		Set<Long> matchedPids = myPids instanceof Set ? (Set<Long>) myPids : new HashSet<Long>(myPids);
+		List<Long> pids = new ArrayList<Long>(matchedPids.size());
+		for (Long next : myFulltextPids) {
+			if (matchedPids.contains(next)) {
+				pids.add(next);
+			}
+		}
+		myPids = pids;
 	}
 
 	private void processSort(final SearchParameterMap theParams) {
@@ -1641,7 +1861,7 @@ public class SearchBuilder {
 
 			createPredicateResourceId(builder, cq, predicates, from.get("myId").as(Long.class));
 
-			createSort(builder, from, theParams.getSort(), orders, predicates);
+			createSort(builder, from, theParams.getSort(), orders, predicates, JoinType.INNER);
 
 			if (orders.size() > 0) {
 
@@ -1649,13 +1869,24 @@ public class SearchBuilder {
 				Collection<Long> originalPids = doGetPids();
 
 				LinkedHashSet<Long> loadPids = new LinkedHashSet<Long>();
-				cq.multiselect(from.get("myId").as(Long.class));
+				List<Selection<?>> selections = new ArrayList<Selection<?>>();
+				selections.add(from.get("myId").as(Long.class));
+				for (Order next : orders) {
+					selections.add(next.getExpression());
+				}
+				cq.multiselect(selections);
 				cq.where(toArray(predicates));
 				cq.orderBy(orders);
 
 				TypedQuery<Tuple> query = myEntityManager.createQuery(cq);
+				List<Tuple> tuples = executeForPidChunks(query);
 
-				for (Tuple next : query.getResultList()) {
+				// Each chunk of PIDs was sorted separately, so the chunks need to be merged
+				if (originalPids.size() > MAX_PIDS_IN_QUERY) {
+					Collections.sort(tuples, new TupleOrderComparator(orders));
+				}
+
+				for (Tuple next : tuples) {
 					loadPids.add(next.get(0, Long.class));
 				}
 
@@ -1681,9 +1912,15 @@ public class SearchBuilder {
 		mySearchEntity.setUuid(UUID.randomUUID().toString());
 		mySearchEntity.setCreated(new Date());
 		mySearchEntity.setTotalCount(-1);
+		mySearchEntity.setStatus(SearchStatusEnum.LOADING);
 		mySearchEntity.setPreferredPageSize(myParams.getCount());
 		mySearchEntity.setSearchType(myParams.getEverythingMode() != null ? SearchTypeEnum.EVERYTHING : SearchTypeEnum.SEARCH);
 		mySearchEntity.setLastUpdated(myParams.getLastUpdated());
+		mySearchEntity.setResourceType(myResourceName);
+		mySearchEntity.setLastReturned(mySearchEntity.getCreated());
+		if (myParams.getEverythingMode() == null) {
+			mySearchEntity.setSearchQueryStringHash(SearchReuseSvc.createSearchQueryStringHash(myContext, myResourceName, myParams));
+		}
 
 		for (Include next : myParams.getIncludes()) {
 			mySearchEntity.getIncludes().add(new SearchInclude(mySearchEntity, next.getValue(), false, next.isRecurse()));
@@ -1708,13 +1945,20 @@ public class SearchBuilder {
 
 		DateRangeParam lu = theParams.getLastUpdated();
 
+		/*
+		 * If the results are loaded in the background and nothing needs to be done after the last
+		 * parameter is applied, the last query can be streamed into the search result table
+		 */
+		myStreamFinalQuery = theParams.isPersistResults() && myCallingDao.getConfig().isLoadSearchResultsAsynchronously() && mySearchResultWriterSvc != null;
+		myStreamFinalQuery &= theParams.getEverythingMode() == null && lu == null && theParams.getSort() == null && !myCallingDao.getConfig().isSingleStatementSearch();
+
 		// Collection<Long> loadPids;
 		if (theParams.getEverythingMode() != null) {
 
 			Long pid = null;
 			if (theParams.get(BaseResource.SP_RES_ID) != null) {
 				StringParam idParm = (StringParam) theParams.get(BaseResource.SP_RES_ID).get(0).get(0);
-				pid = BaseHapiFhirDao.translateForcedIdToPid(myResourceName, idParm.getValue(), myForcedIdDao);
+				pid = myCallingDao.translateForcedIdToPid(myResourceName, idParm.getValue());
 			}
 
 			if (theParams.containsKey(Constants.PARAM_CONTENT) || theParams.containsKey(Constants.PARAM_TEXT)) {
@@ -1755,25 +1999,25 @@ public class SearchBuilder {
 
 		} else if (theParams.isEmpty()) {
 
-			TypedQuery<Long> query = createSearchAllByTypeQuery(lu);
-			doSetPids(query.getResultList());
+			doSetPids(createSearchAllByTypeQuery(lu), false);
+
+		} else if (myCallingDao.getConfig().isSingleStatementSearch()) {
+
+			searchForIdsWithSingleStatement(theParams, lu);
+
+			ourLog.info(" {} on {} in {}ms (single statement)", new Object[] { myResourceName, theParams, w.getMillisAndRestart() });
+			return doReturnProvider();
 
 		} else {
 
-			if (mySearchDao == null) {
-				if (theParams.containsKey(Constants.PARAM_TEXT)) {
-					throw new InvalidRequestException("Fulltext search is not enabled on this service, can not process parameter: " + Constants.PARAM_TEXT);
-				} else if (theParams.containsKey(Constants.PARAM_CONTENT)) {
-					throw new InvalidRequestException("Fulltext search is not enabled on this service, can not process parameter: " + Constants.PARAM_CONTENT);
-				}
-			} else {
-				List<Long> searchResultPids = mySearchDao.search(myResourceName, theParams);
-				if (searchResultPids != null) {
-					if (searchResultPids.isEmpty()) {
-						return doReturnProvider();
-					}
-					doSetPids(searchResultPids);
+			List<Long> searchResultPids = searchFulltext(theParams);
+			if (searchResultPids != null) {
+				if (searchResultPids.isEmpty()) {
+					return doReturnProvider();
 				}
+				// The results are put back into order of relevance once all parameters are applied
+				myStreamFinalQuery = false;
+				doSetPids(searchResultPids);
 			}
 
 			if (!theParams.isEmpty()) {
@@ -1804,13 +2048,64 @@ public class SearchBuilder {
 			}
 		}
 
-		// Handle sorting if any was provided
+		// Handle sorting if any was provided, otherwise keep fulltext matches in order of relevance
+		if (theParams.getSort() == null) {
+			sortByFulltextRelevance();
+		}
 		processSort(theParams);
 
 		ourLog.info(" {} on {} in {}ms", new Object[] { myResourceName, theParams, w.getMillisAndRestart() });
 		return doReturnProvider();
 	}
 
+	/**
+	 * Returns the PIDs matching the <code>_content</code> and <code>_text</code> parameters, or <code>null</code> if
+	 * the search has neither
+	 */
+	private List<Long> searchFulltext(SearchParameterMap theParams) {
+		if (mySearchDao == null) {
+			if (theParams.containsKey(Constants.PARAM_TEXT)) {
+				throw new InvalidRequestException("Fulltext search is not enabled on this service, can not process parameter: " + Constants.PARAM_TEXT);
+			} else if (theParams.containsKey(Constants.PARAM_CONTENT)) {
+				throw new InvalidRequestException("Fulltext search is not enabled on this service, can not process parameter: " + Constants.PARAM_CONTENT);
+			}
+			return null;
+		}
+		myFulltextPids = mySearchDao.search(myResourceName, theParams);
+		return myFulltextPids;
+	}
+
+	/**
+	 * Returns the parameters of the search in the order in which they should be applied. Unless
+	 * ordering by selectivity is enabled (and the search is being performed one parameter at a time),
+	 * this is simply the order in which the parameters were supplied.
+	 */
+	private List<Entry<String, List<List<? extends IQueryParameterType>>>> orderParamsForSearch(RuntimeResourceDefinition theResourceDef, SearchParameterMap theParams) {
+		List<Entry<String, List<List<? extends IQueryParameterType>>>> retVal = new ArrayList<Entry<String, List<List<? extends IQueryParameterType>>>>(theParams.entrySet());
+		if (retVal.size() < 2 || isSingleStatement() || mySearchParamSelectivitySvc == null || !myCallingDao.getConfig().isOrderSearchParamsBySelectivity()) {
+			return retVal;
+		}
+
+		final Map<String, Long> estimates = new HashMap<String, Long>();
+		for (Entry<String, List<List<? extends IQueryParameterType>>> next : retVal) {
+			String nextParamName = next.getKey();
+			RuntimeSearchParam nextParamDef = theResourceDef.getSearchParam(nextParamName);
+			RestSearchParameterTypeEnum nextParamType = nextParamDef != null ? nextParamDef.getParamType() : null;
+			estimates.put(nextParamName, mySearchParamSelectivitySvc.estimate(myResourceName, nextParamName, nextParamType, next.getValue()));
+		}
+
+		// This sort is stable, so parameters with equal estimates keep their original order
+		Collections.sort(retVal, new Comparator<Entry<String, List<List<? extends IQueryParameterType>>>>() {
+			@Override
+			public int compare(Entry<String, List<List<? extends IQueryParameterType>>> theO1, Entry<String, List<List<? extends IQueryParameterType>>> theO2) {
+				return estimates.get(theO1.getKey()).compareTo(estimates.get(theO2.getKey()));
+			}
+		});
+
+		ourLog.debug("Applying search parameters on {} in order of estimated selectivity: {}", myResourceName, estimates);
+		return retVal;
+	}
+
 	private void searchForIdsWithAndOr(SearchParameterMap theParams, DateRangeParam theLastUpdated) {
 		SearchParameterMap params = theParams;
 		if (params == null) {
@@ -1822,7 +2117,7 @@ public class SearchBuilder {
 
 		RuntimeResourceDefinition resourceDef = myContext.getResourceDefinition(myResourceType);
 
-		for (Entry<String, List<List<? extends IQueryParameterType>>> nextParamEntry : params.entrySet()) {
+		for (Entry<String, List<List<? extends IQueryParameterType>>> nextParamEntry : orderParamsForSearch(resourceDef, params)) {
 			String nextParamName = nextParamEntry.getKey();
 			if (nextParamName.equals(BaseResource.SP_RES_ID)) {
 
@@ -1954,6 +2249,84 @@ public class SearchBuilder {
 
 	}
 
+	/**
+	 * Compiles the whole search (every AND/OR parameter, <code>_lastUpdated</code> and <code>_sort</code>) into a
+	 * single SQL statement against the resource table, where each parameter becomes an <code>IN (subquery)</code>
+	 * predicate. The database performs the intersection, so only the final list of matching PIDs is loaded into
+	 * memory and (if the results are persisted) written to the search result table.
+	 */
+	private void searchForIdsWithSingleStatement(SearchParameterMap theParams, DateRangeParam theLastUpdated) {
+		CriteriaBuilder builder = myEntityManager.getCriteriaBuilder();
+		mySingleStatementQuery = builder.createTupleQuery();
+		mySingleStatementRoot = mySingleStatementQuery.from(ResourceTable.class);
+		mySingleStatementPredicates = new ArrayList<Predicate>();
+		mySingleStatementNoResults = false;
+
+		TypedQuery<Tuple> query = null;
+		boolean haveSortJoin = false;
+		try {
+			List<Long> searchResultPids = searchFulltext(theParams);
+			if (searchResultPids != null) {
+				doSetPids(searchResultPids);
+			}
+
+			if (!doHaveNoResults()) {
+				searchForIdsWithAndOr(theParams, theLastUpdated);
+			}
+
+			if (!doHaveNoResults()) {
+				List<Predicate> predicates = mySingleStatementPredicates;
+				predicates.add(builder.equal(mySingleStatementRoot.get("myResourceType"), myResourceName));
+				predicates.add(builder.isNull(mySingleStatementRoot.get("myDeleted")));
+				predicates.addAll(createLastUpdatedPredicates(theLastUpdated, builder, mySingleStatementRoot));
+
+				/*
+				 * Sort joins are outer joins so that resources with no value for the sort parameter are
+				 * still returned. Those are moved to the end of the list below.
+				 */
+				List<Order> orders = new ArrayList<Order>();
+				From<?, ?> sortJoin = createSort(builder, mySingleStatementRoot, theParams.getSort(), orders, predicates, JoinType.LEFT);
+				if (sortJoin != null) {
+					haveSortJoin = true;
+					mySingleStatementQuery.multiselect(mySingleStatementRoot.get("myId").as(Long.class), sortJoin.get("myId").as(Long.class));
+				} else {
+					mySingleStatementQuery.multiselect(mySingleStatementRoot.get("myId").as(Long.class));
+				}
+				mySingleStatementQuery.where(toArray(predicates));
+				if (orders.size() > 0) {
+					mySingleStatementQuery.orderBy(orders);
+				}
+
+				query = myEntityManager.createQuery(mySingleStatementQuery);
+			}
+		} finally {
+			mySingleStatementQuery = null;
+			mySingleStatementRoot = null;
+			mySingleStatementPredicates = null;
+		}
+
+		LinkedHashSet<Long> pids = new LinkedHashSet<Long>();
+		if (query != null) {
+			LinkedHashSet<Long> unmatchedBySort = new LinkedHashSet<Long>();
+			for (Tuple next : query.getResultList()) {
+				Long pid = next.get(0, Long.class);
+				if (haveSortJoin && next.get(1) == null) {
+					unmatchedBySort.add(pid);
+				} else {
+					pids.add(pid);
+				}
+			}
+
+			// Any resources which weren't matched by the sort get added to the bottom
+			pids.addAll(unmatchedBySort);
+		}
+
+		doSetPids(pids);
+		if (theParams.getSort() == null) {
+			sortByFulltextRelevance();
+		}
+	}
+
 	public void setType(Class<? extends IBaseResource> theResourceType, String theResourceName) {
 		myResourceType = theResourceType;
 		myResourceName = theResourceName;
@@ -2060,7 +2433,16 @@ public class SearchBuilder {
 		return resultList;
 	}
 
-	public static void loadResourcesByPid(Collection<Long> theIncludePids, List<IBaseResource> theResourceListToPopulate, Set<Long> theRevIncludedPids, boolean theForHistoryOperation, EntityManager entityManager, FhirContext context, IDao theDao) {
+	/**
+	 * Loads the resources with the given PIDs. The resources (along with their forced IDs)
+	 * are read using a single query, and the tags of all of them using one more query whose
+	 * tag definitions are resolved using the shared tag definition cache.
+	 * 
+	 * @param theTagDefinitionCache
+	 *           The tag definition cache, or <code>null</code> to load the tags of each resource individually
+	 */
+	public static void loadResourcesByPid(Collection<Long> theIncludePids, List<IBaseResource> theResourceListToPopulate, Set<Long> theRevIncludedPids, boolean theForHistoryOperation, EntityManager entityManager, FhirContext context, IDao theDao,
+			TagDefinitionCacheSvc theTagDefinitionCache) {
 		if (theIncludePids.isEmpty()) {
 			return;
 		}
@@ -2074,12 +2456,24 @@ public class SearchBuilder {
 		CriteriaBuilder builder = entityManager.getCriteriaBuilder();
 		CriteriaQuery<ResourceTable> cq = builder.createQuery(ResourceTable.class);
 		Root<ResourceTable> from = cq.from(ResourceTable.class);
+		from.fetch("myForcedId", JoinType.LEFT);
 		cq.where(from.get("myId").in(theIncludePids));
 		TypedQuery<ResourceTable> q = entityManager.createQuery(cq);
+		List<ResourceTable> entities = q.getResultList();
 
-		for (ResourceTable next : q.getResultList()) {
+		Map<Long, Collection<TagDefinition>> pidToTags = null;
+		if (theTagDefinitionCache != null) {
+			pidToTags = loadTagsForResources(entityManager, theTagDefinitionCache, entities);
+		}
+
+		for (ResourceTable next : entities) {
 			Class<? extends IBaseResource> resourceType = context.getResourceDefinition(next.getResourceType()).getImplementingClass();
-			IBaseResource resource = (IBaseResource) theDao.toResource(resourceType, next, theForHistoryOperation);
+			IBaseResource resource;
+			if (pidToTags != null) {
+				resource = (IBaseResource) theDao.toResource(resourceType, next, pidToTags.get(next.getId()), theForHistoryOperation);
+			} else {
+				resource = (IBaseResource) theDao.toResource(resourceType, next, theForHistoryOperation);
+			}
 			Integer index = position.get(next.getId());
 			if (index == null) {
 				ourLog.warn("Got back unexpected resource PID {}", next.getId());
@@ -2104,12 +2498,80 @@ public class SearchBuilder {
 		}
 	}
 
+	/**
+	 * Returns the tags of the given resources, keyed by resource PID. Only the IDs of the tags
+	 * are read from the database, and are then resolved using the tag definition cache.
+	 */
+	private static Map<Long, Collection<TagDefinition>> loadTagsForResources(EntityManager theEntityManager, TagDefinitionCacheSvc theTagDefinitionCache, List<ResourceTable> theEntities) {
+		Map<Long, Collection<TagDefinition>> retVal = new HashMap<Long, Collection<TagDefinition>>();
+
+		List<Long> pidsWithTags = new ArrayList<Long>();
+		for (ResourceTable next : theEntities) {
+			if (next.isHasTags()) {
+				pidsWithTags.add(next.getId());
+			}
+		}
+		if (pidsWithTags.isEmpty()) {
+			return retVal;
+		}
+
+		Map<Long, List<Long>> pidToTagIds = new HashMap<Long, List<Long>>();
+		Set<Long> allTagIds = new HashSet<Long>();
+		for (int start = 0; start < pidsWithTags.size(); start += MAX_PIDS_IN_QUERY) {
+			List<Long> chunk = pidsWithTags.subList(start, Math.min(start + MAX_PIDS_IN_QUERY, pidsWithTags.size()));
+			TypedQuery<Object[]> q = theEntityManager.createQuery("SELECT t.myResourceId, t.myTagId FROM ResourceTag t WHERE t.myResourceId IN (:pids)", Object[].class);
+			q.setParameter("pids", chunk);
+			for (Object[] next : q.getResultList()) {
+				Long pid = (Long) next[0];
+				Long tagId = (Long) next[1];
+				List<Long> tagIds = pidToTagIds.get(pid);
+				if (tagIds == null) {
+					tagIds = new ArrayList<Long>();
+					pidToTagIds.put(pid, tagIds);
+				}
+				tagIds.add(tagId);
+				allTagIds.add(tagId);
+			}
+		}
+
+		Map<Long, TagDefinition> tagDefinitions = theTagDefinitionCache.getTagDefinitions(allTagIds);
+		for (Entry<Long, List<Long>> nextEntry : pidToTagIds.entrySet()) {
+			Collection<TagDefinition> tags = new ArrayList<TagDefinition>();
+			for (Long nextTagId : nextEntry.getValue()) {
+				TagDefinition tag = tagDefinitions.get(nextTagId);
+				if (tag != null) {
+					tags.add(tag);
+				}
+			}
+			retVal.put(nextEntry.getKey(), tags);
+		}
+
+		return retVal;
+	}
+
 	/**
 	 * THIS SHOULD RETURN HASHSET and not jsut Set because we add to it later (so it can't be Collections.emptySet())
 	 * 
 	 * @param theLastUpdated
 	 */
 	public static HashSet<Long> loadReverseIncludes(FhirContext theContext, EntityManager theEntityManager, Collection<Long> theMatches, Set<Include> theRevIncludes, boolean theReverseMode, DateRangeParam theLastUpdated) {
+		return loadReverseIncludes(theContext, theEntityManager, theMatches, theRevIncludes, theReverseMode, theLastUpdated, null);
+	}
+
+	/**
+	 * Loads the PIDs of the resources included by the given includes (or revincludes).
+	 * <p>
+	 * Each round follows the links of all of the includes in a single statement which selects
+	 * only the PIDs at the other end of the links, so the number of statements does not grow
+	 * with the number of includes. The PIDs being followed are passed in chunks of at most
+	 * {@link #MAX_PIDS_IN_QUERY} to stay under database bind variable limits.
+	 * </p>
+	 * 
+	 * @param theRoundTimingsToPopulate
+	 *           If not <code>null</code>, timing information for each round is added to this list
+	 */
+	public static HashSet<Long> loadReverseIncludes(FhirContext theContext, EntityManager theEntityManager, Collection<Long> theMatches, Set<Include> theRevIncludes, boolean theReverseMode, DateRangeParam theLastUpdated,
+			List<IncludeRoundTiming> theRoundTimingsToPopulate) {
 		if (theMatches.size() == 0) {
 			return new HashSet<Long>();
 		}
@@ -2117,6 +2579,7 @@ public class SearchBuilder {
 			return new HashSet<Long>();
 		}
 		String searchFieldName = theReverseMode ? "myTargetResourcePid" : "mySourceResourcePid";
+		String resultFieldName = theReverseMode ? "mySourceResourcePid" : "myTargetResourcePid";
 
 		Collection<Long> nextRoundMatches = theMatches;
 		HashSet<Long> allAdded = new HashSet<Long>();
@@ -2129,97 +2592,96 @@ public class SearchBuilder {
 		boolean addedSomeThisRound;
 		do {
 			roundCounts++;
+			StopWatch roundWatch = new StopWatch();
 
 			HashSet<Long> pidsToInclude = new HashSet<Long>();
 			Set<Long> nextRoundOmit = new HashSet<Long>();
 
+			/*
+			 * Build one condition per include path, and OR them all together so that every
+			 * include is followed by the same statement
+			 */
+			boolean matchAll = false;
+			List<String> pathConditions = new ArrayList<String>();
+			Map<String, Object> pathParameters = new HashMap<String, Object>();
 			for (Iterator<Include> iter = includes.iterator(); iter.hasNext();) {
 				Include nextInclude = iter.next();
 				if (nextInclude.isRecurse() == false) {
 					iter.remove();
 				}
 
-				boolean matchAll = "*".equals(nextInclude.getValue());
-				if (matchAll) {
-					String sql;
-					sql = "SELECT r FROM ResourceLink r WHERE r." + searchFieldName + " IN (:target_pids)";
-					TypedQuery<ResourceLink> q = theEntityManager.createQuery(sql, ResourceLink.class);
-					q.setParameter("target_pids", nextRoundMatches);
-					List<ResourceLink> results = q.getResultList();
-					for (ResourceLink resourceLink : results) {
-						if (theReverseMode) {
-							// if (theEverythingModeEnum.isEncounter()) {
-							// if (resourceLink.getSourcePath().equals("Encounter.subject") ||
-							// resourceLink.getSourcePath().equals("Encounter.patient")) {
-							// nextRoundOmit.add(resourceLink.getSourceResourcePid());
-							// }
-							// }
-							pidsToInclude.add(resourceLink.getSourceResourcePid());
-						} else {
-							pidsToInclude.add(resourceLink.getTargetResourcePid());
-						}
-					}
+				if ("*".equals(nextInclude.getValue())) {
+					matchAll = true;
+					continue;
+				}
+
+				List<String> paths;
+				RuntimeSearchParam param = null;
+				if (theContext.getVersion().getVersion() == FhirVersionEnum.DSTU1) {
+					paths = Collections.singletonList(nextInclude.getValue());
 				} else {
+					String resType = nextInclude.getParamType();
+					if (isBlank(resType)) {
+						continue;
+					}
+					RuntimeResourceDefinition def = theContext.getResourceDefinition(resType);
+					if (def == null) {
+						ourLog.warn("Unknown resource type in include/revinclude=" + nextInclude.getValue());
+						continue;
+					}
 
-					List<String> paths;
-					RuntimeSearchParam param = null;
-					if (theContext.getVersion().getVersion() == FhirVersionEnum.DSTU1) {
-						paths = Collections.singletonList(nextInclude.getValue());
-					} else {
-						String resType = nextInclude.getParamType();
-						if (isBlank(resType)) {
-							continue;
-						}
-						RuntimeResourceDefinition def = theContext.getResourceDefinition(resType);
-						if (def == null) {
-							ourLog.warn("Unknown resource type in include/revinclude=" + nextInclude.getValue());
-							continue;
-						}
+					String paramName = nextInclude.getParamName();
+					param = isNotBlank(paramName) ? def.getSearchParam(paramName) : null;
+					if (param == null) {
+						ourLog.warn("Unknown param name in include/revinclude=" + nextInclude.getValue());
+						continue;
+					}
 
-						String paramName = nextInclude.getParamName();
-						param = isNotBlank(paramName) ? def.getSearchParam(paramName) : null;
-						if (param == null) {
-							ourLog.warn("Unknown param name in include/revinclude=" + nextInclude.getValue());
-							continue;
-						}
+					paths = param.getPathsSplit();
+				}
 
-						paths = param.getPathsSplit();
+				String targetResourceType = defaultString(nextInclude.getParamTargetType(), null);
+				boolean haveTargetTypesDefinedByParam = param != null && param.getTargets() != null && param.getTargets().isEmpty() == false;
+				for (String nextPath : paths) {
+					int index = pathConditions.size();
+					pathParameters.put("src_path" + index, nextPath);
+					if (targetResourceType != null) {
+						pathConditions.add("(r.mySourcePath = :src_path" + index + " AND r.myTargetResourceType = :target_resource_type" + index + ")");
+						pathParameters.put("target_resource_type" + index, targetResourceType);
+					} else if (haveTargetTypesDefinedByParam) {
+						pathConditions.add("(r.mySourcePath = :src_path" + index + " AND r.myTargetResourceType IN (:target_resource_types" + index + "))");
+						pathParameters.put("target_resource_types" + index, param.getTargets());
+					} else {
+						pathConditions.add("(r.mySourcePath = :src_path" + index + ")");
 					}
+				}
+			}
 
-					String targetResourceType = defaultString(nextInclude.getParamTargetType(), null);
-					for (String nextPath : paths) {
-						String sql;
-						boolean haveTargetTypesDefinedByParam = param != null && param.getTargets() != null && param.getTargets().isEmpty() == false;
-						if (targetResourceType != null) {
-							sql = "SELECT r FROM ResourceLink r WHERE r.mySourcePath = :src_path AND r." + searchFieldName + " IN (:target_pids) AND r.myTargetResourceType = :target_resource_type";
-						} else if (haveTargetTypesDefinedByParam) {
-							sql = "SELECT r FROM ResourceLink r WHERE r.mySourcePath = :src_path AND r." + searchFieldName + " IN (:target_pids) AND r.myTargetResourceType in (:target_resource_types)";
-						} else {
-							sql = "SELECT r FROM ResourceLink r WHERE r.mySourcePath = :src_path AND r." + searchFieldName + " IN (:target_pids)";
-						}
-						TypedQuery<ResourceLink> q = theEntityManager.createQuery(sql, ResourceLink.class);
-						q.setParameter("src_path", nextPath);
-						q.setParameter("target_pids", nextRoundMatches);
-						if (targetResourceType != null) {
-							q.setParameter("target_resource_type", targetResourceType);
-						} else if (haveTargetTypesDefinedByParam) {
-							q.setParameter("target_resource_types", param.getTargets());
+			int statementCount = 0;
+			if (matchAll || pathConditions.size() > 0) {
+				StringBuilder sql = new StringBuilder();
+				sql.append("SELECT DISTINCT r.").append(resultFieldName).append(" FROM ResourceLink r WHERE r.").append(searchFieldName).append(" IN (:target_pids)");
+				if (!matchAll) {
+					// "*" follows every link, so there is no need to restrict the paths
+					sql.append(" AND (").append(StringUtils.join(pathConditions, " OR ")).append(")");
+				}
+
+				List<Long> nextRoundMatchesList = new ArrayList<Long>(nextRoundMatches);
+				for (int chunkStart = 0; chunkStart < nextRoundMatchesList.size(); chunkStart += MAX_PIDS_IN_QUERY) {
+					List<Long> chunk = nextRoundMatchesList.subList(chunkStart, Math.min(chunkStart + MAX_PIDS_IN_QUERY, nextRoundMatchesList.size()));
+					TypedQuery<Long> q = theEntityManager.createQuery(sql.toString(), Long.class);
+					q.setParameter("target_pids", chunk);
+					if (!matchAll) {
+						for (Entry<String, Object> nextParam : pathParameters.entrySet()) {
+							q.setParameter(nextParam.getKey(), nextParam.getValue());
 						}
-						List<ResourceLink> results = q.getResultList();
-						for (ResourceLink resourceLink : results) {
-							if (theReverseMode) {
-								Long pid = resourceLink.getSourceResourcePid();
-								if (pid != null) {
-									pidsToInclude.add(pid);
-								}
-							} else {
-								Long pid = resourceLink.getTargetResourcePid();
-								if (pid != null) {
-									pidsToInclude.add(pid);
-								}
-							}
+					}
+					for (Long pid : q.getResultList()) {
+						if (pid != null) {
+							pidsToInclude.add(pid);
 						}
 					}
+					statementCount++;
 				}
 			}
 
@@ -2234,6 +2696,12 @@ public class SearchBuilder {
 
 			pidsToInclude.removeAll(nextRoundOmit);
 
+			IncludeRoundTiming timing = new IncludeRoundTiming(roundCounts, theReverseMode, nextRoundMatches.size(), statementCount, pidsToInclude.size(), roundWatch.getMillis());
+			ourLog.debug("{}", timing);
+			if (theRoundTimingsToPopulate != null) {
+				theRoundTimingsToPopulate.add(timing);
+			}
+
 			addedSomeThisRound = allAdded.addAll(pidsToInclude);
 			nextRoundMatches = pidsToInclude;
 		} while (includes.size() > 0 && nextRoundMatches.size() > 0 && addedSomeThisRound);
@@ -2243,6 +2711,14 @@ public class SearchBuilder {
 		return allAdded;
 	}
 
+	private static void selectPid(AbstractQuery<Long> theQuery, Expression<Long> thePid) {
+		if (theQuery instanceof Subquery) {
+			((Subquery<Long>) theQuery).select(thePid);
+		} else {
+			((CriteriaQuery<Long>) theQuery).select(thePid);
+		}
+	}
+
 	static Predicate[] toArray(List<Predicate> thePredicates) {
 		return thePredicates.toArray(new Predicate[thePredicates.size()]);
 	}
@@ -2303,4 +2779,108 @@ public class SearchBuilder {
 		}
 	}
 
+	/**
+	 * Executes the query for the last parameter of a search, passing its results on as the
+	 * database returns them rather than loading them all first. The first results are read
+	 * while the search is being performed, and the background task then executes the query
+	 * again and writes the results which weren't already written.
+	 */
+	private final class PendingQueryResultSource implements SearchResultWriterSvc.IResultSource {
+
+		private Set<Long> myAlreadyWrittenPids = Collections.emptySet();
+		private final List<Long> myCandidatePids;
+		private final CriteriaQuery<Long> myQuery;
+
+		private PendingQueryResultSource(CriteriaQuery<Long> theQuery, Collection<Long> theCandidatePids) {
+			myQuery = theQuery;
+			myCandidatePids = theCandidatePids != null ? new ArrayList<Long>(theCandidatePids) : null;
+		}
+
+		private List<Long> loadFirstResults(final int theCount) {
+			final List<Long> retVal = new ArrayList<Long>();
+			produceResults(new SearchResultWriterSvc.IResultWriter() {
+				@Override
+				public boolean add(Long thePid) {
+					retVal.add(thePid);
+					return retVal.size() < theCount;
+				}
+			});
+			return retVal;
+		}
+
+		@Override
+		public void produceResults(SearchResultWriterSvc.IResultWriter theWriter) {
+			TypedQuery<Long> query = myEntityManager.createQuery(myQuery);
+			Set<Long> candidatePids = myCandidatePids != null ? new HashSet<Long>(myCandidatePids) : null;
+
+			List<List<Long>> chunks;
+			if (isChunkedByPids(query)) {
+				chunks = Lists.partition(myCandidatePids, MAX_PIDS_IN_QUERY);
+			} else {
+				chunks = Collections.singletonList(null);
+			}
+
+			// The query may return a resource more than once (e.g. if it matches several index rows)
+			Set<Long> foundPids = new HashSet<Long>(myAlreadyWrittenPids);
+			for (List<Long> nextChunk : chunks) {
+				if (nextChunk != null) {
+					query.setParameter(PIDS_PARAM, nextChunk);
+				}
+
+				ScrollableResults results = query.unwrap(org.hibernate.Query.class).setFetchSize(STREAMING_FETCH_SIZE).scroll(ScrollMode.FORWARD_ONLY);
+				try {
+					while (results.next()) {
+						Long next = ((Number) results.get(0)).longValue();
+						if (candidatePids != null && !candidatePids.contains(next)) {
+							continue;
+						}
+						if (foundPids.add(next) && !theWriter.add(next)) {
+							return;
+						}
+					}
+				} finally {
+					results.close();
+				}
+			}
+		}
+
+		private void setAlreadyWrittenPids(Collection<Long> thePids) {
+			myAlreadyWrittenPids = new HashSet<Long>(thePids);
+		}
+
+	}
+
+	/**
+	 * Orders the rows of a sort query (the PID followed by the value of each order expression) the
+	 * way the database orders them, with <code>null</code> values last when ascending
+	 */
+	private static class TupleOrderComparator implements Comparator<Tuple> {
+		private final List<Order> myOrders;
+
+		TupleOrderComparator(List<Order> theOrders) {
+			myOrders = theOrders;
+		}
+
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		@Override
+		public int compare(Tuple theO1, Tuple theO2) {
+			for (int i = 0; i < myOrders.size(); i++) {
+				Comparable value1 = (Comparable) theO1.get(i + 1);
+				Comparable value2 = (Comparable) theO2.get(i + 1);
+				int retVal;
+				if (value1 == null) {
+					retVal = value2 == null ? 0 : 1;
+				} else if (value2 == null) {
+					retVal = -1;
+				} else {
+					retVal = value1.compareTo(value2);
+				}
+				if (retVal != 0) {
+					return myOrders.get(i).isAscending() ? retVal : -retVal;
+				}
+			}
+			return 0;
+		}
+	}
+
 }
@@ -21,6 +21,8 @@ package ca.uhn.fhir.jpa.dao;
  */
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -29,6 +31,7 @@ import java.util.Set;
 import org.apache.commons.lang3.builder.ToStringBuilder;
 import org.apache.commons.lang3.builder.ToStringStyle;
 
+import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.model.api.IQueryParameterAnd;
 import ca.uhn.fhir.model.api.IQueryParameterOr;
 import ca.uhn.fhir.model.api.IQueryParameterType;
@@ -37,6 +40,7 @@ import ca.uhn.fhir.rest.api.SortSpec;
 import ca.uhn.fhir.rest.method.RequestDetails;
 import ca.uhn.fhir.rest.param.DateRangeParam;
 import ca.uhn.fhir.rest.server.Constants;
+import ca.uhn.fhir.util.UrlUtil;
 
 public class SearchParameterMap extends LinkedHashMap<String, List<List<? extends IQueryParameterType>>> {
 
@@ -191,6 +195,77 @@ public class SearchParameterMap extends LinkedHashMap<String, List<List<? extend
 		mySort = theSort;
 	}
 
+	/**
+	 * Returns a query string representing this search, which is the same for any two maps
+	 * describing the same search regardless of the order in which the parameters, values,
+	 * and includes were added. This is used to find existing searches which can be reused.
+	 */
+	public String toNormalizedQueryString(FhirContext theCtx) {
+		List<String> parts = new ArrayList<String>();
+
+		for (String nextParamName : keySet()) {
+			List<String> andValues = new ArrayList<String>();
+			for (List<? extends IQueryParameterType> nextAnd : get(nextParamName)) {
+				List<String> orValues = new ArrayList<String>();
+				for (IQueryParameterType nextOr : nextAnd) {
+					StringBuilder b = new StringBuilder();
+					b.append(UrlUtil.escape(nextParamName));
+					if (nextOr.getMissing() != null) {
+						b.append(Constants.PARAMQUALIFIER_MISSING).append('=').append(nextOr.getMissing());
+					} else {
+						if (nextOr.getQueryParameterQualifier() != null) {
+							b.append(nextOr.getQueryParameterQualifier());
+						}
+						b.append('=');
+						b.append(UrlUtil.escape(nextOr.getValueAsQueryToken(theCtx)));
+					}
+					orValues.add(b.toString());
+				}
+				Collections.sort(orValues);
+				andValues.add(joinValues(orValues, ","));
+			}
+			Collections.sort(andValues);
+			parts.addAll(andValues);
+		}
+
+		for (Include next : getIncludes()) {
+			parts.add(Constants.PARAM_INCLUDE + (next.isRecurse() ? ":recurse" : "") + "=" + UrlUtil.escape(next.getValue()));
+		}
+		for (Include next : getRevIncludes()) {
+			parts.add(Constants.PARAM_REVINCLUDE + (next.isRecurse() ? ":recurse" : "") + "=" + UrlUtil.escape(next.getValue()));
+		}
+		if (getLastUpdated() != null) {
+			Date lower = getLastUpdated().getLowerBoundAsInstant();
+			Date upper = getLastUpdated().getUpperBoundAsInstant();
+			parts.add(Constants.PARAM_LASTUPDATED + "=" + (lower != null ? lower.getTime() : "") + "," + (upper != null ? upper.getTime() : ""));
+		}
+		Collections.sort(parts);
+
+		// Sort order matters, so the sort parameters are not reordered
+		for (SortSpec next = getSort(); next != null; next = next.getChain()) {
+			parts.add(Constants.PARAM_SORT + "=" + UrlUtil.escape(next.getParamName()) + ":" + next.getOrder());
+		}
+		if (getCount() != null) {
+			parts.add(Constants.PARAM_COUNT + "=" + getCount());
+		}
+		if (getEverythingMode() != null) {
+			parts.add("everything=" + getEverythingMode());
+		}
+
+		return "?" + joinValues(parts, "&");
+	}
+
+	private static String joinValues(List<String> theValues, String theSeparator) {
+		StringBuilder b = new StringBuilder();
+		for (String next : theValues) {
+			if (b.length() > 0) {
+				b.append(theSeparator);
+			}
+			b.append(next);
+		}
+		return b.toString();
+	}
+
 	@Override
 	public String toString() {
 		ToStringBuilder b = new ToStringBuilder(this, ToStringStyle.SHORT_PREFIX_STYLE);
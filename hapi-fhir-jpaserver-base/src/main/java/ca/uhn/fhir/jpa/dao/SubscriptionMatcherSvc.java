@@ -0,0 +1,213 @@
+package ca.uhn.fhir.jpa.dao;
+
+/*
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2017 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.PersistenceContextType;
+
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import ca.uhn.fhir.context.RuntimeResourceDefinition;
+import ca.uhn.fhir.jpa.entity.ResourceIndexedSearchParamString;
+import ca.uhn.fhir.jpa.entity.ResourceIndexedSearchParamToken;
+import ca.uhn.fhir.jpa.entity.ResourceLink;
+import ca.uhn.fhir.jpa.entity.ResourceTable;
+import ca.uhn.fhir.jpa.entity.SubscriptionFlaggedResource;
+import ca.uhn.fhir.jpa.entity.SubscriptionTable;
+
+/**
+ * Matches resources against the criteria of active subscriptions as they are written (see
+ * {@link DaoConfig#setSubscriptionMatchOnWrite(boolean)}), and flags the matching resources
+ * for delivery in the same transaction. A subscription is registered here by the
+ * subscription DAO the first time it is polled, after which the polling task only needs
+ * to search for resources written before it was registered.
+ */
+public class SubscriptionMatcherSvc {
+
+	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(SubscriptionMatcherSvc.class);
+
+	@Autowired
+	private DaoConfig myDaoConfig;
+
+	@PersistenceContext(type = PersistenceContextType.TRANSACTION)
+	private EntityManager myEntityManager;
+
+	@Autowired
+	private ForcedIdCacheSvc myForcedIdCacheSvc;
+
+	/**
+	 * Keyed by subscription table PID
+	 */
+	private final ConcurrentHashMap<Long, RegisteredSubscription> mySubscriptions = new ConcurrentHashMap<Long, RegisteredSubscription>();
+
+	/**
+	 * Returns the time from which written resources are matched against the given subscription,
+	 * or <code>null</code> if it is not registered or its criteria can not be matched this way
+	 * 
+	 * @param theSubscriptionPid
+	 *           The subscription table PID
+	 */
+	public Long getMatchingSince(Long theSubscriptionPid) {
+		RegisteredSubscription retVal = mySubscriptions.get(theSubscriptionPid);
+		if (retVal == null || retVal.myCriteria == null) {
+			return null;
+		}
+		return retVal.mySince;
+	}
+
+	public boolean isRegistered(Long theSubscriptionPid) {
+		return mySubscriptions.containsKey(theSubscriptionPid);
+	}
+
+	/**
+	 * Matches a resource which has just been written (and indexed) against all registered
+	 * subscriptions. Matches are flagged for delivery in the current transaction, so they are
+	 * committed (or rolled back) along with the resource itself.
+	 */
+	public void notifyResourceIndexed(ResourceTable theEntity, Collection<ResourceIndexedSearchParamString> theStrings, Collection<ResourceIndexedSearchParamToken> theTokens, Collection<ResourceLink> theLinks) {
+		if (mySubscriptions.isEmpty() || !myDaoConfig.isSubscriptionEnabled() || !myDaoConfig.isSubscriptionMatchOnWrite()) {
+			return;
+		}
+
+		for (RegisteredSubscription next : mySubscriptions.values()) {
+			if (next.myCriteria == null || !next.myResourceType.equals(theEntity.getResourceType())) {
+				continue;
+			}
+			if (!next.myCriteria.matches(theStrings, theTokens, theLinks)) {
+				continue;
+			}
+
+			SubscriptionTable subscription = myEntityManager.find(SubscriptionTable.class, next.mySubscriptionPid);
+			if (subscription == null) {
+				// The subscription has been deleted since it was registered
+				continue;
+			}
+
+			ourLog.debug("Resource {} matches subscription {}", theEntity.getId(), next.mySubscriptionPid);
+			SubscriptionFlaggedResource flag = new SubscriptionFlaggedResource();
+			flag.setResource(theEntity);
+			flag.setSubscription(subscription);
+			flag.setVersion(theEntity.getVersion());
+			myEntityManager.persist(flag);
+		}
+	}
+
+	/**
+	 * Compiles the criteria of the given subscription, and starts matching resources against
+	 * them as they are written. Must be called within a transaction.
+	 * 
+	 * @param theSubscriptionPid
+	 *           The subscription table PID
+	 * @param theResourcePid
+	 *           The PID of the Subscription resource
+	 * @return The time from which written resources are matched against the subscription, or
+	 *         <code>null</code> if its criteria can not be matched this way (in which case new
+	 *         matches must still be found by searching)
+	 */
+	public Long registerSubscription(Long theSubscriptionPid, Long theResourcePid, RuntimeResourceDefinition theResourceDef, SearchParameterMap theCriteria) {
+		CompiledSubscriptionCriteria criteria = CompiledSubscriptionCriteria.compile(theResourceDef, theCriteria, myDaoConfig, new CompiledSubscriptionCriteria.IReferenceResolver() {
+			@Override
+			public List<Long> resolve(IIdType theId) {
+				if (BaseHapiFhirDao.isValidPid(theId)) {
+					return Collections.singletonList(theId.getIdPartAsLong());
+				}
+				if (!theId.hasResourceType()) {
+					return null;
+				}
+				List<Long> retVal = myForcedIdCacheSvc.getPids(theId.getResourceType(), theId.getIdPart());
+				return retVal.isEmpty() ? null : retVal;
+			}
+		});
+
+		RegisteredSubscription registered = new RegisteredSubscription(theSubscriptionPid, theResourcePid, theResourceDef.getName(), criteria, System.currentTimeMillis());
+		mySubscriptions.put(theSubscriptionPid, registered);
+
+		if (criteria == null) {
+			ourLog.info("Criteria of subscription {} can not be matched in memory, new matches will be found by searching", theSubscriptionPid);
+			return null;
+		}
+		ourLog.info("Matching resources against subscription {} as they are written", theSubscriptionPid);
+		return registered.mySince;
+	}
+
+	/**
+	 * Stops matching resources against the subscription stored in the given resource. This
+	 * should be called whenever a Subscription resource is updated or deleted. If the
+	 * subscription is still active, it is registered again (with its new criteria) the next
+	 * time it is polled.
+	 * 
+	 * @param theResourcePid
+	 *           The PID of the Subscription resource
+	 */
+	public void unregisterSubscriptionResource(final Long theResourcePid) {
+		removeSubscriptionResource(theResourcePid);
+
+		if (TransactionSynchronizationManager.isSynchronizationActive()) {
+			/*
+			 * A poll which ran before the change was committed may have registered the
+			 * subscription again with its previous criteria
+			 */
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+				@Override
+				public void afterCompletion(int theStatus) {
+					removeSubscriptionResource(theResourcePid);
+				}
+			});
+		}
+	}
+
+	private void removeSubscriptionResource(Long theResourcePid) {
+		for (Iterator<RegisteredSubscription> iter = mySubscriptions.values().iterator(); iter.hasNext();) {
+			if (iter.next().myResourcePid.equals(theResourcePid)) {
+				iter.remove();
+			}
+		}
+	}
+
+	private static class RegisteredSubscription {
+		/**
+		 * <code>null</code> if the criteria can not be matched in memory
+		 */
+		private final CompiledSubscriptionCriteria myCriteria;
+		private final Long myResourcePid;
+		private final String myResourceType;
+		private final long mySince;
+		private final Long mySubscriptionPid;
+
+		RegisteredSubscription(Long theSubscriptionPid, Long theResourcePid, String theResourceType, CompiledSubscriptionCriteria theCriteria, long theSince) {
+			mySubscriptionPid = theSubscriptionPid;
+			myResourcePid = theResourcePid;
+			myResourceType = theResourceType;
+			myCriteria = theCriteria;
+			mySince = theSince;
+		}
+	}
+
+}
@@ -0,0 +1,224 @@
+package ca.uhn.fhir.jpa.dao;
+
+/*
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2017 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import static org.apache.commons.lang3.StringUtils.isNotBlank;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.PersistenceContextType;
+import javax.persistence.TypedQuery;
+
+import org.hibernate.LockOptions;
+import org.hibernate.Session;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.persister.entity.EntityPersister;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.Striped;
+
+import ca.uhn.fhir.jpa.entity.TagDefinition;
+import ca.uhn.fhir.jpa.entity.TagTypeEnum;
+
+/**
+ * A cache of tag definitions (tags, profiles and security labels) shared by all DAOs.
+ * There are typically very few distinct tag definitions compared to the number of
+ * resources using them, so when many resources are loaded at once only the IDs of
+ * their tags need to be read from the database.
+ * <p>
+ * The cached objects are copies which are not attached to any persistence context,
+ * so they must not be used as the target of an association. Use
+ * {@link #getTag(TagTypeEnum, String, String, String)} to obtain a definition which can be.
+ * </p>
+ */
+public class TagDefinitionCacheSvc {
+
+	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(TagDefinitionCacheSvc.class);
+
+	private final Striped<Lock> myCreateLocks = Striped.lock(64);
+
+	@PersistenceContext(type = PersistenceContextType.TRANSACTION)
+	private EntityManager myEntityManager;
+
+	private final Cache<Long, TagDefinition> myIdToTagDefinition = CacheBuilder.newBuilder().maximumSize(10000).build();
+
+	private final Cache<String, Long> myKeyToTagId = CacheBuilder.newBuilder().maximumSize(10000).build();
+
+	@Autowired
+	private PlatformTransactionManager myTransactionManager;
+
+	/**
+	 * Discards all cached tag definitions
+	 */
+	public void clearCache() {
+		myIdToTagDefinition.invalidateAll();
+		myKeyToTagId.invalidateAll();
+	}
+
+	/**
+	 * Returns the tag definition with the given type, system and code, creating it if it
+	 * does not already exist. The returned definition is associated with the current
+	 * persistence context, so it can be added to a resource. Must be called within a
+	 * transaction.
+	 * <p>
+	 * Once a definition has been cached this does not query the database at all. A new
+	 * definition is created in a separate transaction so that concurrent writers using the
+	 * same tag don't both insert it, and so that the definition is visible to them even
+	 * if the current transaction is still running.
+	 * </p>
+	 */
+	public TagDefinition getTag(TagTypeEnum theTagType, String theSystem, String theCode, String theDisplay) {
+		String system = isNotBlank(theSystem) ? theSystem : null;
+		String key = theTagType.ordinal() + "|" + system + "|" + theCode;
+
+		Long id = myKeyToTagId.getIfPresent(key);
+		TagDefinition cached = id != null ? myIdToTagDefinition.getIfPresent(id) : null;
+		if (cached == null) {
+			cached = findTag(myEntityManager, theTagType, system, theCode);
+			if (cached == null) {
+				cached = createTag(key, theTagType, system, theCode, theDisplay);
+			}
+			cached = copy(cached);
+			myIdToTagDefinition.put(cached.getId(), cached);
+			myKeyToTagId.put(key, cached.getId());
+		}
+
+		return attach(cached);
+	}
+
+	/**
+	 * Returns the instance of the given definition which belongs to the current persistence
+	 * context. Rather than loading it again, a fresh copy of the cached definition is
+	 * associated with the context (this is safe since definitions are never modified).
+	 */
+	private TagDefinition attach(TagDefinition theCached) {
+		SessionImplementor session = myEntityManager.unwrap(SessionImplementor.class);
+		EntityPersister persister = session.getFactory().getEntityPersister(TagDefinition.class.getName());
+		Object existing = session.getPersistenceContext().getEntity(session.generateEntityKey(theCached.getId(), persister));
+		if (existing != null) {
+			return (TagDefinition) existing;
+		}
+
+		TagDefinition retVal = copy(theCached);
+		myEntityManager.unwrap(Session.class).buildLockRequest(LockOptions.NONE).lock(retVal);
+		return retVal;
+	}
+
+	private TagDefinition createTag(String theKey, final TagTypeEnum theTagType, final String theSystem, final String theCode, final String theDisplay) {
+		TransactionTemplate txTemplate = new TransactionTemplate(myTransactionManager);
+		txTemplate.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+		TransactionCallback<TagDefinition> findOrCreate = new TransactionCallback<TagDefinition>() {
+			@Override
+			public TagDefinition doInTransaction(TransactionStatus theStatus) {
+				TagDefinition retVal = findTag(myEntityManager, theTagType, theSystem, theCode);
+				if (retVal == null) {
+					retVal = new TagDefinition(theTagType, theSystem, theCode, theDisplay);
+					myEntityManager.persist(retVal);
+					myEntityManager.flush();
+				}
+				return retVal;
+			}
+		};
+
+		/*
+		 * The lock only stops threads in this process from creating the same definition. If
+		 * another process wins the race, the unique constraint on the table rejects our insert
+		 * and the second attempt finds the definition it created.
+		 */
+		Lock lock = myCreateLocks.get(theKey);
+		lock.lock();
+		try {
+			try {
+				return txTemplate.execute(findOrCreate);
+			} catch (RuntimeException e) {
+				ourLog.info("Failed to create tag definition {}, retrying: {}", theKey, e.toString());
+				return txTemplate.execute(findOrCreate);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the tag definitions with the given IDs, loading any which are not already
+	 * cached with a single query. Must be called within a transaction.
+	 */
+	public Map<Long, TagDefinition> getTagDefinitions(Collection<Long> theIds) {
+		Map<Long, TagDefinition> retVal = new HashMap<Long, TagDefinition>();
+		List<Long> missing = new ArrayList<Long>();
+		for (Long next : theIds) {
+			TagDefinition tag = myIdToTagDefinition.getIfPresent(next);
+			if (tag != null) {
+				retVal.put(next, tag);
+			} else if (!retVal.containsKey(next)) {
+				missing.add(next);
+			}
+		}
+
+		for (int start = 0; start < missing.size(); start += SearchBuilder.MAX_PIDS_IN_QUERY) {
+			List<Long> chunk = missing.subList(start, Math.min(start + SearchBuilder.MAX_PIDS_IN_QUERY, missing.size()));
+			TypedQuery<TagDefinition> q = myEntityManager.createQuery("SELECT t FROM TagDefinition t WHERE t.myId IN (:ids)", TagDefinition.class);
+			q.setParameter("ids", chunk);
+			for (TagDefinition next : q.getResultList()) {
+				TagDefinition copy = copy(next);
+				myIdToTagDefinition.put(next.getId(), copy);
+				retVal.put(next.getId(), copy);
+			}
+		}
+
+		return retVal;
+	}
+
+	private static TagDefinition copy(TagDefinition theTag) {
+		TagDefinition retVal = new TagDefinition(theTag.getTagType(), theTag.getSystem(), theTag.getCode(), theTag.getDisplay());
+		retVal.setId(theTag.getId());
+		return retVal;
+	}
+
+	private static TagDefinition findTag(EntityManager theEntityManager, TagTypeEnum theTagType, String theSystem, String theCode) {
+		TypedQuery<TagDefinition> q;
+		if (theSystem != null) {
+			q = theEntityManager.createQuery("SELECT t FROM TagDefinition t WHERE t.myTagType = :type AND t.mySystem = :system AND t.myCode = :code", TagDefinition.class);
+			q.setParameter("system", theSystem);
+		} else {
+			q = theEntityManager.createQuery("SELECT t FROM TagDefinition t WHERE t.myTagType = :type AND t.mySystem IS NULL AND t.myCode = :code", TagDefinition.class);
+		}
+		q.setParameter("type", theTagType);
+		q.setParameter("code", theCode);
+		List<TagDefinition> results = q.getResultList();
+		return results.isEmpty() ? null : results.get(0);
+	}
+
+}
@@ -2,6 +2,7 @@ package ca.uhn.fhir.jpa.dao.data;
 
 import java.util.Collection;
 import java.util.Date;
+import java.util.List;
 
 /*
  * #%L
@@ -24,10 +25,12 @@ import java.util.Date;
  */
 
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.query.Param;
 
 import ca.uhn.fhir.jpa.entity.Search;
+import ca.uhn.fhir.jpa.entity.SearchStatusEnum;
 
 public interface ISearchDao extends JpaRepository<Search, Long> {
 
@@ -37,4 +40,14 @@ public interface ISearchDao extends JpaRepository<Search, Long> {
 	@Query("SELECT s FROM Search s WHERE s.myCreated < :cutoff")
 	public Collection<Search> findWhereCreatedBefore(@Param("cutoff") Date theCutoff);
 
+	@Query("SELECT s FROM Search s WHERE s.myLastReturned < :cutoff OR (s.myLastReturned IS NULL AND s.myCreated < :cutoff)")
+	public Collection<Search> findWhereLastReturnedBefore(@Param("cutoff") Date theCutoff);
+
+	@Query("SELECT s FROM Search s WHERE s.myResourceType = :type AND s.mySearchQueryStringHash = :hash AND s.myCreated > :cutoff ORDER BY s.myCreated DESC")
+	public List<Search> findWithSearchQueryStringHash(@Param("type") String theResourceType, @Param("hash") String theHash, @Param("cutoff") Date theCreatedCutoff);
+
+	@Modifying
+	@Query("UPDATE Search s SET s.myStatus = :newStatus WHERE s.myStatus = :status AND s.myCreated < :cutoff")
+	public int updateStatusWhereCreatedBefore(@Param("status") SearchStatusEnum theStatus, @Param("newStatus") SearchStatusEnum theNewStatus, @Param("cutoff") Date theCutoff);
+
 }
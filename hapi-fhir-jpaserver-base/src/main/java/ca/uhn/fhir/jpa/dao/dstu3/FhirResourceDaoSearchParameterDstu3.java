@@ -48,9 +48,9 @@ public class FhirResourceDaoSearchParameterDstu3 extends FhirResourceDaoDstu3<Se
 			return;
 		}
 
-		int count = mySystemDao.performReindexingPass(100);
+		int count = mySystemDao.performReindexingPass(null);
 		for (int i = 0; i < 50 && count != 0; i++) {
-			count = mySystemDao.performReindexingPass(100);
+			count = mySystemDao.performReindexingPass(null);
 			try {
 				Thread.sleep(DateUtils.MILLIS_PER_SECOND);
 			} catch (InterruptedException e) {
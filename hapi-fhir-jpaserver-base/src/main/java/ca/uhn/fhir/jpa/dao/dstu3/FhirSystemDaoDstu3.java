@@ -25,9 +25,18 @@ import static org.apache.commons.lang3.StringUtils.isNotBlank;
 
 import java.util.*;
 import java.util.Map.Entry;
-
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.persistence.TypedQuery;
 
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
 import org.apache.http.NameValuePair;
 import org.hl7.fhir.dstu3.model.*;
 import org.hl7.fhir.dstu3.model.Bundle.BundleEntryComponent;
@@ -49,6 +58,7 @@ import com.google.common.collect.ArrayListMultimap;
 
 import ca.uhn.fhir.context.RuntimeResourceDefinition;
 import ca.uhn.fhir.jpa.dao.BaseHapiFhirSystemDao;
+import ca.uhn.fhir.jpa.dao.DaoConfig;
 import ca.uhn.fhir.jpa.dao.DaoMethodOutcome;
 import ca.uhn.fhir.jpa.dao.IFhirResourceDao;
 import ca.uhn.fhir.jpa.entity.ResourceTable;
@@ -79,9 +89,22 @@ import ca.uhn.fhir.util.UrlUtil.UrlParts;
 public class FhirSystemDaoDstu3 extends BaseHapiFhirSystemDao<Bundle, Meta> {
 	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(FhirSystemDaoDstu3.class);
 
+	private ExecutorService myTransactionPrepareExecutor;
+
 	@Autowired
 	private PlatformTransactionManager myTxManager;
 
+	@PostConstruct
+	public void startTransactionPrepareExecutor() {
+		BasicThreadFactory threadFactory = new BasicThreadFactory.Builder().namingPattern("transaction-prepare-%d").daemon(true).build();
+		myTransactionPrepareExecutor = Executors.newCachedThreadPool(threadFactory);
+	}
+
+	@PreDestroy
+	public void stopTransactionPrepareExecutor() {
+		myTransactionPrepareExecutor.shutdownNow();
+	}
+
 	private Bundle batch(final RequestDetails theRequestDetails, Bundle theRequest) {
 		ourLog.info("Beginning batch with {} resources", theRequest.getEntry().size());
 		long start = System.currentTimeMillis();
@@ -463,11 +486,13 @@ public class FhirSystemDaoDstu3 extends BaseHapiFhirSystemDao<Bundle, Meta> {
 		 */
 
 		FhirTerser terser = getContext().newTerser();
+		List<DaoMethodOutcome> outcomesToIndex = new ArrayList<DaoMethodOutcome>();
 		for (DaoMethodOutcome nextOutcome : idToPersistedOutcome.values()) {
 			IBaseResource nextResource = nextOutcome.getResource();
 			if (nextResource == null) {
 				continue;
 			}
+			outcomesToIndex.add(nextOutcome);
 
 			List<IBaseReference> allRefs = terser.getAllPopulatedChildElementsOfType(nextResource, IBaseReference.class);
 			for (IBaseReference nextRef : allRefs) {
@@ -485,11 +510,19 @@ public class FhirSystemDaoDstu3 extends BaseHapiFhirSystemDao<Bundle, Meta> {
 					ourLog.debug(" * Reference [{}] does not exist in bundle", nextId);
 				}
 			}
+		}
 
-			IPrimitiveType<Date> deletedInstantOrNull = ResourceMetadataKeyEnum.DELETED_AT.get((IAnyResource) nextResource);
-			Date deletedTimestampOrNull = deletedInstantOrNull != null ? deletedInstantOrNull.getValue() : null;
+		/*
+		 * Every resource in the bundle was given its final ID above, so no entry depends on
+		 * any other from here on. The CPU-bound part of indexing can therefore be done for
+		 * all entries at once, while the index rows are still written here, in order.
+		 */
+		Map<DaoMethodOutcome, PreparedIndexing> preparedIndexing = prepareIndexing(outcomesToIndex, nonUpdatedEntities);
+		for (DaoMethodOutcome nextOutcome : outcomesToIndex) {
+			IBaseResource nextResource = nextOutcome.getResource();
+			Date deletedTimestampOrNull = getDeletedTimestamp(nextResource);
 			boolean shouldUpdate = !nonUpdatedEntities.contains(nextOutcome.getEntity());
-			updateEntity(nextResource, nextOutcome.getEntity(), deletedTimestampOrNull, shouldUpdate, shouldUpdate, updateTime);
+			updateEntity(nextResource, nextOutcome.getEntity(), deletedTimestampOrNull, shouldUpdate, shouldUpdate, updateTime, preparedIndexing.get(nextOutcome));
 		}
 
 		myEntityManager.flush();
@@ -604,6 +637,75 @@ public class FhirSystemDaoDstu3 extends BaseHapiFhirSystemDao<Bundle, Meta> {
 
 	
 	
+	/**
+	 * Validates and prepares the given resources for indexing using several threads (see
+	 * {@link DaoConfig#setTransactionPreparationThreadCount(int)}). Returns an empty map if
+	 * this is not worthwhile, in which case each resource is prepared as it is indexed.
+	 */
+	private Map<DaoMethodOutcome, PreparedIndexing> prepareIndexing(List<DaoMethodOutcome> theOutcomes, Set<ResourceTable> theNonUpdatedEntities) {
+		Map<DaoMethodOutcome, PreparedIndexing> retVal = new IdentityHashMap<DaoMethodOutcome, PreparedIndexing>();
+
+		List<DaoMethodOutcome> toPrepare = new ArrayList<DaoMethodOutcome>();
+		for (DaoMethodOutcome next : theOutcomes) {
+			if (getDeletedTimestamp(next.getResource()) == null && !theNonUpdatedEntities.contains(next.getEntity())) {
+				toPrepare.add(next);
+			}
+		}
+
+		int threads = Math.min(getConfig().getTransactionPreparationThreadCount(), toPrepare.size());
+		if (threads <= 1) {
+			return retVal;
+		}
+
+		ourLog.debug("Preparing {} resources for indexing using {} threads", toPrepare.size(), threads);
+
+		/*
+		 * The executor is shared between transactions, so we start one worker per thread
+		 * and let the workers take resources from a queue instead of submitting each resource
+		 */
+		final Queue<DaoMethodOutcome> queue = new ConcurrentLinkedQueue<DaoMethodOutcome>(toPrepare);
+		List<Future<Map<DaoMethodOutcome, PreparedIndexing>>> futures = new ArrayList<Future<Map<DaoMethodOutcome, PreparedIndexing>>>();
+		try {
+			for (int i = 0; i < threads; i++) {
+				futures.add(myTransactionPrepareExecutor.submit(new Callable<Map<DaoMethodOutcome, PreparedIndexing>>() {
+					@Override
+					public Map<DaoMethodOutcome, PreparedIndexing> call() throws Exception {
+						Map<DaoMethodOutcome, PreparedIndexing> prepared = new IdentityHashMap<DaoMethodOutcome, PreparedIndexing>();
+						DaoMethodOutcome next;
+						while ((next = queue.poll()) != null) {
+							validateResourceForStorage(next.getResource(), next.getEntity());
+							prepared.put(next, prepareIndexing(next.getResource(), next.getEntity()));
+						}
+						return prepared;
+					}
+				}));
+			}
+			for (Future<Map<DaoMethodOutcome, PreparedIndexing>> next : futures) {
+				retVal.putAll(next.get());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InternalErrorException(e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new InternalErrorException(e.getCause());
+		} finally {
+			queue.clear();
+			for (Future<?> next : futures) {
+				next.cancel(true);
+			}
+		}
+
+		return retVal;
+	}
+
+	private static Date getDeletedTimestamp(IBaseResource theResource) {
+		IPrimitiveType<Date> deletedInstantOrNull = ResourceMetadataKeyEnum.DELETED_AT.get((IAnyResource) theResource);
+		return deletedInstantOrNull != null ? deletedInstantOrNull.getValue() : null;
+	}
+
 	private static void handleTransactionCreateOrUpdateOutcome(Map<IdType, IdType> idSubstitutions, Map<IdType, DaoMethodOutcome> idToPersistedOutcome, IdType nextResourceId, DaoMethodOutcome outcome,
 			BundleEntryComponent newEntry, String theResourceType, IBaseResource theRes) {
 		IdType newId = (IdType) outcome.getId().toUnqualifiedVersionless();
@@ -30,6 +30,7 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.measure.unit.NonSI;
 import javax.measure.unit.Unit;
@@ -49,6 +50,7 @@ import org.hl7.fhir.dstu3.model.ContactPoint;
 import org.hl7.fhir.dstu3.model.DateTimeType;
 import org.hl7.fhir.dstu3.model.Duration;
 import org.hl7.fhir.dstu3.model.Enumeration;
+import org.hl7.fhir.dstu3.model.ExpressionNode;
 import org.hl7.fhir.dstu3.model.HumanName;
 import org.hl7.fhir.dstu3.model.Identifier;
 import org.hl7.fhir.dstu3.model.IntegerType;
@@ -95,6 +97,18 @@ public class SearchParamExtractorDstu3 extends BaseSearchParamExtractor implemen
 
 	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(SearchParamExtractorDstu3.class);
 
+	/**
+	 * Search parameter paths, parsed into FHIRPath expressions. Parsed expressions are not
+	 * modified when they are evaluated, so they can be shared by all threads.
+	 */
+	private final ConcurrentHashMap<String, ExpressionNode> myParsedPaths = new ConcurrentHashMap<String, ExpressionNode>();
+
+	/**
+	 * The FHIRPath engine and worker context keep state while evaluating an expression (and
+	 * the worker context caches fetched resources in a plain map), so each thread gets its own
+	 */
+	private ThreadLocal<FHIRPathEngine> myPathEngine = newPathEngineThreadLocal();
+
 	@Autowired
 	private org.hl7.fhir.dstu3.hapi.validation.IValidationSupport myValidationSupport;
 
@@ -710,14 +724,18 @@ public class SearchParamExtractorDstu3 extends BaseSearchParamExtractor implemen
 	 */
 	@Override
 	protected List<Object> extractValues(String thePaths, IBaseResource theResource) {
-		IWorkerContext worker = new org.hl7.fhir.dstu3.hapi.validation.HapiWorkerContext(getContext(), myValidationSupport);
-		FHIRPathEngine fp = new FHIRPathEngine(worker);
+		FHIRPathEngine fp = myPathEngine.get();
 
 		List<Object> values = new ArrayList<Object>();
 		try {
 			String[] nextPathsSplit = SPLIT.split(thePaths);
 			for (String nextPath : nextPathsSplit) {
-				List<Base> allValues = fp.evaluate((Base) theResource, nextPath);
+				ExpressionNode expression = myParsedPaths.get(nextPath);
+				if (expression == null) {
+					expression = fp.parse(nextPath);
+					myParsedPaths.putIfAbsent(nextPath, expression);
+				}
+				List<Base> allValues = fp.evaluate((Base) theResource, expression);
 				if (allValues.isEmpty() == false) {
 					values.addAll(allValues);
 				}
@@ -745,9 +763,20 @@ public class SearchParamExtractorDstu3 extends BaseSearchParamExtractor implemen
 		return retVal;
 	}
 
+	private ThreadLocal<FHIRPathEngine> newPathEngineThreadLocal() {
+		return new ThreadLocal<FHIRPathEngine>() {
+			@Override
+			protected FHIRPathEngine initialValue() {
+				IWorkerContext worker = new org.hl7.fhir.dstu3.hapi.validation.HapiWorkerContext(getContext(), myValidationSupport);
+				return new FHIRPathEngine(worker);
+			}
+		};
+	}
+
 	@VisibleForTesting
 	void setValidationSupportForTesting(org.hl7.fhir.dstu3.hapi.validation.IValidationSupport theValidationSupport) {
 		myValidationSupport = theValidationSupport;
+		myPathEngine = newPathEngineThreadLocal();
 	}
 
 	private static <T extends Enum<?>> String extractSystem(Enumeration<T> theBoundCode) {
@@ -20,7 +20,27 @@ package ca.uhn.fhir.jpa.entity;
  * #L%
  */
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.zip.GZIPOutputStream;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import com.google.common.base.Charsets;
+
 import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.dao.DaoConfig;
+import ca.uhn.fhir.jpa.dao.DeflateUtil;
+import ca.uhn.fhir.jpa.dao.GZipUtil;
+import ca.uhn.fhir.jpa.dao.HistoryCompactionSvc;
+import ca.uhn.fhir.parser.DataFormatException;
 import ca.uhn.fhir.parser.IParser;
 
 public enum ResourceEncodingEnum {
@@ -29,10 +49,83 @@ public enum ResourceEncodingEnum {
 	JSON,
 	
 	/** Json Compressed */
-	JSONC;
+	JSONC,
+
+	/**
+	 * Json Compressed using Deflate with a preset dictionary (see {@link DeflateUtil}). This
+	 * is considerably faster to compress than {@link #JSONC}, and usually produces smaller
+	 * output for small resources.
+	 */
+	JSOND,
+
+	/**
+	 * A delta against the next version of the same resource, only used for history
+	 * entries which have been compacted (see {@link DaoConfig#setCompactHistoryUsingDeltas(boolean)}).
+	 * These can not be decoded on their own, so they must be read using
+	 * {@link HistoryCompactionSvc#newReader(BaseHasResource)}.
+	 */
+	DELTA;
+
+	/**
+	 * Encodes the given resource in this encoding. The resource is written straight into
+	 * the returned bytes, without first being encoded into a string.
+	 */
+	public byte[] encode(FhirContext theContext, IBaseResource theResource) {
+		ByteArrayOutputStream retVal = new ByteArrayOutputStream(1024);
+		try {
+			OutputStream os;
+			switch (this) {
+			case JSONC:
+				os = new GZIPOutputStream(retVal);
+				break;
+			case JSOND:
+				os = DeflateUtil.newCompressingStream(retVal);
+				break;
+			case DELTA:
+				throw new IllegalStateException("Resources can not be encoded directly as " + this);
+			case JSON:
+			default:
+				os = retVal;
+				break;
+			}
+			Writer writer = new OutputStreamWriter(os, Charsets.UTF_8);
+			try {
+				newParser(theContext).encodeResourceToWriter(theResource, writer);
+			} finally {
+				writer.close();
+			}
+		} catch (IOException e) {
+			throw new DataFormatException("Failed to encode resource", e);
+		}
+		return retVal.toByteArray();
+	}
 
 	public IParser newParser(FhirContext theContext) {
 		return theContext.newJsonParser();
 	}
-	
+
+	/**
+	 * Returns a stream over the UTF-8 text of a resource stored in this encoding
+	 */
+	public InputStream newInputStream(byte[] theResource) {
+		switch (this) {
+		case JSONC:
+			return GZipUtil.newDecompressingStream(theResource);
+		case JSOND:
+			return DeflateUtil.newDecompressingStream(theResource);
+		case DELTA:
+			throw new IllegalStateException("Resources encoded as " + this + " must be reconstructed from the next version");
+		case JSON:
+		default:
+			return new ByteArrayInputStream(theResource);
+		}
+	}
+
+	/**
+	 * Returns a reader over the text of a resource stored in this encoding
+	 */
+	public Reader newReader(byte[] theResource) {
+		return new InputStreamReader(newInputStream(theResource), Charsets.UTF_8);
+	}
+
 }
@@ -100,8 +100,9 @@ public class ResourceIndexedSearchParamDate extends BaseResourceIndexedSearchPar
 		EqualsBuilder b = new EqualsBuilder();
 		b.append(getParamName(), obj.getParamName());
 		b.append(getResource(), obj.getResource());
-		b.append(getValueHigh(), obj.getValueHigh());
-		b.append(getValueLow(), obj.getValueLow());
+		// Values loaded from the database are Timestamps, which are never equal to a Date
+		b.append(toMillis(getValueHigh()), toMillis(obj.getValueHigh()));
+		b.append(toMillis(getValueLow()), toMillis(obj.getValueLow()));
 		return b.isEquals();
 	}
 
@@ -123,8 +124,8 @@ public class ResourceIndexedSearchParamDate extends BaseResourceIndexedSearchPar
 		HashCodeBuilder b = new HashCodeBuilder();
 		b.append(getParamName());
 		b.append(getResource());
-		b.append(getValueHigh());
-		b.append(getValueLow());
+		b.append(toMillis(getValueHigh()));
+		b.append(toMillis(getValueLow()));
 		return b.toHashCode();
 	}
 
@@ -145,4 +146,9 @@ public class ResourceIndexedSearchParamDate extends BaseResourceIndexedSearchPar
 		b.append("valueHigh", new InstantDt(getValueHigh()));
 		return b.build();
 	}
+
+	private static Long toMillis(Date theDate) {
+		return theDate != null ? theDate.getTime() : null;
+	}
+
 }
@@ -89,7 +89,8 @@ public class ResourceIndexedSearchParamNumber extends BaseResourceIndexedSearchP
 		EqualsBuilder b = new EqualsBuilder();
 		b.append(getParamName(), obj.getParamName());
 		b.append(getResource(), obj.getResource());
-		b.append(getValue(), obj.getValue());
+		// Values loaded from the database have the scale of the column, e.g. 1.50 instead of 1.5
+		b.append(normalize(getValue()), normalize(obj.getValue()));
 		return b.isEquals();
 	}
 
@@ -107,7 +108,7 @@ public class ResourceIndexedSearchParamNumber extends BaseResourceIndexedSearchP
 		HashCodeBuilder b = new HashCodeBuilder();
 		b.append(getParamName());
 		b.append(getResource());
-		b.append(getValue());
+		b.append(normalize(getValue()));
 		return b.toHashCode();
 	}
 
@@ -123,4 +124,9 @@ public class ResourceIndexedSearchParamNumber extends BaseResourceIndexedSearchP
 		b.append("value", getValue());
 		return b.build();
 	}
+
+	private static BigDecimal normalize(BigDecimal theValue) {
+		return theValue != null ? theValue.stripTrailingZeros() : null;
+	}
+
 }
@@ -104,7 +104,8 @@ public class ResourceIndexedSearchParamQuantity extends BaseResourceIndexedSearc
 		b.append(getResource(), obj.getResource());
 		b.append(getSystem(), obj.getSystem());
 		b.append(getUnits(), obj.getUnits());
-		b.append(getValue(), obj.getValue());
+		// Values loaded from the database have the scale of the column, e.g. 1.50 instead of 1.5
+		b.append(normalize(getValue()), normalize(obj.getValue()));
 		return b.isEquals();
 	}
 
@@ -132,7 +133,7 @@ public class ResourceIndexedSearchParamQuantity extends BaseResourceIndexedSearc
 		b.append(getResource());
 		b.append(getSystem());
 		b.append(getUnits());
-		b.append(getValue());
+		b.append(normalize(getValue()));
 		return b.toHashCode();
 	}
 
@@ -159,4 +160,8 @@ public class ResourceIndexedSearchParamQuantity extends BaseResourceIndexedSearc
 		return b.build();
 	}
 
+	private static BigDecimal normalize(BigDecimal theValue) {
+		return theValue != null ? theValue.stripTrailingZeros() : null;
+	}
+
 }
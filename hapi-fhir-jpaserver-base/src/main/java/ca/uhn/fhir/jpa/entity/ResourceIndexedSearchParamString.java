@@ -155,6 +155,7 @@ public class ResourceIndexedSearchParamString extends BaseResourceIndexedSearchP
 		b.append(getParamName(), obj.getParamName());
 		b.append(getResource(), obj.getResource());
 		b.append(getValueExact(), obj.getValueExact());
+		b.append(getValueNormalized(), obj.getValueNormalized());
 		return b.isEquals();
 	}
 
@@ -177,6 +178,7 @@ public class ResourceIndexedSearchParamString extends BaseResourceIndexedSearchP
 		b.append(getParamName());
 		b.append(getResource());
 		b.append(getValueExact());
+		b.append(getValueNormalized());
 		return b.toHashCode();
 	}
 
@@ -57,6 +57,7 @@ import org.hibernate.search.annotations.Analyzer;
 import org.hibernate.search.annotations.AnalyzerDef;
 import org.hibernate.search.annotations.AnalyzerDefs;
 import org.hibernate.search.annotations.Field;
+import org.hibernate.search.annotations.FieldBridge;
 import org.hibernate.search.annotations.Fields;
 import org.hibernate.search.annotations.Indexed;
 import org.hibernate.search.annotations.IndexedEmbedded;
@@ -66,6 +67,7 @@ import org.hibernate.search.annotations.TokenFilterDef;
 import org.hibernate.search.annotations.TokenizerDef;
 
 import ca.uhn.fhir.jpa.search.IndexNonDeletedInterceptor;
+import ca.uhn.fhir.jpa.util.SearchParamFieldBridge;
 import ca.uhn.fhir.model.primitive.IdDt;
 import ca.uhn.fhir.rest.server.Constants;
 import ca.uhn.fhir.rest.server.exceptions.UnprocessableEntityException;
@@ -149,6 +151,16 @@ public class ResourceTable extends BaseHasResource implements Serializable {
 	//@formatter:on
 	private String myContentText;
 
+	/**
+	 * Holds the token, string and date search parameters - Used for Fulltext searching but not directly stored
+	 * in the DB (and only populated if {@link ca.uhn.fhir.jpa.dao.DaoConfig#setIndexSearchParamsInFulltextIndex(boolean)}
+	 * is enabled)
+	 */
+	@Transient()
+	@Field(name = "myFulltextSearchParams", index = org.hibernate.search.annotations.Index.YES, store = Store.NO, analyze = Analyze.NO)
+	@FieldBridge(impl = SearchParamFieldBridge.class)
+	private Collection<BaseResourceIndexedSearchParam> myFulltextSearchParams;
+
 	@Column(name = "SP_HAS_LINKS")
 	private boolean myHasLinks;
 
@@ -391,6 +403,10 @@ public class ResourceTable extends BaseHasResource implements Serializable {
 		myContentText = theContentText;
 	}
 
+	public void setFulltextSearchParams(Collection<BaseResourceIndexedSearchParam> theFulltextSearchParams) {
+		myFulltextSearchParams = theFulltextSearchParams;
+	}
+
 	public void setHasLinks(boolean theHasLinks) {
 		myHasLinks = theHasLinks;
 	}
@@ -51,7 +51,9 @@ import ca.uhn.fhir.rest.param.DateRangeParam;
 @Table(name = "HFJ_SEARCH", uniqueConstraints= {
 	@UniqueConstraint(name="IDX_SEARCH_UUID", columnNames="SEARCH_UUID")
 }, indexes= {
-	@Index(name="JDX_SEARCH_CREATED", columnList="CREATED")
+	@Index(name="JDX_SEARCH_CREATED", columnList="CREATED"),
+	@Index(name="IDX_SEARCH_LASTRETURNED", columnList="SEARCH_LAST_RETURNED"),
+	@Index(name="IDX_SEARCH_RESTYPE_HASH", columnList="RESOURCE_TYPE,SEARCH_QUERY_STRING_HASH,CREATED")
 })
 //@formatter:on
 public class Search implements Serializable {
@@ -71,6 +73,10 @@ public class Search implements Serializable {
 	@OneToMany(mappedBy="mySearch")
 	private Collection<SearchInclude> myIncludes;
 
+	@Temporal(TemporalType.TIMESTAMP)
+	@Column(name="SEARCH_LAST_RETURNED", nullable=true)
+	private Date myLastReturned;
+
 	@Temporal(TemporalType.TIMESTAMP)
 	@Column(name="LAST_UPDATED_HIGH", nullable=true, insertable=true, updatable=false)
 	private Date myLastUpdatedHigh;
@@ -91,10 +97,17 @@ public class Search implements Serializable {
 	@OneToMany(mappedBy="mySearch")
 	private Collection<SearchResult> myResults;
 
+	@Column(name="SEARCH_QUERY_STRING_HASH", length=64, nullable=true, updatable=false)
+	private String mySearchQueryStringHash;
+
 	@Enumerated(EnumType.ORDINAL)
 	@Column(name="SEARCH_TYPE", nullable=false)
 	private SearchTypeEnum mySearchType;
 
+	@Enumerated(EnumType.STRING)
+	@Column(name="SEARCH_STATUS", length=10, nullable=true)
+	private SearchStatusEnum myStatus;
+
 	@Column(name="TOTAL_COUNT", nullable=false)
 	private Integer myTotalCount;
 
@@ -116,6 +129,14 @@ public class Search implements Serializable {
 		return myIncludes;
 	}
 	
+	/**
+	 * Returns the last time that this search was returned to a client, either when it
+	 * was created or when it was reused for an identical search
+	 */
+	public Date getLastReturned() {
+		return myLastReturned;
+	}
+
 	public Date getLastUpdatedHigh() {
 		return myLastUpdatedHigh;
 	}
@@ -144,15 +165,39 @@ public class Search implements Serializable {
 		return myResourceType;
 	}
 
+	/**
+	 * Returns a hash of the normalized query string for this search, which is used to
+	 * find searches which can be reused
+	 */
+	public String getSearchQueryStringHash() {
+		return mySearchQueryStringHash;
+	}
+
 	public SearchTypeEnum getSearchType() {
 		return mySearchType;
 	}
 
 
+	/**
+	 * Returns the status of the search. A <code>null</code> status (searches created before
+	 * this column existed) means {@link SearchStatusEnum#FINISHED}.
+	 */
+	public SearchStatusEnum getStatus() {
+		return myStatus;
+	}
+
+	/**
+	 * Returns the number of results stored for this search. If the search is still
+	 * {@link SearchStatusEnum#LOADING loading}, this is the number stored so far.
+	 */
 	public Integer getTotalCount() {
 		return myTotalCount;
 	}
 
+	public boolean isLoading() {
+		return myStatus == SearchStatusEnum.LOADING;
+	}
+
 	public String getUuid() {
 		return myUuid;
 	}
@@ -160,6 +205,10 @@ public class Search implements Serializable {
 	public void setCreated(Date theCreated) {
 		myCreated = theCreated;
 	}
+	public void setLastReturned(Date theLastReturned) {
+		myLastReturned = theLastReturned;
+	}
+
 	public void setLastUpdated(Date theLowerBound, Date theUpperBound) {
 		myLastUpdatedLow = theLowerBound;
 		myLastUpdatedHigh = theUpperBound;
@@ -188,10 +237,18 @@ public class Search implements Serializable {
 		myResourceType = theResourceType;
 	}
 
+	public void setSearchQueryStringHash(String theSearchQueryStringHash) {
+		mySearchQueryStringHash = theSearchQueryStringHash;
+	}
+
 	public void setSearchType(SearchTypeEnum theSearchType) {
 		mySearchType = theSearchType;
 	}
 
+	public void setStatus(SearchStatusEnum theStatus) {
+		myStatus = theStatus;
+	}
+
 	public void setTotalCount(Integer theTotalCount) {
 		myTotalCount = theTotalCount;
 	}
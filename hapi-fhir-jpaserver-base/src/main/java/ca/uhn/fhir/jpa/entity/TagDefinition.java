@@ -32,6 +32,7 @@ import javax.persistence.GeneratedValue;
 import javax.persistence.GenerationType;
 import javax.persistence.Id;
 import javax.persistence.OneToMany;
+import javax.persistence.SequenceGenerator;
 import javax.persistence.Table;
 import javax.persistence.UniqueConstraint;
 
@@ -57,7 +58,8 @@ public class TagDefinition implements Serializable {
 	private String myDisplay;
 
 	@Id
-	@GeneratedValue(strategy = GenerationType.AUTO)
+	@SequenceGenerator(name = "SEQ_TAGDEF_ID", sequenceName = "SEQ_TAGDEF_ID")
+	@GeneratedValue(strategy = GenerationType.AUTO, generator = "SEQ_TAGDEF_ID")
 	@Column(name = "TAG_ID")
 	private Long myId;
 
@@ -112,6 +114,10 @@ public class TagDefinition implements Serializable {
 		myDisplay = theDisplay;
 	}
 
+	public void setId(Long theId) {
+		myId = theId;
+	}
+
 	public void setSystem(String theSystem) {
 		mySystem = theSystem;
 	}
@@ -20,10 +20,15 @@ package ca.uhn.fhir.jpa.provider;
  * #L%
  */
 
+import java.util.Date;
+import java.util.Locale;
+
+import org.apache.commons.lang3.time.DateUtils;
 import org.hl7.fhir.instance.model.api.IBaseParameters;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.instance.model.api.IPrimitiveType;
 
+import ca.uhn.fhir.jpa.dao.ReindexStatus;
 import ca.uhn.fhir.rest.annotation.Operation;
 import ca.uhn.fhir.rest.annotation.OperationParam;
 import ca.uhn.fhir.util.ParametersUtil;
@@ -46,5 +51,60 @@ public abstract class BaseJpaSystemProviderDstu2Plus<T, MT> extends BaseJpaSyste
 		return retVal;
 	}
 
-	
+	//@formatter:off
+	@Operation(name=REINDEX_STATUS, idempotent=true, returnParameters= {
+		@OperationParam(name="status"),
+		@OperationParam(name="remaining"),
+		@OperationParam(name="processed"),
+		@OperationParam(name="failed"),
+		@OperationParam(name="started", min=0),
+		@OperationParam(name="finished", min=0),
+		@OperationParam(name="resourcesPerSecond", min=0),
+		@OperationParam(name="estimatedSecondsRemaining", min=0)
+	})
+	//@formatter:on
+	public IBaseResource reindexStatus() {
+		ReindexStatus status = getDao().getReindexStatus();
+
+		IBaseParameters retVal = ParametersUtil.newInstance(getContext());
+
+		String statusString;
+		if (status.getRemainingCount() == 0) {
+			statusString = "Complete";
+		} else if (status.getStarted() == null) {
+			statusString = "Pending";
+		} else {
+			statusString = "In progress";
+		}
+		ParametersUtil.addParameterToParameters(getContext(), retVal, ParametersUtil.createString(getContext(), statusString), "status");
+		addPrimitive(retVal, "remaining", "integer", Long.toString(status.getRemainingCount()));
+		addPrimitive(retVal, "processed", "integer", Long.toString(status.getProcessedCount()));
+		addPrimitive(retVal, "failed", "integer", Long.toString(status.getFailedCount()));
+		addInstant(retVal, "started", status.getStarted());
+		addInstant(retVal, "finished", status.getFinished());
+		if (status.getResourcesPerSecond() != null) {
+			addPrimitive(retVal, "resourcesPerSecond", "decimal", String.format(Locale.US, "%.1f", status.getResourcesPerSecond()));
+		}
+		if (status.getEstimatedMillisRemaining() != null) {
+			addPrimitive(retVal, "estimatedSecondsRemaining", "integer", Long.toString(status.getEstimatedMillisRemaining() / DateUtils.MILLIS_PER_SECOND));
+		}
+
+		return retVal;
+	}
+
+	private void addInstant(IBaseParameters theParameters, String theName, Date theValue) {
+		if (theValue != null) {
+			@SuppressWarnings("unchecked")
+			IPrimitiveType<Date> value = (IPrimitiveType<Date>) getContext().getElementDefinition("instant").newInstance();
+			value.setValue(theValue);
+			ParametersUtil.addParameterToParameters(getContext(), theParameters, value, theName);
+		}
+	}
+
+	private void addPrimitive(IBaseParameters theParameters, String theName, String theType, String theValue) {
+		IPrimitiveType<?> value = (IPrimitiveType<?>) getContext().getElementDefinition(theType).newInstance();
+		value.setValueAsString(theValue);
+		ParametersUtil.addParameterToParameters(getContext(), theParameters, value, theName);
+	}
+
 }
@@ -23,14 +23,12 @@ package ca.uhn.fhir.jpa.provider.dstu3;
 import static org.apache.commons.lang3.StringUtils.defaultString;
 import static org.apache.commons.lang3.StringUtils.isNotBlank;
 
-import java.io.FileInputStream;
-import java.io.IOException;
+import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
 
 import javax.servlet.http.HttpServletRequest;
 
-import org.apache.commons.io.IOUtils;
 import org.hl7.fhir.dstu3.model.Attachment;
 import org.hl7.fhir.dstu3.model.IntegerType;
 import org.hl7.fhir.dstu3.model.Parameters;
@@ -44,7 +42,6 @@ import ca.uhn.fhir.jpa.term.IHapiTerminologyLoaderSvc.UploadStatistics;
 import ca.uhn.fhir.rest.annotation.Operation;
 import ca.uhn.fhir.rest.annotation.OperationParam;
 import ca.uhn.fhir.rest.method.RequestDetails;
-import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
 import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
 
 public class TerminologyUploaderProviderDstu3 extends BaseJpaProvider {
@@ -71,16 +68,12 @@ public class TerminologyUploaderProviderDstu3 extends BaseJpaProvider {
 		startRequest(theServletRequest);
 		try {
 			List<byte[]> data = new ArrayList<byte[]>();
+			List<File> files = new ArrayList<File>();
 			if (theLocalFile != null && theLocalFile.size() > 0) {
 				for (StringType nextLocalFile : theLocalFile) {
 					if (isNotBlank(nextLocalFile.getValue())) {
-						ourLog.info("Reading in local file: {}", nextLocalFile.getValue());
-						try {
-							byte[] nextData = IOUtils.toByteArray(new FileInputStream(nextLocalFile.getValue()));
-							data.add(nextData);
-						} catch (IOException e) {
-							throw new InternalErrorException(e);
-						}
+						ourLog.info("Using local file: {}", nextLocalFile.getValue());
+						files.add(new File(nextLocalFile.getValue()));
 					}
 				}
 			} else if (thePackage == null || thePackage.getData() == null || thePackage.getData().length == 0) {
@@ -96,9 +89,17 @@ public class TerminologyUploaderProviderDstu3 extends BaseJpaProvider {
 
 			UploadStatistics stats;
 			if (IHapiTerminologyLoaderSvc.SCT_URL.equals(url)) {
-				stats = myTerminologyLoaderSvc.loadSnomedCt((data), theRequestDetails);
+				if (files.size() > 0) {
+					stats = myTerminologyLoaderSvc.loadSnomedCtFiles(files, theRequestDetails);
+				} else {
+					stats = myTerminologyLoaderSvc.loadSnomedCt((data), theRequestDetails);
+				}
 			} else if (IHapiTerminologyLoaderSvc.LOINC_URL.equals(url)) {
+				if (files.size() > 0) {
+					stats = myTerminologyLoaderSvc.loadLoincFiles(files, theRequestDetails);
+				} else {
 					stats = myTerminologyLoaderSvc.loadLoinc((data), theRequestDetails);
+				}
 			} else {
 				throw new InvalidRequestException("Unknown URL: " + url);
 			}
@@ -0,0 +1,86 @@
+package ca.uhn.fhir.jpa.search;
+
+/*
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2017 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Remembers where each page of a history search ended, so that the following page can be
+ * loaded with a keyset ("seek") query on <code>(RES_UPDATED, PID)</code> instead of an
+ * <code>OFFSET</code> query. An offset query has to read and discard every row before the
+ * requested page, so deep pages of a large history get progressively slower, whereas a
+ * seek query costs the same for any page.
+ * <p>
+ * Cursors are keyed by search UUID and the index of the first result of the next page,
+ * so the paging offset in a paging link serves as the cursor token. If a cursor is not
+ * available (e.g. it has been evicted, or the client jumped directly to a page) the page
+ * is loaded using an offset query.
+ * </p>
+ */
+public class HistoryCursorSvc {
+
+	private final Cache<String, HistoryCursor> myCursors = CacheBuilder.newBuilder().maximumSize(10000).expireAfterAccess(1, TimeUnit.HOURS).build();
+
+	/**
+	 * Returns the position of the last result before the given index, or <code>null</code> if it is not known
+	 */
+	public HistoryCursor getCursor(String theSearchUuid, int theIndex) {
+		return myCursors.getIfPresent(toKey(theSearchUuid, theIndex));
+	}
+
+	/**
+	 * Records the position of the last result before the given index
+	 */
+	public void putCursor(String theSearchUuid, int theIndex, HistoryCursor theCursor) {
+		myCursors.put(toKey(theSearchUuid, theIndex), theCursor);
+	}
+
+	private static String toKey(String theSearchUuid, int theIndex) {
+		return theSearchUuid + "/" + theIndex;
+	}
+
+	/**
+	 * The position of a row in a history search, which is ordered by <code>RES_UPDATED</code>
+	 * descending and then by <code>PID</code> descending
+	 */
+	public static class HistoryCursor {
+		private final Long myPid;
+		private final Date myUpdated;
+
+		public HistoryCursor(Date theUpdated, Long thePid) {
+			myUpdated = theUpdated;
+			myPid = thePid;
+		}
+
+		public Long getPid() {
+			return myPid;
+		}
+
+		public Date getUpdated() {
+			return myUpdated;
+		}
+	}
+
+}
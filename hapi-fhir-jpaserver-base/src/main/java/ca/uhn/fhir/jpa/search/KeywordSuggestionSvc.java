@@ -0,0 +1,331 @@
+package ca.uhn.fhir.jpa.search;
+
+/*
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2017 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import static org.apache.commons.lang3.StringUtils.isBlank;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.PersistenceContextType;
+
+import org.apache.lucene.search.Query;
+import org.hibernate.search.jpa.FullTextEntityManager;
+import org.hibernate.search.jpa.FullTextQuery;
+import org.hibernate.search.query.dsl.QueryBuilder;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import ca.uhn.fhir.jpa.dao.DaoConfig;
+import ca.uhn.fhir.jpa.dao.FulltextSearchSvcImpl.Suggestion;
+import ca.uhn.fhir.jpa.entity.ResourceLink;
+import ca.uhn.fhir.jpa.entity.ResourceTable;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+
+/**
+ * Answers <code>$suggest-keywords</code> requests from a dictionary of the words (and pairs of
+ * adjacent words) found in the content of the resources which reference a given resource (e.g. the
+ * resources in a patient's <code>$everything</code>), when
+ * {@link DaoConfig#setSuggestKeywordsFromDictionary(boolean)} is enabled.
+ * <p>
+ * Each dictionary is a sorted map, so suggestions for a prefix are found with a single range lookup
+ * instead of querying and highlighting the text of every matching resource. A dictionary is built
+ * from the fulltext index the first time suggestions are requested for its resource, and is then
+ * kept up to date as resources are written. Dictionaries are discarded if they are not used for a
+ * while, and rebuilt periodically.
+ * </p>
+ */
+public class KeywordSuggestionSvc {
+
+	static final int MAX_SUGGESTIONS = 20;
+	static final int MAX_TERMS_PER_RESOURCE = 2000;
+	static final int MIN_PREFIX_LENGTH = 2;
+	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(KeywordSuggestionSvc.class);
+
+	@Autowired
+	private DaoConfig myDaoConfig;
+
+	private final Cache<Long, Dictionary> myDictionaries = CacheBuilder.newBuilder().maximumSize(1000).expireAfterAccess(30, TimeUnit.MINUTES).expireAfterWrite(1, TimeUnit.HOURS).build();
+
+	@PersistenceContext(type = PersistenceContextType.TRANSACTION)
+	private EntityManager myEntityManager;
+
+	/**
+	 * Discards all dictionaries
+	 */
+	public void clearCache() {
+		myDictionaries.invalidateAll();
+	}
+
+	private Dictionary getDictionary(final Long theTargetPid) {
+		try {
+			return myDictionaries.get(theTargetPid, new Callable<Dictionary>() {
+				@Override
+				public Dictionary call() throws Exception {
+					return loadDictionary(theTargetPid);
+				}
+			});
+		} catch (ExecutionException e) {
+			throw new InternalErrorException(e.getCause());
+		}
+	}
+
+	private Dictionary loadDictionary(Long theTargetPid) {
+		long start = System.currentTimeMillis();
+
+		FullTextEntityManager em = org.hibernate.search.jpa.Search.getFullTextEntityManager(myEntityManager);
+		QueryBuilder qb = em.getSearchFactory().buildQueryBuilder().forEntity(ResourceTable.class).get();
+		Query query = qb.keyword().onField("myResourceLinks.myTargetResourcePid").matching(theTargetPid).createQuery();
+
+		FullTextQuery ftq = em.createFullTextQuery(query, ResourceTable.class);
+		ftq.setProjection("myId", "myContentText");
+
+		Dictionary retVal = new Dictionary();
+		for (Object next : ftq.getResultList()) {
+			Object[] nextArray = (Object[]) next;
+			retVal.update((Long) nextArray[0], extractTerms((String) nextArray[1]));
+		}
+
+		ourLog.debug("Built keyword dictionary for resource {} with {} terms in {}ms", new Object[] { theTargetPid, retVal.size(), System.currentTimeMillis() - start });
+		return retVal;
+	}
+
+	/**
+	 * Records that a resource has been indexed (or deleted). Once the current transaction
+	 * has committed, its terms replace any previous terms for it in the dictionaries of the
+	 * resources it references, and are removed from any other dictionaries.
+	 * 
+	 * @param theContentText
+	 *           The content text of the resource, or <code>null</code> if it has been deleted
+	 */
+	public void notifyResourceIndexed(final ResourceTable theEntity, Collection<ResourceLink> theLinks, String theContentText) {
+		if (!myDaoConfig.isSuggestKeywordsFromDictionary() || myDictionaries.size() == 0) {
+			return;
+		}
+
+		final Set<String> terms = theContentText != null ? extractTerms(theContentText) : Collections.<String> emptySet();
+		final Set<Long> targetPids = new HashSet<Long>();
+		for (ResourceLink next : theLinks) {
+			// Links to external URLs have no target PID
+			if (next.getTargetResourcePid() != null) {
+				targetPids.add(next.getTargetResourcePid());
+			}
+		}
+		final Runnable task = new Runnable() {
+			@Override
+			public void run() {
+				// The ID of a new resource is only known once it has been flushed
+				for (Entry<Long, Dictionary> next : myDictionaries.asMap().entrySet()) {
+					if (targetPids.contains(next.getKey())) {
+						next.getValue().update(theEntity.getId(), terms);
+					} else {
+						next.getValue().remove(theEntity.getId());
+					}
+				}
+			}
+		};
+
+		if (TransactionSynchronizationManager.isSynchronizationActive()) {
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+				@Override
+				public void afterCommit() {
+					task.run();
+				}
+			});
+		} else {
+			task.run();
+		}
+	}
+
+	/**
+	 * Returns suggestions for the last word (or last two words) of the given text, from the
+	 * content of the resources which reference the given resource. Suggestions are ordered by
+	 * the number of resources they appear in.
+	 */
+	@Transactional(propagation = Propagation.REQUIRED)
+	public List<Suggestion> suggestKeywords(Long theTargetPid, String theText) {
+		String prefix = toPrefix(theText);
+		if (prefix.length() < MIN_PREFIX_LENGTH) {
+			return new ArrayList<Suggestion>();
+		}
+		return getDictionary(theTargetPid).suggest(prefix, MAX_SUGGESTIONS);
+	}
+
+	/**
+	 * Splits text into its words, and pairs of adjacent words on the same line, keeping their
+	 * original case
+	 */
+	static Set<String> extractTerms(String theText) {
+		Set<String> retVal = new LinkedHashSet<String>();
+		if (isBlank(theText)) {
+			return retVal;
+		}
+
+		String previousWord = null;
+		int wordStart = -1;
+		int length = theText.length();
+		for (int i = 0; i <= length && retVal.size() < MAX_TERMS_PER_RESOURCE; i++) {
+			char nextChar = i < length ? theText.charAt(i) : '\n';
+			if (Character.isLetterOrDigit(nextChar)) {
+				if (wordStart == -1) {
+					wordStart = i;
+				}
+				continue;
+			}
+
+			if (wordStart != -1) {
+				String word = theText.substring(wordStart, i);
+				wordStart = -1;
+				if (word.length() >= MIN_PREFIX_LENGTH) {
+					retVal.add(word);
+					if (previousWord != null) {
+						retVal.add(previousWord + ' ' + word);
+					}
+					previousWord = word;
+				} else {
+					previousWord = null;
+				}
+			}
+
+			// Lines in the content text hold unrelated values
+			if (nextChar == '\n') {
+				previousWord = null;
+			}
+		}
+
+		return retVal;
+	}
+
+	/**
+	 * Returns the last word of the text being typed, or its last two words if there are more
+	 */
+	private static String toPrefix(String theText) {
+		List<String> words = new ArrayList<String>();
+		for (String next : theText.toLowerCase().split("[^\\p{L}\\p{Nd}]+")) {
+			if (!next.isEmpty()) {
+				words.add(next);
+			}
+		}
+		if (words.isEmpty()) {
+			return "";
+		} else if (words.size() == 1) {
+			return words.get(0);
+		}
+		return words.get(words.size() - 2) + ' ' + words.get(words.size() - 1);
+	}
+
+	/**
+	 * The terms for a single resource's dictionary, keyed by their lower case form. Each term
+	 * counts the resources it appears in, and the terms of each resource are kept so that they can
+	 * be removed when the resource changes.
+	 */
+	private static class Dictionary {
+
+		private final Map<Long, Set<String>> myResourceTerms = new HashMap<Long, Set<String>>();
+		private final TreeMap<String, Term> myTerms = new TreeMap<String, Term>();
+
+		private void addTerm(String theTerm) {
+			String key = theTerm.toLowerCase();
+			Term term = myTerms.get(key);
+			if (term == null) {
+				term = new Term(theTerm);
+				myTerms.put(key, term);
+			}
+			term.myCount++;
+		}
+
+		synchronized void remove(Long theResourcePid) {
+			Set<String> previousTerms = myResourceTerms.remove(theResourcePid);
+			if (previousTerms == null) {
+				return;
+			}
+			for (String next : previousTerms) {
+				String key = next.toLowerCase();
+				Term term = myTerms.get(key);
+				if (term != null && --term.myCount <= 0) {
+					myTerms.remove(key);
+				}
+			}
+		}
+
+		synchronized int size() {
+			return myTerms.size();
+		}
+
+		synchronized List<Suggestion> suggest(String thePrefix, int theMaxSuggestions) {
+			List<Suggestion> retVal = new ArrayList<Suggestion>();
+			for (Term next : myTerms.subMap(thePrefix, true, thePrefix + Character.MAX_VALUE, false).values()) {
+				// Exact matches are listed first
+				float score = next.myText.equalsIgnoreCase(thePrefix) ? Float.MAX_VALUE : next.myCount;
+				retVal.add(new Suggestion(next.myText, score));
+			}
+
+			// This sort is stable, so terms with the same score stay in alphabetical order
+			Collections.sort(retVal);
+			if (retVal.size() > theMaxSuggestions) {
+				retVal = new ArrayList<Suggestion>(retVal.subList(0, theMaxSuggestions));
+			}
+			return retVal;
+		}
+
+		synchronized void update(Long theResourcePid, Set<String> theTerms) {
+			remove(theResourcePid);
+			if (theTerms.isEmpty()) {
+				return;
+			}
+			myResourceTerms.put(theResourcePid, theTerms);
+			for (String next : theTerms) {
+				addTerm(next);
+			}
+		}
+
+	}
+
+	private static class Term {
+		private int myCount;
+		private final String myText;
+
+		Term(String theText) {
+			myText = theText;
+		}
+	}
+
+}
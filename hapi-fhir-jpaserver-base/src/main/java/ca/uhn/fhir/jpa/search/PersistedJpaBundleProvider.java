@@ -35,8 +35,8 @@ import javax.persistence.criteria.CriteriaQuery;
 import javax.persistence.criteria.Predicate;
 import javax.persistence.criteria.Root;
 
+import org.apache.commons.lang3.time.DateUtils;
 import org.hl7.fhir.instance.model.api.IBaseResource;
-import org.springframework.data.domain.Page;
 import org.springframework.data.domain.PageRequest;
 import org.springframework.data.domain.Pageable;
 import org.springframework.transaction.PlatformTransactionManager;
@@ -47,25 +47,40 @@ import org.springframework.transaction.support.TransactionTemplate;
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.jpa.dao.IDao;
 import ca.uhn.fhir.jpa.dao.SearchBuilder;
+import ca.uhn.fhir.jpa.dao.TagDefinitionCacheSvc;
 import ca.uhn.fhir.jpa.dao.data.ISearchDao;
 import ca.uhn.fhir.jpa.dao.data.ISearchResultDao;
 import ca.uhn.fhir.jpa.entity.BaseHasResource;
 import ca.uhn.fhir.jpa.entity.ResourceHistoryTable;
 import ca.uhn.fhir.jpa.entity.Search;
 import ca.uhn.fhir.jpa.entity.SearchResult;
+import ca.uhn.fhir.jpa.entity.SearchStatusEnum;
 import ca.uhn.fhir.jpa.entity.SearchTypeEnum;
+import ca.uhn.fhir.jpa.search.HistoryCursorSvc.HistoryCursor;
 import ca.uhn.fhir.model.primitive.InstantDt;
 import ca.uhn.fhir.rest.server.IBundleProvider;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
 
 public final class PersistedJpaBundleProvider implements IBundleProvider {
 
+	/**
+	 * How long to wait for a search which is still loading to store the results being requested
+	 */
+	static final long MAX_WAIT_FOR_RESULTS_MILLIS = 60 * DateUtils.MILLIS_PER_SECOND;
+	private static final long MAX_POLL_INTERVAL_MILLIS = DateUtils.MILLIS_PER_SECOND;
+	private static final long MIN_POLL_INTERVAL_MILLIS = 50;
+	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(PersistedJpaBundleProvider.class);
+
 	private FhirContext myContext;
 	private IDao myDao;
 	private EntityManager myEntityManager;
+	private HistoryCursorSvc myHistoryCursorSvc;
 	private PlatformTransactionManager myPlatformTransactionManager;
 	private ISearchDao mySearchDao;
 	private Search mySearchEntity;
 	private ISearchResultDao mySearchResultDao;
+	private SearchResultWriterSvc mySearchResultWriterSvc;
+	private TagDefinitionCacheSvc myTagDefinitionCacheSvc;
 	private String myUuid;
 
 	public PersistedJpaBundleProvider(String theSearchUuid, IDao theDao) {
@@ -95,21 +110,43 @@ public final class PersistedJpaBundleProvider implements IBundleProvider {
 		if (mySearchEntity.getLastUpdatedHigh() != null) {
 			predicates.add(cb.lessThanOrEqualTo(from.get("myUpdated").as(Date.class), mySearchEntity.getLastUpdatedHigh()));
 		}
-		
+
+		/*
+		 * If we know where the previous page ended, seek directly to the first row after it
+		 * instead of using an offset
+		 */
+		HistoryCursor cursor = null;
+		if (theFromIndex > 0 && theToIndex - theFromIndex > 0) {
+			cursor = myHistoryCursorSvc.getCursor(myUuid, theFromIndex);
+		}
+		if (cursor != null) {
+			Predicate updatedBefore = cb.lessThan(from.get("myUpdated").as(Date.class), cursor.getUpdated());
+			Predicate sameUpdated = cb.equal(from.get("myUpdated").as(Date.class), cursor.getUpdated());
+			Predicate pidBefore = cb.lessThan(from.get("myId").as(Long.class), cursor.getPid());
+			predicates.add(cb.or(updatedBefore, cb.and(sameUpdated, pidBefore)));
+		}
+
 		if (predicates.size() > 0) {
 			q.where(predicates.toArray(new Predicate[predicates.size()]));
 		}
 		
-		q.orderBy(cb.desc(from.get("myUpdated")));
+		q.orderBy(cb.desc(from.get("myUpdated")), cb.desc(from.get("myId")));
 		
 		TypedQuery<ResourceHistoryTable> query = myEntityManager.createQuery(q);
 
 		if (theToIndex - theFromIndex > 0) {
-			query.setFirstResult(theFromIndex);
+			if (cursor == null) {
+				query.setFirstResult(theFromIndex);
+			}
 			query.setMaxResults(theToIndex - theFromIndex);
 		}
 		
 		results = query.getResultList();
+
+		if (results.size() > 0) {
+			ResourceHistoryTable last = results.get(results.size() - 1);
+			myHistoryCursorSvc.putCursor(myUuid, theFromIndex + results.size(), new HistoryCursor(last.getUpdatedDate(), last.getId()));
+		}
 		
 		ArrayList<IBaseResource> retVal = new ArrayList<IBaseResource>();
 		for (ResourceHistoryTable next : results) {
@@ -124,12 +161,15 @@ public final class PersistedJpaBundleProvider implements IBundleProvider {
 
 	protected List<IBaseResource> doSearchOrEverythingInTransaction(final int theFromIndex, final int theToIndex) {
 
-		Pageable page = toPage(theFromIndex, theToIndex);
-		if (page == null) {
+		if (theToIndex - theFromIndex < 1) {
 			return Collections.emptyList();
 		}
 
-		Page<SearchResult> search = mySearchResultDao.findWithSearchUuid(mySearchEntity, page);
+		/*
+		 * Results are stored with consecutive order values starting at 0, so the requested
+		 * page can be selected by a range on the order column rather than with an offset
+		 */
+		List<SearchResult> search = mySearchResultDao.findWithSearchPidAndOrderRange(mySearchEntity.getId(), theFromIndex, theToIndex);
 
 		List<Long> pidsSubList = new ArrayList<Long>();
 		for (SearchResult next : search) {
@@ -147,7 +187,7 @@ public final class PersistedJpaBundleProvider implements IBundleProvider {
 
 		// Execute the query and make sure we return distinct results
 		List<IBaseResource> resources = new ArrayList<IBaseResource>();
-		SearchBuilder.loadResourcesByPid(pidsSubList, resources, revIncludedPids, false, myEntityManager, myContext, myDao);
+		SearchBuilder.loadResourcesByPid(pidsSubList, resources, revIncludedPids, false, myEntityManager, myContext, myDao, myTagDefinitionCacheSvc);
 
 		return resources;
 	}
@@ -190,6 +230,12 @@ public final class PersistedJpaBundleProvider implements IBundleProvider {
 		}
 	}
 
+	private void failIfSearchFailed() {
+		if (mySearchEntity.getStatus() == SearchStatusEnum.FAILED) {
+			throw new InternalErrorException("Search " + myUuid + " failed to load its results, please repeat the search");
+		}
+	}
+
 	@Override
 	public InstantDt getPublished() {
 		ensureSearchEntityLoaded();
@@ -200,6 +246,13 @@ public final class PersistedJpaBundleProvider implements IBundleProvider {
 	public List<IBaseResource> getResources(final int theFromIndex, final int theToIndex) {
 		ensureDependenciesInjected();
 
+		if (ensureSearchEntityLoaded()) {
+			if (mySearchEntity.isLoading() && mySearchEntity.getTotalCount() < theToIndex) {
+				waitForResults(theToIndex);
+			}
+			failIfSearchFailed();
+		}
+
 		TransactionTemplate template = new TransactionTemplate(myPlatformTransactionManager);
 
 		return template.execute(new TransactionCallback<List<IBaseResource>>() {
@@ -238,6 +291,10 @@ public final class PersistedJpaBundleProvider implements IBundleProvider {
 		myEntityManager = theEntityManager;
 	}
 
+	public void setHistoryCursorSvc(HistoryCursorSvc theHistoryCursorSvc) {
+		myHistoryCursorSvc = theHistoryCursorSvc;
+	}
+
 	public void setPlatformTransactionManager(PlatformTransactionManager thePlatformTransactionManager) {
 		myPlatformTransactionManager = thePlatformTransactionManager;
 	}
@@ -250,12 +307,91 @@ public final class PersistedJpaBundleProvider implements IBundleProvider {
 		mySearchResultDao = theSearchResultDao;
 	}
 
+	public void setSearchResultWriterSvc(SearchResultWriterSvc theSearchResultWriterSvc) {
+		mySearchResultWriterSvc = theSearchResultWriterSvc;
+	}
+
+	public void setTagDefinitionCacheSvc(TagDefinitionCacheSvc theTagDefinitionCacheSvc) {
+		myTagDefinitionCacheSvc = theTagDefinitionCacheSvc;
+	}
+
+	/**
+	 * Re-reads the search entity in a new transaction, in order to see the progress made by
+	 * the background task which is storing its results
+	 */
+	private boolean reloadSearchEntity() {
+		ensureDependenciesInjected();
+
+		TransactionTemplate template = new TransactionTemplate(myPlatformTransactionManager);
+		template.setPropagationBehavior(TransactionTemplate.PROPAGATION_REQUIRES_NEW);
+		Search search = template.execute(new TransactionCallback<Search>() {
+			@Override
+			public Search doInTransaction(TransactionStatus theStatus) {
+				Search retVal = mySearchDao.findByUuid(myUuid);
+				if (retVal != null) {
+					retVal.getIncludes().size();
+				}
+				return retVal;
+			}
+		});
+
+		if (search == null) {
+			return false;
+		}
+		mySearchEntity = search;
+		return true;
+	}
+
+	/**
+	 * Returns the number of results in this search. If the results are still being
+	 * loaded in the background, this is the number of results which have been stored
+	 * so far.
+	 */
 	@Override
 	public int size() {
 		ensureSearchEntityLoaded();
+		if (mySearchEntity.isLoading()) {
+			reloadSearchEntity();
+		}
+		failIfSearchFailed();
 		return Math.max(0, mySearchEntity.getTotalCount());
 	}
 
+	/**
+	 * Waits until a search whose results are being stored in the background has stored
+	 * at least the given number of results (or has stopped loading). The background task
+	 * notifies waiting threads as it stores each chunk, and the search is also re-checked
+	 * at increasing intervals in case it is being loaded by another server.
+	 */
+	private void waitForResults(int theToIndex) {
+		ensureDependenciesInjected();
+
+		long deadline = System.currentTimeMillis() + MAX_WAIT_FOR_RESULTS_MILLIS;
+		long pollInterval = MIN_POLL_INTERVAL_MILLIS;
+		while (true) {
+			long progressCount = mySearchResultWriterSvc.getProgressCount();
+			if (!reloadSearchEntity()) {
+				return;
+			}
+			if (!mySearchEntity.isLoading() || mySearchEntity.getTotalCount() >= theToIndex) {
+				return;
+			}
+
+			long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0) {
+				ourLog.warn("Timed out waiting for search {} to load results up to index {}, only {} are available", new Object[] { myUuid, theToIndex, mySearchEntity.getTotalCount() });
+				return;
+			}
+			try {
+				mySearchResultWriterSvc.awaitProgress(progressCount, Math.min(pollInterval, remaining));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+			pollInterval = Math.min(pollInterval * 2, MAX_POLL_INTERVAL_MILLIS);
+		}
+	}
+
 	public static Pageable toPage(final int theFromIndex, int theToIndex) {
 		int pageSize = theToIndex - theFromIndex;
 		if (pageSize < 1) {
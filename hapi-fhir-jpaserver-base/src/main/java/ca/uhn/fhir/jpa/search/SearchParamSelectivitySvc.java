@@ -0,0 +1,278 @@
+package ca.uhn.fhir.jpa.search;
+
+/*
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2017 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import static org.apache.commons.lang3.StringUtils.isNotBlank;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.PersistenceContextType;
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.Predicate;
+import javax.persistence.criteria.Root;
+
+import org.hl7.fhir.instance.model.api.IAnyResource;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import ca.uhn.fhir.jpa.dao.BaseHapiFhirDao;
+import ca.uhn.fhir.jpa.entity.BaseResourceIndexedSearchParam;
+import ca.uhn.fhir.jpa.entity.ResourceIndexedSearchParamDate;
+import ca.uhn.fhir.jpa.entity.ResourceIndexedSearchParamNumber;
+import ca.uhn.fhir.jpa.entity.ResourceIndexedSearchParamQuantity;
+import ca.uhn.fhir.jpa.entity.ResourceIndexedSearchParamString;
+import ca.uhn.fhir.jpa.entity.ResourceIndexedSearchParamToken;
+import ca.uhn.fhir.jpa.entity.ResourceIndexedSearchParamUri;
+import ca.uhn.fhir.model.api.IQueryParameterType;
+import ca.uhn.fhir.rest.method.RestSearchParameterTypeEnum;
+import ca.uhn.fhir.rest.param.StringParam;
+import ca.uhn.fhir.rest.param.TokenParam;
+import ca.uhn.fhir.rest.param.UriParam;
+
+/**
+ * Estimates how many resources a search parameter will match, using the search parameter
+ * index tables. These estimates are used to decide in which order the parameters of a
+ * search are applied, so that the most selective parameter narrows the candidate set first.
+ * <p>
+ * Counts are bounded: at most {@link #getMaxCount()} index rows are read for any single value,
+ * so a very common value (e.g. <code>status=final</code>) costs no more to estimate than a
+ * rare one. Counts are cached per resource type, parameter name and value, since they only
+ * need to be approximately right.
+ * </p>
+ */
+public class SearchParamSelectivitySvc {
+
+	static final int DEFAULT_MAX_COUNT = 1000;
+	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(SearchParamSelectivitySvc.class);
+
+	private final Cache<String, Long> myCountCache = CacheBuilder.newBuilder().maximumSize(10000).expireAfterWrite(10, TimeUnit.MINUTES).build();
+
+	@PersistenceContext(type = PersistenceContextType.TRANSACTION)
+	private EntityManager myEntityManager;
+
+	private int myMaxCount = DEFAULT_MAX_COUNT;
+
+	/**
+	 * Discards all cached counts
+	 */
+	public void clearCache() {
+		myCountCache.invalidateAll();
+	}
+
+	/**
+	 * Returns an estimate of the number of resources matching the given AND/OR list for a single parameter.
+	 * Each AND entry narrows the result, so the estimate is the smallest of the sums of the estimates of
+	 * its OR values. Parameters which can not be estimated return {@link #getMaxCount()}.
+	 *
+	 * @param theResourceName
+	 *           The resource type being searched
+	 * @param theParamName
+	 *           The search parameter name
+	 * @param theParamType
+	 *           The type of the search parameter, or <code>null</code> if this is not a regular search parameter (e.g.
+	 *           <code>_has</code>)
+	 * @param theAndOrValues
+	 *           The values being searched for
+	 */
+	public long estimate(String theResourceName, String theParamName, RestSearchParameterTypeEnum theParamType, List<List<? extends IQueryParameterType>> theAndOrValues) {
+		long retVal = myMaxCount;
+		for (List<? extends IQueryParameterType> nextAnd : theAndOrValues) {
+			if (nextAnd == null || nextAnd.isEmpty()) {
+				continue;
+			}
+			long orTotal = 0;
+			for (IQueryParameterType nextOr : nextAnd) {
+				orTotal += estimate(theResourceName, theParamName, theParamType, nextOr);
+				if (orTotal >= myMaxCount) {
+					break;
+				}
+			}
+			retVal = Math.min(retVal, orTotal);
+		}
+		return retVal;
+	}
+
+	private long estimate(String theResourceName, String theParamName, RestSearchParameterTypeEnum theParamType, IQueryParameterType theParam) {
+		if (IAnyResource.SP_RES_ID.equals(theParamName)) {
+			return 1;
+		}
+		if (theParamType == null || Boolean.TRUE.equals(theParam.getMissing())) {
+			return myMaxCount;
+		}
+
+		switch (theParamType) {
+		case TOKEN:
+			if (theParam instanceof TokenParam) {
+				TokenParam param = (TokenParam) theParam;
+				if (param.getModifier() == null && isNotBlank(param.getValue())) {
+					return countToken(theResourceName, theParamName, param.getSystem(), param.getValue());
+				}
+			}
+			break;
+		case STRING:
+			if (theParam instanceof StringParam) {
+				String value = ((StringParam) theParam).getValue();
+				if (isNotBlank(value) && value.length() <= ResourceIndexedSearchParamString.MAX_LENGTH) {
+					return countString(theResourceName, theParamName, BaseHapiFhirDao.normalizeString(value));
+				}
+			}
+			break;
+		case URI:
+			if (theParam instanceof UriParam) {
+				UriParam param = (UriParam) theParam;
+				if (param.getQualifier() == null && isNotBlank(param.getValue())) {
+					return countUri(theResourceName, theParamName, param.getValue());
+				}
+			}
+			break;
+		case DATE:
+			return countParam(ResourceIndexedSearchParamDate.class, theResourceName, theParamName);
+		case NUMBER:
+			return countParam(ResourceIndexedSearchParamNumber.class, theResourceName, theParamName);
+		case QUANTITY:
+			return countParam(ResourceIndexedSearchParamQuantity.class, theResourceName, theParamName);
+		case COMPOSITE:
+		case REFERENCE:
+		case HAS:
+			break;
+		}
+
+		return myMaxCount;
+	}
+
+	/**
+	 * Counts every index row for the given parameter, regardless of value. This is used for
+	 * range-type parameters (dates, numbers, quantities) where the value can not be used to
+	 * produce a meaningful estimate.
+	 */
+	private long countParam(final Class<? extends BaseResourceIndexedSearchParam> theType, String theResourceName, String theParamName) {
+		String key = theType.getSimpleName() + "|" + theResourceName + "|" + theParamName;
+		return count(key, new ICountQueryBuilder() {
+			@Override
+			public CriteriaQuery<Long> build(CriteriaBuilder theBuilder, String theResourceName, String theParamName) {
+				CriteriaQuery<Long> cq = theBuilder.createQuery(Long.class);
+				Root<? extends BaseResourceIndexedSearchParam> from = cq.from(theType);
+				cq.select(from.get("myResourcePid").as(Long.class));
+				cq.where(theBuilder.equal(from.get("myResourceType"), theResourceName), theBuilder.equal(from.get("myParamName"), theParamName));
+				return cq;
+			}
+		}, theResourceName, theParamName);
+	}
+
+	private long countString(String theResourceName, String theParamName, final String theNormalizedValue) {
+		String key = "String|" + theResourceName + "|" + theParamName + "|" + theNormalizedValue;
+		return count(key, new ICountQueryBuilder() {
+			@Override
+			public CriteriaQuery<Long> build(CriteriaBuilder theBuilder, String theResourceName, String theParamName) {
+				CriteriaQuery<Long> cq = theBuilder.createQuery(Long.class);
+				Root<ResourceIndexedSearchParamString> from = cq.from(ResourceIndexedSearchParamString.class);
+				cq.select(from.get("myResourcePid").as(Long.class));
+				Predicate type = theBuilder.equal(from.get("myResourceType"), theResourceName);
+				Predicate name = theBuilder.equal(from.get("myParamName"), theParamName);
+				Predicate value = theBuilder.like(from.get("myValueNormalized").as(String.class), theNormalizedValue + "%");
+				cq.where(type, name, value);
+				return cq;
+			}
+		}, theResourceName, theParamName);
+	}
+
+	private long countToken(String theResourceName, String theParamName, final String theSystem, final String theValue) {
+		String key = "Token|" + theResourceName + "|" + theParamName + "|" + theSystem + "|" + theValue;
+		return count(key, new ICountQueryBuilder() {
+			@Override
+			public CriteriaQuery<Long> build(CriteriaBuilder theBuilder, String theResourceName, String theParamName) {
+				CriteriaQuery<Long> cq = theBuilder.createQuery(Long.class);
+				Root<ResourceIndexedSearchParamToken> from = cq.from(ResourceIndexedSearchParamToken.class);
+				cq.select(from.get("myResourcePid").as(Long.class));
+				List<Predicate> predicates = new ArrayList<Predicate>();
+				predicates.add(theBuilder.equal(from.get("myResourceType"), theResourceName));
+				predicates.add(theBuilder.equal(from.get("myParamName"), theParamName));
+				if (isNotBlank(theSystem)) {
+					predicates.add(theBuilder.equal(from.get("mySystem"), theSystem));
+				} else if (theSystem != null) {
+					// If the system is "", we only match on null systems
+					predicates.add(theBuilder.isNull(from.get("mySystem")));
+				}
+				predicates.add(theBuilder.equal(from.get("myValue"), theValue));
+				cq.where(predicates.toArray(new Predicate[predicates.size()]));
+				return cq;
+			}
+		}, theResourceName, theParamName);
+	}
+
+	private long countUri(String theResourceName, String theParamName, final String theUri) {
+		String key = "Uri|" + theResourceName + "|" + theParamName + "|" + theUri;
+		return count(key, new ICountQueryBuilder() {
+			@Override
+			public CriteriaQuery<Long> build(CriteriaBuilder theBuilder, String theResourceName, String theParamName) {
+				CriteriaQuery<Long> cq = theBuilder.createQuery(Long.class);
+				Root<ResourceIndexedSearchParamUri> from = cq.from(ResourceIndexedSearchParamUri.class);
+				cq.select(from.get("myResourcePid").as(Long.class));
+				Predicate type = theBuilder.equal(from.get("myResourceType"), theResourceName);
+				Predicate name = theBuilder.equal(from.get("myParamName"), theParamName);
+				Predicate value = theBuilder.equal(from.get("myUri"), theUri);
+				cq.where(type, name, value);
+				return cq;
+			}
+		}, theResourceName, theParamName);
+	}
+
+	private long count(String theKey, ICountQueryBuilder theQueryBuilder, String theResourceName, String theParamName) {
+		Long retVal = myCountCache.getIfPresent(theKey);
+		if (retVal == null) {
+			CriteriaQuery<Long> cq = theQueryBuilder.build(myEntityManager.getCriteriaBuilder(), theResourceName, theParamName);
+			retVal = (long) myEntityManager.createQuery(cq).setMaxResults(myMaxCount).getResultList().size();
+			ourLog.debug("Estimated {} matches for {}", retVal, theKey);
+			myCountCache.put(theKey, retVal);
+		}
+		return retVal;
+	}
+
+	/**
+	 * Returns the maximum number of index rows which will be read when estimating the
+	 * number of matches for a single value. Parameters which can not be estimated are
+	 * treated as matching this many resources.
+	 */
+	public int getMaxCount() {
+		return myMaxCount;
+	}
+
+	/**
+	 * Sets the maximum number of index rows which will be read when estimating the
+	 * number of matches for a single value (default is 1000). Values matching at least
+	 * this many rows are all considered equally unselective.
+	 */
+	public void setMaxCount(int theMaxCount) {
+		myMaxCount = theMaxCount;
+		clearCache();
+	}
+
+	private interface ICountQueryBuilder {
+		CriteriaQuery<Long> build(CriteriaBuilder theBuilder, String theResourceName, String theParamName);
+	}
+
+}
@@ -0,0 +1,386 @@
+package ca.uhn.fhir.jpa.search;
+
+/*
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2017 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.PersistenceContextType;
+
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.hibernate.Session;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.id.IdentifierGenerator;
+import org.hibernate.jdbc.Work;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import ca.uhn.fhir.jpa.dao.data.ISearchDao;
+import ca.uhn.fhir.jpa.entity.Search;
+import ca.uhn.fhir.jpa.entity.SearchResult;
+import ca.uhn.fhir.jpa.entity.SearchStatusEnum;
+
+/**
+ * Writes search results (the ordered list of matching resource PIDs) to the
+ * search result table. Results can either be written immediately, or written
+ * in the background in chunks so that the first page of a large search can be
+ * served before all of its results have been found and stored.
+ */
+public class SearchResultWriterSvc {
+
+	/**
+	 * Number of results written in each background transaction
+	 */
+	static final int BACKGROUND_CHUNK_SIZE = 1000;
+	private static final int INSERT_BATCH_SIZE = 500;
+	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(SearchResultWriterSvc.class);
+
+	@PersistenceContext(type = PersistenceContextType.TRANSACTION)
+	private EntityManager myEntityManager;
+
+	private ExecutorService myExecutor;
+
+	/**
+	 * Incremented (and waiting threads are notified) each time a chunk of results is
+	 * stored or a search stops loading
+	 */
+	private long myProgressCount;
+	private final Object myProgressMonitor = new Object();
+
+	@Autowired
+	private ISearchDao mySearchDao;
+
+	@Autowired
+	private PlatformTransactionManager myTransactionManager;
+
+	/**
+	 * Waits until this server has made progress storing the results of any search (or until
+	 * the given time has elapsed), and returns immediately if progress has been made since
+	 * the given progress count was read. Searches being loaded by other servers which share
+	 * the same database do not notify waiting threads, so callers should re-check the search
+	 * when the time elapses.
+	 *
+	 * @param theProgressCount
+	 *           The value returned by {@link #getProgressCount()} before the caller last checked the search
+	 */
+	public void awaitProgress(long theProgressCount, long theMaxMillis) throws InterruptedException {
+		synchronized (myProgressMonitor) {
+			if (myProgressCount == theProgressCount) {
+				myProgressMonitor.wait(theMaxMillis);
+			}
+		}
+	}
+
+	/**
+	 * Marks any search which was created before the given time and is still loading as
+	 * {@link SearchStatusEnum#FAILED failed}
+	 * 
+	 * @return Returns the number of searches marked as failed
+	 */
+	public int failLoadingSearchesCreatedBefore(final Date theCutoff) {
+		TransactionTemplate txTemplate = new TransactionTemplate(myTransactionManager);
+		txTemplate.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+		int retVal = txTemplate.execute(new TransactionCallback<Integer>() {
+			@Override
+			public Integer doInTransaction(TransactionStatus theStatus) {
+				return mySearchDao.updateStatusWhereCreatedBefore(SearchStatusEnum.LOADING, SearchStatusEnum.FAILED, theCutoff);
+			}
+		});
+		notifyProgress();
+		return retVal;
+	}
+
+	/**
+	 * See {@link #awaitProgress(long, long)}
+	 */
+	public long getProgressCount() {
+		synchronized (myProgressMonitor) {
+			return myProgressCount;
+		}
+	}
+
+	/**
+	 * Loads the results of a search in the background, once the current transaction (which
+	 * must have created the search) has committed. The search should be in the
+	 * {@link SearchStatusEnum#LOADING} state, with its total count set to the number of results
+	 * already written. The results are stored in chunks as the source produces them, and the
+	 * count is updated as each chunk is written. The search is marked as
+	 * {@link SearchStatusEnum#FINISHED} when the source has produced all of its results (or as
+	 * {@link SearchStatusEnum#FAILED} if the source or a write fails).
+	 *
+	 * @param theSearchPid
+	 *           The PID of the search
+	 * @param theSource
+	 *           Produces the results. It is invoked from a background thread, within a transaction.
+	 * @param theFirstOrder
+	 *           The position of the first result from the source in the complete result list
+	 */
+	public void loadInBackgroundAfterCommit(final Long theSearchPid, final IResultSource theSource, final int theFirstOrder) {
+		final Runnable task = new Runnable() {
+			@Override
+			public void run() {
+				loadInBackground(theSearchPid, theSource, theFirstOrder);
+			}
+		};
+
+		if (TransactionSynchronizationManager.isSynchronizationActive()) {
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+				@Override
+				public void afterCommit() {
+					myExecutor.submit(task);
+				}
+			});
+		} else {
+			myExecutor.submit(task);
+		}
+	}
+
+	private void loadInBackground(final Long theSearchPid, final IResultSource theSource, final int theFirstOrder) {
+		TransactionTemplate txTemplate = new TransactionTemplate(myTransactionManager);
+		txTemplate.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+
+		try {
+			txTemplate.execute(new TransactionCallbackWithoutResult() {
+				@Override
+				protected void doInTransactionWithoutResult(TransactionStatus theStatus) {
+					ChunkWriter writer = new ChunkWriter(theSearchPid, theFirstOrder);
+					theSource.produceResults(writer);
+					if (writer.flush(true)) {
+						ourLog.debug("Finished writing {} results for search {}", writer.myWrittenCount, theSearchPid);
+					} else {
+						ourLog.info("Search {} is no longer loading, abandoning loading its results", theSearchPid);
+					}
+				}
+			});
+		} catch (RuntimeException e) {
+			ourLog.error("Failed to write results for search " + theSearchPid, e);
+			txTemplate.execute(new TransactionCallbackWithoutResult() {
+				@Override
+				protected void doInTransactionWithoutResult(TransactionStatus theStatus) {
+					Search search = mySearchDao.findOne(theSearchPid);
+					if (search != null) {
+						search.setStatus(SearchStatusEnum.FAILED);
+					}
+				}
+			});
+		} finally {
+			notifyProgress();
+		}
+	}
+
+	private void notifyProgress() {
+		synchronized (myProgressMonitor) {
+			myProgressCount++;
+			myProgressMonitor.notifyAll();
+		}
+	}
+
+	@PostConstruct
+	public void start() {
+		BasicThreadFactory threadFactory = new BasicThreadFactory.Builder().namingPattern("search-result-writer-%d").daemon(true).build();
+		myExecutor = Executors.newFixedThreadPool(2, threadFactory);
+
+		/*
+		 * Searches which were still loading when the server was stopped will never finish,
+		 * so mark them as failed rather than leaving requests for their results to wait.
+		 * If several servers share the database, this also fails any search which another
+		 * server started loading before this one started (that server then stops loading it).
+		 */
+		int count = failLoadingSearchesCreatedBefore(new Date());
+		if (count > 0) {
+			ourLog.info("Marked {} searches which were still loading at shutdown as failed", count);
+		}
+	}
+
+	@PreDestroy
+	public void stop() {
+		myExecutor.shutdownNow();
+	}
+
+	/**
+	 * Writes the given PIDs to the search result table in the background, once the current
+	 * transaction has committed. See {@link #loadInBackgroundAfterCommit(Long, IResultSource, int)}.
+	 *
+	 * @param theSearchPid
+	 *           The PID of the search
+	 * @param thePids
+	 *           The PIDs still to be written
+	 * @param theFirstOrder
+	 *           The position of the first of these PIDs in the complete result list
+	 */
+	public void writeInBackgroundAfterCommit(Long theSearchPid, List<Long> thePids, int theFirstOrder) {
+		final List<Long> pids = new ArrayList<Long>(thePids);
+		IResultSource source = new IResultSource() {
+			@Override
+			public void produceResults(IResultWriter theWriter) {
+				for (Long next : pids) {
+					if (!theWriter.add(next)) {
+						return;
+					}
+				}
+			}
+		};
+		loadInBackgroundAfterCommit(theSearchPid, source, theFirstOrder);
+	}
+
+	/**
+	 * Inserts the given PIDs into the search result table using a JDBC batch insert. The
+	 * search row must already have been flushed to the database.
+	 *
+	 * @param theFirstOrder
+	 *           The value of the order column for the first of the given PIDs
+	 */
+	public static void insertSearchResults(EntityManager theEntityManager, final Long theSearchPid, final List<Long> thePids, final int theFirstOrder) {
+		if (thePids.isEmpty()) {
+			return;
+		}
+
+		final Session session = theEntityManager.unwrap(Session.class);
+		final SessionImplementor sessionImpl = (SessionImplementor) session;
+		final IdentifierGenerator idGenerator = sessionImpl.getFactory().getIdentifierGenerator(SearchResult.class.getName());
+		session.doWork(new Work() {
+			@Override
+			public void execute(Connection theConnection) throws SQLException {
+				PreparedStatement statement = theConnection.prepareStatement("INSERT INTO HFJ_SEARCH_RESULT (PID, SEARCH_ORDER, RESOURCE_PID, SEARCH_PID) VALUES (?, ?, ?, ?)");
+				try {
+					int count = 0;
+					for (Long next : thePids) {
+						statement.setLong(1, ((Number) idGenerator.generate(sessionImpl, null)).longValue());
+						statement.setInt(2, theFirstOrder + count);
+						statement.setLong(3, next);
+						statement.setLong(4, theSearchPid);
+						statement.addBatch();
+						count++;
+						if (count % INSERT_BATCH_SIZE == 0) {
+							statement.executeBatch();
+						}
+					}
+					if (count % INSERT_BATCH_SIZE != 0) {
+						statement.executeBatch();
+					}
+				} finally {
+					statement.close();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Produces the results of a search which is being loaded in the background
+	 */
+	public interface IResultSource {
+
+		/**
+		 * Passes each result (in order, and without duplicates) to the given writer. Stops
+		 * early if the writer returns <code>false</code>.
+		 */
+		void produceResults(IResultWriter theWriter);
+
+	}
+
+	/**
+	 * Receives the results produced by an {@link IResultSource}
+	 */
+	public interface IResultWriter {
+
+		/**
+		 * Adds a result
+		 * 
+		 * @return Returns <code>false</code> if no more results should be produced
+		 */
+		boolean add(Long thePid);
+
+	}
+
+	/**
+	 * Stores the results produced by an {@link IResultSource} in chunks, each in its own
+	 * transaction so that they become visible straight away
+	 */
+	private final class ChunkWriter implements IResultWriter {
+
+		private List<Long> myChunk = new ArrayList<Long>();
+		private final Long mySearchPid;
+		private int myWrittenCount;
+
+		private ChunkWriter(Long theSearchPid, int theFirstOrder) {
+			mySearchPid = theSearchPid;
+			myWrittenCount = theFirstOrder;
+		}
+
+		/**
+		 * Adds a result, writing the current chunk if it is full. Returns <code>false</code> if
+		 * the search is no longer loading (e.g. because it has been expired).
+		 */
+		@Override
+		public boolean add(Long thePid) {
+			myChunk.add(thePid);
+			if (myChunk.size() >= BACKGROUND_CHUNK_SIZE) {
+				return flush(false);
+			}
+			return true;
+		}
+
+		private boolean flush(final boolean theLastChunk) {
+			TransactionTemplate txTemplate = new TransactionTemplate(myTransactionManager);
+			txTemplate.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+			Boolean stillLoading = txTemplate.execute(new TransactionCallback<Boolean>() {
+				@Override
+				public Boolean doInTransaction(TransactionStatus theStatus) {
+					Search search = mySearchDao.findOne(mySearchPid);
+					if (search == null || search.getStatus() != SearchStatusEnum.LOADING) {
+						// The search was expired (or marked as failed) while we were still loading it
+						return false;
+					}
+					insertSearchResults(myEntityManager, mySearchPid, myChunk, myWrittenCount);
+					search.setTotalCount(myWrittenCount + myChunk.size());
+					if (theLastChunk) {
+						search.setStatus(SearchStatusEnum.FINISHED);
+					}
+					return true;
+				}
+			});
+
+			myWrittenCount += myChunk.size();
+			myChunk = new ArrayList<Long>();
+			notifyProgress();
+			return stillLoading;
+		}
+
+	}
+
+}
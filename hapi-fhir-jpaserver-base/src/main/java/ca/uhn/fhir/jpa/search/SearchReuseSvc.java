@@ -0,0 +1,179 @@
+package ca.uhn.fhir.jpa.search;
+
+/*
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2017 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.dao.DaoConfig;
+import ca.uhn.fhir.jpa.dao.IDao;
+import ca.uhn.fhir.jpa.dao.SearchParameterMap;
+import ca.uhn.fhir.jpa.dao.data.ISearchDao;
+import ca.uhn.fhir.jpa.entity.Search;
+import ca.uhn.fhir.jpa.entity.SearchStatusEnum;
+import ca.uhn.fhir.model.api.IQueryParameterType;
+import ca.uhn.fhir.rest.param.ReferenceParam;
+import ca.uhn.fhir.rest.server.Constants;
+
+/**
+ * Finds previously performed searches whose results can be returned for a new,
+ * identical search (see {@link DaoConfig#setReuseCachedSearchResultsForMillis(Long)}),
+ * and keeps track of when resources of each type were last written so that searches
+ * which may have been affected by a write are not reused.
+ */
+public class SearchReuseSvc {
+
+	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(SearchReuseSvc.class);
+
+	@Autowired
+	private DaoConfig myDaoConfig;
+
+	private volatile long myLastWriteAnyType = System.currentTimeMillis();
+
+	private final ConcurrentHashMap<String, Long> myLastWriteByType = new ConcurrentHashMap<String, Long>();
+
+	@Autowired
+	private ISearchDao mySearchDao;
+
+	/**
+	 * Returns a bundle provider for an existing search which is identical to the given one and
+	 * may be reused, or <code>null</code> if there is none (or if reuse is disabled). Must be
+	 * called within a transaction.
+	 */
+	public PersistedJpaBundleProvider findReusableSearch(FhirContext theContext, String theResourceType, SearchParameterMap theParams, IDao theDao) {
+		Long reuseMillis = myDaoConfig.getReuseCachedSearchResultsForMillis();
+		if (reuseMillis == null || !theParams.isPersistResults() || theParams.getEverythingMode() != null) {
+			return null;
+		}
+
+		long lastWrite = dependsOnOtherResourceTypes(theParams) ? myLastWriteAnyType : getLastWrite(theResourceType);
+		Date cutoff = new Date(Math.max(lastWrite, System.currentTimeMillis() - reuseMillis));
+		String hash = createSearchQueryStringHash(theContext, theResourceType, theParams);
+
+		List<Search> candidates = mySearchDao.findWithSearchQueryStringHash(theResourceType, hash, cutoff);
+		for (Search next : candidates) {
+			if (next.getStatus() == SearchStatusEnum.FAILED) {
+				continue;
+			}
+			ourLog.debug("Reusing search {} for {}", next.getUuid(), theParams);
+			next.setLastReturned(new Date());
+			return new PersistedJpaBundleProvider(next.getUuid(), theDao);
+		}
+
+		return null;
+	}
+
+	private long getLastWrite(String theResourceType) {
+		Long retVal = myLastWriteByType.get(theResourceType);
+		if (retVal == null) {
+			// Nothing has been written since startup
+			return myLastWriteAnyType;
+		}
+		return retVal;
+	}
+
+	/**
+	 * Records that a resource of the given type is being written. Once the current
+	 * transaction completes, any search on that type which was performed earlier will
+	 * no longer be reused.
+	 */
+	public void notifyResourceWritten(String theResourceType) {
+		if (myDaoConfig.getReuseCachedSearchResultsForMillis() == null) {
+			return;
+		}
+
+		if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+			markWritten(theResourceType, System.currentTimeMillis());
+			return;
+		}
+
+		/*
+		 * The write is only visible to other searches once the transaction has committed,
+		 * so it is recorded at that point. Only one synchronization is registered per
+		 * transaction, no matter how many resources it writes.
+		 */
+		@SuppressWarnings("unchecked")
+		Set<String> writtenTypes = (Set<String>) TransactionSynchronizationManager.getResource(this);
+		if (writtenTypes == null) {
+			final Set<String> newWrittenTypes = new HashSet<String>();
+			writtenTypes = newWrittenTypes;
+			TransactionSynchronizationManager.bindResource(this, writtenTypes);
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+				@Override
+				public void afterCompletion(int theStatus) {
+					TransactionSynchronizationManager.unbindResourceIfPossible(SearchReuseSvc.this);
+					long now = System.currentTimeMillis();
+					for (String next : newWrittenTypes) {
+						markWritten(next, now);
+					}
+				}
+			});
+		}
+		writtenTypes.add(theResourceType);
+	}
+
+	private void markWritten(String theResourceType, long theTime) {
+		myLastWriteByType.put(theResourceType, theTime);
+		myLastWriteAnyType = theTime;
+	}
+
+	/**
+	 * Returns the hash which is stored on a search so that it can be found by
+	 * {@link #findReusableSearch(FhirContext, String, SearchParameterMap, IDao)}
+	 */
+	public static String createSearchQueryStringHash(FhirContext theContext, String theResourceType, SearchParameterMap theParams) {
+		String queryString = theResourceType + theParams.toNormalizedQueryString(theContext);
+		return Hashing.sha256().hashString(queryString, Charsets.UTF_8).toString();
+	}
+
+	/**
+	 * Chained and <code>_has</code> parameters match against other resource types, so
+	 * searches using them can be affected by writes to any resource type
+	 */
+	private static boolean dependsOnOtherResourceTypes(SearchParameterMap theParams) {
+		for (Entry<String, List<List<? extends IQueryParameterType>>> nextEntry : theParams.entrySet()) {
+			if (nextEntry.getKey().equals(Constants.PARAM_HAS)) {
+				return true;
+			}
+			for (List<? extends IQueryParameterType> nextAnd : nextEntry.getValue()) {
+				for (IQueryParameterType nextOr : nextAnd) {
+					if (nextOr instanceof ReferenceParam && ((ReferenceParam) nextOr).getChain() != null) {
+						return true;
+					}
+				}
+			}
+		}
+		return false;
+	}
+
+}
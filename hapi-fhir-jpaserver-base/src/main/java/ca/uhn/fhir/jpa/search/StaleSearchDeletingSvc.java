@@ -67,7 +67,7 @@ public class StaleSearchDeletingSvc {
 			Date cutoff = new Date(System.currentTimeMillis() - myDaoConfig.getExpireSearchResultsAfterMillis());
 			ourLog.debug("Searching for searches which are before {}", cutoff);
 
-			Collection<Search> toDelete = mySearchDao.findWhereCreatedBefore(cutoff);
+			Collection<Search> toDelete = mySearchDao.findWhereLastReturnedBefore(cutoff);
 			if (toDelete.isEmpty()) {
 				return;
 			}
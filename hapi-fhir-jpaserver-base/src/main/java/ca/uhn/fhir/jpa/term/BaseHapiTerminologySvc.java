@@ -27,12 +27,21 @@ import java.util.HashSet;
 import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.persistence.EntityManager;
 import javax.persistence.PersistenceContext;
 import javax.persistence.PersistenceContextType;
 
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
 import org.apache.commons.lang3.time.DateUtils;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.domain.Page;
@@ -42,14 +51,21 @@ import org.springframework.transaction.PlatformTransactionManager;
 import org.springframework.transaction.TransactionStatus;
 import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionCallback;
 import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 import org.springframework.transaction.support.TransactionTemplate;
 
 import com.google.common.base.Stopwatch;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Lists;
 
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.jpa.dao.BaseHapiFhirDao;
 import ca.uhn.fhir.jpa.dao.DaoConfig;
+import ca.uhn.fhir.jpa.dao.SearchBuilder;
 import ca.uhn.fhir.jpa.dao.data.ITermCodeSystemDao;
 import ca.uhn.fhir.jpa.dao.data.ITermCodeSystemVersionDao;
 import ca.uhn.fhir.jpa.dao.data.ITermConceptDao;
@@ -60,6 +76,7 @@ import ca.uhn.fhir.jpa.entity.TermConcept;
 import ca.uhn.fhir.jpa.entity.TermConceptParentChildLink;
 import ca.uhn.fhir.jpa.entity.TermConceptParentChildLink.RelationshipTypeEnum;
 import ca.uhn.fhir.jpa.util.StopWatch;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
 import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
 import ca.uhn.fhir.rest.server.exceptions.UnprocessableEntityException;
 import ca.uhn.fhir.util.ObjectUtil;
@@ -69,6 +86,12 @@ public abstract class BaseHapiTerminologySvc implements IHapiTerminologySvc {
 	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(BaseHapiTerminologySvc.class);
 	private static final Object PLACEHOLDER_OBJECT = new Object();
 
+	/**
+	 * A single call to {@link #saveDeferred()} stops starting new chunks after this long, so
+	 * that it doesn't hold up other scheduled tasks for too long
+	 */
+	private static final long SAVE_DEFERRED_MAX_MILLIS = DateUtils.MILLIS_PER_MINUTE;
+
 	@Autowired
 	protected ITermCodeSystemDao myCodeSystemDao;
 
@@ -78,12 +101,12 @@ public abstract class BaseHapiTerminologySvc implements IHapiTerminologySvc {
 	@Autowired
 	protected ITermConceptDao myConceptDao;
 
-	private List<TermConceptParentChildLink> myConceptLinksToSaveLater = new ArrayList<TermConceptParentChildLink>();
+	private final LinkedBlockingQueue<TermConceptParentChildLink> myConceptLinksToSaveLater = new LinkedBlockingQueue<TermConceptParentChildLink>();
 
 	@Autowired
 	private ITermConceptParentChildLinkDao myConceptParentChildLinkDao;
 
-	private List<TermConcept> myConceptsToSaveLater = new ArrayList<TermConcept>();
+	private final LinkedBlockingQueue<TermConcept> myConceptsToSaveLater = new LinkedBlockingQueue<TermConcept>();
 
 	@Autowired
 	protected FhirContext myContext;
@@ -91,19 +114,44 @@ public abstract class BaseHapiTerminologySvc implements IHapiTerminologySvc {
 	@Autowired
 	private DaoConfig myDaoConfig;
 
+	/**
+	 * Saves chunks of deferred relationships in parallel. Threads are only created while
+	 * there are chunks to save, so this is held for the lifetime of the service.
+	 */
+	private ExecutorService myDeferredSaveExecutor;
+
 	@PersistenceContext(type = PersistenceContextType.TRANSACTION)
 	protected EntityManager myEntityManager;
+
+	/**
+	 * Hierarchies of recently used code system versions, keyed by code system version PID
+	 */
+	private final Cache<Long, TermConceptHierarchy> myHierarchies = CacheBuilder.newBuilder().maximumSize(20).expireAfterAccess(1, TimeUnit.HOURS).build();
 	
 	private boolean myProcessDeferred = true;
 	private long myNextReindexPass;
 
+	/**
+	 * True while {@link #saveDeferred()} is saving a chunk which it has already taken from the
+	 * queues but which may not have been committed yet
+	 */
+	private volatile boolean mySavingDeferred;
+
+	@PostConstruct
+	public void startDeferredSaveExecutor() {
+		BasicThreadFactory threadFactory = new BasicThreadFactory.Builder().namingPattern("term-deferred-%d").daemon(true).build();
+		myDeferredSaveExecutor = Executors.newCachedThreadPool(threadFactory);
+	}
+
+	@PreDestroy
+	public void stopDeferredSaveExecutor() {
+		myDeferredSaveExecutor.shutdownNow();
+	}
+
 	private boolean addToSet(Set<TermConcept> theSetToPopulate, TermConcept theConcept) {
 		boolean retVal = theSetToPopulate.add(theConcept);
 		if (retVal) {
-			if (theSetToPopulate.size() >= myDaoConfig.getMaximumExpansionSize()) {
-				String msg = myContext.getLocalizer().getMessage(BaseHapiTerminologySvc.class, "expansionTooLarge", myDaoConfig.getMaximumExpansionSize());
-				throw new InvalidRequestException(msg);
-			}
+			validateExpansionSize(theSetToPopulate.size());
 		}
 		return retVal;
 	}
@@ -148,15 +196,23 @@ public abstract class BaseHapiTerminologySvc implements IHapiTerminologySvc {
 	public Set<TermConcept> findCodesAbove(Long theCodeSystemResourcePid, Long theCodeSystemVersionPid, String theCode) {
 		Stopwatch stopwatch = Stopwatch.createStarted();
 
-		TermConcept concept = fetchLoadedCode(theCodeSystemResourcePid, theCodeSystemVersionPid, theCode);
-		if (concept == null) {
-			return Collections.emptySet();
-		}
+		Set<TermConcept> retVal;
+		TermCodeSystemVersion codeSystem = myCodeSystemVersionDao.findByCodeSystemResourceAndVersion(theCodeSystemResourcePid, theCodeSystemVersionPid);
+		TermConceptHierarchy hierarchy = codeSystem != null ? getHierarchy(codeSystem.getPid()) : null;
+		if (hierarchy != null) {
+			int[] found = hierarchy.findCodesAbove(theCode, myDaoConfig.getMaximumExpansionSize());
+			retVal = loadConcepts(hierarchy, found);
+		} else {
+			TermConcept concept = fetchLoadedCode(theCodeSystemResourcePid, theCodeSystemVersionPid, theCode);
+			if (concept == null) {
+				return Collections.emptySet();
+			}
 
-		Set<TermConcept> retVal = new HashSet<TermConcept>();
-		retVal.add(concept);
+			retVal = new HashSet<TermConcept>();
+			retVal.add(concept);
 
-		fetchParents(concept, retVal);
+			fetchParents(concept, retVal);
+		}
 
 		ourLog.info("Fetched {} codes above code {} in {}ms", new Object[] { retVal.size(), theCode, stopwatch.elapsed(TimeUnit.MILLISECONDS) });
 		return retVal;
@@ -170,6 +226,12 @@ public abstract class BaseHapiTerminologySvc implements IHapiTerminologySvc {
 		}
 		TermCodeSystemVersion csv = cs.getCurrentVersion();
 
+		TermConceptHierarchy hierarchy = getHierarchy(csv.getPid());
+		if (hierarchy != null) {
+			int[] found = hierarchy.findCodesAbove(theCode, myDaoConfig.getMaximumExpansionSize());
+			return toVersionIndependentConcepts(theSystem, hierarchy, found);
+		}
+
 		Set<TermConcept> codes = findCodesAbove(cs.getResource().getId(), csv.getResourceVersionId(), theCode);
 		ArrayList<VersionIndependentConcept> retVal = toVersionIndependentConcepts(theSystem, codes);
 		return retVal;
@@ -180,15 +242,23 @@ public abstract class BaseHapiTerminologySvc implements IHapiTerminologySvc {
 	public Set<TermConcept> findCodesBelow(Long theCodeSystemResourcePid, Long theCodeSystemVersionPid, String theCode) {
 		Stopwatch stopwatch = Stopwatch.createStarted();
 
-		TermConcept concept = fetchLoadedCode(theCodeSystemResourcePid, theCodeSystemVersionPid, theCode);
-		if (concept == null) {
-			return Collections.emptySet();
-		}
+		Set<TermConcept> retVal;
+		TermCodeSystemVersion codeSystem = myCodeSystemVersionDao.findByCodeSystemResourceAndVersion(theCodeSystemResourcePid, theCodeSystemVersionPid);
+		TermConceptHierarchy hierarchy = codeSystem != null ? getHierarchy(codeSystem.getPid()) : null;
+		if (hierarchy != null) {
+			int[] found = hierarchy.findCodesBelow(theCode, myDaoConfig.getMaximumExpansionSize());
+			retVal = loadConcepts(hierarchy, found);
+		} else {
+			TermConcept concept = fetchLoadedCode(theCodeSystemResourcePid, theCodeSystemVersionPid, theCode);
+			if (concept == null) {
+				return Collections.emptySet();
+			}
 
-		Set<TermConcept> retVal = new HashSet<TermConcept>();
-		retVal.add(concept);
+			retVal = new HashSet<TermConcept>();
+			retVal.add(concept);
 
-		fetchChildren(concept, retVal);
+			fetchChildren(concept, retVal);
+		}
 
 		ourLog.info("Fetched {} codes below code {} in {}ms", new Object[] { retVal.size(), theCode, stopwatch.elapsed(TimeUnit.MILLISECONDS) });
 		return retVal;
@@ -202,6 +272,12 @@ public abstract class BaseHapiTerminologySvc implements IHapiTerminologySvc {
 		}
 		TermCodeSystemVersion csv = cs.getCurrentVersion();
 
+		TermConceptHierarchy hierarchy = getHierarchy(csv.getPid());
+		if (hierarchy != null) {
+			int[] found = hierarchy.findCodesBelow(theCode, myDaoConfig.getMaximumExpansionSize());
+			return toVersionIndependentConcepts(theSystem, hierarchy, found);
+		}
+
 		Set<TermConcept> codes = findCodesBelow(cs.getResource().getId(), csv.getResourceVersionId(), theCode);
 		ArrayList<VersionIndependentConcept> retVal = toVersionIndependentConcepts(theSystem, codes);
 		return retVal;
@@ -237,6 +313,80 @@ public abstract class BaseHapiTerminologySvc implements IHapiTerminologySvc {
 		TermCodeSystem cs = myCodeSystemDao.findByCodeSystemUri(theSystem);
 		return cs;
 	}
+
+	private int getDeferredChunkSize() {
+		return Math.max(1, myDaoConfig.getDeferIndexingForCodesystemsOfSize());
+	}
+
+	/**
+	 * Returns the hierarchy of the given code system version, loading it if it isn't already
+	 * cached. Returns <code>null</code> while any concepts or relationships are still waiting
+	 * to be saved (see {@link #saveDeferred()}), since the hierarchy in the database is
+	 * incomplete until they have been, in which case the caller should walk the concepts instead.
+	 */
+	private TermConceptHierarchy getHierarchy(final Long theCodeSystemVersionPid) {
+		if (mySavingDeferred || !myConceptsToSaveLater.isEmpty() || !myConceptLinksToSaveLater.isEmpty()) {
+			return null;
+		}
+		try {
+			return myHierarchies.get(theCodeSystemVersionPid, new Callable<TermConceptHierarchy>() {
+				@Override
+				public TermConceptHierarchy call() throws Exception {
+					return loadHierarchy(theCodeSystemVersionPid);
+				}
+			});
+		} catch (ExecutionException e) {
+			throw new InternalErrorException(e.getCause());
+		}
+	}
+
+	/**
+	 * Cached hierarchies are dropped once the current transaction completes, so that none
+	 * is kept which was loaded before it could see the changes made by this transaction
+	 */
+	private void invalidateHierarchiesAfterCompletion() {
+		myHierarchies.invalidateAll();
+		if (TransactionSynchronizationManager.isSynchronizationActive()) {
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+				@Override
+				public void afterCompletion(int theStatus) {
+					myHierarchies.invalidateAll();
+				}
+			});
+		}
+	}
+
+	private Set<TermConcept> loadConcepts(TermConceptHierarchy theHierarchy, int[] theFound) {
+		if (theFound == null) {
+			return Collections.emptySet();
+		}
+		validateExpansionSize(theFound.length);
+
+		List<Long> pids = new ArrayList<Long>(theFound.length);
+		for (int next : theFound) {
+			pids.add(theHierarchy.getPid(next));
+		}
+		Set<TermConcept> retVal = new HashSet<TermConcept>(pids.size());
+		for (List<Long> nextPids : Lists.partition(pids, SearchBuilder.MAX_PIDS_IN_QUERY)) {
+			retVal.addAll(myConceptDao.findAll(nextPids));
+		}
+		return retVal;
+	}
+
+	private TermConceptHierarchy loadHierarchy(Long theCodeSystemVersionPid) {
+		StopWatch stopwatch = new StopWatch();
+
+		List<Object[]> concepts = myEntityManager.createQuery("SELECT c.myId, c.myCode FROM TermConcept c WHERE c.myCodeSystem.myId = :csv_pid", Object[].class)
+				.setParameter("csv_pid", theCodeSystemVersionPid)
+				.getResultList();
+		List<Object[]> links = myEntityManager.createQuery("SELECT l.myParent.myId, l.myChild.myId FROM TermConceptParentChildLink l WHERE l.myCodeSystem.myId = :csv_pid", Object[].class)
+				.setParameter("csv_pid", theCodeSystemVersionPid)
+				.getResultList();
+		TermConceptHierarchy retVal = new TermConceptHierarchy(concepts, links);
+
+		ourLog.info("Loaded hierarchy of {} concepts and {} relationships for code system version {} in {}ms", new Object[] { concepts.size(), links.size(), theCodeSystemVersionPid, stopwatch.getMillis() });
+		return retVal;
+	}
 	
 	private void persistChildren(TermConcept theConcept, TermCodeSystemVersion theCodeSystem, IdentityHashMap<TermConcept, Object> theConceptsStack, int theTotalConcepts) {
 		if (theConceptsStack.put(theConcept, PLACEHOLDER_OBJECT) != null) {
@@ -283,7 +433,7 @@ public abstract class BaseHapiTerminologySvc implements IHapiTerminologySvc {
 		if (theConcept.getId() == null || theConcept.getIndexStatus() == null) {
 			retVal++;
 			theConcept.setIndexStatus(BaseHapiFhirDao.INDEX_STATUS_INDEXED);
-			myConceptDao.saveAndFlush(theConcept);
+			myConceptDao.save(theConcept);
 		}
 		
 		ourLog.trace("Saved {} and got PID {}", theConcept.getCode(), theConcept.getId());
@@ -297,9 +447,10 @@ public abstract class BaseHapiTerminologySvc implements IHapiTerminologySvc {
 		for (TermConceptParentChildLink nextLink : theParents) {
 			if (nextLink.getRelationshipType() == RelationshipTypeEnum.ISA) {
 				TermConcept nextParent = nextLink.getParent();
-				retVal += ensureParentsSaved(nextParent.getParents());
+				// A concept is only ever saved after its parents, so a saved parent's ancestors are saved too
 				if (nextParent.getId() == null) {
-					myConceptDao.saveAndFlush(nextParent);
+					retVal += ensureParentsSaved(nextParent.getParents());
+					myConceptDao.save(nextParent);
 					retVal++;
 					ourLog.debug("Saved parent code {} and got id {}", nextParent.getCode(), nextParent.getId());
 				}
@@ -320,7 +471,6 @@ public abstract class BaseHapiTerminologySvc implements IHapiTerminologySvc {
 	}
 
 	@Scheduled(fixedRate=5000)
-	@Transactional(propagation=Propagation.REQUIRED)
 	@Override
 	public synchronized void saveDeferred() {
 		if (!myProcessDeferred) {
@@ -329,44 +479,174 @@ public abstract class BaseHapiTerminologySvc implements IHapiTerminologySvc {
 			processReindexing();
 			return;
 		}
-		
-		int codeCount = 0, relCount = 0;
+
+		/*
+		 * Concepts are saved before relationships, since a relationship can only be saved once
+		 * the concepts at both ends have been. Each chunk is saved in its own transaction.
+		 */
+		mySavingDeferred = true;
+		try {
+			long deadline = System.currentTimeMillis() + SAVE_DEFERRED_MAX_MILLIS;
+			while (System.currentTimeMillis() < deadline) {
+				if (!myConceptsToSaveLater.isEmpty()) {
+					saveDeferredConcepts();
+				} else if (!myConceptLinksToSaveLater.isEmpty()) {
+					saveDeferredConceptLinks();
+				} else {
+					break;
+				}
+			}
+
+			if ((myConceptsToSaveLater.size() + myConceptLinksToSaveLater.size()) == 0) {
+				ourLog.info("All deferred concepts and relationships have now been synchronized to the database");
+				invalidateHierarchiesAfterCompletion();
+			}
+		} finally {
+			mySavingDeferred = false;
+		}
+	}
+
+	private void saveDeferredConcepts() {
+		final List<TermConcept> chunk = new ArrayList<TermConcept>();
+		myConceptsToSaveLater.drainTo(chunk, getDeferredChunkSize());
+
 		StopWatch stopwatch = new StopWatch();
-		
-		int count = Math.min(myDaoConfig.getDeferIndexingForCodesystemsOfSize(), myConceptsToSaveLater.size());
-		ourLog.info("Saving {} deferred concepts...", count);
-		while (codeCount < count && myConceptsToSaveLater.size() > 0) {
-			TermConcept next = myConceptsToSaveLater.remove(0);
-			codeCount += saveConcept(next);
+		ourLog.info("Saving {} deferred concepts...", chunk.size());
+
+		int codeCount;
+		try {
+			codeCount = newTransactionTemplate().execute(new TransactionCallback<Integer>() {
+				@Override
+				public Integer doInTransaction(TransactionStatus theStatus) {
+					int retVal = 0;
+					for (TermConcept next : chunk) {
+						retVal += saveConcept(next);
+					}
+					return retVal;
+				}
+			});
+		} catch (RuntimeException e) {
+			// The chunk was not committed, so put it back on the queue to be retried
+			myConceptsToSaveLater.addAll(chunk);
+			throw e;
 		}
 
-		if (codeCount > 0) {
-			ourLog.info("Saved {} deferred concepts ({} codes remain and {} relationships remain) in {}ms ({}ms / code)", new Object[] {codeCount, myConceptsToSaveLater.size(), myConceptLinksToSaveLater.size(), stopwatch.getMillis(), stopwatch.getMillisPerOperation(codeCount)});
+		ourLog.info("Saved {} deferred concepts ({} codes remain and {} relationships remain) in {}ms ({}ms / code)", new Object[] {codeCount, myConceptsToSaveLater.size(), myConceptLinksToSaveLater.size(), stopwatch.getMillis(), stopwatch.getMillisPerOperation(codeCount)});
+	}
+
+	private void saveDeferredConceptLinks() {
+		int chunkSize = getDeferredChunkSize();
+		int threadCount = myDaoConfig.getDeferredConceptSaveThreadCount();
+
+		List<List<TermConceptParentChildLink>> chunks = new ArrayList<List<TermConceptParentChildLink>>();
+		while (chunks.size() < threadCount && !myConceptLinksToSaveLater.isEmpty()) {
+			List<TermConceptParentChildLink> nextChunk = new ArrayList<TermConceptParentChildLink>();
+			myConceptLinksToSaveLater.drainTo(nextChunk, chunkSize);
+			chunks.add(nextChunk);
 		}
-		
-		if (codeCount == 0) {
-			count = Math.min(myDaoConfig.getDeferIndexingForCodesystemsOfSize(), myConceptLinksToSaveLater.size());
-			ourLog.info("Saving {} deferred concept relationships...", count);
-			while (relCount < count && myConceptLinksToSaveLater.size() > 0) {
-				TermConceptParentChildLink next = myConceptLinksToSaveLater.remove(0);
-				
-				if (myConceptDao.findOne(next.getChild().getId()) == null || myConceptDao.findOne(next.getParent().getId()) == null) {
-					ourLog.warn("Not inserting link from child {} to parent {} because it appears to have been deleted", next.getParent().getCode(), next.getChild().getCode());
-					continue;
+
+		StopWatch stopwatch = new StopWatch();
+		ourLog.info("Saving deferred concept relationships in {} chunks...", chunks.size());
+
+		int relCount = 0;
+		Throwable failure = null;
+		final Set<List<TermConceptParentChildLink>> savedChunks = Collections.synchronizedSet(Collections.newSetFromMap(new IdentityHashMap<List<TermConceptParentChildLink>, Boolean>()));
+		if (chunks.size() == 1) {
+			try {
+				relCount = saveConceptLinkChunk(chunks.get(0));
+				savedChunks.add(chunks.get(0));
+			} catch (RuntimeException e) {
+				failure = e;
+			}
+		} else {
+			List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+			for (final List<TermConceptParentChildLink> nextChunk : chunks) {
+				futures.add(myDeferredSaveExecutor.submit(new Callable<Integer>() {
+					@Override
+					public Integer call() throws Exception {
+						int retVal = saveConceptLinkChunk(nextChunk);
+						savedChunks.add(nextChunk);
+						return retVal;
+					}
+				}));
+			}
+
+			// Wait for every chunk even if one fails, so that we know which ones were committed
+			try {
+				for (Future<Integer> next : futures) {
+					try {
+						relCount += next.get();
+					} catch (ExecutionException e) {
+						if (failure == null) {
+							failure = e.getCause();
+						}
+					}
 				}
-				
-				saveConceptLink(next);
-				relCount++;
+			} catch (InterruptedException e) {
+				// This only happens when the server is stopping, and the queues are discarded anyway
+				for (Future<Integer> next : futures) {
+					next.cancel(true);
+				}
+				Thread.currentThread().interrupt();
+				throw new InternalErrorException(e);
 			}
 		}
-		
-		if (relCount > 0) {
-			ourLog.info("Saved {} deferred relationships ({} remain) in {}ms ({}ms / code)", new Object[] {relCount, myConceptLinksToSaveLater.size(), stopwatch.getMillis(), stopwatch.getMillisPerOperation(codeCount)});
+
+		// Chunks which were not committed are put back on the queue to be retried
+		for (List<TermConceptParentChildLink> next : chunks) {
+			if (!savedChunks.contains(next)) {
+				myConceptLinksToSaveLater.addAll(next);
+			}
 		}
-		
-		if ((myConceptsToSaveLater.size() + myConceptLinksToSaveLater.size()) == 0) {
-			ourLog.info("All deferred concepts and relationships have now been synchronized to the database");
+		if (failure instanceof RuntimeException) {
+			throw (RuntimeException) failure;
+		} else if (failure != null) {
+			throw new InternalErrorException(failure);
 		}
+
+		ourLog.info("Saved {} deferred relationships ({} remain) in {}ms ({}ms / relationship)", new Object[] {relCount, myConceptLinksToSaveLater.size(), stopwatch.getMillis(), stopwatch.getMillisPerOperation(relCount)});
+	}
+
+	/**
+	 * Saves a chunk of relationships in a new transaction, skipping any whose concepts
+	 * have been deleted since they were queued (e.g. because a newer version of the code
+	 * system has been stored). Which concepts still exist is checked in bulk.
+	 */
+	private int saveConceptLinkChunk(final List<TermConceptParentChildLink> theChunk) {
+		return newTransactionTemplate().execute(new TransactionCallback<Integer>() {
+			@Override
+			public Integer doInTransaction(TransactionStatus theStatus) {
+				Set<Long> pids = new HashSet<Long>();
+				for (TermConceptParentChildLink next : theChunk) {
+					if (next.getChild().getId() != null && next.getParent().getId() != null) {
+						pids.add(next.getChild().getId());
+						pids.add(next.getParent().getId());
+					}
+				}
+
+				Set<Long> existingPids = new HashSet<Long>();
+				for (List<Long> nextPids : Lists.partition(new ArrayList<Long>(pids), 500)) {
+					existingPids.addAll(myConceptDao.findExistingPids(nextPids));
+				}
+
+				int retVal = 0;
+				for (TermConceptParentChildLink next : theChunk) {
+					if (!existingPids.contains(next.getChild().getId()) || !existingPids.contains(next.getParent().getId())) {
+						ourLog.warn("Not inserting link from child {} to parent {} because it appears to have been deleted", next.getChild().getCode(), next.getParent().getCode());
+						continue;
+					}
+					saveConceptLink(next);
+					retVal++;
+				}
+				return retVal;
+			}
+		});
+	}
+
+	private TransactionTemplate newTransactionTemplate() {
+		TransactionTemplate retVal = new TransactionTemplate(myTransactionMgr);
+		retVal.setPropagationBehavior(TransactionTemplate.PROPAGATION_REQUIRES_NEW);
+		return retVal;
 	}
 
 	@Autowired
@@ -377,9 +657,7 @@ public abstract class BaseHapiTerminologySvc implements IHapiTerminologySvc {
 			return;
 		}
 		
-		TransactionTemplate tt = new TransactionTemplate(myTransactionMgr);
-		tt.setPropagationBehavior(TransactionTemplate.PROPAGATION_REQUIRES_NEW);
-		tt.execute(new TransactionCallbackWithoutResult() {
+		newTransactionTemplate().execute(new TransactionCallbackWithoutResult() {
 			@Override
 			protected void doInTransactionWithoutResult(TransactionStatus theArg0) {
 				int maxResult = 1000;
@@ -426,6 +704,7 @@ public abstract class BaseHapiTerminologySvc implements IHapiTerminologySvc {
 		 */
 
 		ourLog.info("Deleting old code system versions");
+		invalidateHierarchiesAfterCompletion();
 		for (TermCodeSystemVersion next : existing) {
 			ourLog.info(" * Deleting code system version {}", next.getPid());
 			myConceptParentChildLinkDao.deleteByCodeSystemVersion(next.getPid());
@@ -518,6 +797,26 @@ public abstract class BaseHapiTerminologySvc implements IHapiTerminologySvc {
 		return retVal;
 	}
 
+	private List<VersionIndependentConcept> toVersionIndependentConcepts(String theSystem, TermConceptHierarchy theHierarchy, int[] theFound) {
+		if (theFound == null) {
+			return Collections.emptyList();
+		}
+		validateExpansionSize(theFound.length);
+
+		ArrayList<VersionIndependentConcept> retVal = new ArrayList<VersionIndependentConcept>(theFound.length);
+		for (int next : theFound) {
+			retVal.add(new VersionIndependentConcept(theSystem, theHierarchy.getCode(next)));
+		}
+		return retVal;
+	}
+
+	private void validateExpansionSize(int theSize) {
+		if (theSize >= myDaoConfig.getMaximumExpansionSize()) {
+			String msg = myContext.getLocalizer().getMessage(BaseHapiTerminologySvc.class, "expansionTooLarge", myDaoConfig.getMaximumExpansionSize());
+			throw new InvalidRequestException(msg);
+		}
+	}
+
 	private int validateConceptForStorage(TermConcept theConcept, TermCodeSystemVersion theCodeSystem, ArrayList<String> theConceptsStack,
 			IdentityHashMap<TermConcept, Object> theAllConcepts) {
 		ValidateUtil.isTrueOrThrowInvalidRequest(theConcept.getCodeSystem() != null, "CodesystemValue is null");
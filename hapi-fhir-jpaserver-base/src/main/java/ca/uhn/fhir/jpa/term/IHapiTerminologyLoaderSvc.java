@@ -20,6 +20,7 @@ package ca.uhn.fhir.jpa.term;
  * #L%
  */
 
+import java.io.File;
 import java.util.List;
 
 import ca.uhn.fhir.rest.method.RequestDetails;
@@ -29,10 +30,33 @@ public interface IHapiTerminologyLoaderSvc {
 	String LOINC_URL = "http://loinc.org";
 	String SCT_URL = "http://snomed.info/sct";
 
+	/**
+	 * Loads LOINC from zip files held in memory. The list is not modified.
+	 */
 	UploadStatistics loadLoinc(List<byte[]> theZipBytes, RequestDetails theRequestDetails);
 
+	/**
+	 * Loads LOINC from zip files on disk, which are read as they are needed
+	 * instead of being copied into memory. Note that the concepts are still
+	 * built in memory before they are stored, so the heap needed is proportional
+	 * to the size of the code system.
+	 */
+	UploadStatistics loadLoincFiles(List<File> theZipFiles, RequestDetails theRequestDetails);
+
+	/**
+	 * Loads SNOMED CT from zip files held in memory. The list is not modified.
+	 */
 	UploadStatistics loadSnomedCt(List<byte[]> theZipBytes, RequestDetails theRequestDetails);
 
+	/**
+	 * Loads SNOMED CT from zip files on disk, which are read as they are needed
+	 * instead of being copied into memory. Note that the concepts and relationships
+	 * are still built in memory before they are stored, so the heap needed is
+	 * proportional to the size of the code system, and loading a full release
+	 * still needs a heap large enough to hold the whole concept graph.
+	 */
+	UploadStatistics loadSnomedCtFiles(List<File> theZipFiles, RequestDetails theRequestDetails);
+
 	public static class UploadStatistics {
 		private final int myConceptCount;
 
@@ -0,0 +1,181 @@
+package ca.uhn.fhir.jpa.term;
+
+/*
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2017 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A compact, read-only copy of the parent/child links between the concepts of one
+ * code system version, used to find the codes above or below a given code without
+ * loading each concept (and its links) from the database in turn.
+ * <p>
+ * Concepts are numbered from zero, and the links of each concept are stored as a
+ * range within a single array of concept numbers (one array for children and one for
+ * parents), so a hierarchy with hundreds of thousands of concepts needs only a few
+ * megabytes of memory.
+ * </p>
+ */
+final class TermConceptHierarchy {
+
+	private final int[] myChildren;
+	private final int[] myChildrenStart;
+	private final Map<String, Integer> myCodeToIndex;
+	private final String[] myCodes;
+	private final int[] myParents;
+	private final int[] myParentsStart;
+	private final long[] myPids;
+
+	/**
+	 * @param theConcepts
+	 *           The concepts in the code system version, each as an array of <code>[pid, code]</code>
+	 * @param theLinks
+	 *           The links between those concepts, each as an array of <code>[parent pid, child pid]</code>
+	 */
+	TermConceptHierarchy(List<Object[]> theConcepts, List<Object[]> theLinks) {
+		int conceptCount = theConcepts.size();
+		myCodes = new String[conceptCount];
+		myPids = new long[conceptCount];
+		myCodeToIndex = new HashMap<String, Integer>(conceptCount * 2);
+
+		Map<Long, Integer> pidToIndex = new HashMap<Long, Integer>(conceptCount * 2);
+		for (int i = 0; i < conceptCount; i++) {
+			Object[] next = theConcepts.get(i);
+			myPids[i] = ((Number) next[0]).longValue();
+			myCodes[i] = (String) next[1];
+			pidToIndex.put(myPids[i], i);
+			myCodeToIndex.put(myCodes[i], i);
+		}
+
+		int[] linkParents = new int[theLinks.size()];
+		int[] linkChildren = new int[theLinks.size()];
+		int linkCount = 0;
+		for (Object[] next : theLinks) {
+			Integer parent = pidToIndex.get(((Number) next[0]).longValue());
+			Integer child = pidToIndex.get(((Number) next[1]).longValue());
+			if (parent == null || child == null) {
+				continue;
+			}
+			linkParents[linkCount] = parent;
+			linkChildren[linkCount] = child;
+			linkCount++;
+		}
+
+		myChildrenStart = new int[conceptCount + 1];
+		myChildren = new int[linkCount];
+		populate(linkParents, linkChildren, linkCount, myChildrenStart, myChildren);
+
+		myParentsStart = new int[conceptCount + 1];
+		myParents = new int[linkCount];
+		populate(linkChildren, linkParents, linkCount, myParentsStart, myParents);
+	}
+
+	/**
+	 * Returns the given code and all of the codes above it (its ancestors), or
+	 * <code>null</code> if the code is not in this hierarchy
+	 * 
+	 * @see #findCodesBelow(String, int)
+	 */
+	int[] findCodesAbove(String theCode, int theMaximumSize) {
+		return traverse(theCode, theMaximumSize, myParentsStart, myParents);
+	}
+
+	/**
+	 * Returns the given code and all of the codes below it (its descendants), or
+	 * <code>null</code> if the code is not in this hierarchy. Codes are returned as
+	 * indexes which can be passed to {@link #getCode(int)} and {@link #getPid(int)}.
+	 * 
+	 * @param theMaximumSize
+	 *           Stop searching once this many codes have been found. The caller should
+	 *           check whether the returned array has reached this size.
+	 */
+	int[] findCodesBelow(String theCode, int theMaximumSize) {
+		return traverse(theCode, theMaximumSize, myChildrenStart, myChildren);
+	}
+
+	String getCode(int theIndex) {
+		return myCodes[theIndex];
+	}
+
+	long getPid(int theIndex) {
+		return myPids[theIndex];
+	}
+
+	int size() {
+		return myCodes.length;
+	}
+
+	private int[] traverse(String theCode, int theMaximumSize, int[] theStart, int[] theTargets) {
+		Integer start = myCodeToIndex.get(theCode);
+		if (start == null) {
+			return null;
+		}
+
+		/*
+		 * Breadth first, with the found codes doubling as the queue of codes still to visit.
+		 * A code with several parents (or children) is only visited once.
+		 */
+		BitSet seen = new BitSet(myCodes.length);
+		int[] found = new int[Math.min(16, Math.max(1, theMaximumSize))];
+		int foundCount = 0;
+		found[foundCount++] = start;
+		seen.set(start);
+
+		for (int visit = 0; visit < foundCount && foundCount < theMaximumSize; visit++) {
+			int next = found[visit];
+			for (int i = theStart[next]; i < theStart[next + 1] && foundCount < theMaximumSize; i++) {
+				int target = theTargets[i];
+				if (seen.get(target)) {
+					continue;
+				}
+				seen.set(target);
+				if (foundCount == found.length) {
+					found = Arrays.copyOf(found, Math.min(found.length * 2, theMaximumSize));
+				}
+				found[foundCount++] = target;
+			}
+		}
+
+		return Arrays.copyOf(found, foundCount);
+	}
+
+	/**
+	 * Groups the targets of each link by source, so that the targets of concept <code>n</code>
+	 * are found at <code>theTargets[theStart[n]]</code> up to (but not including)
+	 * <code>theTargets[theStart[n + 1]]</code>
+	 */
+	private static void populate(int[] theSources, int[] theLinkTargets, int theLinkCount, int[] theStart, int[] theTargets) {
+		for (int i = 0; i < theLinkCount; i++) {
+			theStart[theSources[i] + 1]++;
+		}
+		for (int i = 1; i < theStart.length; i++) {
+			theStart[i] += theStart[i - 1];
+		}
+		int[] position = Arrays.copyOf(theStart, theStart.length - 1);
+		for (int i = 0; i < theLinkCount; i++) {
+			theTargets[position[theSources[i]]++] = theLinkTargets[i];
+		}
+	}
+
+}
@@ -24,12 +24,15 @@ import static org.apache.commons.lang3.StringUtils.isNotBlank;
 
 import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.Reader;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -38,6 +41,7 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 import java.util.zip.ZipInputStream;
 
 import org.apache.commons.csv.CSVFormat;
@@ -46,6 +50,7 @@ import org.apache.commons.csv.CSVRecord;
 import org.apache.commons.csv.QuoteMode;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.io.input.BOMInputStream;
+import org.apache.commons.io.input.CountingInputStream;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.Validate;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -65,19 +70,50 @@ import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
 public class TerminologyLoaderSvc implements IHapiTerminologyLoaderSvc {
 	private static final int LOG_INCREMENT = 100000;
 
+	/**
+	 * SNOMED CT relationship types which are silently ignored
+	 */
+	private static final Set<String> SCT_IGNORED_RELATIONSHIP_TYPES;
+
 	public static final String LOINC_FILE = "loinc.csv";
 
 	public static final String LOINC_HIERARCHY_FILE = "MULTI-AXIAL_HIERARCHY.CSV";
+	private static final List<String> LOINC_FILES = Arrays.asList(LOINC_FILE, LOINC_HIERARCHY_FILE);
 	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(TerminologyLoaderSvc.class);
 
 	public static final String SCT_FILE_CONCEPT = "Terminology/sct2_Concept_Full_";
 	public static final String SCT_FILE_DESCRIPTION = "Terminology/sct2_Description_Full-en";
 	public static final String SCT_FILE_RELATIONSHIP = "Terminology/sct2_Relationship_Full";
+	private static final List<String> SCT_FILES = Arrays.asList(SCT_FILE_DESCRIPTION, SCT_FILE_RELATIONSHIP, SCT_FILE_CONCEPT);
+
+	static {
+		Set<String> ignoredTypes = new HashSet<String>();
+		ignoredTypes.add("Method (attribute)");
+		ignoredTypes.add("Direct device (attribute)");
+		ignoredTypes.add("Has focus (attribute)");
+		ignoredTypes.add("Access instrument");
+		ignoredTypes.add("Procedure site (attribute)");
+		ignoredTypes.add("Causative agent (attribute)");
+		ignoredTypes.add("Course (attribute)");
+		ignoredTypes.add("Finding site (attribute)");
+		ignoredTypes.add("Has definitional manifestation (attribute)");
+		SCT_IGNORED_RELATIONSHIP_TYPES = Collections.unmodifiableSet(ignoredTypes);
+	}
+
 	@Autowired
 	private IHapiTerminologySvc myTermSvc;
 
-	private void dropCircularRefs(TermConcept theConcept, ArrayList<String> theChain, Map<String, TermConcept> theCode2concept, Counter theCircularCounter) {
-		
+	/**
+	 * @param theScanned
+	 *           Codes whose descendants have already been scanned. Any circular reference
+	 *           below them has been removed, so they don't need to be scanned again when they
+	 *           are reached through another parent.
+	 */
+	private void dropCircularRefs(TermConcept theConcept, ArrayList<String> theChain, Set<String> theScanned, Map<String, TermConcept> theCode2concept, Counter theCircularCounter) {
+		if (theScanned.contains(theConcept.getCode())) {
+			return;
+		}
+
 		theChain.add(theConcept.getCode());
 		for (Iterator<TermConceptParentChildLink> childIter = theConcept.getChildren().iterator(); childIter.hasNext();) {
 			TermConceptParentChildLink next = childIter.next();
@@ -102,30 +138,28 @@ public class TerminologyLoaderSvc implements IHapiTerminologyLoaderSvc {
 				nextChild.getParents().remove(next);
 				
 			} else {
-				dropCircularRefs(nextChild, theChain, theCode2concept, theCircularCounter);
+				dropCircularRefs(nextChild, theChain, theScanned, theCode2concept, theCircularCounter);
 			}
 		}
 		theChain.remove(theChain.size() - 1);
+		theScanned.add(theConcept.getCode());
 
 	}
 
-	private void extractFiles(List<byte[]> theZipBytes, List<String> theExpectedFilenameFragments) {
+	private void extractFiles(List<ZipContents> theZipContents, List<String> theExpectedFilenameFragments) {
 		Set<String> foundFragments = new HashSet<String>();
 
-		for (byte[] nextZipBytes : theZipBytes) {
-			ZipInputStream zis = new ZipInputStream(new BufferedInputStream(new ByteArrayInputStream(nextZipBytes)));
+		for (ZipContents nextZipContents : theZipContents) {
 			try {
-				for (ZipEntry nextEntry; (nextEntry = zis.getNextEntry()) != null;) {
+				for (String nextEntryName : nextZipContents.getEntryNames()) {
 					for (String next : theExpectedFilenameFragments) {
-						if (nextEntry.getName().contains(next)) {
+						if (nextEntryName.contains(next)) {
 							foundFragments.add(next);
 						}
 					}
 				}
 			} catch (IOException e) {
 				throw new InternalErrorException(e);
-			} finally {
-				IOUtils.closeQuietly(zis);
 			}
 		}
 
@@ -148,104 +182,97 @@ public class TerminologyLoaderSvc implements IHapiTerminologyLoaderSvc {
 		return retVal;
 	}
 
-	private TermConcept getOrCreateConcept(TermCodeSystemVersion codeSystemVersion, Map<String, TermConcept> id2concept, String id) {
-		TermConcept concept = id2concept.get(id);
-		if (concept == null) {
-			concept = new TermConcept();
-			id2concept.put(id, concept);
-			concept.setCodeSystem(codeSystemVersion);
-		}
-		return concept;
-	}
+	private void iterateOverZipFile(List<ZipContents> theZipContents, final String fileNamePart, final IRecordHandler handler, final char theDelimiter, final QuoteMode theQuoteMode) {
+		final boolean[] found = new boolean[1];
 
-	private void iterateOverZipFile(List<byte[]> theZipBytes, String fileNamePart, IRecordHandler handler, char theDelimiter, QuoteMode theQuoteMode) {
-		boolean found = false;
-
-		for (byte[] nextZipBytes : theZipBytes) {
-			ZipInputStream zis = new ZipInputStream(new BufferedInputStream(new ByteArrayInputStream(nextZipBytes)));
+		for (ZipContents nextZipContents : theZipContents) {
 			try {
-				for (ZipEntry nextEntry; (nextEntry = zis.getNextEntry()) != null;) {
-					ZippedFileInputStream inputStream = new ZippedFileInputStream(zis);
-
-					String nextFilename = nextEntry.getName();
-					if (nextFilename.contains(fileNamePart)) {
-						ourLog.info("Processing file {}", nextFilename);
-						found = true;
-
-						Reader reader = null;
-						CSVParser parsed = null;
-						try {
-							reader = new InputStreamReader(new BOMInputStream(zis), Charsets.UTF_8);
-							CSVFormat format = CSVFormat.newFormat(theDelimiter).withFirstRecordAsHeader();
-							if (theQuoteMode != null) {
-								format = format.withQuote('"').withQuoteMode(theQuoteMode);
-							}
-							parsed = new CSVParser(reader, format);
-							Iterator<CSVRecord> iter = parsed.iterator();
-							ourLog.debug("Header map: {}", parsed.getHeaderMap());
-
-							int count = 0;
-							int logIncrement = LOG_INCREMENT;
-							int nextLoggedCount = 0;
-							while (iter.hasNext()) {
-								CSVRecord nextRecord = iter.next();
-								handler.accept(nextRecord);
-								count++;
-								if (count >= nextLoggedCount) {
-									ourLog.info(" * Processed {} records in {}", count, nextFilename);
-									nextLoggedCount += logIncrement;
+				nextZipContents.readEntries(fileNamePart, new IZipEntryHandler() {
+					@Override
+					public void accept(String theEntryName, long theEntrySize, InputStream theInputStream) throws IOException {
+						ourLog.info("Processing file {}", theEntryName);
+						found[0] = true;
+
+						CountingInputStream countingStream = new CountingInputStream(new BufferedInputStream(theInputStream));
+						Reader reader = new InputStreamReader(new BOMInputStream(countingStream), Charsets.UTF_8);
+						CSVFormat format = CSVFormat.newFormat(theDelimiter).withFirstRecordAsHeader();
+						if (theQuoteMode != null) {
+							format = format.withQuote('"').withQuoteMode(theQuoteMode);
+						}
+						CSVParser parsed = new CSVParser(reader, format);
+						Iterator<CSVRecord> iter = parsed.iterator();
+						ourLog.debug("Header map: {}", parsed.getHeaderMap());
+
+						int count = 0;
+						int logIncrement = LOG_INCREMENT;
+						int nextLoggedCount = 0;
+						while (iter.hasNext()) {
+							CSVRecord nextRecord = iter.next();
+							handler.accept(nextRecord);
+							count++;
+							if (count >= nextLoggedCount) {
+								if (theEntrySize > 0) {
+									int pct = (int) ((countingStream.getByteCount() * 100) / theEntrySize);
+									ourLog.info(" * Processed {} records in {} ({}%)", new Object[] { count, theEntryName, pct });
+								} else {
+									ourLog.info(" * Processed {} records in {}", count, theEntryName);
 								}
+								nextLoggedCount += logIncrement;
 							}
-
-						} catch (IOException e) {
-							throw new InternalErrorException(e);
 						}
+						ourLog.info(" * Finished processing {} records in {}", count, theEntryName);
 					}
-				}
+				});
 			} catch (IOException e) {
 				throw new InternalErrorException(e);
-			} finally {
-				IOUtils.closeQuietly(zis);
 			}
 		}
 
 		// This should always be true, but just in case we've introduced a bug...
-		Validate.isTrue(found);
+		Validate.isTrue(found[0]);
 	}
 
 	@Override
 	public UploadStatistics loadLoinc(List<byte[]> theZipBytes, RequestDetails theRequestDetails) {
-		List<String> expectedFilenameFragments = Arrays.asList(LOINC_FILE, LOINC_HIERARCHY_FILE);
-
-		extractFiles(theZipBytes, expectedFilenameFragments);
-
-		ourLog.info("Beginning LOINC processing");
+		List<ZipContents> zipContents = toZipContents(theZipBytes);
+		extractFiles(zipContents, LOINC_FILES);
+		return processLoincFiles(zipContents, theRequestDetails);
+	}
 
-		return processLoincFiles(theZipBytes, theRequestDetails);
+	@Override
+	public UploadStatistics loadLoincFiles(List<File> theZipFiles, RequestDetails theRequestDetails) {
+		List<ZipContents> zipContents = toZipContentsFromFiles(theZipFiles);
+		extractFiles(zipContents, LOINC_FILES);
+		return processLoincFiles(zipContents, theRequestDetails);
 	}
 
 	@Override
 	public UploadStatistics loadSnomedCt(List<byte[]> theZipBytes, RequestDetails theRequestDetails) {
-		List<String> expectedFilenameFragments = Arrays.asList(SCT_FILE_DESCRIPTION, SCT_FILE_RELATIONSHIP, SCT_FILE_CONCEPT);
-
-		extractFiles(theZipBytes, expectedFilenameFragments);
-
-		ourLog.info("Beginning SNOMED CT processing");
+		List<ZipContents> zipContents = toZipContents(theZipBytes);
+		extractFiles(zipContents, SCT_FILES);
+		return processSnomedCtFiles(zipContents, theRequestDetails);
+	}
 
-		return processSnomedCtFiles(theZipBytes, theRequestDetails);
+	@Override
+	public UploadStatistics loadSnomedCtFiles(List<File> theZipFiles, RequestDetails theRequestDetails) {
+		List<ZipContents> zipContents = toZipContentsFromFiles(theZipFiles);
+		extractFiles(zipContents, SCT_FILES);
+		return processSnomedCtFiles(zipContents, theRequestDetails);
 	}
 
-	UploadStatistics processLoincFiles(List<byte[]> theZipBytes, RequestDetails theRequestDetails) {
+	private UploadStatistics processLoincFiles(List<ZipContents> theZipContents, RequestDetails theRequestDetails) {
+		ourLog.info("Beginning LOINC processing");
+
 		final TermCodeSystemVersion codeSystemVersion = new TermCodeSystemVersion();
 		final Map<String, TermConcept> code2concept = new HashMap<String, TermConcept>();
 
 		IRecordHandler handler = new LoincHandler(codeSystemVersion, code2concept);
-		iterateOverZipFile(theZipBytes, LOINC_FILE, handler, ',', QuoteMode.NON_NUMERIC);
+		iterateOverZipFile(theZipContents, LOINC_FILE, handler, ',', QuoteMode.NON_NUMERIC);
 
 		handler = new LoincHierarchyHandler(codeSystemVersion, code2concept);
-		iterateOverZipFile(theZipBytes, LOINC_HIERARCHY_FILE, handler, ',', QuoteMode.NON_NUMERIC);
+		iterateOverZipFile(theZipContents, LOINC_HIERARCHY_FILE, handler, ',', QuoteMode.NON_NUMERIC);
 
-		theZipBytes.clear();
+		theZipContents.clear();
 		
 		for (Iterator<Entry<String, TermConcept>> iter = code2concept.entrySet().iterator(); iter.hasNext();) {
 			Entry<String, TermConcept> next = iter.next();
@@ -274,46 +301,48 @@ public class TerminologyLoaderSvc implements IHapiTerminologyLoaderSvc {
 		myTermSvc.setProcessDeferred(true);
 	}
 
-	UploadStatistics processSnomedCtFiles(List<byte[]> theZipBytes, RequestDetails theRequestDetails) {
+	private UploadStatistics processSnomedCtFiles(List<ZipContents> theZipContents, RequestDetails theRequestDetails) {
+		ourLog.info("Beginning SNOMED CT processing");
+
 		final TermCodeSystemVersion codeSystemVersion = new TermCodeSystemVersion();
-		final Map<String, TermConcept> id2concept = new HashMap<String, TermConcept>();
 		final Map<String, TermConcept> code2concept = new HashMap<String, TermConcept>();
 		final Set<String> validConceptIds = new HashSet<String>();
 
 		IRecordHandler handler = new SctHandlerConcept(validConceptIds);
-		iterateOverZipFile(theZipBytes, SCT_FILE_CONCEPT, handler, '\t', null);
+		iterateOverZipFile(theZipContents, SCT_FILE_CONCEPT, handler, '\t', null);
 
 		ourLog.info("Have {} valid concept IDs", validConceptIds.size());
 
-		handler = new SctHandlerDescription(validConceptIds, code2concept, id2concept, codeSystemVersion);
-		iterateOverZipFile(theZipBytes, SCT_FILE_DESCRIPTION, handler, '\t', null);
+		handler = new SctHandlerDescription(validConceptIds, code2concept, codeSystemVersion);
+		iterateOverZipFile(theZipContents, SCT_FILE_DESCRIPTION, handler, '\t', null);
 
-		ourLog.info("Got {} concepts, cloning map", code2concept.size());
-		final HashMap<String, TermConcept> rootConcepts = new HashMap<String, TermConcept>(code2concept);
+		ourLog.info("Got {} concepts", code2concept.size());
 
-		handler = new SctHandlerRelationship(codeSystemVersion, rootConcepts, code2concept);
-		iterateOverZipFile(theZipBytes, SCT_FILE_RELATIONSHIP, handler, '\t', null);
+		handler = new SctHandlerRelationship(code2concept);
+		iterateOverZipFile(theZipContents, SCT_FILE_RELATIONSHIP, handler, '\t', null);
 
-		theZipBytes.clear();
+		theZipContents.clear();
 
 		ourLog.info("Looking for root codes");
-		for (Iterator<Entry<String, TermConcept>> iter = rootConcepts.entrySet().iterator(); iter.hasNext(); ) {
-			if (iter.next().getValue().getParents().isEmpty() == false) {
-				iter.remove();
+		List<TermConcept> rootConcepts = new ArrayList<TermConcept>();
+		for (TermConcept next : code2concept.values()) {
+			if (next.getParents().isEmpty()) {
+				rootConcepts.add(next);
 			}
 		}
 		
 		ourLog.info("Done loading SNOMED CT files - {} root codes, {} total codes", rootConcepts.size(), code2concept.size());
 
 		Counter circularCounter = new Counter();
-		for (TermConcept next : rootConcepts.values()) {
+		Set<String> scanned = new HashSet<String>();
+		for (TermConcept next : rootConcepts) {
 			long count = circularCounter.getThenAdd();
 			float pct = ((float)count / rootConcepts.size()) * 100.0f;
 			ourLog.info(" * Scanning for circular refs - have scanned {} / {} codes ({}%)", count, rootConcepts.size(), pct);
-			dropCircularRefs(next, new ArrayList<String>(), code2concept, circularCounter);
+			dropCircularRefs(next, new ArrayList<String>(), scanned, code2concept, circularCounter);
 		}
 
-		codeSystemVersion.getConcepts().addAll(rootConcepts.values());
+		codeSystemVersion.getConcepts().addAll(rootConcepts);
 		String url = SCT_URL;
 		storeCodeSystem(theRequestDetails, codeSystemVersion, url);
 
@@ -325,10 +354,137 @@ public class TerminologyLoaderSvc implements IHapiTerminologyLoaderSvc {
 		myTermSvc = theTermSvc;
 	}
 
+	private static List<ZipContents> toZipContents(List<byte[]> theZipBytes) {
+		List<ZipContents> retVal = new ArrayList<ZipContents>();
+		for (byte[] next : theZipBytes) {
+			retVal.add(new ByteArrayZipContents(next));
+		}
+		return retVal;
+	}
+
+	private static List<ZipContents> toZipContentsFromFiles(List<File> theZipFiles) {
+		List<ZipContents> retVal = new ArrayList<ZipContents>();
+		for (File next : theZipFiles) {
+			retVal.add(new FileZipContents(next));
+		}
+		return retVal;
+	}
+
 	private interface IRecordHandler {
 		void accept(CSVRecord theRecord);
 	}
 
+	private interface IZipEntryHandler {
+		/**
+		 * @param theEntrySize
+		 *           The uncompressed size of the entry, or -1 if it is not known
+		 */
+		void accept(String theEntryName, long theEntrySize, InputStream theInputStream) throws IOException;
+	}
+
+	/**
+	 * A zip file in memory. Each time its entries are read, the whole file is read
+	 * up to the last matching entry, since a zip stream can only be read sequentially.
+	 */
+	private static class ByteArrayZipContents extends ZipContents {
+
+		private final byte[] myBytes;
+
+		public ByteArrayZipContents(byte[] theBytes) {
+			myBytes = theBytes;
+		}
+
+		@Override
+		List<String> getEntryNames() throws IOException {
+			List<String> retVal = new ArrayList<String>();
+			ZipInputStream zis = new ZipInputStream(new BufferedInputStream(new ByteArrayInputStream(myBytes)));
+			try {
+				for (ZipEntry nextEntry; (nextEntry = zis.getNextEntry()) != null;) {
+					retVal.add(nextEntry.getName());
+				}
+			} finally {
+				IOUtils.closeQuietly(zis);
+			}
+			return retVal;
+		}
+
+		@Override
+		void readEntries(String theFileNamePart, IZipEntryHandler theHandler) throws IOException {
+			ZipInputStream zis = new ZipInputStream(new BufferedInputStream(new ByteArrayInputStream(myBytes)));
+			try {
+				for (ZipEntry nextEntry; (nextEntry = zis.getNextEntry()) != null;) {
+					if (nextEntry.getName().contains(theFileNamePart)) {
+						theHandler.accept(nextEntry.getName(), nextEntry.getSize(), new ZippedFileInputStream(zis));
+					}
+				}
+			} finally {
+				IOUtils.closeQuietly(zis);
+			}
+		}
+	}
+
+	/**
+	 * A zip file on disk. Only the entries which are needed are read, and they are
+	 * read directly from the file, so the zip is never held in memory.
+	 */
+	private static class FileZipContents extends ZipContents {
+
+		private final File myFile;
+
+		public FileZipContents(File theFile) {
+			myFile = theFile;
+		}
+
+		@Override
+		List<String> getEntryNames() throws IOException {
+			List<String> retVal = new ArrayList<String>();
+			ZipFile zipFile = new ZipFile(myFile);
+			try {
+				for (Enumeration<? extends ZipEntry> entries = zipFile.entries(); entries.hasMoreElements();) {
+					retVal.add(entries.nextElement().getName());
+				}
+			} finally {
+				zipFile.close();
+			}
+			return retVal;
+		}
+
+		@Override
+		void readEntries(String theFileNamePart, IZipEntryHandler theHandler) throws IOException {
+			ZipFile zipFile = new ZipFile(myFile);
+			try {
+				for (Enumeration<? extends ZipEntry> entries = zipFile.entries(); entries.hasMoreElements();) {
+					ZipEntry nextEntry = entries.nextElement();
+					if (nextEntry.getName().contains(theFileNamePart)) {
+						InputStream inputStream = zipFile.getInputStream(nextEntry);
+						try {
+							theHandler.accept(nextEntry.getName(), nextEntry.getSize(), inputStream);
+						} finally {
+							IOUtils.closeQuietly(inputStream);
+						}
+					}
+				}
+			} finally {
+				zipFile.close();
+			}
+		}
+	}
+
+	/**
+	 * A zip file being loaded. Each loader pass reads the entries it needs, so the
+	 * contents must be readable more than once.
+	 */
+	private static abstract class ZipContents {
+
+		abstract List<String> getEntryNames() throws IOException;
+
+		/**
+		 * Passes each entry whose name contains the given fragment to the handler
+		 */
+		abstract void readEntries(String theFileNamePart, IZipEntryHandler theHandler) throws IOException;
+
+	}
+
 	public class LoincHandler implements IRecordHandler {
 
 		private final Map<String, TermConcept> myCode2Concept;
@@ -426,19 +582,16 @@ public class TerminologyLoaderSvc implements IHapiTerminologyLoaderSvc {
 	private final class SctHandlerDescription implements IRecordHandler {
 		private final Map<String, TermConcept> myCode2concept;
 		private final TermCodeSystemVersion myCodeSystemVersion;
-		private final Map<String, TermConcept> myId2concept;
 		private Set<String> myValidConceptIds;
 
-		private SctHandlerDescription(Set<String> theValidConceptIds, Map<String, TermConcept> theCode2concept, Map<String, TermConcept> theId2concept, TermCodeSystemVersion theCodeSystemVersion) {
+		private SctHandlerDescription(Set<String> theValidConceptIds, Map<String, TermConcept> theCode2concept, TermCodeSystemVersion theCodeSystemVersion) {
 			myCode2concept = theCode2concept;
-			myId2concept = theId2concept;
 			myCodeSystemVersion = theCodeSystemVersion;
 			myValidConceptIds = theValidConceptIds;
 		}
 
 		@Override
 		public void accept(CSVRecord theRecord) {
-			String id = theRecord.get("id");
 			boolean active = "1".equals(theRecord.get("active"));
 			if (!active) {
 				return;
@@ -450,37 +603,29 @@ public class TerminologyLoaderSvc implements IHapiTerminologyLoaderSvc {
 
 			String term = theRecord.get("term");
 
-			TermConcept concept = getOrCreateConcept(myCodeSystemVersion, myId2concept, id);
-			concept.setCode(conceptId);
+			/*
+			 * A concept has many descriptions, and the last one read is used as its display.
+			 * Only one concept object is kept per code, since a full release has several
+			 * times more descriptions than concepts.
+			 */
+			TermConcept concept = myCode2concept.get(conceptId);
+			if (concept == null) {
+				concept = new TermConcept(myCodeSystemVersion, conceptId);
+				myCode2concept.put(conceptId, concept);
+			}
 			concept.setDisplay(term);
-			myCode2concept.put(conceptId, concept);
 		}
 	}
 
 	private final class SctHandlerRelationship implements IRecordHandler {
 		private final Map<String, TermConcept> myCode2concept;
-		private final TermCodeSystemVersion myCodeSystemVersion;
-		private final Map<String, TermConcept> myRootConcepts;
 
-		private SctHandlerRelationship(TermCodeSystemVersion theCodeSystemVersion, HashMap<String, TermConcept> theRootConcepts, Map<String, TermConcept> theCode2concept) {
-			myCodeSystemVersion = theCodeSystemVersion;
-			myRootConcepts = theRootConcepts;
+		private SctHandlerRelationship(Map<String, TermConcept> theCode2concept) {
 			myCode2concept = theCode2concept;
 		}
 
 		@Override
 		public void accept(CSVRecord theRecord) {
-			Set<String> ignoredTypes = new HashSet<String>();
-			ignoredTypes.add("Method (attribute)");
-			ignoredTypes.add("Direct device (attribute)");
-			ignoredTypes.add("Has focus (attribute)");
-			ignoredTypes.add("Access instrument");
-			ignoredTypes.add("Procedure site (attribute)");
-			ignoredTypes.add("Causative agent (attribute)");
-			ignoredTypes.add("Course (attribute)");
-			ignoredTypes.add("Finding site (attribute)");
-			ignoredTypes.add("Has definitional manifestation (attribute)");
-
 			String sourceId = theRecord.get("sourceId");
 			String destinationId = theRecord.get("destinationId");
 			String typeId = theRecord.get("typeId");
@@ -494,12 +639,6 @@ public class TerminologyLoaderSvc implements IHapiTerminologyLoaderSvc {
 					RelationshipTypeEnum relationshipType = RelationshipTypeEnum.ISA;
 					if (!sourceId.equals(destinationId)) {
 						if (active) {
-							TermConceptParentChildLink link = new TermConceptParentChildLink();
-							link.setChild(sourceConcept);
-							link.setParent(targetConcept);
-							link.setRelationshipType(relationshipType);
-							link.setCodeSystem(myCodeSystemVersion);
-	
 							targetConcept.addChild(sourceConcept, relationshipType);
 						} else {
 							// not active, so we're removing any existing links
@@ -513,7 +652,7 @@ public class TerminologyLoaderSvc implements IHapiTerminologyLoaderSvc {
 							}
 						}
 					}
-				} else if (ignoredTypes.contains(typeConcept.getDisplay())) {
+				} else if (SCT_IGNORED_RELATIONSHIP_TYPES.contains(typeConcept.getDisplay())) {
 					// ignore
 				} else {
 					// ourLog.warn("Unknown relationship type: {}/{}", typeId, typeConcept.getDisplay());
@@ -540,6 +679,11 @@ public class TerminologyLoaderSvc implements IHapiTerminologyLoaderSvc {
 		public int read() throws IOException {
 			return is.read();
 		}
+
+		@Override
+		public int read(byte[] theBuffer, int theOffset, int theLength) throws IOException {
+			return is.read(theBuffer, theOffset, theLength);
+		}
 	}
 
 }
@@ -0,0 +1,110 @@
+package ca.uhn.fhir.jpa.util;
+
+/*
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2017 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import static org.apache.commons.lang3.StringUtils.defaultString;
+
+import java.util.Collection;
+import java.util.Date;
+
+import org.apache.lucene.document.DateTools;
+import org.apache.lucene.document.Document;
+import org.hibernate.search.bridge.FieldBridge;
+import org.hibernate.search.bridge.LuceneOptions;
+
+import ca.uhn.fhir.jpa.entity.ResourceIndexedSearchParamDate;
+import ca.uhn.fhir.jpa.entity.ResourceIndexedSearchParamString;
+import ca.uhn.fhir.jpa.entity.ResourceIndexedSearchParamToken;
+
+/**
+ * Adds the token, string and date search parameters of a resource to its fulltext index
+ * document, so that searches using them can be answered by the fulltext index. Each
+ * parameter gets its own fields, named using the prefixes below followed by the
+ * parameter name. Values are not analyzed.
+ */
+public class SearchParamFieldBridge implements FieldBridge {
+
+	public static final String FIELD_DATE_HIGH = "myParamDateHigh.";
+	public static final String FIELD_DATE_LOW = "myParamDateLow.";
+	public static final String FIELD_STRING = "myParamString.";
+	public static final String FIELD_STRING_EXACT = "myParamStringExact.";
+	/**
+	 * Holds <code>system|value</code> (see {@link #toTokenTerm(String, String)})
+	 */
+	public static final String FIELD_TOKEN = "myParamToken.";
+	/**
+	 * Holds the value alone, for searches which do not specify a system
+	 */
+	public static final String FIELD_TOKEN_VALUE = "myParamTokenValue.";
+
+	@Override
+	public void set(String theName, Object theValue, Document theDocument, LuceneOptions theLuceneOptions) {
+		if (theValue instanceof Collection) {
+			for (Object next : (Collection<?>) theValue) {
+				addParam(next, theDocument, theLuceneOptions);
+			}
+		} else if (theValue != null) {
+			addParam(theValue, theDocument, theLuceneOptions);
+		}
+	}
+
+	private void addParam(Object theParam, Document theDocument, LuceneOptions theLuceneOptions) {
+		if (theParam instanceof ResourceIndexedSearchParamToken) {
+			ResourceIndexedSearchParamToken token = (ResourceIndexedSearchParamToken) theParam;
+			theLuceneOptions.addFieldToDocument(FIELD_TOKEN + token.getParamName(), toTokenTerm(token.getSystem(), token.getValue()), theDocument);
+			if (token.getValue() != null) {
+				theLuceneOptions.addFieldToDocument(FIELD_TOKEN_VALUE + token.getParamName(), token.getValue(), theDocument);
+			}
+		} else if (theParam instanceof ResourceIndexedSearchParamString) {
+			ResourceIndexedSearchParamString string = (ResourceIndexedSearchParamString) theParam;
+			if (string.getValueNormalized() != null) {
+				theLuceneOptions.addFieldToDocument(FIELD_STRING + string.getParamName(), string.getValueNormalized(), theDocument);
+			}
+			if (string.getValueExact() != null) {
+				theLuceneOptions.addFieldToDocument(FIELD_STRING_EXACT + string.getParamName(), string.getValueExact(), theDocument);
+			}
+		} else if (theParam instanceof ResourceIndexedSearchParamDate) {
+			ResourceIndexedSearchParamDate date = (ResourceIndexedSearchParamDate) theParam;
+			if (date.getValueLow() != null) {
+				theLuceneOptions.addFieldToDocument(FIELD_DATE_LOW + date.getParamName(), toDateTerm(date.getValueLow()), theDocument);
+			}
+			if (date.getValueHigh() != null) {
+				theLuceneOptions.addFieldToDocument(FIELD_DATE_HIGH + date.getParamName(), toDateTerm(date.getValueHigh()), theDocument);
+			}
+		}
+	}
+
+	/**
+	 * Converts a date into a term which sorts in date order, for use in range queries
+	 */
+	public static String toDateTerm(Date theDate) {
+		return DateTools.timeToString(theDate.getTime(), DateTools.Resolution.MILLISECOND);
+	}
+
+	/**
+	 * Converts a token into the term which is indexed for it. A token with no system
+	 * is indexed (and searched for) with an empty system.
+	 */
+	public static String toTokenTerm(String theSystem, String theValue) {
+		return defaultString(theSystem) + '|' + defaultString(theValue);
+	}
+
+}
@@ -58,6 +58,9 @@ public class TestDstu3Config extends BaseJavaConfigDstu3 {
 	private Properties jpaProperties() {
 		Properties extraProperties = new Properties();
 		extraProperties.put("hibernate.jdbc.batch_size", "50");
+		extraProperties.put("hibernate.jdbc.batch_versioned_data", "true");
+		extraProperties.put("hibernate.order_inserts", "true");
+		extraProperties.put("hibernate.order_updates", "true");
 		extraProperties.put("hibernate.format_sql", "false");
 		extraProperties.put("hibernate.show_sql", "false");
 		extraProperties.put("hibernate.hbm2ddl.auto", "update");
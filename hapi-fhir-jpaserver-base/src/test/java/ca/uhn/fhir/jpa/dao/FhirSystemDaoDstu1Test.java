@@ -65,6 +65,8 @@ public class FhirSystemDaoDstu1Test extends BaseJpaTest {
 	@Before
 	public void before() {
 		super.purgeDatabase(ourEntityManager, ourTxManager);
+		ourCtx.getBean(ForcedIdCacheSvc.class).clearCache();
+		ourCtx.getBean(TagDefinitionCacheSvc.class).clearCache();
 	}
 
 	@Override
@@ -28,12 +28,14 @@ import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.jpa.config.TestDstu2Config;
 import ca.uhn.fhir.jpa.dao.BaseJpaTest;
 import ca.uhn.fhir.jpa.dao.DaoConfig;
+import ca.uhn.fhir.jpa.dao.ForcedIdCacheSvc;
 import ca.uhn.fhir.jpa.dao.IFhirResourceDao;
 import ca.uhn.fhir.jpa.dao.IFhirResourceDaoPatient;
 import ca.uhn.fhir.jpa.dao.IFhirResourceDaoSubscription;
 import ca.uhn.fhir.jpa.dao.IFhirResourceDaoValueSet;
 import ca.uhn.fhir.jpa.dao.IFhirSystemDao;
 import ca.uhn.fhir.jpa.dao.IFulltextSearchSvc;
+import ca.uhn.fhir.jpa.dao.TagDefinitionCacheSvc;
 import ca.uhn.fhir.jpa.entity.ResourceIndexedSearchParamString;
 import ca.uhn.fhir.jpa.entity.ResourceTable;
 import ca.uhn.fhir.jpa.provider.JpaSystemProviderDstu2;
@@ -52,6 +54,10 @@ import ca.uhn.fhir.util.TestUtil;
 //@formatter:on
 public abstract class BaseJpaDstu2Test extends BaseJpaTest {
 
+	@Autowired
+	private ForcedIdCacheSvc myForcedIdCacheSvc;
+	@Autowired
+	private TagDefinitionCacheSvc myTagDefinitionCacheSvc;
 	@Autowired
 	protected ApplicationContext myAppCtx;
 	@Autowired
@@ -168,6 +174,8 @@ public abstract class BaseJpaDstu2Test extends BaseJpaTest {
 	public void beforePurgeDatabase() {
 		final EntityManager entityManager = this.myEntityManager;
 		purgeDatabase(entityManager, myTxManager);
+		myForcedIdCacheSvc.clearCache();
+		myTagDefinitionCacheSvc.clearCache();
 	}
 
 	@Before
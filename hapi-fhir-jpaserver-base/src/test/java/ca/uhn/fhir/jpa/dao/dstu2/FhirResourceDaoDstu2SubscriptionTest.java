@@ -21,11 +21,13 @@ import javax.persistence.TypedQuery;
 
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.instance.model.api.IIdType;
+import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Before;
 import org.junit.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 
+import ca.uhn.fhir.jpa.dao.DaoConfig;
 import ca.uhn.fhir.jpa.dao.SearchParameterMap;
 import ca.uhn.fhir.jpa.dao.data.ISubscriptionFlaggedResourceDataDao;
 import ca.uhn.fhir.jpa.dao.data.ISubscriptionTableDao;
@@ -57,6 +59,11 @@ public class FhirResourceDaoDstu2SubscriptionTest extends BaseJpaDstu2Test {
 	@Autowired
 	private ISubscriptionTableDao mySubscriptionTableDao;
 
+	@After
+	public void afterResetSubscriptionMatching() {
+		myDaoConfig.setSubscriptionMatchOnWrite(new DaoConfig().isSubscriptionMatchOnWrite());
+	}
+
 	@Before
 	public void beforeEnableSubscription() {
 		myDaoConfig.setSubscriptionEnabled(true);
@@ -303,6 +310,79 @@ public class FhirResourceDaoDstu2SubscriptionTest extends BaseJpaDstu2Test {
 
 	}
 
+	@Test
+	public void testSubscriptionMatchedOnWrite() throws Exception {
+		myDaoConfig.setSubscriptionPollDelay(0);
+		myDaoConfig.setSubscriptionMatchOnWrite(true);
+
+		Patient p = new Patient();
+		p.addName().addFamily("testSubscriptionMatchedOnWrite");
+		IIdType pId = myPatientDao.create(p, mySrd).getId().toUnqualifiedVersionless();
+
+		Subscription subs = new Subscription();
+		subs.getChannel().setType(SubscriptionChannelTypeEnum.WEBSOCKET);
+		subs.setCriteria("Observation?subject=Patient/" + pId.getIdPart());
+		subs.setStatus(SubscriptionStatusEnum.ACTIVE);
+		Long subsId1 = mySubscriptionDao.getSubscriptionTablePidForSubscriptionResource(mySubscriptionDao.create(subs, mySrd).getId());
+
+		subs = new Subscription();
+		subs.getChannel().setType(SubscriptionChannelTypeEnum.WEBSOCKET);
+		subs.setCriteria("Observation?code=http://loinc.org|1234-5&status=final");
+		subs.setStatus(SubscriptionStatusEnum.ACTIVE);
+		Long subsId2 = mySubscriptionDao.getSubscriptionTablePidForSubscriptionResource(mySubscriptionDao.create(subs, mySrd).getId());
+
+		// The first poll starts matching resources against the subscriptions as they are written
+		assertEquals(0, mySubscriptionDao.pollForNewUndeliveredResources());
+		Thread.sleep(100);
+
+		Observation obs = new Observation();
+		obs.getSubject().setReference(pId);
+		obs.setStatus(ObservationStatusEnum.FINAL);
+		IIdType obsId1 = myObservationDao.create(obs, mySrd).getId().toUnqualifiedVersionless();
+
+		obs = new Observation();
+		obs.getCode().addCoding().setSystem("http://loinc.org").setCode("1234-5");
+		obs.setStatus(ObservationStatusEnum.FINAL);
+		IIdType obsId2 = myObservationDao.create(obs, mySrd).getId().toUnqualifiedVersionless();
+
+		obs = new Observation();
+		obs.getCode().addCoding().setSystem("http://loinc.org").setCode("1234-5");
+		obs.setStatus(ObservationStatusEnum.PRELIMINARY);
+		myObservationDao.create(obs, mySrd);
+
+		// Flagged without polling, and not found again by the next poll
+		assertEquals(2, mySubscriptionFlaggedResourceDataDao.count());
+		Thread.sleep(100);
+		assertEquals(0, mySubscriptionDao.pollForNewUndeliveredResources());
+		assertEquals(2, mySubscriptionFlaggedResourceDataDao.count());
+
+		assertThat(toUnqualifiedVersionlessIds(mySubscriptionDao.getUndeliveredResourcesAndPurge(subsId1)), contains(obsId1));
+		assertThat(toUnqualifiedVersionlessIds(mySubscriptionDao.getUndeliveredResourcesAndPurge(subsId2)), contains(obsId2));
+
+		/*
+		 * Once a subscription is changed, resources aren't matched against it until it has
+		 * been polled again
+		 */
+		subs.setId(mySubscriptionTableDao.findOne(subsId2).getSubscriptionResource().getIdDt().toUnqualifiedVersionless());
+		subs.setCriteria("Observation?code=http://loinc.org|9999-9");
+		mySubscriptionDao.update(subs, mySrd);
+		Thread.sleep(100);
+
+		obs = new Observation();
+		obs.getCode().addCoding().setSystem("http://loinc.org").setCode("9999-9");
+		IIdType obsId3 = myObservationDao.create(obs, mySrd).getId().toUnqualifiedVersionless();
+		assertEquals(0, mySubscriptionFlaggedResourceDataDao.count());
+
+		Thread.sleep(100);
+		assertEquals(1, mySubscriptionDao.pollForNewUndeliveredResources());
+
+		obs = new Observation();
+		obs.getCode().addCoding().setSystem("http://loinc.org").setCode("9999-9");
+		IIdType obsId4 = myObservationDao.create(obs, mySrd).getId().toUnqualifiedVersionless();
+
+		assertThat(toUnqualifiedVersionlessIds(mySubscriptionDao.getUndeliveredResourcesAndPurge(subsId2)), contains(obsId3, obsId4));
+	}
+
 	@Test
 	public void testSubscriptionResourcesAppear() throws Exception {
 		myDaoConfig.setSubscriptionPollDelay(0);
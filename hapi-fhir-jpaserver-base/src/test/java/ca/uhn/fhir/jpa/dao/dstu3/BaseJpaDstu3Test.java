@@ -32,6 +32,7 @@ import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.jpa.config.TestDstu3Config;
 import ca.uhn.fhir.jpa.dao.*;
 import ca.uhn.fhir.jpa.dao.data.IResourceTableDao;
+import ca.uhn.fhir.jpa.dao.data.ISearchResultDao;
 import ca.uhn.fhir.jpa.dao.dstu2.FhirResourceDaoDstu2SearchNoFtTest;
 import ca.uhn.fhir.jpa.entity.ResourceIndexedSearchParamString;
 import ca.uhn.fhir.jpa.entity.ResourceTable;
@@ -55,6 +56,10 @@ public abstract class BaseJpaDstu3Test extends BaseJpaTest {
 
 //	@Autowired
 //	protected HapiWorkerContext myHapiWorkerContext;
+	@Autowired
+	protected ForcedIdCacheSvc myForcedIdCacheSvc;
+	@Autowired
+	protected TagDefinitionCacheSvc myTagDefinitionCacheSvc;
 	@Autowired
 	@Qualifier("myAllergyIntoleranceDaoDstu3")
 	protected IFhirResourceDao<AllergyIntolerance> myAllergyIntoleranceDao;
@@ -156,6 +161,8 @@ public abstract class BaseJpaDstu3Test extends BaseJpaTest {
 	@Autowired
 	protected IFulltextSearchSvc mySearchDao;
 	@Autowired
+	protected ISearchResultDao mySearchResultDao;
+	@Autowired
 	protected StaleSearchDeletingSvc myStaleSearchDeletingSvc;
 	@Autowired
 	@Qualifier("myStructureDefinitionDaoDstu3")
@@ -212,6 +219,8 @@ public abstract class BaseJpaDstu3Test extends BaseJpaTest {
 	public void beforePurgeDatabase() {
 		final EntityManager entityManager = this.myEntityManager;
 		purgeDatabase(entityManager, myTxManager);
+		myForcedIdCacheSvc.clearCache();
+		myTagDefinitionCacheSvc.clearCache();
 	}
 
 	@Before
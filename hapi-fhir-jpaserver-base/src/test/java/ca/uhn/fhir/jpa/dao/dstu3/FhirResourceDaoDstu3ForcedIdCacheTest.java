@@ -0,0 +1,127 @@
+package ca.uhn.fhir.jpa.dao.dstu3;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThat;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.hl7.fhir.dstu3.model.Bundle;
+import org.hl7.fhir.dstu3.model.Bundle.BundleType;
+import org.hl7.fhir.dstu3.model.Bundle.HTTPVerb;
+import org.hl7.fhir.dstu3.model.Observation;
+import org.hl7.fhir.dstu3.model.Patient;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.junit.AfterClass;
+import org.junit.Test;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+
+import ca.uhn.fhir.jpa.dao.SearchParameterMap;
+import ca.uhn.fhir.rest.param.ReferenceParam;
+import ca.uhn.fhir.util.TestUtil;
+
+public class FhirResourceDaoDstu3ForcedIdCacheTest extends BaseJpaDstu3Test {
+
+	@Test
+	public void testBatchResolution() {
+		Long pidA = createPatient("PT-A");
+		Long pidB = createPatient("PT-B");
+
+		Map<String, Long> pids = newTxTemplate().execute(new TransactionCallback<Map<String, Long>>() {
+			@Override
+			public Map<String, Long> doInTransaction(TransactionStatus theStatus) {
+				return myForcedIdCacheSvc.getPids("Patient", Arrays.asList("PT-A", "PT-B", "PT-C", "PT-A"));
+			}
+		});
+		assertEquals(2, pids.size());
+		assertEquals(pidA, pids.get("PT-A"));
+		assertEquals(pidB, pids.get("PT-B"));
+
+		assertEquals("Patient/PT-A", myForcedIdCacheSvc.getQualifiedForcedId(pidA));
+		assertNull(myForcedIdCacheSvc.getQualifiedForcedId(createPatient(null)));
+	}
+
+	@Test
+	public void testForcedIdFromRolledBackTransactionIsNotCached() {
+		List<Long> pids = newTxTemplate().execute(new TransactionCallback<List<Long>>() {
+			@Override
+			public List<Long> doInTransaction(TransactionStatus theStatus) {
+				createPatient("PT-ROLLBACK");
+				List<Long> retVal = myForcedIdCacheSvc.getPids("Patient", "PT-ROLLBACK");
+				theStatus.setRollbackOnly();
+				return retVal;
+			}
+		});
+		assertEquals(1, pids.size());
+
+		assertThat(myForcedIdCacheSvc.getPids("Patient", "PT-ROLLBACK"), empty());
+	}
+
+	@Test
+	public void testTransactionWithManyReferencesToSameResource() {
+		createPatient("PT-A");
+
+		Bundle request = new Bundle();
+		request.setType(BundleType.TRANSACTION);
+		for (int i = 0; i < 50; i++) {
+			Observation obs = new Observation();
+			obs.getSubject().setReference("Patient/PT-A");
+			obs.getPerformer().add(obs.getSubject().copy());
+			request.addEntry().setResource(obs).getRequest().setMethod(HTTPVerb.POST).setUrl("Observation");
+		}
+		mySystemDao.transaction(mySrd, request);
+
+		SearchParameterMap params = new SearchParameterMap();
+		params.add(Observation.SP_SUBJECT, new ReferenceParam("Patient/PT-A"));
+		assertEquals(50, myObservationDao.search(params).size());
+	}
+
+	@Test
+	public void testTranslationAfterDelete() {
+		Long pid = createPatient("PT-A");
+		myPatientDao.delete(new org.hl7.fhir.dstu3.model.IdType("Patient/PT-A"), mySrd);
+
+		// Deleted resources keep their forced ID, so it still resolves
+		assertThat(myForcedIdCacheSvc.getPids("Patient", "PT-A"), contains(pid));
+	}
+
+	private Long createPatient(String theForcedId) {
+		Patient patient = new Patient();
+		patient.setActive(true);
+		IIdType id;
+		if (theForcedId != null) {
+			patient.setId("Patient/" + theForcedId);
+			id = myPatientDao.update(patient, mySrd).getId();
+		} else {
+			id = myPatientDao.create(patient, mySrd).getId();
+		}
+		return newTxTemplate().execute(new PidLookup(id));
+	}
+
+	private class PidLookup implements TransactionCallback<Long> {
+		private final IIdType myId;
+
+		PidLookup(IIdType theId) {
+			myId = theId;
+		}
+
+		@Override
+		public Long doInTransaction(TransactionStatus theStatus) {
+			if (myId.isIdPartValidLong()) {
+				return myId.getIdPartAsLong();
+			}
+			return myForcedIdCacheSvc.getPids(myId.getResourceType(), myId.getIdPart()).get(0);
+		}
+	}
+
+	@AfterClass
+	public static void afterClassClearContext() {
+		TestUtil.clearAllStaticFieldsForUnitTest();
+	}
+
+}
@@ -0,0 +1,136 @@
+package ca.uhn.fhir.jpa.dao.dstu3;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.List;
+
+import org.hl7.fhir.dstu3.model.Patient;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+
+import ca.uhn.fhir.jpa.dao.DaoConfig;
+import ca.uhn.fhir.jpa.dao.HistoryCompactionSvc;
+import ca.uhn.fhir.jpa.entity.ResourceEncodingEnum;
+import ca.uhn.fhir.util.TestUtil;
+
+public class FhirResourceDaoDstu3HistoryCompactionTest extends BaseJpaDstu3Test {
+
+	@Autowired
+	private HistoryCompactionSvc myHistoryCompactionSvc;
+
+	@After
+	public void afterResetHistoryCompaction() {
+		myDaoConfig.setCompactHistoryUsingDeltas(new DaoConfig().isCompactHistoryUsingDeltas());
+		myDaoConfig.setHistorySnapshotInterval(new DaoConfig().getHistorySnapshotInterval());
+	}
+
+	@Before
+	public void beforeEnableHistoryCompaction() {
+		myDaoConfig.setCompactHistoryUsingDeltas(true);
+		myDaoConfig.setHistorySnapshotInterval(3);
+	}
+
+	@Test
+	public void testCompactedVersionsCanBeRead() {
+		IIdType id = createPatientWithVersions(8);
+
+		// Versions 3 and 6 are snapshots, and version 8 is the current version
+		assertEquals(5, myHistoryCompactionSvc.compactHistory());
+		assertEquals(5, countDeltas());
+		assertEquals(0, myHistoryCompactionSvc.compactHistory());
+
+		assertVersionsReadable(id, 8);
+	}
+
+	@Test
+	public void testCompactionAfterFurtherUpdates() {
+		IIdType id = createPatientWithVersions(8);
+		assertEquals(5, myHistoryCompactionSvc.compactHistory());
+
+		Patient pt = newPatient(9);
+		pt.setId(id);
+		myPatientDao.update(pt, mySrd);
+
+		// Version 7 is a delta against version 8, which is now itself a delta
+		assertEquals(1, myHistoryCompactionSvc.compactHistory());
+		assertEquals(6, countDeltas());
+
+		assertVersionsReadable(id, 9);
+	}
+
+	@Test
+	public void testDeletedVersionsCanBeCompacted() {
+		IIdType id = createPatientWithVersions(4);
+		myPatientDao.delete(id, mySrd);
+		Patient pt = newPatient(6);
+		pt.setId(id);
+		myPatientDao.update(pt, mySrd);
+
+		// Versions 1, 2, 4 and 5 (the deletion)
+		assertEquals(4, myHistoryCompactionSvc.compactHistory());
+
+		List<IBaseResource> history = myPatientDao.history(id, null, null, mySrd).getResources(0, 10);
+		assertEquals(6, history.size());
+		for (IBaseResource next : history) {
+			String version = next.getIdElement().getVersionIdPart();
+			String expected = "5".equals(version) ? "FAMILY4" : "FAMILY" + version;
+			assertEquals(expected, ((Patient) next).getName().get(0).getFamily());
+		}
+	}
+
+	private void assertVersionsReadable(IIdType theId, int theVersionCount) {
+		for (int i = 1; i <= theVersionCount; i++) {
+			Patient read = myPatientDao.read(theId.withVersion(Integer.toString(i)), mySrd);
+			assertEquals("FAMILY" + i, read.getName().get(0).getFamily());
+			assertEquals(50, read.getIdentifier().size());
+		}
+
+		List<IBaseResource> history = myPatientDao.history(theId, null, null, mySrd).getResources(0, 20);
+		assertEquals(theVersionCount, history.size());
+		for (IBaseResource next : history) {
+			assertEquals("FAMILY" + next.getIdElement().getVersionIdPart(), ((Patient) next).getName().get(0).getFamily());
+		}
+	}
+
+	private long countDeltas() {
+		return newTxTemplate().execute(new TransactionCallback<Long>() {
+			@Override
+			public Long doInTransaction(TransactionStatus theStatus) {
+				String sql = "SELECT COUNT(t) FROM ResourceHistoryTable t WHERE t.myEncoding = :delta";
+				return myEntityManager.createQuery(sql, Long.class).setParameter("delta", ResourceEncodingEnum.DELTA).getSingleResult();
+			}
+		});
+	}
+
+	private IIdType createPatientWithVersions(int theVersionCount) {
+		IIdType id = myPatientDao.create(newPatient(1), mySrd).getId().toUnqualifiedVersionless();
+		for (int i = 2; i <= theVersionCount; i++) {
+			Patient pt = newPatient(i);
+			pt.setId(id);
+			myPatientDao.update(pt, mySrd);
+		}
+		return id;
+	}
+
+	private static Patient newPatient(int theVersion) {
+		Patient retVal = new Patient();
+		retVal.addName().setFamily("FAMILY" + theVersion);
+		for (int i = 0; i < 50; i++) {
+			retVal.addIdentifier().setSystem("http://example.com/identifiers").setValue("ID" + i);
+		}
+		return retVal;
+	}
+
+	@AfterClass
+	public static void afterClassClearContext() {
+		TestUtil.clearAllStaticFieldsForUnitTest();
+	}
+
+}
@@ -0,0 +1,125 @@
+package ca.uhn.fhir.jpa.dao.dstu3;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Date;
+
+import org.hl7.fhir.dstu3.model.Bundle;
+import org.hl7.fhir.dstu3.model.Bundle.BundleType;
+import org.hl7.fhir.dstu3.model.Bundle.HTTPVerb;
+import org.hl7.fhir.dstu3.model.DateTimeType;
+import org.hl7.fhir.dstu3.model.Observation;
+import org.hl7.fhir.dstu3.model.Observation.ObservationStatus;
+import org.hl7.fhir.dstu3.model.Patient;
+import org.hl7.fhir.dstu3.model.Quantity;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.junit.AfterClass;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+
+import ca.uhn.fhir.jpa.entity.ResourceHistoryTable;
+import ca.uhn.fhir.jpa.entity.ResourceIndexedSearchParamDate;
+import ca.uhn.fhir.jpa.entity.ResourceIndexedSearchParamNumber;
+import ca.uhn.fhir.jpa.entity.ResourceIndexedSearchParamQuantity;
+import ca.uhn.fhir.jpa.entity.ResourceIndexedSearchParamString;
+import ca.uhn.fhir.jpa.entity.ResourceIndexedSearchParamToken;
+import ca.uhn.fhir.jpa.entity.ResourceIndexedSearchParamUri;
+import ca.uhn.fhir.jpa.entity.ResourceLink;
+import ca.uhn.fhir.jpa.entity.ResourceTable;
+import ca.uhn.fhir.util.TestUtil;
+
+/**
+ * Measures how quickly Observations (and all of their index rows) can be stored. The
+ * full benchmark is too slow to run with the regular build, so it is ignored and must
+ * be run by hand.
+ */
+public class FhirResourceDaoDstu3InsertBenchmarkTest extends BaseJpaDstu3Test {
+
+	private static final int BUNDLE_SIZE = 500;
+	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(FhirResourceDaoDstu3InsertBenchmarkTest.class);
+
+	@Test
+	@Ignore
+	public void testBenchmarkLoad100kObservations() {
+		loadObservations(100000);
+	}
+
+	@Test
+	public void testLoadObservations() {
+		assertEquals(1000, loadObservations(1000));
+	}
+
+	/**
+	 * Stores the given number of Observations using transaction bundles, and logs the number of
+	 * resources and database rows written per second
+	 *
+	 * @return The number of Observations in the database afterwards
+	 */
+	private long loadObservations(int theCount) {
+		Patient patient = new Patient();
+		patient.addName().setFamily("BENCHMARK");
+		IIdType patientId = myPatientDao.create(patient, mySrd).getId().toUnqualifiedVersionless();
+
+		long rowsBefore = countRows();
+		long start = System.currentTimeMillis();
+		for (int bundleStart = 0; bundleStart < theCount; bundleStart += BUNDLE_SIZE) {
+			Bundle request = new Bundle();
+			request.setType(BundleType.TRANSACTION);
+			for (int i = bundleStart; i < Math.min(bundleStart + BUNDLE_SIZE, theCount); i++) {
+				Observation obs = new Observation();
+				obs.setStatus(ObservationStatus.FINAL);
+				obs.addIdentifier().setSystem("http://benchmark").setValue("OBS" + i);
+				obs.getCode().addCoding().setSystem("http://loinc.org").setCode("8867-4").setDisplay("Heart rate");
+				obs.getSubject().setReferenceElement(patientId);
+				obs.setEffective(new DateTimeType(new Date(start - i * 60000L)));
+				obs.setValue(new Quantity().setValue(60 + (i % 40)).setSystem("http://unitsofmeasure.org").setCode("/min").setUnit("beats/minute"));
+				request.addEntry().setResource(obs).getRequest().setMethod(HTTPVerb.POST).setUrl("Observation");
+			}
+			mySystemDao.transaction(mySrd, request);
+			if (bundleStart > 0 && bundleStart % 10000 == 0) {
+				ourLog.info("Stored {} of {} Observations", bundleStart, theCount);
+			}
+		}
+		long millis = Math.max(1, System.currentTimeMillis() - start);
+
+		long rows = countRows() - rowsBefore;
+		assertTrue(rows > theCount * 5L);
+		ourLog.info("Stored {} Observations ({} rows) in {}ms - {} resources/sec, {} rows/sec", new Object[] { theCount, rows, millis, theCount * 1000L / millis, rows * 1000L / millis });
+
+		return count(ResourceTable.class, "Observation");
+	}
+
+	private long countRows() {
+		long retVal = count(ResourceTable.class, null);
+		retVal += count(ResourceHistoryTable.class, null);
+		retVal += count(ResourceIndexedSearchParamDate.class, null);
+		retVal += count(ResourceIndexedSearchParamNumber.class, null);
+		retVal += count(ResourceIndexedSearchParamQuantity.class, null);
+		retVal += count(ResourceIndexedSearchParamString.class, null);
+		retVal += count(ResourceIndexedSearchParamToken.class, null);
+		retVal += count(ResourceIndexedSearchParamUri.class, null);
+		retVal += count(ResourceLink.class, null);
+		return retVal;
+	}
+
+	private long count(final Class<?> theEntityType, final String theResourceType) {
+		return newTxTemplate().execute(new TransactionCallback<Long>() {
+			@Override
+			public Long doInTransaction(TransactionStatus theStatus) {
+				if (theResourceType != null) {
+					return myEntityManager.createQuery("SELECT COUNT(t) FROM " + theEntityType.getSimpleName() + " t WHERE t.myResourceType = :type", Long.class).setParameter("type", theResourceType).getSingleResult();
+				}
+				return myEntityManager.createQuery("SELECT COUNT(t) FROM " + theEntityType.getSimpleName() + " t", Long.class).getSingleResult();
+			}
+		});
+	}
+
+	@AfterClass
+	public static void afterClassClearContext() {
+		TestUtil.clearAllStaticFieldsForUnitTest();
+	}
+
+}
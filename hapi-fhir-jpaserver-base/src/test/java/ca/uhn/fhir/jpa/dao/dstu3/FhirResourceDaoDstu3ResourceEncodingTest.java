@@ -0,0 +1,107 @@
+package ca.uhn.fhir.jpa.dao.dstu3;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.hl7.fhir.dstu3.model.Observation;
+import org.hl7.fhir.dstu3.model.Observation.ObservationStatus;
+import org.hl7.fhir.dstu3.model.Patient;
+import org.hl7.fhir.dstu3.model.Quantity;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Test;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+
+import ca.uhn.fhir.jpa.dao.DaoConfig;
+import ca.uhn.fhir.jpa.entity.ResourceEncodingEnum;
+import ca.uhn.fhir.jpa.entity.ResourceTable;
+import ca.uhn.fhir.util.TestUtil;
+
+public class FhirResourceDaoDstu3ResourceEncodingTest extends BaseJpaDstu3Test {
+
+	@After
+	public void afterResetEncoding() {
+		myDaoConfig.setResourceEncoding(new DaoConfig().getResourceEncoding());
+	}
+
+	@Test
+	public void testCreateAndReadWithEachEncoding() {
+		for (ResourceEncodingEnum next : ResourceEncodingEnum.values()) {
+			if (next == ResourceEncodingEnum.DELTA) {
+				// Only used for compacted history
+				continue;
+			}
+			myDaoConfig.setResourceEncoding(next);
+
+			Patient pt = new Patient();
+			pt.addIdentifier().setSystem("urn:system").setValue(next.name());
+			pt.addName().setFamily("Café").addGiven("東京");
+			IIdType id = myPatientDao.create(pt, mySrd).getId().toUnqualifiedVersionless();
+
+			assertEquals(next, findEntity(id).getEncoding());
+			Patient read = myPatientDao.read(id, mySrd);
+			assertEquals(next.name(), read.getIdentifier().get(0).getValue());
+			assertEquals("Café", read.getName().get(0).getFamily());
+			assertEquals("東京", read.getName().get(0).getGiven().get(0).getValue());
+		}
+	}
+
+	@Test
+	public void testHistoryWithMixedEncodings() {
+		Patient pt = new Patient();
+		pt.setActive(true);
+		IIdType id = myPatientDao.create(pt, mySrd).getId().toUnqualifiedVersionless();
+
+		myDaoConfig.setResourceEncoding(ResourceEncodingEnum.JSOND);
+		pt.setId(id);
+		pt.setActive(false);
+		myPatientDao.update(pt, mySrd);
+
+		myDaoConfig.setResourceEncoding(ResourceEncodingEnum.JSON);
+		pt.addName().setFamily("FAMILY");
+		myPatientDao.update(pt, mySrd);
+
+		List<IBaseResource> history = myPatientDao.history(id, null, null, mySrd).getResources(0, 10);
+		assertEquals(3, history.size());
+		assertEquals("FAMILY", ((Patient) history.get(0)).getName().get(0).getFamily());
+		assertEquals(false, ((Patient) history.get(1)).getActive());
+		assertEquals(true, ((Patient) history.get(2)).getActive());
+	}
+
+	@Test
+	public void testDictionaryCompressionIsSmallerForSmallResources() {
+		Observation obs = new Observation();
+		obs.setStatus(ObservationStatus.FINAL);
+		obs.getCode().addCoding().setSystem("http://loinc.org").setCode("8480-6").setDisplay("Systolic blood pressure");
+		obs.getSubject().setReference("Patient/123");
+		obs.setValue(new Quantity().setValue(120).setUnit("mmHg").setSystem("http://unitsofmeasure.org").setCode("mm[Hg]"));
+
+		myDaoConfig.setResourceEncoding(ResourceEncodingEnum.JSONC);
+		int gzipLength = findEntity(myObservationDao.create(obs, mySrd).getId()).getResource().length;
+
+		myDaoConfig.setResourceEncoding(ResourceEncodingEnum.JSOND);
+		int deflateLength = findEntity(myObservationDao.create(obs, mySrd).getId()).getResource().length;
+
+		assertTrue("Expected " + deflateLength + " < " + gzipLength, deflateLength < gzipLength);
+	}
+
+	private ResourceTable findEntity(final IIdType theId) {
+		return newTxTemplate().execute(new TransactionCallback<ResourceTable>() {
+			@Override
+			public ResourceTable doInTransaction(TransactionStatus theStatus) {
+				return myEntityManager.find(ResourceTable.class, theId.getIdPartAsLong());
+			}
+		});
+	}
+
+	@AfterClass
+	public static void afterClassClearContext() {
+		TestUtil.clearAllStaticFieldsForUnitTest();
+	}
+
+}
@@ -0,0 +1,213 @@
+package ca.uhn.fhir.jpa.dao.dstu3;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+
+import org.hl7.fhir.dstu3.model.Enumerations.AdministrativeGender;
+import org.hl7.fhir.dstu3.model.Patient;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import ca.uhn.fhir.jpa.dao.DaoConfig;
+import ca.uhn.fhir.jpa.dao.SearchParameterMap;
+import ca.uhn.fhir.jpa.dao.data.ISearchDao;
+import ca.uhn.fhir.jpa.entity.Search;
+import ca.uhn.fhir.jpa.entity.SearchStatusEnum;
+import ca.uhn.fhir.jpa.search.PersistedJpaBundleProvider;
+import ca.uhn.fhir.jpa.search.SearchResultWriterSvc;
+import ca.uhn.fhir.rest.param.StringParam;
+import ca.uhn.fhir.rest.param.TokenParam;
+import ca.uhn.fhir.rest.server.IBundleProvider;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import ca.uhn.fhir.util.TestUtil;
+
+public class FhirResourceDaoDstu3SearchAsyncLoadingTest extends BaseJpaDstu3Test {
+
+	@Autowired
+	private ISearchDao mySearchEntityDao;
+
+	@Autowired
+	private SearchResultWriterSvc mySearchResultWriterSvc;
+
+	@After
+	public void afterResetAsyncLoading() {
+		myDaoConfig.setLoadSearchResultsAsynchronously(new DaoConfig().isLoadSearchResultsAsynchronously());
+	}
+
+	@Before
+	public void beforeEnableAsyncLoading() {
+		myDaoConfig.setLoadSearchResultsAsynchronously(true);
+	}
+
+	@Test
+	public void testSearchLoadsRemainingResultsInBackground() throws Exception {
+		List<IIdType> ids = new ArrayList<IIdType>();
+		for (int i = 0; i < 250; i++) {
+			Patient patient = new Patient();
+			patient.addName().setFamily("ASYNCLOAD");
+			ids.add(myPatientDao.create(patient, mySrd).getId().toUnqualifiedVersionless());
+		}
+
+		SearchParameterMap params = new SearchParameterMap();
+		params.add(Patient.SP_FAMILY, new StringParam("ASYNCLOAD"));
+		IBundleProvider results = myPatientDao.search(params);
+
+		// The first page is available straight away
+		int size = results.size();
+		assertTrue("Size was " + size, size >= 100 && size <= 250);
+		assertEquals(10, results.getResources(0, 10).size());
+
+		// Asking for later results waits for them to be loaded
+		List<IBaseResource> all = results.getResources(0, 250);
+		assertEquals(250, all.size());
+		assertEquals(250, results.size());
+
+		HashSet<IIdType> foundIds = new HashSet<IIdType>();
+		for (IBaseResource next : all) {
+			foundIds.add(next.getIdElement().toUnqualifiedVersionless());
+		}
+		assertEquals(new HashSet<IIdType>(ids), foundIds);
+	}
+
+	@Test
+	public void testSearchFailedWhileLoadingIsNotServed() {
+		IBundleProvider results = searchAndLoadAll("ASYNCLOADFAILED", 150);
+		final String uuid = ((PersistedJpaBundleProvider) results).getSearchUuid();
+		setSearchStatus(uuid, SearchStatusEnum.FAILED);
+
+		IBundleProvider reloaded = new PersistedJpaBundleProvider(uuid, myPatientDao);
+		try {
+			reloaded.getResources(0, 10);
+			fail();
+		} catch (InternalErrorException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains(uuid));
+		}
+		try {
+			reloaded.size();
+			fail();
+		} catch (InternalErrorException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains(uuid));
+		}
+
+		// A failed search is not reused
+		SearchParameterMap params = new SearchParameterMap();
+		params.add(Patient.SP_FAMILY, new StringParam("ASYNCLOADFAILED"));
+		IBundleProvider repeated = myPatientDao.search(params);
+		assertTrue(!uuid.equals(((PersistedJpaBundleProvider) repeated).getSearchUuid()));
+		assertEquals(150, repeated.getResources(0, 150).size());
+	}
+
+	@Test
+	public void testSearchLeftLoadingAtShutdownIsFailedAtStartup() {
+		IBundleProvider results = searchAndLoadAll("ASYNCLOADORPHAN", 150);
+		String uuid = ((PersistedJpaBundleProvider) results).getSearchUuid();
+
+		// Simulate a server which was stopped while the results were still being loaded
+		setSearchStatus(uuid, SearchStatusEnum.LOADING);
+		assertTrue(mySearchResultWriterSvc.failLoadingSearchesCreatedBefore(new Date()) >= 1);
+
+		long start = System.currentTimeMillis();
+		try {
+			new PersistedJpaBundleProvider(uuid, myPatientDao).getResources(140, 150);
+			fail();
+		} catch (InternalErrorException e) {
+			// good
+		}
+		long elapsed = System.currentTimeMillis() - start;
+		assertTrue("Took " + elapsed + "ms", elapsed < 10000);
+	}
+
+	/**
+	 * The last parameter is applied to more candidates than fit in one query, and its results are
+	 * streamed into the search result table
+	 */
+	@Test
+	public void testSearchStreamsLastParameterWithManyCandidates() {
+		List<IIdType> ids = new ArrayList<IIdType>();
+		for (int i = 0; i < 1100; i++) {
+			Patient patient = new Patient();
+			patient.addName().setFamily("ASYNCLOADSTREAM");
+			patient.setGender(i % 2 == 0 ? AdministrativeGender.MALE : AdministrativeGender.FEMALE);
+			IIdType id = myPatientDao.create(patient, mySrd).getId().toUnqualifiedVersionless();
+			if (i % 2 == 0) {
+				ids.add(id);
+			}
+		}
+
+		SearchParameterMap params = new SearchParameterMap();
+		params.add(Patient.SP_FAMILY, new StringParam("ASYNCLOADSTREAM"));
+		params.add(Patient.SP_GENDER, new TokenParam(null, "male"));
+		IBundleProvider results = myPatientDao.search(params);
+
+		int size = results.size();
+		assertTrue("Size was " + size, size >= 100 && size <= 550);
+
+		List<IBaseResource> all = results.getResources(0, 550);
+		assertEquals(550, all.size());
+		assertEquals(550, results.size());
+
+		HashSet<IIdType> foundIds = new HashSet<IIdType>();
+		for (IBaseResource next : all) {
+			foundIds.add(next.getIdElement().toUnqualifiedVersionless());
+		}
+		assertEquals(new HashSet<IIdType>(ids), foundIds);
+	}
+
+	@Test
+	public void testSearchWithFewResultsIsLoadedImmediately() {
+		Patient patient = new Patient();
+		patient.addName().setFamily("ASYNCLOADSMALL");
+		IIdType id = myPatientDao.create(patient, mySrd).getId().toUnqualifiedVersionless();
+
+		SearchParameterMap params = new SearchParameterMap();
+		params.add(Patient.SP_FAMILY, new StringParam("ASYNCLOADSMALL"));
+		IBundleProvider results = myPatientDao.search(params);
+		assertEquals(1, results.size());
+		assertEquals(id, results.getResources(0, 1).get(0).getIdElement().toUnqualifiedVersionless());
+	}
+
+	private IBundleProvider searchAndLoadAll(String theFamily, int theCount) {
+		for (int i = 0; i < theCount; i++) {
+			Patient patient = new Patient();
+			patient.addName().setFamily(theFamily);
+			myPatientDao.create(patient, mySrd);
+		}
+
+		SearchParameterMap params = new SearchParameterMap();
+		params.add(Patient.SP_FAMILY, new StringParam(theFamily));
+		IBundleProvider retVal = myPatientDao.search(params);
+		assertEquals(theCount, retVal.getResources(0, theCount).size());
+		return retVal;
+	}
+
+	private void setSearchStatus(final String theUuid, final SearchStatusEnum theStatus) {
+		new TransactionTemplate(myTxManager).execute(new TransactionCallbackWithoutResult() {
+			@Override
+			protected void doInTransactionWithoutResult(TransactionStatus theTxStatus) {
+				Search search = mySearchEntityDao.findByUuid(theUuid);
+				search.setStatus(theStatus);
+				search.setCreated(new Date(System.currentTimeMillis() - 1000));
+			}
+		});
+	}
+
+	@AfterClass
+	public static void afterClassClearContext() {
+		TestUtil.clearAllStaticFieldsForUnitTest();
+	}
+
+}
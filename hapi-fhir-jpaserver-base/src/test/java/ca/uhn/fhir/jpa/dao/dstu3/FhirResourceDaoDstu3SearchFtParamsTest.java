@@ -0,0 +1,204 @@
+package ca.uhn.fhir.jpa.dao.dstu3;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.empty;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+
+import java.util.List;
+
+import org.hl7.fhir.dstu3.model.DateTimeType;
+import org.hl7.fhir.dstu3.model.Observation;
+import org.hl7.fhir.dstu3.model.Observation.ObservationStatus;
+import org.hl7.fhir.dstu3.model.Patient;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.Test;
+
+import ca.uhn.fhir.jpa.dao.DaoConfig;
+import ca.uhn.fhir.jpa.dao.SearchParameterMap;
+import ca.uhn.fhir.model.api.IQueryParameterType;
+import ca.uhn.fhir.rest.api.SortSpec;
+import ca.uhn.fhir.rest.param.DateParam;
+import ca.uhn.fhir.rest.param.DateRangeParam;
+import ca.uhn.fhir.rest.param.ParamPrefixEnum;
+import ca.uhn.fhir.rest.param.StringParam;
+import ca.uhn.fhir.rest.param.TokenOrListParam;
+import ca.uhn.fhir.rest.param.TokenParam;
+import ca.uhn.fhir.rest.server.Constants;
+import ca.uhn.fhir.util.TestUtil;
+
+/**
+ * Tests searches which combine fulltext parameters with regular search parameters, when the regular
+ * parameters are also in the fulltext index
+ */
+public class FhirResourceDaoDstu3SearchFtParamsTest extends BaseJpaDstu3Test {
+
+	@After
+	public void afterResetFulltextSearchParams() {
+		myDaoConfig.setIndexSearchParamsInFulltextIndex(new DaoConfig().isIndexSearchParamsInFulltextIndex());
+		myDaoConfig.setFulltextSearchResultLimit(new DaoConfig().getFulltextSearchResultLimit());
+	}
+
+	@Before
+	public void beforeEnableFulltextSearchParams() {
+		myDaoConfig.setIndexSearchParamsInFulltextIndex(true);
+	}
+
+	private IIdType createObservation(String theText, String theSystem, String theCode, String theDate) {
+		Observation obs = new Observation();
+		obs.setStatus(ObservationStatus.FINAL);
+		obs.getCode().addCoding().setSystem(theSystem).setCode(theCode);
+		obs.getCode().setText(theText);
+		obs.setEffective(new DateTimeType(theDate));
+		return myObservationDao.create(obs, mySrd).getId().toUnqualifiedVersionless();
+	}
+
+	/**
+	 * Searches with the fulltext index and then again with the search parameter tables, and checks
+	 * that both return the same results
+	 */
+	private List<String> searchBothWays(SearchParameterMap theParams) {
+		List<String> retVal = toUnqualifiedVersionlessIdValues(myObservationDao.search(theParams));
+		myDaoConfig.setIndexSearchParamsInFulltextIndex(false);
+		try {
+			assertThat(toUnqualifiedVersionlessIdValues(myObservationDao.search(theParams)), containsInAnyOrder(retVal.toArray()));
+		} finally {
+			myDaoConfig.setIndexSearchParamsInFulltextIndex(true);
+		}
+		return retVal;
+	}
+
+	@Test
+	public void testSearchContentAndDate() {
+		IIdType id1 = createObservation("blood pressure", "http://loinc.org", "1", "2011-01-01");
+		IIdType id2 = createObservation("blood pressure", "http://loinc.org", "1", "2012-01-01");
+		createObservation("heart rate", "http://loinc.org", "1", "2012-01-01");
+
+		SearchParameterMap map = new SearchParameterMap();
+		map.add(Constants.PARAM_CONTENT, new StringParam("blood"));
+		map.add(Observation.SP_DATE, (IQueryParameterType) new DateParam(ParamPrefixEnum.GREATERTHAN_OR_EQUALS, "2012-01-01"));
+		assertThat(searchBothWays(map), contains(id2.getValue()));
+
+		map = new SearchParameterMap();
+		map.add(Constants.PARAM_CONTENT, new StringParam("blood"));
+		map.add(Observation.SP_DATE, (IQueryParameterType) new DateParam("2011-01-01"));
+		assertThat(searchBothWays(map), contains(id1.getValue()));
+
+		map = new SearchParameterMap();
+		map.add(Constants.PARAM_CONTENT, new StringParam("blood"));
+		map.add(Observation.SP_DATE, new DateRangeParam("2010-01-01", "2011-06-01"));
+		assertThat(searchBothWays(map), contains(id1.getValue()));
+
+		map = new SearchParameterMap();
+		map.add(Constants.PARAM_CONTENT, new StringParam("blood"));
+		map.add(Observation.SP_DATE, (IQueryParameterType) new DateParam(ParamPrefixEnum.LESSTHAN, "2010-01-01"));
+		assertThat(searchBothWays(map), empty());
+	}
+
+	@Test
+	public void testSearchContentAndString() {
+		Patient pt1 = new Patient();
+		pt1.addName().setFamily("Smith").addGiven("Blue");
+		IIdType id1 = myPatientDao.create(pt1, mySrd).getId().toUnqualifiedVersionless();
+
+		Patient pt2 = new Patient();
+		pt2.addName().setFamily("SMITHSON").addGiven("Blue");
+		IIdType id2 = myPatientDao.create(pt2, mySrd).getId().toUnqualifiedVersionless();
+
+		Patient pt3 = new Patient();
+		pt3.addName().setFamily("Smith").addGiven("Green");
+		myPatientDao.create(pt3, mySrd);
+
+		SearchParameterMap map = new SearchParameterMap();
+		map.add(Constants.PARAM_CONTENT, new StringParam("blue"));
+		map.add(Patient.SP_FAMILY, new StringParam("smith"));
+		assertThat(toUnqualifiedVersionlessIdValues(myPatientDao.search(map)), containsInAnyOrder(id1.getValue(), id2.getValue()));
+
+		map = new SearchParameterMap();
+		map.add(Constants.PARAM_CONTENT, new StringParam("blue"));
+		map.add(Patient.SP_FAMILY, new StringParam("Smith").setExact(true));
+		assertThat(toUnqualifiedVersionlessIdValues(myPatientDao.search(map)), contains(id1.getValue()));
+	}
+
+	@Test
+	public void testSearchContentAndToken() {
+		IIdType id1 = createObservation("blood pressure", "http://loinc.org", "1", "2011-01-01");
+		IIdType id2 = createObservation("blood pressure", "http://loinc.org", "2", "2011-01-01");
+		IIdType id3 = createObservation("blood pressure", "http://foo", "1", "2011-01-01");
+		createObservation("heart rate", "http://loinc.org", "1", "2011-01-01");
+
+		SearchParameterMap map = new SearchParameterMap();
+		map.add(Constants.PARAM_CONTENT, new StringParam("blood"));
+		map.add(Observation.SP_CODE, new TokenParam("http://loinc.org", "1"));
+		assertThat(searchBothWays(map), contains(id1.getValue()));
+
+		map = new SearchParameterMap();
+		map.add(Constants.PARAM_CONTENT, new StringParam("blood"));
+		map.add(Observation.SP_CODE, new TokenParam(null, "1"));
+		assertThat(searchBothWays(map), containsInAnyOrder(id1.getValue(), id3.getValue()));
+
+		map = new SearchParameterMap();
+		map.add(Constants.PARAM_CONTENT, new StringParam("blood"));
+		map.add(Observation.SP_CODE, new TokenOrListParam().addOr(new TokenParam("http://loinc.org", "1")).addOr(new TokenParam("http://loinc.org", "2")));
+		assertThat(searchBothWays(map), containsInAnyOrder(id1.getValue(), id2.getValue()));
+
+		map = new SearchParameterMap();
+		map.add(Constants.PARAM_CONTENT, new StringParam("blood"));
+		map.add(Observation.SP_STATUS, new TokenParam(null, "final"));
+		map.add(Observation.SP_CODE, new TokenParam("http://loinc.org", "3"));
+		assertThat(searchBothWays(map), empty());
+	}
+
+	@Test
+	public void testSearchResultLimit() {
+		for (int i = 0; i < 5; i++) {
+			createObservation("blood pressure", "http://loinc.org", "1", "2011-01-01");
+		}
+		myDaoConfig.setFulltextSearchResultLimit(3);
+
+		SearchParameterMap map = new SearchParameterMap();
+		map.add(Constants.PARAM_CONTENT, new StringParam("blood"));
+		map.add(Observation.SP_CODE, new TokenParam("http://loinc.org", "1"));
+		assertEquals(3, toUnqualifiedVersionlessIdValues(myObservationDao.search(map)).size());
+
+		// _lastUpdated is checked by the database, so every fulltext match is collected
+		map = new SearchParameterMap();
+		map.add(Constants.PARAM_CONTENT, new StringParam("blood"));
+		map.add(Observation.SP_CODE, new TokenParam("http://loinc.org", "1"));
+		map.setLastUpdated(new DateRangeParam("2001-01-01", null));
+		assertEquals(5, toUnqualifiedVersionlessIdValues(myObservationDao.search(map)).size());
+
+		map = new SearchParameterMap();
+		map.add(Constants.PARAM_CONTENT, new StringParam("blood"));
+		map.add(Observation.SP_CODE, new TokenParam("http://loinc.org", "1"));
+		map.setSort(new SortSpec(Constants.PARAM_LASTUPDATED));
+		assertEquals(5, toUnqualifiedVersionlessIdValues(myObservationDao.search(map)).size());
+	}
+
+	@Test
+	public void testSearchWithoutFulltextParamsUsesDatabase() {
+		myDaoConfig.setIndexSearchParamsInFulltextIndex(false);
+		IIdType id1 = createObservation("blood pressure", "http://loinc.org", "1", "2011-01-01");
+		myDaoConfig.setIndexSearchParamsInFulltextIndex(true);
+
+		SearchParameterMap map = new SearchParameterMap();
+		map.add(Observation.SP_CODE, new TokenParam("http://loinc.org", "1"));
+		assertThat(toUnqualifiedVersionlessIdValues(myObservationDao.search(map)), contains(id1.getValue()));
+
+		// Resources indexed before the setting was enabled need to be reindexed
+		map = new SearchParameterMap();
+		map.add(Constants.PARAM_CONTENT, new StringParam("blood"));
+		map.add(Observation.SP_CODE, new TokenParam("http://loinc.org", "1"));
+		assertThat(toUnqualifiedVersionlessIdValues(myObservationDao.search(map)), empty());
+	}
+
+	@AfterClass
+	public static void afterClassClearContext() {
+		TestUtil.clearAllStaticFieldsForUnitTest();
+	}
+
+}
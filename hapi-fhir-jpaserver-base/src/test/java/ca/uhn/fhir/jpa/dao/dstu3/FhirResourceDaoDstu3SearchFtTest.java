@@ -9,6 +9,7 @@ import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertThat;
 import static org.mockito.Mockito.mock;
 
+import java.util.ArrayList;
 import java.util.List;
 
 import javax.servlet.http.HttpServletRequest;
@@ -22,12 +23,17 @@ import org.hl7.fhir.dstu3.model.Patient;
 import org.hl7.fhir.dstu3.model.Quantity;
 import org.hl7.fhir.dstu3.model.StringType;
 import org.hl7.fhir.instance.model.api.IIdType;
+import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Ignore;
 import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
 
+import ca.uhn.fhir.jpa.dao.BaseHapiFhirDao;
+import ca.uhn.fhir.jpa.dao.DaoConfig;
 import ca.uhn.fhir.jpa.dao.FulltextSearchSvcImpl.Suggestion;
 import ca.uhn.fhir.jpa.dao.SearchParameterMap;
+import ca.uhn.fhir.jpa.search.KeywordSuggestionSvc;
 import ca.uhn.fhir.rest.param.StringAndListParam;
 import ca.uhn.fhir.rest.param.StringOrListParam;
 import ca.uhn.fhir.rest.param.StringParam;
@@ -41,6 +47,20 @@ public class FhirResourceDaoDstu3SearchFtTest extends BaseJpaDstu3Test {
 	
 	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(FhirResourceDaoDstu3SearchFtTest.class);
 
+	@Autowired
+	private KeywordSuggestionSvc myKeywordSuggestionSvc;
+
+	@After
+	public void afterResetFulltextSearchResultLimit() {
+		myDaoConfig.setFulltextSearchResultLimit(new DaoConfig().getFulltextSearchResultLimit());
+	}
+
+	@After
+	public void afterResetSuggestKeywordsFromDictionary() {
+		myDaoConfig.setSuggestKeywordsFromDictionary(new DaoConfig().isSuggestKeywordsFromDictionary());
+		myKeywordSuggestionSvc.clearCache();
+	}
+
 	@AfterClass
 	public static void afterClassClearContext() {
 		TestUtil.clearAllStaticFieldsForUnitTest();
@@ -115,6 +135,83 @@ public class FhirResourceDaoDstu3SearchFtTest extends BaseJpaDstu3Test {
 
 	}
 
+	@Test
+	public void testResourceTextSearchKeepsRelevanceOrder() {
+		String[] texts = { "Blood pressure measured at rest after a long walk", "Blood pressure", "Blood", "Pressure of blood measured" };
+		for (String next : texts) {
+			Observation obs = new Observation();
+			obs.getCode().setText(next);
+			obs.setStatus(ObservationStatus.FINAL);
+			myObservationDao.create(obs, mySrd);
+		}
+
+		SearchParameterMap map = new SearchParameterMap();
+		map.add(Constants.PARAM_CONTENT, new StringParam("blood"));
+		List<String> relevanceOrder = toUnqualifiedVersionlessIdValues(myObservationDao.search(map));
+		assertEquals(4, relevanceOrder.size());
+
+		// The status is checked by the database, but the results stay in order of relevance
+		map = new SearchParameterMap();
+		map.add(Constants.PARAM_CONTENT, new StringParam("blood"));
+		map.add(Observation.SP_STATUS, new TokenParam(null, "final"));
+		assertEquals(relevanceOrder, toUnqualifiedVersionlessIdValues(myObservationDao.search(map)));
+	}
+
+	@Test
+	public void testResourceTextSearchResultLimit() {
+		for (int i = 0; i < 5; i++) {
+			Observation obs = new Observation();
+			obs.getCode().setText("Blood Pressure " + i);
+			obs.setStatus(ObservationStatus.FINAL);
+			myObservationDao.create(obs, mySrd);
+		}
+		myDaoConfig.setFulltextSearchResultLimit(3);
+
+		SearchParameterMap map = new SearchParameterMap();
+		map.add(Constants.PARAM_CONTENT, new StringParam("blood"));
+		assertEquals(3, toUnqualifiedVersionlessIdValues(myObservationDao.search(map)).size());
+
+		// The status is checked by the database, so every fulltext match is collected
+		map = new SearchParameterMap();
+		map.add(Constants.PARAM_CONTENT, new StringParam("blood"));
+		map.add(Observation.SP_STATUS, new TokenParam(null, "final"));
+		assertEquals(5, toUnqualifiedVersionlessIdValues(myObservationDao.search(map)).size());
+	}
+
+	@Test
+	public void testNarrativeTextSearchWithNestedElements() {
+		Patient patient = new Patient();
+		patient.getText().setDivAsString("<div><table><tr><td>CELLAAA</td><td><b>BOLD</b>TAIL</td></tr></table><p>Fish &amp; PARAAA</p></div>");
+		IIdType pId1 = myPatientDao.create(patient, mockSrd()).getId().toUnqualifiedVersionless();
+
+		for (String next : new String[] { "CELLAAA", "BOLD", "TAIL", "PARAAA" }) {
+			SearchParameterMap map = new SearchParameterMap();
+			map.add(Constants.PARAM_TEXT, new StringParam(next));
+			assertThat(next, toUnqualifiedVersionlessIdValues(myPatientDao.search(map)), contains(toValues(pId1)));
+		}
+	}
+
+	@Test
+	public void testNarrativeTextBeyondMaximumLengthIsNotIndexed() {
+		StringBuilder div = new StringBuilder("<div>STARTAAA ");
+		while (div.length() < BaseHapiFhirDao.MAX_FULLTEXT_TEXT_LENGTH) {
+			div.append("<p>filler filler filler filler</p>");
+		}
+		div.append(" ENDAAA</div>");
+
+		Patient patient = new Patient();
+		patient.getText().setDivAsString(div.toString());
+		IIdType pId1 = myPatientDao.create(patient, mockSrd()).getId().toUnqualifiedVersionless();
+
+		SearchParameterMap map = new SearchParameterMap();
+		map.add(Constants.PARAM_TEXT, new StringParam("STARTAAA"));
+		assertThat(toUnqualifiedVersionlessIdValues(myPatientDao.search(map)), contains(toValues(pId1)));
+
+		map = new SearchParameterMap();
+		map.add(Constants.PARAM_TEXT, new StringParam("ENDAAA"));
+		assertThat(toUnqualifiedVersionlessIdValues(myPatientDao.search(map)), empty());
+	}
+
 	private ServletRequestDetails mockSrd() {
 		return mySrd;
 	}
@@ -183,6 +280,62 @@ public class FhirResourceDaoDstu3SearchFtTest extends BaseJpaDstu3Test {
 		assertEquals(0, output.size());
 	}
 	
+	@Test
+	public void testSuggestFromDictionary() {
+		myDaoConfig.setSuggestKeywordsFromDictionary(true);
+
+		Patient patient = new Patient();
+		patient.addName().setFamily("testSuggest");
+		IIdType ptId = myPatientDao.create(patient, mockSrd()).getId().toUnqualifiedVersionless();
+		String context = "Patient/" + ptId.getIdPart() + "/$everything";
+
+		Observation obs = new Observation();
+		obs.getSubject().setReferenceElement(ptId);
+		obs.getCode().setText("ZXCVBNM ASDFGHJKL QWERTYUIOPASDFGHJKL");
+		myObservationDao.create(obs, mockSrd());
+
+		Observation obs3 = new Observation();
+		obs3.getSubject().setReferenceElement(ptId);
+		obs3.getCode().setText("ZXC HELLO");
+		IIdType obs3Id = myObservationDao.create(obs3, mockSrd()).getId().toUnqualifiedVersionless();
+
+		// Another patient's resources aren't included
+		patient = new Patient();
+		patient.addName().setFamily("testSuggest2");
+		IIdType ptId2 = myPatientDao.create(patient, mockSrd()).getId().toUnqualifiedVersionless();
+		obs = new Observation();
+		obs.getSubject().setReferenceElement(ptId2);
+		obs.getCode().setText("ZXCVBNMZZ");
+		myObservationDao.create(obs, mockSrd());
+
+		assertThat(toTerms(mySearchDao.suggestKeywords(context, "_content", "ZXC")), contains("ZXC", "ZXC HELLO", "ZXCVBNM", "ZXCVBNM ASDFGHJKL"));
+		assertThat(toTerms(mySearchDao.suggestKeywords(context, "_content", "zxcvbnm as")), contains("ZXCVBNM ASDFGHJKL"));
+		assertThat(toTerms(mySearchDao.suggestKeywords(context, "_content", "Z")), empty());
+
+		// The dictionary is updated as resources are written
+		obs = new Observation();
+		obs.getSubject().setReferenceElement(ptId);
+		obs.getCode().setText("ZXCQQ");
+		IIdType obs4Id = myObservationDao.create(obs, mockSrd()).getId().toUnqualifiedVersionless();
+		assertThat(toTerms(mySearchDao.suggestKeywords(context, "_content", "ZXC")), contains("ZXC", "ZXC HELLO", "ZXCQQ", "ZXCVBNM", "ZXCVBNM ASDFGHJKL"));
+
+		obs3.setId(obs3Id);
+		obs3.getCode().setText("GOODBYE");
+		myObservationDao.update(obs3, mockSrd());
+		assertThat(toTerms(mySearchDao.suggestKeywords(context, "_content", "ZXC")), contains("ZXCQQ", "ZXCVBNM", "ZXCVBNM ASDFGHJKL"));
+
+		myObservationDao.delete(obs4Id, mockSrd());
+		assertThat(toTerms(mySearchDao.suggestKeywords(context, "_content", "ZXC")), contains("ZXCVBNM", "ZXCVBNM ASDFGHJKL"));
+	}
+
+	private static List<String> toTerms(List<Suggestion> theSuggestions) {
+		List<String> retVal = new ArrayList<String>();
+		for (Suggestion next : theSuggestions) {
+			retVal.add(next.getTerm());
+		}
+		return retVal;
+	}
+
 	@Test
 	public void testSuggest() {
 		Patient patient = new Patient();
@@ -46,6 +46,8 @@ import org.springframework.transaction.support.TransactionTemplate;
 
 import ca.uhn.fhir.jpa.dao.BaseHapiFhirDao;
 import ca.uhn.fhir.jpa.dao.DaoConfig;
+import ca.uhn.fhir.jpa.dao.IncludeRoundTiming;
+import ca.uhn.fhir.jpa.dao.SearchBuilder;
 import ca.uhn.fhir.jpa.dao.SearchParameterMap;
 import ca.uhn.fhir.jpa.dao.SearchParameterMap.EverythingModeEnum;
 import ca.uhn.fhir.jpa.entity.*;
@@ -95,6 +97,98 @@ public class FhirResourceDaoDstu3SearchNoFtTest extends BaseJpaDstu3Test {
 		assertEquals(Condition.class, foundResources.get(1).getClass());
 	}
 
+	@Test
+	public void testSearchWithMultipleRevIncludesUsesOneStatement() {
+		Patient p = new Patient();
+		p.addName().setFamily("testSearchWithMultipleRevIncludesUsesOneStatement");
+		final IIdType pid = myPatientDao.create(p, mySrd).getId().toUnqualifiedVersionless();
+
+		Condition c = new Condition();
+		c.getSubject().setReferenceElement(pid);
+		IIdType cid = myConditionDao.create(c, mySrd).getId().toUnqualifiedVersionless();
+
+		Observation o = new Observation();
+		o.getSubject().setReferenceElement(pid);
+		IIdType oid = myObservationDao.create(o, mySrd).getId().toUnqualifiedVersionless();
+
+		Encounter e = new Encounter();
+		e.getPatient().setReferenceElement(pid);
+		IIdType eid = myEncounterDao.create(e, mySrd).getId().toUnqualifiedVersionless();
+
+		final Set<Include> revIncludes = new HashSet<Include>();
+		revIncludes.add(Condition.INCLUDE_PATIENT);
+		revIncludes.add(Observation.INCLUDE_SUBJECT);
+		revIncludes.add(Encounter.INCLUDE_PATIENT);
+
+		final List<IncludeRoundTiming> timings = new ArrayList<IncludeRoundTiming>();
+		Set<Long> included = newTxTemplate().execute(new TransactionCallback<Set<Long>>() {
+			@Override
+			public Set<Long> doInTransaction(TransactionStatus theStatus) {
+				List<Long> matches = new ArrayList<Long>();
+				matches.add(pid.getIdPartAsLong());
+				return SearchBuilder.loadReverseIncludes(myFhirCtx, myEntityManager, matches, revIncludes, true, null, timings);
+			}
+		});
+		assertThat(included, containsInAnyOrder(cid.getIdPartAsLong(), oid.getIdPartAsLong(), eid.getIdPartAsLong()));
+
+		// All of the revincludes are loaded by a single statement
+		assertEquals(1, timings.size());
+		assertEquals(1, timings.get(0).getStatementCount());
+		assertEquals(3, timings.get(0).getFoundCount());
+
+		SearchParameterMap map = new SearchParameterMap();
+		map.add(Patient.SP_RES_ID, new StringParam(pid.getIdPart()));
+		map.setRevIncludes(revIncludes);
+		assertThat(toUnqualifiedVersionlessIds(myPatientDao.search(map)), containsInAnyOrder(pid, cid, oid, eid));
+	}
+
+	@Test
+	public void testSearchReturnsTagsProfilesAndSecurityLabels() {
+		String methodName = "testSearchReturnsTagsProfilesAndSecurityLabels";
+
+		Patient p1 = new Patient();
+		p1.addName().setFamily(methodName);
+		p1.getMeta().addTag("urn:tags", "shared", null);
+		p1.getMeta().addProfile("http://profile/" + methodName);
+		p1.getMeta().addSecurity().setSystem("urn:security").setCode("secret");
+		IIdType id1 = myPatientDao.create(p1, mySrd).getId().toUnqualifiedVersionless();
+
+		Patient p2 = new Patient();
+		p2.addName().setFamily(methodName);
+		p2.getMeta().addTag("urn:tags", "shared", null);
+		IIdType id2 = myPatientDao.create(p2, mySrd).getId().toUnqualifiedVersionless();
+
+		Patient p3 = new Patient();
+		p3.addName().setFamily(methodName);
+		IIdType id3 = myPatientDao.create(p3, mySrd).getId().toUnqualifiedVersionless();
+
+		SearchParameterMap map = new SearchParameterMap();
+		map.add(Patient.SP_FAMILY, new StringParam(methodName));
+		IBundleProvider results = myPatientDao.search(map);
+		assertEquals(3, results.size());
+
+		for (IBaseResource next : results.getResources(0, 3)) {
+			Patient found = (Patient) next;
+			IIdType id = found.getIdElement().toUnqualifiedVersionless();
+			if (id.equals(id1)) {
+				assertEquals(1, found.getMeta().getTag().size());
+				assertEquals("shared", found.getMeta().getTag().get(0).getCode());
+				assertEquals(1, found.getMeta().getProfile().size());
+				assertEquals("http://profile/" + methodName, found.getMeta().getProfile().get(0).getValue());
+				assertEquals(1, found.getMeta().getSecurity().size());
+				assertEquals("secret", found.getMeta().getSecurity().get(0).getCode());
+			} else if (id.equals(id2)) {
+				assertEquals(1, found.getMeta().getTag().size());
+				assertEquals("urn:tags", found.getMeta().getTag().get(0).getSystem());
+				assertEquals(0, found.getMeta().getProfile().size());
+				assertEquals(0, found.getMeta().getSecurity().size());
+			} else {
+				assertEquals(id3, id);
+				assertEquals(0, found.getMeta().getTag().size());
+			}
+		}
+	}
+
 	/**
 	 * #454
 	 */
@@ -1577,6 +1671,77 @@ public class FhirResourceDaoDstu3SearchNoFtTest extends BaseJpaDstu3Test {
 		assertThat(toUnqualifiedVersionlessIds(bundleProvider), not(containsInAnyOrder(pid1, pid2)));
 	}
 
+	/**
+	 * More candidate PIDs than most databases accept as bind variables in a single statement,
+	 * so each later parameter, _lastUpdated and sort query runs in chunks
+	 */
+	@Test
+	public void testSearchWithMoreCandidatesThanBindVariableLimit() {
+		Date start = new Date();
+		List<String> expected = new ArrayList<String>();
+		for (int i = 0; i < 2200; i++) {
+			Patient patient = new Patient();
+			patient.addName().setFamily("MANYPIDS").addGiven(String.format("GIVEN%05d", i));
+			patient.setGender(i % 2 == 0 ? AdministrativeGender.MALE : AdministrativeGender.FEMALE);
+			IIdType id = myPatientDao.create(patient, mySrd).getId().toUnqualifiedVersionless();
+			if (i % 2 == 0) {
+				expected.add(id.getValue());
+			}
+		}
+
+		SearchParameterMap params = new SearchParameterMap();
+		params.add(Patient.SP_FAMILY, new StringParam("MANYPIDS"));
+		params.add(Patient.SP_GENDER, new TokenParam(null, "male"));
+		params.setLastUpdated(new DateRangeParam(start, null));
+		assertThat(toUnqualifiedVersionlessIdValues(myPatientDao.search(params)), containsInAnyOrder(expected.toArray()));
+
+		// The chunks are sorted separately, and must be merged into a single order
+		params = new SearchParameterMap();
+		params.add(Patient.SP_FAMILY, new StringParam("MANYPIDS"));
+		params.add(Patient.SP_GENDER, new TokenParam(null, "male"));
+		params.setSort(new SortSpec(Patient.SP_GIVEN, SortOrderEnum.DESC));
+		Collections.reverse(expected);
+		assertEquals(expected, toUnqualifiedVersionlessIdValues(myPatientDao.search(params)));
+	}
+
+	@Test
+	public void testSearchPersistsOnlyFinalResults() {
+		IIdType id1;
+		{
+			Patient patient = new Patient();
+			patient.addName().setFamily("PERSISTFINAL");
+			patient.setActive(true);
+			patient.setGender(AdministrativeGender.MALE);
+			id1 = myPatientDao.create(patient, mySrd).getId().toUnqualifiedVersionless();
+		}
+		{
+			Patient patient = new Patient();
+			patient.addName().setFamily("PERSISTFINAL");
+			patient.setActive(true);
+			patient.setGender(AdministrativeGender.FEMALE);
+			myPatientDao.create(patient, mySrd);
+		}
+		{
+			Patient patient = new Patient();
+			patient.addName().setFamily("PERSISTFINAL");
+			patient.setActive(false);
+			patient.setGender(AdministrativeGender.MALE);
+			myPatientDao.create(patient, mySrd);
+		}
+
+		long countBefore = mySearchResultDao.count();
+
+		SearchParameterMap params = new SearchParameterMap();
+		params.add(Patient.SP_FAMILY, new StringParam("PERSISTFINAL"));
+		params.add(Patient.SP_ACTIVE, new TokenParam(null, "true"));
+		params.add(Patient.SP_GENDER, new TokenParam(null, "male"));
+		IBundleProvider results = myPatientDao.search(params);
+		assertThat(toUnqualifiedVersionlessIds(results), contains(id1));
+
+		// Only the final result is written, not the results of each parameter
+		assertEquals(1, mySearchResultDao.count() - countBefore);
+	}
+
 	@Test
 	public void testSearchStringParamReallyLong() {
 		String methodName = "testSearchStringParamReallyLong";
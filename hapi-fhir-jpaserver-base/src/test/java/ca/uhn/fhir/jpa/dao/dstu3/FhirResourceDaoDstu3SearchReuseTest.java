@@ -0,0 +1,140 @@
+package ca.uhn.fhir.jpa.dao.dstu3;
+
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.empty;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertThat;
+
+import org.hl7.fhir.dstu3.model.Meta;
+import org.hl7.fhir.dstu3.model.Observation;
+import org.hl7.fhir.dstu3.model.Patient;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.Test;
+
+import ca.uhn.fhir.jpa.dao.DaoConfig;
+import ca.uhn.fhir.jpa.dao.SearchParameterMap;
+import ca.uhn.fhir.jpa.search.PersistedJpaBundleProvider;
+import ca.uhn.fhir.rest.api.SortSpec;
+import ca.uhn.fhir.rest.server.Constants;
+import ca.uhn.fhir.rest.param.StringParam;
+import ca.uhn.fhir.rest.param.TokenParam;
+import ca.uhn.fhir.rest.server.IBundleProvider;
+import ca.uhn.fhir.util.TestUtil;
+
+public class FhirResourceDaoDstu3SearchReuseTest extends BaseJpaDstu3Test {
+
+	@After
+	public void afterResetSearchReuse() {
+		myDaoConfig.setReuseCachedSearchResultsForMillis(new DaoConfig().getReuseCachedSearchResultsForMillis());
+	}
+
+	@Before
+	public void beforeEnableSearchReuse() {
+		myDaoConfig.setReuseCachedSearchResultsForMillis(60000L);
+	}
+
+	@Test
+	public void testEquivalentSearchIsReused() throws Exception {
+		Patient pt = new Patient();
+		pt.addName().setFamily("FAMILY");
+		pt.setActive(true);
+		IIdType id = myPatientDao.create(pt, mySrd).getId().toUnqualifiedVersionless();
+		waitForNextMilli();
+
+		SearchParameterMap params = new SearchParameterMap();
+		params.add(Patient.SP_FAMILY, new StringParam("FAMILY"));
+		params.add(Patient.SP_ACTIVE, new TokenParam(null, "true"));
+		String uuid1 = searchUuid(params);
+
+		// Same parameters in a different order
+		params = new SearchParameterMap();
+		params.add(Patient.SP_ACTIVE, new TokenParam(null, "true"));
+		params.add(Patient.SP_FAMILY, new StringParam("FAMILY"));
+		String uuid2 = searchUuid(params);
+		assertEquals(uuid1, uuid2);
+		assertThat(toUnqualifiedVersionlessIds(myPatientDao.search(params)), containsInAnyOrder(id));
+
+		// A different sort is a different search
+		params = new SearchParameterMap();
+		params.add(Patient.SP_ACTIVE, new TokenParam(null, "true"));
+		params.add(Patient.SP_FAMILY, new StringParam("FAMILY"));
+		params.setSort(new SortSpec(Patient.SP_FAMILY));
+		assertNotEquals(uuid1, searchUuid(params));
+	}
+
+	@Test
+	public void testSearchNotReusedAfterWrite() throws Exception {
+		Patient pt = new Patient();
+		pt.addName().setFamily("FAMILY");
+		IIdType id1 = myPatientDao.create(pt, mySrd).getId().toUnqualifiedVersionless();
+		waitForNextMilli();
+
+		SearchParameterMap params = new SearchParameterMap();
+		params.add(Patient.SP_FAMILY, new StringParam("FAMILY"));
+		String uuid1 = searchUuid(params);
+
+		// Writing another resource type doesn't affect the search
+		myObservationDao.create(new Observation(), mySrd);
+		waitForNextMilli();
+		assertEquals(uuid1, searchUuid(params));
+
+		pt = new Patient();
+		pt.addName().setFamily("FAMILY");
+		IIdType id2 = myPatientDao.create(pt, mySrd).getId().toUnqualifiedVersionless();
+
+		IBundleProvider found = myPatientDao.search(params);
+		assertNotEquals(uuid1, ((PersistedJpaBundleProvider) found).getSearchUuid());
+		assertThat(toUnqualifiedVersionlessIds(found), containsInAnyOrder(id1, id2));
+	}
+
+	@Test
+	public void testSearchNotReusedAfterMetaAdd() throws Exception {
+		Patient pt = new Patient();
+		pt.addName().setFamily("FAMILY");
+		IIdType id = myPatientDao.create(pt, mySrd).getId().toUnqualifiedVersionless();
+		waitForNextMilli();
+
+		SearchParameterMap params = new SearchParameterMap();
+		params.add(Constants.PARAM_TAG, new TokenParam("http://foo", "bar"));
+		String uuid1 = searchUuid(params);
+		assertThat(toUnqualifiedVersionlessIds(myPatientDao.search(params)), empty());
+
+		Meta meta = new Meta();
+		meta.addTag().setSystem("http://foo").setCode("bar");
+		myPatientDao.metaAddOperation(id, meta, mySrd);
+
+		IBundleProvider found = myPatientDao.search(params);
+		assertNotEquals(uuid1, ((PersistedJpaBundleProvider) found).getSearchUuid());
+		assertThat(toUnqualifiedVersionlessIds(found), containsInAnyOrder(id));
+	}
+
+	@Test
+	public void testSearchNotReusedWhenDisabled() {
+		myDaoConfig.setReuseCachedSearchResultsForMillis(null);
+
+		SearchParameterMap params = new SearchParameterMap();
+		params.add(Patient.SP_FAMILY, new StringParam("FAMILY"));
+		assertNotEquals(searchUuid(params), searchUuid(params));
+	}
+
+	private String searchUuid(SearchParameterMap theParams) {
+		return ((PersistedJpaBundleProvider) myPatientDao.search(theParams)).getSearchUuid();
+	}
+
+	/**
+	 * Searches created in the same millisecond as a write are never reused
+	 */
+	private static void waitForNextMilli() throws InterruptedException {
+		Thread.sleep(5);
+	}
+
+	@AfterClass
+	public static void afterClassClearContext() {
+		TestUtil.clearAllStaticFieldsForUnitTest();
+	}
+
+}
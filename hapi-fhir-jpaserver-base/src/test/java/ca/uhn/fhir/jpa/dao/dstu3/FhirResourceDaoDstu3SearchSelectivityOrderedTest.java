@@ -0,0 +1,111 @@
+package ca.uhn.fhir.jpa.dao.dstu3;
+
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.hl7.fhir.dstu3.model.Observation;
+import org.hl7.fhir.dstu3.model.Observation.ObservationStatus;
+import org.hl7.fhir.dstu3.model.Patient;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+
+import ca.uhn.fhir.jpa.dao.DaoConfig;
+import ca.uhn.fhir.jpa.dao.SearchParameterMap;
+import ca.uhn.fhir.jpa.search.SearchParamSelectivitySvc;
+import ca.uhn.fhir.model.api.IQueryParameterType;
+import ca.uhn.fhir.rest.method.RestSearchParameterTypeEnum;
+import ca.uhn.fhir.rest.param.ReferenceParam;
+import ca.uhn.fhir.rest.param.TokenParam;
+import ca.uhn.fhir.util.TestUtil;
+
+/**
+ * Runs all of the search tests with search parameters applied in order of their estimated selectivity
+ */
+public class FhirResourceDaoDstu3SearchSelectivityOrderedTest extends FhirResourceDaoDstu3SearchNoFtTest {
+
+	@Autowired
+	private SearchParamSelectivitySvc mySearchParamSelectivitySvc;
+
+	@After
+	public void afterResetSelectivityOrdering() {
+		myDaoConfig.setOrderSearchParamsBySelectivity(new DaoConfig().isOrderSearchParamsBySelectivity());
+	}
+
+	@Before
+	public void beforeEnableSelectivityOrdering() {
+		myDaoConfig.setOrderSearchParamsBySelectivity(true);
+		mySearchParamSelectivitySvc.clearCache();
+	}
+
+	@Test
+	public void testEstimateToken() {
+		for (int i = 0; i < 5; i++) {
+			Observation obs = new Observation();
+			obs.setStatus(ObservationStatus.FINAL);
+			obs.getCode().addCoding().setSystem("http://loinc.org").setCode(i == 0 ? "rare" : "common");
+			myObservationDao.create(obs, mySrd);
+		}
+
+		assertEquals(1, estimate(Observation.SP_CODE, RestSearchParameterTypeEnum.TOKEN, new TokenParam("http://loinc.org", "rare")));
+		assertEquals(4, estimate(Observation.SP_CODE, RestSearchParameterTypeEnum.TOKEN, new TokenParam(null, "common")));
+		assertEquals(0, estimate(Observation.SP_CODE, RestSearchParameterTypeEnum.TOKEN, new TokenParam("http://foo", "common")));
+		assertEquals(5, estimate(Observation.SP_STATUS, RestSearchParameterTypeEnum.TOKEN, new TokenParam(null, "final")));
+		assertEquals(mySearchParamSelectivitySvc.getMaxCount(), estimate(Observation.SP_SUBJECT, RestSearchParameterTypeEnum.REFERENCE, new ReferenceParam("Patient/123")));
+	}
+
+	@Test
+	public void testSearchAppliesMostSelectiveParameterFirst() {
+		Patient pt = new Patient();
+		pt.setActive(true);
+		IIdType ptId = myPatientDao.create(pt, mySrd).getId().toUnqualifiedVersionless();
+
+		List<IIdType> expected = new ArrayList<IIdType>();
+		for (int i = 0; i < 10; i++) {
+			Observation obs = new Observation();
+			obs.setStatus(ObservationStatus.FINAL);
+			obs.getCode().addCoding().setSystem("http://loinc.org").setCode(i < 2 ? "rare" : "common");
+			if (i % 2 == 0) {
+				obs.getSubject().setReferenceElement(ptId);
+			}
+			IIdType id = myObservationDao.create(obs, mySrd).getId().toUnqualifiedVersionless();
+			if (i < 2 && i % 2 == 0) {
+				expected.add(id);
+			}
+		}
+
+		SearchParameterMap params = new SearchParameterMap();
+		params.add(Observation.SP_STATUS, new TokenParam(null, "final"));
+		params.add(Observation.SP_SUBJECT, new ReferenceParam(ptId.getValue()));
+		params.add(Observation.SP_CODE, new TokenParam("http://loinc.org", "rare"));
+		assertThat(toUnqualifiedVersionlessIds(myObservationDao.search(params)), containsInAnyOrder(expected.toArray()));
+	}
+
+	private long estimate(final String theParamName, final RestSearchParameterTypeEnum theParamType, final IQueryParameterType theValue) {
+		return newTxTemplate().execute(new TransactionCallback<Long>() {
+			@Override
+			public Long doInTransaction(TransactionStatus theStatus) {
+				List<List<? extends IQueryParameterType>> andOr = new ArrayList<List<? extends IQueryParameterType>>();
+				List<IQueryParameterType> or = new ArrayList<IQueryParameterType>();
+				or.add(theValue);
+				andOr.add(or);
+				return mySearchParamSelectivitySvc.estimate("Observation", theParamName, theParamType, andOr);
+			}
+		});
+	}
+
+	@AfterClass
+	public static void afterClassClearContext() {
+		TestUtil.clearAllStaticFieldsForUnitTest();
+	}
+
+}
@@ -0,0 +1,99 @@
+package ca.uhn.fhir.jpa.dao.dstu3;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.junit.Assert.assertThat;
+
+import java.util.Date;
+
+import org.hl7.fhir.dstu3.model.Observation;
+import org.hl7.fhir.dstu3.model.Observation.ObservationStatus;
+import org.hl7.fhir.dstu3.model.Patient;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.Test;
+
+import ca.uhn.fhir.jpa.dao.DaoConfig;
+import ca.uhn.fhir.jpa.dao.SearchParameterMap;
+import ca.uhn.fhir.rest.api.SortOrderEnum;
+import ca.uhn.fhir.rest.api.SortSpec;
+import ca.uhn.fhir.rest.param.DateRangeParam;
+import ca.uhn.fhir.rest.param.ReferenceParam;
+import ca.uhn.fhir.rest.param.TokenParam;
+import ca.uhn.fhir.util.TestUtil;
+
+/**
+ * Runs all of the search tests with searches compiled into a single SQL statement
+ */
+public class FhirResourceDaoDstu3SearchSingleStatementTest extends FhirResourceDaoDstu3SearchNoFtTest {
+
+	@After
+	public void afterResetSingleStatementSearch() {
+		myDaoConfig.setSingleStatementSearch(new DaoConfig().isSingleStatementSearch());
+	}
+
+	@Before
+	public void beforeEnableSingleStatementSearch() {
+		myDaoConfig.setSingleStatementSearch(true);
+	}
+
+	@Test
+	public void testSearchMultipleAndsWithSortAndLastUpdated() {
+		Patient pt = new Patient();
+		pt.setActive(true);
+		IIdType ptId = myPatientDao.create(pt, mySrd).getId().toUnqualifiedVersionless();
+
+		Observation obs1 = new Observation();
+		obs1.setStatus(ObservationStatus.FINAL);
+		obs1.getSubject().setReferenceElement(ptId);
+		obs1.getCode().addCoding().setSystem("http://loinc.org").setCode("1234-5");
+		obs1.setEffective(new org.hl7.fhir.dstu3.model.DateTimeType("2011-01-01"));
+		IIdType obsId1 = myObservationDao.create(obs1, mySrd).getId().toUnqualifiedVersionless();
+
+		Observation obs2 = new Observation();
+		obs2.setStatus(ObservationStatus.FINAL);
+		obs2.getSubject().setReferenceElement(ptId);
+		obs2.getCode().addCoding().setSystem("http://loinc.org").setCode("1234-5");
+		obs2.setEffective(new org.hl7.fhir.dstu3.model.DateTimeType("2012-01-01"));
+		IIdType obsId2 = myObservationDao.create(obs2, mySrd).getId().toUnqualifiedVersionless();
+
+		// Matches the code but not the status
+		Observation obs3 = new Observation();
+		obs3.setStatus(ObservationStatus.PRELIMINARY);
+		obs3.getSubject().setReferenceElement(ptId);
+		obs3.getCode().addCoding().setSystem("http://loinc.org").setCode("1234-5");
+		myObservationDao.create(obs3, mySrd);
+
+		// Matches the status and code but has no effective date, so it is sorted last
+		Observation obs4 = new Observation();
+		obs4.setStatus(ObservationStatus.FINAL);
+		obs4.getSubject().setReferenceElement(ptId);
+		obs4.getCode().addCoding().setSystem("http://loinc.org").setCode("1234-5");
+		IIdType obsId4 = myObservationDao.create(obs4, mySrd).getId().toUnqualifiedVersionless();
+
+		SearchParameterMap params = new SearchParameterMap();
+		params.add(Observation.SP_STATUS, new TokenParam(null, "final"));
+		params.add(Observation.SP_CODE, new TokenParam("http://loinc.org", "1234-5"));
+		params.add(Observation.SP_SUBJECT, new ReferenceParam(ptId.getValue()));
+		params.setSort(new SortSpec(Observation.SP_DATE, SortOrderEnum.DESC));
+		assertThat(toUnqualifiedVersionlessIds(myObservationDao.search(params)), contains(obsId2, obsId1, obsId4));
+
+		params = new SearchParameterMap();
+		params.add(Observation.SP_STATUS, new TokenParam(null, "final"));
+		params.add(Observation.SP_DATE, new DateRangeParam("2011-06-01", null));
+		assertThat(toUnqualifiedVersionlessIds(myObservationDao.search(params)), contains(obsId2));
+
+		params = new SearchParameterMap();
+		params.add(Observation.SP_STATUS, new TokenParam(null, "final"));
+		params.setLastUpdated(new DateRangeParam(new Date(System.currentTimeMillis() + 60000), null));
+		assertThat(toUnqualifiedVersionlessIds(myObservationDao.search(params)), empty());
+	}
+
+	@AfterClass
+	public static void afterClassClearContext() {
+		TestUtil.clearAllStaticFieldsForUnitTest();
+	}
+
+}
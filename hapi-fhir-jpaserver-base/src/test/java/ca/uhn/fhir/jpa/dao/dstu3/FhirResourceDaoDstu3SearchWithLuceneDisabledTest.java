@@ -36,6 +36,10 @@ import ca.uhn.fhir.util.TestUtil;
 public class FhirResourceDaoDstu3SearchWithLuceneDisabledTest extends BaseJpaTest {
 	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(FhirResourceDaoDstu3SearchWithLuceneDisabledTest.class);
 
+	@Autowired
+	private ForcedIdCacheSvc myForcedIdCacheSvc;
+	@Autowired
+	private TagDefinitionCacheSvc myTagDefinitionCacheSvc;
 	@Autowired
 	@Qualifier("myAllergyIntoleranceDaoDstu3")
 	private IFhirResourceDao<AllergyIntolerance> myAllergyIntoleranceDao;
@@ -152,6 +156,8 @@ public class FhirResourceDaoDstu3SearchWithLuceneDisabledTest extends BaseJpaTes
 	public void beforePurgeDatabase() {
 		final EntityManager entityManager = this.myEntityManager;
 		purgeDatabase(entityManager, myTxManager);
+		myForcedIdCacheSvc.clearCache();
+		myTagDefinitionCacheSvc.clearCache();
 	}
 
 	@Before
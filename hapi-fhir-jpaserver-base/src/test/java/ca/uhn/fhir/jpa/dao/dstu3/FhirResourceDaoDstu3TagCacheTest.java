@@ -0,0 +1,89 @@
+package ca.uhn.fhir.jpa.dao.dstu3;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.hl7.fhir.dstu3.model.Patient;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.junit.AfterClass;
+import org.junit.Test;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+
+import ca.uhn.fhir.jpa.entity.TagDefinition;
+import ca.uhn.fhir.util.TestUtil;
+
+public class FhirResourceDaoDstu3TagCacheTest extends BaseJpaDstu3Test {
+
+	@Test
+	public void testConcurrentWritersCreateOneDefinition() throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<IIdType>> futures = new ArrayList<Future<IIdType>>();
+			for (int i = 0; i < 20; i++) {
+				futures.add(executor.submit(new Callable<IIdType>() {
+					@Override
+					public IIdType call() throws Exception {
+						return createTaggedPatient();
+					}
+				}));
+			}
+			for (Future<IIdType> next : futures) {
+				next.get();
+			}
+		} finally {
+			executor.shutdown();
+		}
+
+		assertEquals(3, countTagDefinitions());
+	}
+
+	@Test
+	public void testTagsStoredFromCachedDefinitions() {
+		IIdType id1 = createTaggedPatient();
+		IIdType id2 = createTaggedPatient();
+		assertEquals(3, countTagDefinitions());
+
+		// Definitions from a previous transaction are reused even after the cache was emptied
+		myTagDefinitionCacheSvc.clearCache();
+		IIdType id3 = createTaggedPatient();
+		assertEquals(3, countTagDefinitions());
+
+		for (IIdType next : new IIdType[] { id1, id2, id3 }) {
+			Patient patient = myPatientDao.read(next, mySrd);
+			assertEquals("Tag Display", patient.getMeta().getTag("http://tags", "tag").getDisplay());
+			assertEquals("Security Display", patient.getMeta().getSecurity("http://security", "sec").getDisplay());
+			assertEquals("http://profile", patient.getMeta().getProfile().get(0).getValue());
+		}
+	}
+
+	private IIdType createTaggedPatient() {
+		Patient patient = new Patient();
+		patient.getMeta().addTag("http://tags", "tag", "Tag Display");
+		patient.getMeta().addSecurity("http://security", "sec", "Security Display");
+		patient.getMeta().addProfile("http://profile");
+		patient.setActive(true);
+		return myPatientDao.create(patient, mySrd).getId().toUnqualifiedVersionless();
+	}
+
+	private long countTagDefinitions() {
+		return newTxTemplate().execute(new TransactionCallback<Long>() {
+			@Override
+			public Long doInTransaction(TransactionStatus theStatus) {
+				return myEntityManager.createQuery("SELECT COUNT(t) FROM " + TagDefinition.class.getSimpleName() + " t", Long.class).getSingleResult();
+			}
+		});
+	}
+
+	@AfterClass
+	public static void afterClassClearContext() {
+		TestUtil.clearAllStaticFieldsForUnitTest();
+	}
+
+}
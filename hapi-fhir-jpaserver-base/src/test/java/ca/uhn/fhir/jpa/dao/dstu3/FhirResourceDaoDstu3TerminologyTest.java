@@ -52,6 +52,7 @@ public class FhirResourceDaoDstu3TerminologyTest extends BaseJpaDstu3Test {
 	@After
 	public void after() {
 		myDaoConfig.setDeferIndexingForCodesystemsOfSize(new DaoConfig().getDeferIndexingForCodesystemsOfSize());
+		myDaoConfig.setDeferredConceptSaveThreadCount(new DaoConfig().getDeferredConceptSaveThreadCount());
 	}
 
 	@Before
@@ -489,6 +490,30 @@ public class FhirResourceDaoDstu3TerminologyTest extends BaseJpaDstu3Test {
 		assertThat(encoded, containsStringIgnoringCase("<code value=\"childAAB\"/>"));
 	}
 
+	@Test
+	public void testIndexingIsDeferredForLargeCodeSystemsMultipleThreads() {
+		myDaoConfig.setDeferIndexingForCodesystemsOfSize(1);
+		myDaoConfig.setDeferredConceptSaveThreadCount(3);
+
+		myTermSvc.setProcessDeferred(false);
+		createExternalCsAndLocalVs();
+		myTermSvc.setProcessDeferred(true);
+
+		// A single pass saves all of the concepts and then all of the relationships
+		myTermSvc.saveDeferred();
+
+		ValueSet vs = new ValueSet();
+		ConceptSetComponent include = vs.getCompose().addInclude();
+		include.setSystem(URL_MY_CODE_SYSTEM);
+		include.addFilter().setProperty("concept").setOp(FilterOperator.ISA).setValue("ParentA");
+		ValueSet result = myValueSetDao.expand(vs, null);
+		logAndValidateValueSet(result);
+
+		assertEquals(4, result.getExpansion().getContains().size());
+
+		assertThat(toCodes(myTermSvc.findCodesBelow(URL_MY_CODE_SYSTEM, "childAA")), containsInAnyOrder("childAA", "childAAA", "childAAB"));
+	}
+
 	/**
 	 * Can't currently abort costly
 	 */
@@ -1578,6 +1578,37 @@ public class FhirResourceDaoDstu3Test extends BaseJpaDstu3Test {
 
 	}
 
+	@Test
+	public void testHistoryPagesNotShiftedByNewVersions() {
+		Patient patient = new Patient();
+		patient.addName().setFamily("testHistoryPagesNotShiftedByNewVersions");
+		IIdType id = myPatientDao.create(patient, mySrd).getId().toUnqualifiedVersionless();
+		for (int i = 0; i < 9; i++) {
+			patient.setId(id);
+			patient.setActive(i % 2 == 0);
+			myPatientDao.update(patient, mySrd);
+		}
+
+		IBundleProvider history = myPatientDao.history(id, null, null, mySrd);
+		assertEquals(10, history.size());
+		List<String> versions = new ArrayList<String>();
+		for (IBaseResource next : history.getResources(0, 5)) {
+			versions.add(next.getIdElement().getVersionIdPart());
+		}
+		assertThat(versions, contains("10", "9", "8", "7", "6"));
+
+		// A new version doesn't shift the following page, since it continues from where the previous one ended
+		patient.setId(id);
+		patient.setActive(false);
+		myPatientDao.update(patient, mySrd);
+
+		versions.clear();
+		for (IBaseResource next : history.getResources(5, 10)) {
+			versions.add(next.getIdElement().getVersionIdPart());
+		}
+		assertThat(versions, contains("5", "4", "3", "2", "1"));
+	}
+
 	@Test
 	public void testHistoryReflectsMetaOperations() throws Exception {
 		Patient inPatient = new Patient();
@@ -16,6 +16,7 @@ import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.reset;
 import static org.mockito.Mockito.verify;
 
+import java.math.BigDecimal;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashSet;
@@ -24,10 +25,14 @@ import java.util.Set;
 import java.util.TimeZone;
 
 import org.hl7.fhir.dstu3.model.Coding;
+import org.hl7.fhir.dstu3.model.DateTimeType;
 import org.hl7.fhir.dstu3.model.IdType;
 import org.hl7.fhir.dstu3.model.InstantType;
+import org.hl7.fhir.dstu3.model.Observation;
+import org.hl7.fhir.dstu3.model.Observation.ObservationStatus;
 import org.hl7.fhir.dstu3.model.Organization;
 import org.hl7.fhir.dstu3.model.Patient;
+import org.hl7.fhir.dstu3.model.Quantity;
 import org.hl7.fhir.dstu3.model.Resource;
 import org.hl7.fhir.dstu3.model.UriType;
 import org.hl7.fhir.instance.model.api.IBaseResource;
@@ -36,11 +41,19 @@ import org.junit.AfterClass;
 import org.junit.Ignore;
 import org.junit.Test;
 import org.mockito.ArgumentCaptor;
+import org.springframework.beans.factory.annotation.Autowired;
 
+import ca.uhn.fhir.jpa.dao.IndexRowStatisticsSvc;
+import ca.uhn.fhir.jpa.dao.SearchParameterMap;
+import ca.uhn.fhir.model.api.IQueryParameterType;
 import ca.uhn.fhir.model.primitive.InstantDt;
 import ca.uhn.fhir.rest.api.MethodOutcome;
 import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.rest.param.DateParam;
+import ca.uhn.fhir.rest.param.QuantityParam;
+import ca.uhn.fhir.rest.param.ReferenceParam;
 import ca.uhn.fhir.rest.param.StringParam;
+import ca.uhn.fhir.rest.param.TokenParam;
 import ca.uhn.fhir.rest.server.IBundleProvider;
 import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
 import ca.uhn.fhir.rest.server.exceptions.ResourceGoneException;
@@ -52,6 +65,9 @@ import ca.uhn.fhir.util.TestUtil;
 public class FhirResourceDaoDstu3UpdateTest extends BaseJpaDstu3Test {
 	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(FhirResourceDaoDstu3UpdateTest.class);
 
+	@Autowired
+	private IndexRowStatisticsSvc myIndexRowStatisticsSvc;
+
 	@AfterClass
 	public static void afterClassClearContext() {
 		TestUtil.clearAllStaticFieldsForUnitTest();
@@ -376,6 +392,45 @@ public class FhirResourceDaoDstu3UpdateTest extends BaseJpaDstu3Test {
 
 	}
 
+	@Test
+	public void testUpdateOnlyWritesChangedIndexRows() {
+		Patient patient = new Patient();
+		patient.setActive(true);
+		IIdType patientId = myPatientDao.create(patient, mySrd).getId().toUnqualifiedVersionless();
+
+		Observation obs = new Observation();
+		obs.setStatus(ObservationStatus.PRELIMINARY);
+		obs.addIdentifier().setSystem("urn:system").setValue("001");
+		obs.getCode().addCoding().setSystem("http://loinc.org").setCode("1234-5");
+		obs.getSubject().setReferenceElement(patientId);
+		obs.setEffective(new DateTimeType("2017-01-01T10:00:00Z"));
+		obs.setValue(new Quantity().setValue(new BigDecimal("1.5")).setSystem("http://unitsofmeasure.org").setCode("mg"));
+		IIdType id = myObservationDao.create(obs, mySrd).getId().toUnqualifiedVersionless();
+
+		myIndexRowStatisticsSvc.clear();
+
+		obs.setId(id);
+		obs.setStatus(ObservationStatus.FINAL);
+		myObservationDao.update(obs, mySrd);
+
+		// Only the status token changed
+		assertEquals(1, myIndexRowStatisticsSvc.getIndexingCount());
+		assertEquals(1, myIndexRowStatisticsSvc.getRowsInserted());
+		assertEquals(1, myIndexRowStatisticsSvc.getRowsRemoved());
+		assertTrue(myIndexRowStatisticsSvc.getRowsUnchanged() > 5);
+
+		SearchParameterMap params = new SearchParameterMap();
+		params.add(Observation.SP_STATUS, new TokenParam(null, "final"));
+		params.add(Observation.SP_DATE, (IQueryParameterType) new DateParam("2017-01-01T10:00:00Z"));
+		params.add(Observation.SP_VALUE_QUANTITY, new QuantityParam("1.5"));
+		params.add(Observation.SP_SUBJECT, new ReferenceParam(patientId.getValue()));
+		assertThat(toUnqualifiedVersionlessIdValues(myObservationDao.search(params)), contains(id.getValue()));
+
+		params = new SearchParameterMap();
+		params.add(Observation.SP_STATUS, new TokenParam(null, "preliminary"));
+		assertEquals(0, myObservationDao.search(params).size());
+	}
+
 	@Test
 	public void testUpdateRejectsInvalidTypes() throws InterruptedException {
 		Patient p1 = new Patient();
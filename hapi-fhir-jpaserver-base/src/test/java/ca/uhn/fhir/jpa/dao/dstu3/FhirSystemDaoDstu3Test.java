@@ -23,6 +23,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 
@@ -51,6 +52,7 @@ import org.springframework.transaction.support.TransactionTemplate;
 
 import ca.uhn.fhir.jpa.dao.BaseHapiFhirDao;
 import ca.uhn.fhir.jpa.dao.DaoConfig;
+import ca.uhn.fhir.jpa.dao.ReindexStatus;
 import ca.uhn.fhir.jpa.dao.SearchParameterMap;
 import ca.uhn.fhir.jpa.entity.ResourceEncodingEnum;
 import ca.uhn.fhir.jpa.entity.ResourceTable;
@@ -61,6 +63,8 @@ import ca.uhn.fhir.model.api.ResourceMetadataKeyEnum;
 import ca.uhn.fhir.model.primitive.IdDt;
 import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
 import ca.uhn.fhir.rest.param.ReferenceParam;
+import ca.uhn.fhir.rest.param.StringParam;
+import ca.uhn.fhir.rest.param.TokenParam;
 import ca.uhn.fhir.rest.server.Constants;
 import ca.uhn.fhir.rest.server.IBundleProvider;
 import ca.uhn.fhir.rest.server.exceptions.*;
@@ -75,6 +79,9 @@ public class FhirSystemDaoDstu3Test extends BaseJpaDstu3SystemTest {
 	public void after() {
 		myDaoConfig.setAllowInlineMatchUrlReferences(false);
 		myDaoConfig.setAllowMultipleDelete(new DaoConfig().isAllowMultipleDelete());
+		myDaoConfig.setReindexChunkSize(new DaoConfig().getReindexChunkSize());
+		myDaoConfig.setReindexThreadCount(new DaoConfig().getReindexThreadCount());
+		myDaoConfig.setTransactionPreparationThreadCount(new DaoConfig().getTransactionPreparationThreadCount());
 	}
 
 	@SuppressWarnings("unchecked")
@@ -240,6 +247,71 @@ public class FhirSystemDaoDstu3Test extends BaseJpaDstu3SystemTest {
 
 	}
 
+	@Test
+	public void testReindexingInParallelChunksIsolatesFailures() {
+		myDaoConfig.setReindexChunkSize(3);
+		myDaoConfig.setReindexThreadCount(4);
+
+		final List<Long> pids = new ArrayList<Long>();
+		for (int i = 0; i < 20; i++) {
+			Patient p = new Patient();
+			p.addName().setFamily("family" + i);
+			pids.add(myPatientDao.create(p, mySrd).getId().getIdPartAsLong());
+		}
+
+		// Make one resource unparseable
+		final Long badPid = pids.get(7);
+		TransactionTemplate template = new TransactionTemplate(myTxManager);
+		template.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+		template.execute(new TransactionCallback<Void>() {
+			@Override
+			public Void doInTransaction(TransactionStatus theStatus) {
+				ResourceTable table = myEntityManager.find(ResourceTable.class, badPid);
+				table.setEncoding(ResourceEncodingEnum.JSON);
+				try {
+					table.setResource("{\"resourceType\":\"FOO\"}".getBytes("UTF-8"));
+				} catch (UnsupportedEncodingException e) {
+					throw new Error(e);
+				}
+				myEntityManager.merge(table);
+				return null;
+			}
+		});
+
+		mySystemDao.markAllResourcesForReindexing();
+		ReindexStatus status = mySystemDao.getReindexStatus();
+		assertEquals(20, status.getRemainingCount());
+		assertEquals(0, status.getProcessedCount());
+		assertNull(status.getFinished());
+
+		assertEquals(20, mySystemDao.performReindexingPass(null));
+		assertEquals(0, mySystemDao.performReindexingPass(null));
+
+		new TransactionTemplate(myTxManager).execute(new TransactionCallback<Void>() {
+			@Override
+			public Void doInTransaction(TransactionStatus theStatus) {
+				for (Long next : pids) {
+					Long expected = next.equals(badPid) ? BaseHapiFhirDao.INDEX_STATUS_INDEXING_FAILED : BaseHapiFhirDao.INDEX_STATUS_INDEXED;
+					assertEquals(expected, myEntityManager.find(ResourceTable.class, next).getIndexStatus());
+				}
+				return null;
+			}
+		});
+
+		// Resources sharing a chunk with the failed one are still searchable
+		SearchParameterMap params = new SearchParameterMap();
+		params.add(Patient.SP_FAMILY, new StringParam("family6"));
+		assertEquals(1, myPatientDao.search(params).size());
+
+		status = mySystemDao.getReindexStatus();
+		assertEquals(0, status.getRemainingCount());
+		assertEquals(20, status.getProcessedCount());
+		assertEquals(1, status.getFailedCount());
+		assertNotNull(status.getStarted());
+		assertNotNull(status.getFinished());
+		assertEquals(Long.valueOf(0), status.getEstimatedMillisRemaining());
+	}
+
 	@Test
 	public void testSystemMetaOperation() {
 
@@ -1891,6 +1963,63 @@ public class FhirSystemDaoDstu3Test extends BaseJpaDstu3SystemTest {
 		assertEquals(id0.toUnqualifiedVersionless().getValue(), app2.getParticipant().get(1).getActor().getReference());
 	}
 
+	@Test
+	public void testTransactionWithPreparationInParallel() {
+		myDaoConfig.setTransactionPreparationThreadCount(4);
+
+		Bundle request = new Bundle();
+		request.setType(BundleType.TRANSACTION);
+		Patient patient = new Patient();
+		patient.addName().setFamily("PARALLELFAMILY");
+		request.addEntry().setResource(patient).setFullUrl("urn:uuid:aaaa-1111").getRequest().setMethod(HTTPVerb.POST).setUrl("Patient");
+		for (int i = 0; i < 50; i++) {
+			Observation obs = new Observation();
+			obs.getCode().addCoding().setSystem("http://parallel").setCode("CODE" + (i % 2));
+			obs.getCode().setText("Observation number " + i);
+			obs.getSubject().setReference("urn:uuid:aaaa-1111");
+			request.addEntry().setResource(obs).getRequest().setMethod(HTTPVerb.POST).setUrl("Observation");
+		}
+
+		Bundle response = mySystemDao.transaction(mySrd, request);
+		assertEquals(51, response.getEntry().size());
+		IdType patientId = new IdType(response.getEntry().get(0).getResponse().getLocation()).toUnqualifiedVersionless();
+
+		SearchParameterMap params = new SearchParameterMap();
+		params.add(Observation.SP_SUBJECT, new ReferenceParam(patientId.getValue()));
+		assertEquals(50, myObservationDao.search(params).size());
+
+		params = new SearchParameterMap();
+		params.add(Observation.SP_CODE, new TokenParam("http://parallel", "CODE1"));
+		assertEquals(25, myObservationDao.search(params).size());
+
+		params = new SearchParameterMap();
+		params.add(Patient.SP_FAMILY, new StringParam("PARALLELFAMILY"));
+		assertEquals(1, myPatientDao.search(params).size());
+	}
+
+	@Test
+	public void testTransactionWithPreparationInParallelFailsValidation() {
+		myDaoConfig.setTransactionPreparationThreadCount(4);
+
+		Bundle request = new Bundle();
+		request.setType(BundleType.TRANSACTION);
+		for (int i = 0; i < 10; i++) {
+			Observation obs = new Observation();
+			obs.getCode().setText("Observation number " + i);
+			if (i == 7) {
+				obs.getMeta().addTag(Constants.TAG_SUBSETTED_SYSTEM, Constants.TAG_SUBSETTED_CODE, null);
+			}
+			request.addEntry().setResource(obs).getRequest().setMethod(HTTPVerb.POST).setUrl("Observation");
+		}
+
+		try {
+			mySystemDao.transaction(mySrd, request);
+			fail();
+		} catch (UnprocessableEntityException e) {
+			assertThat(e.getMessage(), containsString("subsetted"));
+		}
+	}
+
 	@Test
 	public void testTransactionWithReferenceToCreateIfNoneExist() {
 		Bundle bundle = new Bundle();
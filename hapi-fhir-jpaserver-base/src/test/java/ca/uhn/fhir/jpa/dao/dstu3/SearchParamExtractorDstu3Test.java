@@ -2,11 +2,19 @@ package ca.uhn.fhir.jpa.dao.dstu3;
 
 import static org.junit.Assert.*;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.hl7.fhir.dstu3.hapi.validation.DefaultProfileValidationSupport;
 import org.hl7.fhir.dstu3.hapi.validation.IValidationSupport;
 import org.hl7.fhir.dstu3.model.Observation;
+import org.hl7.fhir.dstu3.model.Observation.ObservationStatus;
+import org.hl7.fhir.dstu3.model.Patient;
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Test;
@@ -15,10 +23,13 @@ import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.jpa.entity.BaseResourceIndexedSearchParam;
 import ca.uhn.fhir.jpa.entity.ResourceIndexedSearchParamToken;
 import ca.uhn.fhir.jpa.entity.ResourceTable;
+import ca.uhn.fhir.jpa.util.StopWatch;
 import ca.uhn.fhir.util.TestUtil;
 
 public class SearchParamExtractorDstu3Test {
 
+	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(SearchParamExtractorDstu3Test.class);
+
 	private static FhirContext ourCtx = FhirContext.forDstu3();
 	private static IValidationSupport ourValidationSupport;
 
@@ -45,5 +56,89 @@ public class SearchParamExtractorDstu3Test {
 		assertEquals("SYSTEM", token.getSystem());
 		assertEquals("CODE", token.getValue());
 	}
-	
+
+	@Test
+	public void testExtractFromMultipleThreads() throws Exception {
+		final SearchParamExtractorDstu3 extractor = new SearchParamExtractorDstu3(ourCtx, ourValidationSupport);
+		int expected = new SearchParamExtractorDstu3(ourCtx, ourValidationSupport).extractSearchParamTokens(new ResourceTable(), newObservation()).size();
+		assertTrue(expected >= 3);
+
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+			for (int i = 0; i < 20; i++) {
+				futures.add(executor.submit(new Callable<Integer>() {
+					@Override
+					public Integer call() throws Exception {
+						int retVal = 0;
+						for (int j = 0; j < 50; j++) {
+							retVal += extractor.extractSearchParamTokens(new ResourceTable(), newObservation()).size();
+						}
+						return retVal;
+					}
+				}));
+			}
+			for (Future<Integer> next : futures) {
+				assertEquals(50 * expected, next.get().intValue());
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * Search parameter paths are parsed once and then reused, so indexing the same resource
+	 * again must give the same index rows as the first time
+	 */
+	@Test
+	public void testIndexingWithCachedPaths() {
+		SearchParamExtractorDstu3 extractor = new SearchParamExtractorDstu3(ourCtx, ourValidationSupport);
+		Patient patient = new Patient();
+		patient.addName().setFamily("FAMILY").addGiven("GIVEN");
+		patient.addIdentifier().setSystem("urn:system").setValue("12345");
+		patient.setActive(true);
+		Observation obs = newObservation();
+
+		StopWatch sw = new StopWatch();
+		List<Integer> patientCounts = indexAllParams(extractor, patient);
+		List<Integer> obsCounts = indexAllParams(extractor, obs);
+		ourLog.info("First indexing took {}ms", sw.getMillisAndRestart());
+
+		// name, family, given and phonetic; identifier, active and deceased
+		assertEquals(6, patientCounts.get(0).intValue());
+		assertEquals(3, patientCounts.get(1).intValue());
+		// status, category and code
+		assertEquals(3, obsCounts.get(1).intValue());
+
+		int count = 500;
+		for (int i = 0; i < count; i++) {
+			assertEquals(patientCounts, indexAllParams(extractor, patient));
+			assertEquals(obsCounts, indexAllParams(extractor, obs));
+		}
+		ourLog.info("Subsequent indexing took {}ms per resource", sw.getMillisPerOperation(count * 2));
+	}
+
+	/**
+	 * Returns the number of index rows of each type (string, token, date, number, quantity and URI)
+	 */
+	private static List<Integer> indexAllParams(SearchParamExtractorDstu3 theExtractor, org.hl7.fhir.dstu3.model.Resource theResource) {
+		ResourceTable entity = new ResourceTable();
+		List<Integer> retVal = new ArrayList<Integer>();
+		retVal.add(theExtractor.extractSearchParamStrings(entity, theResource).size());
+		retVal.add(theExtractor.extractSearchParamTokens(entity, theResource).size());
+		retVal.add(theExtractor.extractSearchParamDates(entity, theResource).size());
+		retVal.add(theExtractor.extractSearchParamNumber(entity, theResource).size());
+		retVal.add(theExtractor.extractSearchParamQuantity(entity, theResource).size());
+		retVal.add(theExtractor.extractSearchParamUri(entity, theResource).size());
+		return retVal;
+	}
+
+	private static Observation newObservation() {
+		Observation obs = new Observation();
+		obs.setStatus(ObservationStatus.FINAL);
+		obs.addCategory().addCoding().setSystem("SYSTEM").setCode("CODE");
+		obs.getCode().addCoding().setSystem("http://loinc.org").setCode("1234-5");
+		return obs;
+	}
+
 }
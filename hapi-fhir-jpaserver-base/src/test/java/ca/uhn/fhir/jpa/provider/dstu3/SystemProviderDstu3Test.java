@@ -381,6 +381,30 @@ public class SystemProviderDstu3Test extends BaseJpaDstu3Test {
 		}
 	}
 	
+	@Test
+	public void testReindexStatus() throws Exception {
+		Patient p = new Patient();
+		p.setActive(true);
+		ourClient.create().resource(p).execute();
+
+		ourClient.operation().onServer().named("$mark-all-resources-for-reindexing").withNoParameters(Parameters.class).execute();
+
+		Parameters output = ourClient.operation().onServer().named("$reindex-status").withNoParameters(Parameters.class).execute();
+		ourLog.info(myFhirCtx.newXmlParser().setPrettyPrint(true).encodeResourceToString(output));
+		assertEquals("In progress", output.getParameter().get(0).getValue().primitiveValue());
+		assertEquals("remaining", output.getParameter().get(1).getName());
+		assertEquals("1", output.getParameter().get(1).getValue().primitiveValue());
+
+		mySystemDao.performReindexingPass(null);
+
+		output = ourClient.operation().onServer().named("$reindex-status").withNoParameters(Parameters.class).execute();
+		ourLog.info(myFhirCtx.newXmlParser().setPrettyPrint(true).encodeResourceToString(output));
+		assertEquals("Complete", output.getParameter().get(0).getValue().primitiveValue());
+		assertEquals("0", output.getParameter().get(1).getValue().primitiveValue());
+		assertEquals("processed", output.getParameter().get(2).getName());
+		assertEquals("1", output.getParameter().get(2).getValue().primitiveValue());
+	}
+
 	@Transactional(propagation = Propagation.NEVER)
 	@Test
 	public void testSuggestKeywords() throws Exception {
@@ -11,7 +11,9 @@ import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verify;
 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -97,6 +99,41 @@ public class TerminologyLoaderSvcTest {
 	
 	@Test
 	public void testLoadSnomedCt() throws Exception {
+		byte[] zipBytes = createSctZip();
+		ourLog.info("ZIP file has {} bytes", zipBytes.length);
+
+		RequestDetails details = mock(RequestDetails.class);
+		mySvc.loadSnomedCt(list(zipBytes), details);
+
+		verifySnomedCtStored();
+	}
+
+	@Test
+	public void testLoadSnomedCtFromUnmodifiableList() throws Exception {
+		List<byte[]> zipBytes = Collections.singletonList(createSctZip());
+
+		RequestDetails details = mock(RequestDetails.class);
+		mySvc.loadSnomedCt(zipBytes, details);
+
+		verifySnomedCtStored();
+		assertEquals(1, zipBytes.size());
+	}
+
+	@Test
+	public void testLoadSnomedCtFromFile() throws Exception {
+		File tempFile = File.createTempFile("sct", ".zip");
+		tempFile.deleteOnExit();
+		FileOutputStream fos = new FileOutputStream(tempFile);
+		fos.write(createSctZip());
+		fos.close();
+
+		RequestDetails details = mock(RequestDetails.class);
+		mySvc.loadSnomedCtFiles(Collections.singletonList(tempFile), details);
+
+		verifySnomedCtStored();
+	}
+
+	private byte[] createSctZip() throws IOException {
 		ByteArrayOutputStream bos = new ByteArrayOutputStream();
 		ZipOutputStream zos = new ZipOutputStream(bos);
 		addEntry(zos, "/sct/", "sct2_Concept_Full_INT_20160131.txt");
@@ -107,12 +144,10 @@ public class TerminologyLoaderSvcTest {
 		addEntry(zos, "/sct/", "sct2_StatedRelationship_Full_INT_20160131.txt");
 		addEntry(zos, "/sct/", "sct2_TextDefinition_Full-en_INT_20160131.txt");
 		zos.close();
+		return bos.toByteArray();
+	}
 
-		ourLog.info("ZIP file has {} bytes", bos.toByteArray().length);
-
-		RequestDetails details = mock(RequestDetails.class);
-		mySvc.loadSnomedCt(list(bos.toByteArray()), details);
-
+	private void verifySnomedCtStored() {
 		verify(myTermSvc).storeNewCodeSystemVersion(any(String.class), myCsvCaptor.capture(), any(RequestDetails.class));
 
 		TermCodeSystemVersion csv = myCsvCaptor.getValue();
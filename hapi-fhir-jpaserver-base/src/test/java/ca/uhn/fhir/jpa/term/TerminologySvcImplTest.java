@@ -14,9 +14,11 @@ import java.util.Set;
 import org.hl7.fhir.dstu3.model.CodeSystem;
 import org.hl7.fhir.dstu3.model.CodeSystem.CodeSystemContentMode;
 import org.hl7.fhir.instance.model.api.IIdType;
+import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Test;
 
+import ca.uhn.fhir.jpa.dao.DaoConfig;
 import ca.uhn.fhir.jpa.dao.dstu3.BaseJpaDstu3Test;
 import ca.uhn.fhir.jpa.entity.ResourceTable;
 import ca.uhn.fhir.jpa.entity.TermCodeSystemVersion;
@@ -30,6 +32,10 @@ public class TerminologySvcImplTest extends BaseJpaDstu3Test {
 
 	private static final String CS_URL = "http://example.com/my_code_system";
 
+	@After
+	public void after() {
+		myDaoConfig.setMaximumExpansionSize(new DaoConfig().getMaximumExpansionSize());
+	}
 
 	@AfterClass
 	public static void afterClassClearContext() {
@@ -214,7 +220,51 @@ public class TerminologySvcImplTest extends BaseJpaDstu3Test {
 		assertThat(codes, empty());
 	}
 
-	
+	@Test
+	public void testFindCodesAboveAndBelowWithMultipleParents() {
+		CodeSystem codeSystem = new CodeSystem();
+		codeSystem.setUrl(CS_URL);
+		codeSystem.setContent(CodeSystemContentMode.NOTPRESENT);
+		IIdType id = myCodeSystemDao.create(codeSystem, mySrd).getId().toUnqualified();
+
+		ResourceTable table = myResourceTableDao.findOne(id.getIdPartAsLong());
+
+		TermCodeSystemVersion cs = new TermCodeSystemVersion();
+		cs.setResource(table);
+		cs.setResourceVersionId(table.getVersion());
+
+		TermConcept parentA = new TermConcept(cs, "ParentA");
+		cs.getConcepts().add(parentA);
+		TermConcept childAA = new TermConcept(cs, "childAA");
+		parentA.addChild(childAA, RelationshipTypeEnum.ISA);
+
+		TermConcept parentB = new TermConcept(cs, "ParentB");
+		cs.getConcepts().add(parentB);
+
+		// Has two parents
+		TermConcept shared = new TermConcept(cs, "shared");
+		childAA.addChild(shared, RelationshipTypeEnum.ISA);
+		parentB.addChild(shared, RelationshipTypeEnum.ISA);
+		TermConcept sharedChild = new TermConcept(cs, "sharedChild");
+		shared.addChild(sharedChild, RelationshipTypeEnum.ISA);
+
+		myTermSvc.storeNewCodeSystemVersion(table.getId(), CS_URL, cs);
+
+		assertThat(toCodes(myTermSvc.findCodesBelow(CS_URL, "ParentB")), containsInAnyOrder("ParentB", "shared", "sharedChild"));
+		assertThat(toCodes(myTermSvc.findCodesBelow(CS_URL, "ParentA")), containsInAnyOrder("ParentA", "childAA", "shared", "sharedChild"));
+		assertThat(toCodes(myTermSvc.findCodesAbove(CS_URL, "sharedChild")), containsInAnyOrder("ParentA", "childAA", "ParentB", "shared", "sharedChild"));
+		assertThat(toCodes(myTermSvc.findCodesAbove(id.getIdPartAsLong(), id.getVersionIdPartAsLong(), "shared")), containsInAnyOrder("ParentA", "childAA", "ParentB", "shared"));
+		assertThat(toCodes(myTermSvc.findCodesBelow(id.getIdPartAsLong(), id.getVersionIdPartAsLong(), "childAA")), containsInAnyOrder("childAA", "shared", "sharedChild"));
+
+		myDaoConfig.setMaximumExpansionSize(3);
+		try {
+			myTermSvc.findCodesBelow(CS_URL, "ParentA");
+			fail();
+		} catch (InvalidRequestException e) {
+			assertEquals("Expansion of ValueSet produced too many codes (maximum 3) - Operation aborted!", e.getMessage());
+		}
+	}
+
 	@Test
 	public void testCreateDuplicateCodeSystemUri() {
 		CodeSystem codeSystem = new CodeSystem();